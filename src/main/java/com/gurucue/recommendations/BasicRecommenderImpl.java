@@ -36,7 +36,7 @@ import java.rmi.server.UnicastRemoteObject;
 /**
  * Daemon container for recommender. It configures, starts, and binds a recommender to a RMI name.
  */
-public final class BasicRecommenderImpl extends UnicastRemoteObject implements BasicRecommenderRemote {
+public final class BasicRecommenderImpl extends UnicastRemoteObject implements BasicRecommenderRemote, EventIngestionRemote {
     private final static String RECOMMENDER_FILENAME_PREFIX = "/opt/GuruCue/RecommenderStates/recommender-";
     private final static String RECOMMENDER_FILENAME_SUFFIX = ".serialized";
 
@@ -182,6 +182,18 @@ public final class BasicRecommenderImpl extends UnicastRemoteObject implements B
         }
     }
 
+    @Override
+    public int ingestEvents(final String eventType, final long[] eventIds, final long[] consumerIds, final long[] productIds, final long[] timestamps, final Object[][] meta) throws InterruptedException {
+        log.debug(logPrefix + "ingesting " + (eventIds == null ? 0 : eventIds.length) + " events of type " + eventType);
+        try {
+            return recommender.ingestEvents(eventType, eventIds, consumerIds, productIds, timestamps, meta);
+        }
+        catch (RuntimeException e) {
+            log.error(logPrefix + "ingestEvents() invocation failed for " + (eventIds == null ? 0 : eventIds.length) + " events of type " + eventType + ": " + e.toString(), e);
+            throw e;
+        }
+    }
+
     @Override
     public long getUpdateInterval() throws InterruptedException {
         return updateRunner.getIntervalMillis() / 1000L;
@@ -0,0 +1,38 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote interface for pushing new events to a recommender, in addition to the
+ * events it reads from the database. See
+ * {@link com.gurucue.recommendations.recommender.Recommender#ingestEvents(String, long[], long[], long[], long[], Object[][])}.
+ */
+public interface EventIngestionRemote extends Remote {
+    /**
+     * Pushes events of the given type; event i is described by the i-th element of each array.
+     *
+     * @param timestamps times of the events, in milliseconds
+     * @param meta meta values of each event, may be null
+     * @return the number of accepted events
+     */
+    int ingestEvents(String eventType, long[] eventIds, long[] consumerIds, long[] productIds, long[] timestamps, Object[][] meta) throws InterruptedException, RemoteException;
+}
@@ -23,12 +23,12 @@ import com.gurucue.recommendations.recommender.Commitable;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.Attr;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDLookup;
 import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.array.TFloatArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.TIntSet;
 
 import java.io.IOException;
@@ -43,6 +43,8 @@ import java.util.Map;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateProductsDelta;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 /**
  * The decision module takes track of all channels that were ever seen the user and counts  
@@ -108,7 +110,7 @@ public class AttributeFrequencyDecisionModule extends DecisionModule implements
 
         // new (changed) consumers
         final ArrayList<ConsumerData> tmp_consumers = updateData.newData;
-        final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
+        final ConsumerIDLookup tmp_ids = updateData.newConsumerIDs;
         // a map of all changes
         HashMap<Integer, TIntIntMap> tmp_freqs = new HashMap<Integer, TIntIntMap> ();
         for (ConsumerData c: tmp_consumers)
@@ -156,6 +158,21 @@ public class AttributeFrequencyDecisionModule extends DecisionModule implements
 	    List<TIntIntMap> newConsumerFreqs = (List<TIntIntMap>) in.readObject();
 	    return new UpdateAll(newConsumerFreqs);
 	}
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		out.writeIntIntMaps(consumerFreqs);
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization of data is needed
+        {
+            this.data = data;
+        }
+	    final List<TIntIntHashMap> freqs = in.readIntIntMaps();
+	    return new UpdateAll(freqs == null ? null : new ArrayList<TIntIntMap>(freqs));
+	}
     
 
     @Override
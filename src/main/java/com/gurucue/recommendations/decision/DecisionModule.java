@@ -48,13 +48,16 @@ import com.gurucue.recommendations.recommender.Commitable;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.TagsManager;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 /**
  * Abstract class for all decision modules that 
  * select a set of promising products out of a set of 
  * products with highest estimated recommendation scores.
  */
-public abstract class DecisionModule {
+public abstract class DecisionModule implements SnapshotSet.Module<DataStore, Commitable> {
     private final Logger logger =
         LogManager.getLogger(DecisionModule.class.getName());
     protected DataStore data;
@@ -250,7 +253,46 @@ public abstract class DecisionModule {
     * @throws IOException 
     * @throws ClassNotFoundException 
     */
-   public abstract Commitable updateModelFromFile(ObjectInputStream in, DataStore data) throws ClassNotFoundException, IOException;   
+   public abstract Commitable updateModelFromFile(ObjectInputStream in, DataStore data) throws ClassNotFoundException, IOException;
+
+   /**
+    * Writes the model to a section of a snapshot; by default a block with {@link #serialize(ObjectOutputStream)}.
+    * @see SnapshotSet.Module
+    */
+   @Override
+   public void writeTo(SnapshotOutput out) throws IOException
+   {
+       SnapshotSet.writeBlock(this, out);
+   }
+
+   /**
+    * Reads the model written by {@link #writeTo(SnapshotOutput)}.
+    */
+   @Override
+   public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException
+   {
+       return SnapshotSet.readBlock(this, in, data);
+   }
+
+   /**
+    * Adds the tasks that write the model to a snapshot set; by default one section, encoded right away.
+    * @see SnapshotSet.Module
+    */
+   @Override
+   public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException
+   {
+       SnapshotSet.writeSection(this, set, name, tasks);
+   }
+
+   /**
+    * Reads the model written by {@link #writeSections(SnapshotSet.Writer, String, List)}.
+    */
+   @Override
+   public Commitable readSections(final SnapshotSet.Reader set, final String name, final DataStore data) throws IOException
+   {
+       return SnapshotSet.readSection(this, set, name, data);
+   }
+
    
    
    protected class ProductAdder
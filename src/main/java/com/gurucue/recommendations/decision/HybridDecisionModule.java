@@ -34,6 +34,8 @@ import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateProductsDelta;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 /**
  * This decision module combines all other three decision modules. It takes some results from each of them.
@@ -110,6 +112,22 @@ public class HybridDecisionModule extends DecisionModule {
         cs.add(popular.updateModelFromFile(in, data));
         return new CommitAll(data, cs);
 	}
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		best.writeTo(out);
+		largestOffset.writeTo(out);
+		popular.writeTo(out);
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        ArrayList<Commitable> cs = new ArrayList<Commitable>();
+        cs.add(best.readFrom(in, data));
+        cs.add(largestOffset.readFrom(in, data));
+        cs.add(popular.readFrom(in, data));
+        return new CommitAll(data, cs);
+	}
     
 
     class CommitAll implements Commitable
@@ -434,6 +434,8 @@ public class SelectVirtualChannels extends DecisionModule {
         Map<String, ArrayList<ProductData>> programmes = new HashMap<String, ArrayList<ProductData>> ();
         for (ProductData p : newProducts)
         {
+            if (p.removed)
+                continue;
             if (p.getAttribute(CHANNEL_ATTRIBUTE) == null || p.getAttribute(START_ATTRIBUTE) == null || !p.getAttribute(CHANNEL_ATTRIBUTE).hasValue() || !p.getAttribute(START_ATTRIBUTE).hasValue())
                 continue;
             final String channel = p.getAttribute(CHANNEL_ATTRIBUTE).toString();
@@ -0,0 +1,127 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.misc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Shared worker pool for data-parallel work over index ranges (consumers,
+ * products, rows). A fork-join pool is used so that a shard may itself
+ * split further without deadlocking the pool; its workers are daemon threads,
+ * so the pool never holds the JVM up.
+ */
+public final class Parallel {
+    private static final Logger logger = LogManager.getLogger(Parallel.class);
+
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private Parallel() {}
+
+    /**
+     * Work over a contiguous range [from, to) of indices.
+     */
+    public interface ShardTask {
+        void run(int shard, int from, int to);
+    }
+
+    /**
+     * Returns the default number of shards: the number of available processors.
+     */
+    public static int defaultShards() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Returns the number of shards to use, given a configured value (may be null or
+     * non-positive, in which case the default is used), never more than the number of
+     * elements.
+     */
+    public static int shards(final Integer configured, final int size) {
+        int n = (configured == null || configured <= 0) ? defaultShards() : configured;
+        if (n > size) n = size;
+        return n < 1 ? 1 : n;
+    }
+
+    /**
+     * Splits [0, size) into <code>shards</code> contiguous ranges and runs the task
+     * on each of them, waiting for all to finish. Shard i always gets the same range
+     * for the same size and shard count, so a caller can combine per-shard results
+     * in a deterministic order. A single shard is run in the calling thread.
+     */
+    public static void forShards(final int size, final int shards, final ShardTask task) {
+        if (size <= 0) return;
+        if (shards <= 1) {
+            task.run(0, 0, size);
+            return;
+        }
+        final int chunk = (size + shards - 1) / shards;
+        final List<RecursiveAction> actions = new ArrayList<RecursiveAction>(shards);
+        for (int s = 0; s < shards; s++) {
+            final int shard = s;
+            final int from = s * chunk;
+            final int to = Math.min(size, from + chunk);
+            if (from >= to) break;
+            actions.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected void compute() {
+                    task.run(shard, from, to);
+                }
+            });
+        }
+        try {
+            if (inPool())
+                RecursiveAction.invokeAll(actions); // nested call, let this worker help out
+            else {
+                for (RecursiveAction a : actions)
+                    pool.execute(a);
+                for (RecursiveAction a : actions)
+                    a.join();
+            }
+        } catch (RuntimeException e) {
+            logger.error("Parallel task failed: " + e.toString(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the given tasks concurrently and waits for all of them.
+     */
+    public static void invokeAll(final List<Runnable> tasks) {
+        forShards(tasks.size(), tasks.size(), new ShardTask() {
+            @Override
+            public void run(int shard, int from, int to) {
+                for (int i = from; i < to; i++)
+                    tasks.get(i).run();
+            }
+        });
+    }
+
+    private static boolean inPool() {
+        final Thread t = Thread.currentThread();
+        return (t instanceof ForkJoinWorkerThread) && (((ForkJoinWorkerThread) t).getPool() == pool);
+    }
+}
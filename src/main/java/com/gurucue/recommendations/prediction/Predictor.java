@@ -18,6 +18,7 @@
  */
 package com.gurucue.recommendations.prediction;
 
+import com.gurucue.recommendations.misc.Parallel;
 import com.gurucue.recommendations.recommender.Commitable;
 import com.gurucue.recommendations.recommender.ProductPair;
 import com.gurucue.recommendations.recommender.Settings;
@@ -30,26 +31,106 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import com.gurucue.recommendations.recommender.dto.DataStore;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 /**
  * All rating predictors must extend this class. A rating predictor should
  * also have a constructor that accepts a settings object.
  */
-public abstract class Predictor implements Cloneable {
+public abstract class Predictor implements Cloneable, SnapshotSet.Module<DataStore, Commitable> {
+    // a shard of consumers in an incremental update has at least this many consumers
+    private static final int MIN_CONSUMERS_PER_SHARD = 256;
+
     // set name and ID for every predictor.
     final protected int ID;
     final protected String NAME;
     final protected Settings settings;
+    // number of shards of consumers in incremental updates, null for the default
+    private final Integer updateShards;
     
     protected Predictor(String name, Settings settings)
     {
         NAME = name;
         this.settings = settings;
         ID = settings.getSettingAsInt(name + "_ID");
+        final Integer shards = settings.getSettingAsInt(name + "_UPDATE_SHARDS");
+        updateShards = shards == null ? settings.getSettingAsInt("UPDATE_SHARDS") : shards;
+    }
+
+    /**
+     * Work of an incremental update that is independent for every consumer, see
+     * {@link Predictor#forConsumerShards(List, ConsumerShardWork)}.
+     */
+    public interface ConsumerShardWork<T> {
+        /**
+         * Returns a new, empty partial result of a shard.
+         */
+        T createPartial();
+
+        /**
+         * Processes a consumer into the partial result of its shard. It is called concurrently
+         * for consumers of different shards, so the state of the predictor may only be read.
+         */
+        void process(T partial, int consumerIndex, ConsumerData consumer);
+
+        /**
+         * Adds the partial result of a shard to the global aggregates; called in the calling
+         * thread, for one shard after another, in the order of shards.
+         */
+        void reduce(T partial);
+    }
+
+    /**
+     * Splits the consumers (indexed by consumer index, null elements are skipped) into
+     * contiguous shards, processes the shards on the shared pool and reduces their partial
+     * results at the end. The number of shards is set with &lt;name&gt;_UPDATE_SHARDS or
+     * UPDATE_SHARDS (all processors by default); small batches are processed in fewer shards.
+     */
+    protected <T> void forConsumerShards(final List<ConsumerData> consumers, final ConsumerShardWork<T> work)
+    {
+        forConsumerShards(updateShards, consumers, work);
+    }
+
+    /**
+     * Like {@link #forConsumerShards(List, ConsumerShardWork)}, with the given number of shards
+     * (null for the default), for model components shared by predictors.
+     */
+    public static <T> void forConsumerShards(final Integer configuredShards, final List<ConsumerData> consumers, final ConsumerShardWork<T> work)
+    {
+        final int size = consumers.size();
+        final int shards = Parallel.shards(configuredShards, (size + MIN_CONSUMERS_PER_SHARD - 1) / MIN_CONSUMERS_PER_SHARD);
+        final List<T> partials = new ArrayList<T>(shards);
+        for (int s = 0; s < shards; s++)
+            partials.add(work.createPartial());
+        Parallel.forShards(size, shards, new Parallel.ShardTask() {
+            @Override
+            public void run(final int shard, final int from, final int to) {
+                final T partial = partials.get(shard);
+                for (int i = from; i < to; i++)
+                {
+                    final ConsumerData c = consumers.get(i);
+                    if (c != null)
+                        work.process(partial, i, c);
+                }
+            }
+        });
+        for (final T partial : partials)
+            work.reduce(partial);
+    }
+
+    /**
+     * Returns the configured number of shards of consumers in incremental updates, null for the default.
+     */
+    protected Integer getUpdateShards()
+    {
+        return updateShards;
     }
     
     /**
@@ -219,5 +300,44 @@ public abstract class Predictor implements Cloneable {
      * @throws ClassNotFoundException 
      */
     public abstract Commitable updateModelFromFile(ObjectInputStream in, DataStore data) throws ClassNotFoundException, IOException;
+
+    /**
+     * Writes the model to a section of a snapshot; by default a block with {@link #serialize(ObjectOutputStream)}.
+     * @see SnapshotSet.Module
+     */
+    @Override
+    public void writeTo(SnapshotOutput out) throws IOException
+    {
+        SnapshotSet.writeBlock(this, out);
+    }
+
+    /**
+     * Reads the model written by {@link #writeTo(SnapshotOutput)}.
+     */
+    @Override
+    public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException
+    {
+        return SnapshotSet.readBlock(this, in, data);
+    }
+
+    /**
+     * Adds the tasks that write the model to a snapshot set; by default one section, encoded right away.
+     * @see SnapshotSet.Module
+     */
+    @Override
+    public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException
+    {
+        SnapshotSet.writeSection(this, set, name, tasks);
+    }
+
+    /**
+     * Reads the model written by {@link #writeSections(SnapshotSet.Writer, String, List)}.
+     */
+    @Override
+    public Commitable readSections(final SnapshotSet.Reader set, final String name, final DataStore data) throws IOException
+    {
+        return SnapshotSet.readSection(this, set, name, data);
+    }
+
     
 }
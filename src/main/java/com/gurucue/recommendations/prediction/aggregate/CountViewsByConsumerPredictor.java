@@ -31,6 +31,7 @@ import gnu.trove.list.TIntList;
 import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -44,6 +45,9 @@ import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.ContextDiscretizer;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 
 /**
@@ -143,46 +147,54 @@ public class CountViewsByConsumerPredictor extends Predictor {
         }
         final int eventIndex = data.getEventsDescriptor(BUYSNAME).index;
 
-        // new (changed) consumers
-        final List<ConsumerData> tmp_consumers = updateData.newData;
-        final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
+        // new (changed) consumers; each shard of them counts into its own map, which is added at the end
+        final TLongIntMap newCounts = new TLongIntHashMap (productCounts);
+        forConsumerShards(updateData.newData, new ConsumerShardWork<TLongIntMap>() {
+            @Override
+            public TLongIntMap createPartial() {
+                return new TLongIntHashMap();
+            }
 
-        TLongIntMap newCounts = new TLongIntHashMap (productCounts);
+            @Override
+            public void process(final TLongIntMap counts, final int consumerIndex, final ConsumerData c) {
+                // are there any new events for this user, otherwise continue
+                if (null == c.events[eventIndex])
+                    return;
 
-        for (ConsumerData c: tmp_consumers)
-        {
-            if (null == c) // no events were added to this user
-                continue;
-            
-            // are there any new events for this user, otherwise continue
-            if (null == c.events[eventIndex])
-                continue;
+                final long consIndex = consumerIndex;
+                final int [] items = c.events[eventIndex].getProductIndices();
+                final ConsumerMetaEventsData meta = c.events[eventIndex].getMeta();
+                for (int i = 0; i < items.length; i++)
+                {
+                    final int item = items[i];
+                    final TIntList contextPositions = contextHandler.getContext(data, item, meta, i);
 
-            final long consIndex = tmp_ids.get(c.consumerId);
-            final int [] items = c.events[eventIndex].getProductIndices();
-            final ConsumerMetaEventsData meta = c.events[eventIndex].getMeta();
-            for (int i = 0; i < items.length; i++)
-            {
-                final int item = items[i];
-                final TIntList contextPositions = contextHandler.getContext(data, item, meta, i);
-                
-                for (TIntIterator it = contextPositions.iterator(); it.hasNext(); )
+                    for (TIntIterator it = contextPositions.iterator(); it.hasNext(); )
+                    {
+                        final int pos = it.next();
+                        final long key = consIndex * MAX_PRODUCTS * MAX_CONTEXTS + item * MAX_CONTEXTS + pos;
+                        final long keyAll = consIndex * MAX_PRODUCTS * MAX_CONTEXTS + (MAX_PRODUCTS-1) * MAX_CONTEXTS + pos;
+                        counts.adjustOrPutValue(key, 1, 1);
+                        counts.adjustOrPutValue(keyAll, 1, 1);
+                    }
+
+                    // store also general counter (in MAX_CONSUMERS)
+                    final long key = MAX_CONSUMERS * MAX_PRODUCTS * MAX_CONTEXTS + item * MAX_CONTEXTS;
+                    final long keyAll = MAX_CONSUMERS * MAX_PRODUCTS * MAX_CONTEXTS + (MAX_PRODUCTS-1) * MAX_CONTEXTS;
+                    counts.adjustOrPutValue(key, 1, 1);
+                    counts.adjustOrPutValue(keyAll, 1, 1);
+                }
+            }
+
+            @Override
+            public void reduce(final TLongIntMap counts) {
+                for (TLongIntIterator it = counts.iterator(); it.hasNext(); )
                 {
-                    final int pos = it.next();
-                    final long key = consIndex * MAX_PRODUCTS * MAX_CONTEXTS + item * MAX_CONTEXTS + pos;
-                    final long keyAll = consIndex * MAX_PRODUCTS * MAX_CONTEXTS + (MAX_PRODUCTS-1) * MAX_CONTEXTS + pos;
-                    newCounts.put(key, newCounts.get(key) + 1);
-                    newCounts.put(keyAll, newCounts.get(keyAll) + 1);
+                    it.advance();
+                    newCounts.adjustOrPutValue(it.key(), it.value(), it.value());
                 }
-                
-                // store also general counter (in MAX_CONSUMERS)
-                final long key = MAX_CONSUMERS * MAX_PRODUCTS * MAX_CONTEXTS + item * MAX_CONTEXTS;
-                final long keyAll = MAX_CONSUMERS * MAX_PRODUCTS * MAX_CONTEXTS + (MAX_PRODUCTS-1) * MAX_CONTEXTS;
-                newCounts.put(key, newCounts.get(key) + 1);
-                newCounts.put(keyAll, newCounts.get(keyAll) + 1);
-                
             }
-        }
+        });
         
         logger.info("Incremental update of CountViewsByConsumerPredictor ended.");
         return new UpdateDelta(newCounts);
@@ -193,9 +205,16 @@ public class CountViewsByConsumerPredictor extends Predictor {
      */
     @Override
     public Commitable updateProducts(DataStore.UpdateProductsDelta delta) {
+        if (delta.isStable() && (delta.recycledIndices.length == 0))
+        {
+            // indices did not change, nothing to remap
+            return new UpdateProductsDelta(productCounts, delta.dataStore);
+        }
+
         // create new product counts 
         TLongIntMap newProductCounts = new TLongIntHashMap ();
         final TLongIntHashMap newProductIDs = delta.newProductIDs;
+        final TIntSet recycled = new TIntHashSet(delta.recycledIndices);
         
         for (TLongIntIterator it = productCounts.iterator(); it.hasNext(); )
         {
@@ -211,6 +230,13 @@ public class CountViewsByConsumerPredictor extends Predictor {
             {
                 newIndex = MAX_PRODUCTS - 1;   
             }
+            else if (delta.isStable())
+            {
+                // only drop the counts of products whose slots were recycled
+                if (recycled.contains((int) prod))
+                    continue;
+                newIndex = (int) prod;
+            }
             else
             {
                 final ProductData pd = data.getProductByIndex((int) prod);
@@ -248,6 +274,35 @@ public class CountViewsByConsumerPredictor extends Predictor {
         logger.info("updateModelFromFile of CountViewsByConsumerPredictor ended.");
         return new UpdateDelta(newCounts);		
 	}    
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		out.writeLongIntMap(productCounts);
+	}
+
+	/**
+	 * Updates copy the counts and commits replace them, so they are captured by reference.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+		final TLongIntMap capturedCounts = productCounts;
+		SnapshotSet.addSection(set, name, tasks, new SnapshotSet.SectionWriter() {
+			@Override
+			public void write(final SnapshotOutput out) throws IOException {
+				out.writeLongIntMap(capturedCounts);
+			}
+		});
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization of attributes is needed
+        {
+            this.data = data;
+            productCounts = new TLongIntHashMap ();
+        }        
+        return new UpdateDelta(in.readLongIntMap());
+	}
     
     @Override
     public void updateModel(final DataStore dataStore) {
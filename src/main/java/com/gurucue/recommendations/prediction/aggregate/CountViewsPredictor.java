@@ -45,6 +45,8 @@ import com.gurucue.recommendations.recommender.dto.ContextDiscretizer;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 
 /**
@@ -187,6 +189,12 @@ public class CountViewsPredictor extends Predictor {
      */
     @Override
     public Commitable updateProducts(DataStore.UpdateProductsDelta delta) {
+        if (delta.isStable())
+        {
+            // indices did not change, only forget counts of products whose slots were recycled
+            return new UpdateProductsDelta(productCounts, delta.dataStore, delta.recycledIndices);
+        }
+
         // create new product counts 
         List<TIntIntMap> newProductCounts = new ArrayList<TIntIntMap> ();
         final TLongIntHashMap newProductIDs = delta.newProductIDs;
@@ -204,7 +212,7 @@ public class CountViewsPredictor extends Predictor {
             
             newProductCounts.set(newIndex, productCounts.get(i));
         }
-        return new UpdateProductsDelta(newProductCounts, delta.dataStore);
+        return new UpdateProductsDelta(newProductCounts, delta.dataStore, new int[0]);
     }
     
     @Override
@@ -265,6 +273,24 @@ public class CountViewsPredictor extends Predictor {
         return new UpdateAll(newCounts);		
 	}      
 
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		out.writeIntIntMaps(productCounts);
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization of attributes is needed
+        {
+            this.data = data;
+            productCounts = new ArrayList<TIntIntMap> ();
+        }
+        final List<TIntIntHashMap> counts = in.readIntIntMaps();
+        if (counts == null)
+            throw new IOException("No product counts in the saved model of " + NAME);
+        return new UpdateAll(new ArrayList<TIntIntMap>(counts));
+	}
+
     private class UpdateDelta implements Commitable {
         final Map<Integer, TIntIntMap> newCounts;
     
@@ -316,15 +342,20 @@ public class CountViewsPredictor extends Predictor {
     private class UpdateProductsDelta implements Commitable {
         private final List<TIntIntMap> newProductCounts;
         private final DataStore newData;
+        private final int [] resetIndices;
     
-        UpdateProductsDelta(final List<TIntIntMap> newProductCounts, final DataStore newData) {
+        UpdateProductsDelta(final List<TIntIntMap> newProductCounts, final DataStore newData, final int [] resetIndices) {
             this.newProductCounts = newProductCounts;
             this.newData = newData;
+            this.resetIndices = resetIndices;
         }
 
         @Override
         public void commit() {
             data = newData;
+            for (final int index : resetIndices)
+                if (index < newProductCounts.size())
+                    newProductCounts.set(index, null);
             productCounts = newProductCounts;
 
         }        
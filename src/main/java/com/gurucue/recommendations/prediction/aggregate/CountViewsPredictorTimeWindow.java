@@ -45,6 +45,8 @@ import com.gurucue.recommendations.recommender.dto.ContextDiscretizer;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 
 /**
@@ -162,7 +164,7 @@ public class CountViewsPredictorTimeWindow extends Predictor {
             learningFirst = true;
         }
         final int eventIndex = data.getEventsDescriptor(BUYSNAME).index;
-        final long lastAllowedTimestamp = data.getEventsDescriptor(BUYSNAME).last_read_date - TIME_WINDOW;
+        final long lastAllowedTimestamp = updateData.getEventsDescriptor(BUYSNAME).last_read_date - TIME_WINDOW;
 
         // new (changed) consumers
         final List<ConsumerData> tmp_consumers = updateData.newData;
@@ -215,6 +217,12 @@ public class CountViewsPredictorTimeWindow extends Predictor {
      */
     @Override
     public Commitable updateProducts(DataStore.UpdateProductsDelta delta) {
+        if (delta.isStable())
+        {
+            // indices did not change, only forget counts of products whose slots were recycled
+            return new UpdateProductsDelta(productCounts, delta.dataStore, delta.recycledIndices);
+        }
+
         // create new product counts 
         List<TIntIntMap> newProductCounts = new ArrayList<TIntIntMap> ();
         final TLongIntHashMap newProductIDs = delta.newProductIDs;
@@ -232,7 +240,7 @@ public class CountViewsPredictorTimeWindow extends Predictor {
             
             newProductCounts.set(newIndex, productCounts.get(i));
         }
-        return new UpdateProductsDelta(newProductCounts, delta.dataStore);
+        return new UpdateProductsDelta(newProductCounts, delta.dataStore, new int[0]);
     }
     
     @Override
@@ -290,6 +298,24 @@ public class CountViewsPredictorTimeWindow extends Predictor {
         logger.info("updateModelFromFile of CountViewsPredictorTimeWindow ended.");
         return new UpdateAll(newCounts);		
 	}    
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		out.writeIntIntMaps(productCounts);
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization of attributes is needed
+        {
+            this.data = data;
+            productCounts = new ArrayList<TIntIntMap> ();
+        }
+        final List<TIntIntHashMap> counts = in.readIntIntMaps();
+        if (counts == null)
+            throw new IOException("No product counts in the saved model of " + NAME);
+        return new UpdateAll(new ArrayList<TIntIntMap>(counts));
+	}
 	
 
     private class UpdateDelta implements Commitable {
@@ -337,15 +363,20 @@ public class CountViewsPredictorTimeWindow extends Predictor {
     private class UpdateProductsDelta implements Commitable {
         private final List<TIntIntMap> newProductCounts;
         private final DataStore newData;
+        private final int [] resetIndices;
     
-        UpdateProductsDelta(final List<TIntIntMap> newProductCounts, final DataStore newData) {
+        UpdateProductsDelta(final List<TIntIntMap> newProductCounts, final DataStore newData, final int [] resetIndices) {
             this.newProductCounts = newProductCounts;
             this.newData = newData;
+            this.resetIndices = resetIndices;
         }
 
         @Override
         public void commit() {
             data = newData;
+            for (final int index : resetIndices)
+                if (index < newProductCounts.size())
+                    newProductCounts.set(index, new TIntIntHashMap());
             productCounts = newProductCounts;
         }        
     }    
@@ -63,6 +63,9 @@ import com.gurucue.recommendations.recommender.dto.ConsumerMetaEventsData;
 import com.gurucue.recommendations.recommender.dto.ContextDiscretizer;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 /**
  * Item-based collaborative kNN for attributes (products are similar if a specific attribute is similar). If several attributes are provided, average similarity is returned.  
@@ -463,7 +466,7 @@ public class AttributeBasedCollBuysLiftPredictor extends Predictor {
             allElements = 0;
         }
         final int buysEventIndex = data.getEventsDescriptor(BUYSNAME).index;
-        final long lastDateAllowed = data.getEventsDescriptor(BUYSNAME).last_read_date - TIME_LIMIT;
+        final long lastDateAllowed = newData.getEventsDescriptor(BUYSNAME).last_read_date - TIME_LIMIT;
         
         int new_events = 0;
         // get a number of new events
@@ -736,6 +739,53 @@ public class AttributeBasedCollBuysLiftPredictor extends Predictor {
 		long newAllElements = in.readLong();
 		return new UpdateDelta(newAttributeCounts, newSimilarities, newAllElements);
 	}       
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		writeTo(out, similarities, attributeCounts, attributeTimes, allElements);
+	}
+
+	private static void writeTo(SnapshotOutput out, TIntObjectMap<TIntLongMap> similarities, TIntLongMap attributeCounts, TIntLongMap attributeTimes, long allElements) throws IOException {
+		out.writeIntObjectMap(similarities, SnapshotOutput.INT_LONG_MAP);
+		out.writeIntLongMap(attributeCounts);
+		out.writeIntLongMap(attributeTimes);
+		out.writeLong(allElements);
+	}
+
+	/**
+	 * Every update builds new similarities and counts, which a commit swaps in, so they are
+	 * captured by reference; only the times of attributes are changed in place.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+		final TIntObjectMap<TIntLongMap> capturedSimilarities = similarities;
+		final TIntLongMap capturedCounts = attributeCounts;
+		final TIntLongMap capturedTimes = attributeTimes == null ? null : new TIntLongHashMap(attributeTimes);
+		final long capturedAll = allElements;
+		SnapshotSet.addSection(set, name, tasks, new SnapshotSet.SectionWriter() {
+			@Override
+			public void write(final SnapshotOutput out) throws IOException {
+				writeTo(out, capturedSimilarities, capturedCounts, capturedTimes, capturedAll);
+			}
+		});
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization is needed
+        {
+            this.data = data;
+            similarities = new TIntObjectHashMap<TIntLongMap>();
+            attributeCounts = new TIntLongHashMap();
+            attributeTimes = new TIntLongHashMap();
+            allElements = 0;
+        }
+		TIntObjectMap<TIntLongMap> newSimilarities = in.readIntObjectMap(SnapshotInput.INT_LONG_MAP);
+		TIntLongMap newAttributeCounts = in.readIntLongMap();
+		attributeTimes = in.readIntLongMap();
+		long newAllElements = in.readLong();
+		return new UpdateDelta(newAttributeCounts, newSimilarities, newAllElements);
+	}
     
     
     private class UpdateDelta implements Commitable {
@@ -21,7 +21,6 @@ package com.gurucue.recommendations.prediction.collaborative;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -29,24 +28,21 @@ import java.util.Random;
 
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDLookup;
 import gnu.trove.iterator.TIntIterator;
-import gnu.trove.iterator.TIntFloatIterator;
 import gnu.trove.iterator.TLongIterator;
 import gnu.trove.list.TByteList;
-import gnu.trove.list.TFloatList;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.TLongList;
 import gnu.trove.list.array.TByteArrayList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.list.array.TFloatArrayList;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -62,229 +58,9 @@ import com.gurucue.recommendations.recommender.dto.ContextDiscretizer;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
-
-
-class MF implements Serializable {
-	private static final long serialVersionUID = 8563989867626622801L;
-	
-	private static final int MAXITERATIONS = 1000; 
-	
-	double [][] p, q;
-	TLongIntMap productMap;
-	TIntIntMap consumerMap;
-	int k;
-	
-	MF(int k, TIntIntMap consumerMap, TLongIntMap productMap)
-	{
-		this.productMap = productMap;
-		this.consumerMap = consumerMap;
-		this.k = k;
-		
-		p = new double [consumerMap.size()][k];
-		q = new double [k][productMap.size()];
-	}
-	
-	/**
-	 * Initialize p and q matrix with random values. 
-	 */
-	void initializeValues()
-	{
-		Random rand = new Random();
-		
-		// initialize p - for consumers;
-		for (int i = 0; i < p.length; i++)
-			for (int j = 0; j < k; j++)
-			{
-				// fix first column of p to 1
-				if (j == 0)
-					p[i][j] = 1;
-				else
-					p[i][j] = rand.nextFloat()-0.5;
-			}
-		// initialize p - for items;
-		for (int i = 0; i < q.length; i++)
-			for (int j = 0; j < k; j++)
-			{
-				// fix second row of q to 1.0 - deprecated
-				q[j][i] = rand.nextFloat()-0.5;
-			}
-	}
-
-	private float computeError(final TIntList indices, final int iteration, final TFloatList newRatings, final TIntList newConsumers, 
-							   final ArrayList<TLongList> productTranslation)
-	{
-		float error = 0;
-		for (TIntIterator it = indices.iterator(); it.hasNext(); )
-		{
-			final int index = it.next();
-
-			final float rating = newRatings.get(index);
-			final int consumer = newConsumers.get(index);
-			final TLongList products = productTranslation.get(index);
-			
-			// loop over all product translations and update
-			for (TLongIterator itp = products.iterator(); itp.hasNext(); )
-			{
-				final long prod = itp.next();
-				
-				// compute predicted rating
-				final int ci = consumerMap.get(consumer);
-				final int pi = productMap.get(prod);					
-				final float rating_predicted = predict(ci, pi);
-				// compute error
-				error += (rating - rating_predicted) * (rating - rating_predicted);
-			}
-		}
-		return error;
-	}
-	/**
-	 * Optimize parameters in p and q matrices
-	 * 
-	 * @param newRatings ratings
-	 * @param newConsumers consumers
-	 * @param productTranslation product translation (each product is translated to several values in the q matrix)
-	 * @param eps stopping criteria in optimization
-	 * @param lambda regularization parameter
-	 * @param rate learning rate
-	 */
-	public void optimize(TByteList newRatings, TIntList newConsumers,
-			ArrayList<TLongList> productTranslation, float eps, float lambda, float rate) {
-		Random rand = new Random();
-		TIntList indices = new TIntArrayList();
-		for (int i = 0; i < newRatings.size(); i++)
-			indices.add(i);
-		// subtract averages from newRatings
-		TIntFloatMap consAverages = new TIntFloatHashMap();
-		TIntIntMap counter = new TIntIntHashMap();
-		final int s = newConsumers.size();
-		for (int i = 0; i < s; i++)
-		{
-			consAverages.put(newConsumers.get(i), consAverages.get(newConsumers.get(i)) + newRatings.get(i));
-			counter.put(newConsumers.get(i), counter.get(newConsumers.get(i)) + 1);
-		}
-		for (TIntFloatIterator it = consAverages.iterator(); it.hasNext(); )
-		{
-			it.advance();
-			final int key = it.key();
-			final float value = it.value();
-			it.setValue(value / counter.get(key));
-		}
-		// create new ratings
-		TFloatList normRatings = new TFloatArrayList();
-		for (int i = 0; i < s; i++)
-		{
-			normRatings.add((newRatings.get(i) - consAverages.get(newConsumers.get(i))));
-		}		
-		// Optimization!
-		float olderror = 1000 * newRatings.size();
-		for (int iteration = 0; iteration < MAXITERATIONS; iteration++)
-		{
-			// create shuffled indices
-			indices.shuffle(rand);
-			
-			// loop over shuffled indices and update p and q values
-			float sumerror = 0;
-			//System.out.println("indices: " + indices.size());
-			// compute pre-error
-			final float preerror = computeError(indices, iteration, normRatings, newConsumers, productTranslation);
-			for (TIntIterator it = indices.iterator(); it.hasNext(); )
-			{
-				final int index = it.next();
-
-				final float rating = normRatings.get(index);
-				final int consumer = newConsumers.get(index);
-				final TLongList products = productTranslation.get(index);
-				
-				// loop over all product translations and update
-				for (TLongIterator itp = products.iterator(); itp.hasNext(); )
-				{
-					final long prod = itp.next();
-					
-					// compute predicted rating
-					final int ci = consumerMap.get(consumer);
-					final int pi = productMap.get(prod);					
-					final float rating_predicted = predict(ci, pi);
-					// compute error
-					final float error = rating - rating_predicted;
-					sumerror += error * error;
-					
-					// update p
-					for (int j = 0; j < k; j++)
-					{
-						// fix first column of p to 1
-						if (j == 0)
-							continue;
-						else
-							p[ci][j] = p[ci][j] + rate * (error * q[j][pi] - lambda * p[ci][j]);
-					}
-					// update q
-					for (int j = 0; j < k; j++)
-					{
-						// fix second row of q to 1.0 - deprecated since averages are now subtracted
-						q[j][pi] = q[j][pi] + rate * (error * p[ci][j] - lambda * q[j][pi]);
-					}					
-				}
-			}
-			// compute post-error
-			final float posterror = computeError(indices, iteration, normRatings, newConsumers, productTranslation);
-			
-			// if overall change between of p and q values is less than eps, stop learning
-			if (preerror - posterror < eps)
-				break;
-			olderror = sumerror;
-		}
-	}
-	
-	/**
-	 * Predicts rating a consumer would give to a list of products. Predicts average.
-	 * 
-	 * @param consumer
-	 * @param products
-	 * @return
-	 */
-	public Double predict(int consumer, TLongList products)
-	{
-		if (!consumerMap.containsKey(consumer))
-			return null;
-		final int cons = consumerMap.get(consumer);
-        
-		
-		boolean any = false;
-		for (TLongIterator it = products.iterator(); it.hasNext(); )
-		{
-			final long prod = it.next();
-			if (productMap.containsKey(prod))
-				any = true;
-		}
-		if (!any)
-			return null;
-		
-		double prediction = 0;
-		int counter = 0;
-		for (TLongIterator it = products.iterator(); it.hasNext(); )
-		{
-			final long prod = it.next();
-			if (productMap.containsKey(prod))
-			{
-				final int pi = productMap.get(prod);
-				counter++;
-				prediction += predict(cons, pi);
-			}
-		}
-		return prediction/counter;
-	}
-	
-	
-	private float predict(int ci, int pi)
-	{
-		float s = 0;
-		for (int i = 0; i < k; i++)
-		{
-			s += p[ci][i] * q[i][pi];
-		}
-		return s;
-	}
-}
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 
 /**
@@ -324,6 +100,12 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
     private final float LAMBDA;
     // learning rate in optimization
     private final float LEARNING_RATE;
+    // optimization method: SGD (default), ALS or ALS_IMPLICIT
+    private final MFTrainer.Solver SOLVER;
+    // number of rounds of ALS
+    private final int ALS_ITERATIONS;
+    // confidence scale of implicit ALS
+    private final float ALPHA;
 
     
     private final int [] ATTRIBUTES;    
@@ -365,6 +147,11 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
         EPS = settings.getSettingAsFloat(name + "_EPS");
         LAMBDA = settings.getSettingAsFloat(name + "_LAMBDA");
         LEARNING_RATE = settings.getSettingAsFloat(name + "_LEARNING_RATE");
+        SOLVER = MFTrainer.Solver.fromSetting(settings.getSetting(name + "_SOLVER"));
+        final Integer alsIterations = settings.getSettingAsInt(name + "_ALS_ITERATIONS");
+        ALS_ITERATIONS = alsIterations == null ? 10 : alsIterations;
+        final Float alpha = settings.getSettingAsFloat(name + "_ALPHA");
+        ALPHA = alpha == null ? 40f : alpha;
         
         lastUpdateTime = 0;
         
@@ -375,72 +162,75 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
 
     @Override
     public void getPredictions(List<ProductRating> predictions, Map<String, String> tags) {
-        int consumerIndex = -1;
-        for (ProductRating pr : predictions)
+        final int candidates = predictions.size();
+        if (candidates == 0)
+            return;
+        final int consumerIndex = predictions.get(0).getConsumerIndex();
+        
+        // values of all candidates, grouped by candidate and attribute, once for all models
+        final int attributes = ATTRIBUTES.length;
+        final int [] groups = new int[candidates * attributes + 1];
+        final TLongList keys = new TLongArrayList();
+        for (int c = 0; c < candidates; c++)
         {
-            if (consumerIndex < 0)
-            {
-                consumerIndex = pr.getConsumerIndex();
-            }
-            final int productIndex = pr.getProductIndex();
-            
+            final int productIndex = predictions.get(c).getProductIndex();
             TIntList context = contextHandler.getContext(data, productIndex, tags);
             final TLongList attrValues = getAttrValues(productIndex, context);
+            for (int ai = 0; ai < attributes; ai++)
+            {
+                for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
+                {
+                    final long key = it.next();
+                    if (key / (MAX_ATTR_VALUES * MAX_CONTEXTS) == ai)
+                        keys.add(key);
+                }
+                groups[c * attributes + ai + 1] = keys.size();
+            }
+        }
+        final long [] keyArray = keys.toArray();
+        
+        // iterate over models, each scoring all candidates
+        final List<MF> currentModels = models == null ? new ArrayList<MF>() : models;
+        final int nModels = currentModels.size();
+        final double [] sumweights = new double[candidates];
+        final double [] sumpredictions = new double[candidates];
+        final StringBuilder [] explanations = new StringBuilder[candidates];
+        final double [] scores = new double[candidates];
+        final int [] chosen = new int[candidates];
+        for (int i = nModels-1; i >= 0; i--) 
+        {
+            if (!currentModels.get(i).score(consumerIndex, keyArray, groups, attributes, scores, chosen))
+                continue;
             
-            // iterate over models 
-            double sumweights = 0;
-            double sumpredictions = 0;
-            StringBuilder explanation = new StringBuilder();
-            for (int i = models.size()-1; i >= 0; i--) 
+            // compute model weight
+            final double weight = Math.exp(-(nModels-1-i));
+            for (int c = 0; c < candidates; c++)
             {
-            	// make a prediction with the model
-            	MF model = models.get(i);
-            	
-            	// iterate over attributes until a prediction is made
-            	Double prediction = null;
-            	for (int ai = 0; ai < ATTRIBUTES.length; ai++)
-            	{
-            		// create attrValues from this attribute
-            		TLongList attrValuesThis = new TLongArrayList();
-            		for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
-            		{
-            			final long key = it.next();
-            			if (key / (MAX_ATTR_VALUES * MAX_CONTEXTS) == ai)
-            				attrValuesThis.add(key);
-            		}
-            		
-            		// make a prediction for this consumer and these values
-            		prediction = model.predict(consumerIndex, attrValuesThis);
-            		
-            		if (prediction != null)
-            		{
-            			// add explanation if one of the last five models
-            			if (i > models.size()-5)
-            			{
-            				explanation.append("matrix attr:");
-            				explanation.append(ai);
-            				explanation.append(",");
-            				explanation.append(prediction);
-            				explanation.append(";");
-            			}
-            			break;
-            		}
-            	}
-            	
-            	if (prediction == null) // do not consider this model
-            		continue;
-            	
-            	// compute model weight
-            	final double weight = Math.exp(-(models.size()-1-i));
-            	sumweights += weight;
-            	sumpredictions += weight * prediction;
+                if (chosen[c] < 0) // do not consider this model
+                    continue;
+                // add explanation if one of the last five models
+                if (i > nModels-5)
+                {
+                    if (explanations[c] == null)
+                        explanations[c] = new StringBuilder();
+                    explanations[c].append("matrix attr:");
+                    explanations[c].append(chosen[c]);
+                    explanations[c].append(",");
+                    explanations[c].append(scores[c]);
+                    explanations[c].append(";");
+                }
+                sumweights[c] += weight;
+                sumpredictions[c] += weight * scores[c];
             }
-            if (sumweights < 1e-6)
+        }
+        for (int c = 0; c < candidates; c++)
+        {
+            final ProductRating pr = predictions.get(c);
+            if (sumweights[c] < 1e-6)
             	pr.setPrediction(0, 0, this.ID, "");
             else
-            	pr.setPrediction(sumpredictions/sumweights, (float) Math.min(sumweights, 1.0), this.ID, explanation.toString());
+            	pr.setPrediction(sumpredictions[c]/sumweights[c], (float) Math.min(sumweights[c], 1.0), this.ID, explanations[c] == null ? "" : explanations[c].toString());
         }
-    
     }
     
     @Override
@@ -470,7 +260,7 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
 
         // new (changed) consumers
         final List<ConsumerData> tmp_consumers = updateData.newData;
-        final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
+        final ConsumerIDLookup tmp_ids = updateData.newConsumerIDs;
         
         for (ConsumerData c: tmp_consumers)
         {
@@ -505,7 +295,7 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
         }
         
         // update matrix factorization model
-        final long lastRead = data.getEventsDescriptor(RATINGSNAME).last_read_date;
+        final long lastRead = updateData.getEventsDescriptor(RATINGSNAME).last_read_date;
         ArrayList<MF> newModels = new ArrayList<MF> ();
         logger.info("last read: " + lastRead);
         logger.info("last update: " + lastUpdateTime);
@@ -522,10 +312,23 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
         	if (consMap.size() > 100 && prodMap.size() > 100)
         	{
 	        	MF newModel = new MF(K, consMap, prodMap);
-	        	newModel.initializeValues();
+	        	// ALS is deterministic given its initial values
+	        	final Random rand = SOLVER == MFTrainer.Solver.SGD ? new Random() : new Random(K);
+	        	// warm start from the most recent model: consumers and items it knows start from its factors
+	        	final List<MF> currentModels = models;
+	        	final MF previous = (currentModels == null) || currentModels.isEmpty() ? null : currentModels.get(currentModels.size() - 1);
+	        	if (previous == null)
+	        		newModel.initializeValues(rand);
+	        	else
+	        	{
+	        		final int warm = newModel.initializeFrom(previous, rand);
+	        		logger.info("Warm start: " + warm + " of " + (consMap.size() + prodMap.size()) + " rows from the previous model.");
+	        	}
 	        	// for each product in newProducts prepare and translation list, that is all values to which this product translates to
 	        	ArrayList<TLongList> productTranslation = createProductTranslations(newProducts, newDates);
-	        	newModel.optimize(newRatings, newConsumers, productTranslation, EPS, LAMBDA, LEARNING_RATE);
+	        	final int iterations = SOLVER == MFTrainer.Solver.SGD ? MF.MAXITERATIONS : ALS_ITERATIONS;
+	        	newModel.optimize(newRatings, newConsumers, productTranslation, SOLVER, EPS, LAMBDA, LEARNING_RATE, iterations, ALPHA, getUpdateShards());
+	        	logger.info("New model converged after " + newModel.iterations + " iterations, error " + newModel.error + (previous == null ? "." : " (previous model: " + previous.iterations + " iterations, error " + previous.error + ")."));
 	        	newModels.add(newModel);
         	}
         }
@@ -668,6 +471,10 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
 
     @Override
     public Commitable updateProducts(DataStore.UpdateProductsDelta delta) {
+        if (delta.isStable() && (delta.recycledIndices.length == 0))
+            return new UpdateProducts(products); // indices did not change
+        final TIntSet recycled = new TIntHashSet(delta.recycledIndices);
+
         // update product indices in products array
         TIntList newProducts = new TIntArrayList();
         for (TIntIterator it = products.iterator(); it.hasNext(); )
@@ -678,6 +485,12 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
                 newProducts.add(-1);
                 continue;
             }
+            if (delta.isStable())
+            {
+                // the product in a recycled slot is gone
+                newProducts.add(recycled.contains(index) ? -1 : index);
+                continue;
+            }
 
             long id = data.getProductByIndex(index).productId;
             int newIndex = delta.newProductIDs.get(id);
@@ -726,6 +539,68 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
         // similarities and indices
 		return new UpdateDelta(newRatings, newConsumers, newProducts, newDates, newModels);
 	}       
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		writeTo(out, ratings, consumers, products, dates, models);
+	}
+
+	private static void writeTo(SnapshotOutput out, TByteList ratings, TIntList consumers, TIntList products, TLongList dates, List<MF> models) throws IOException {
+		out.writeByteList(ratings);
+		out.writeIntList(consumers);
+		out.writeIntList(products);
+		out.writeLongList(dates);
+		if (models == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(models.size());
+		for (MF model : models)
+			model.writeTo(out);
+	}
+
+	/**
+	 * Commits replace the ratings and the list of models (see {@link UpdateDelta}), and a
+	 * model does not change once trained, so they are all captured by reference.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+		final TByteList capturedRatings = ratings;
+		final TIntList capturedConsumers = consumers;
+		final TIntList capturedProducts = products;
+		final TLongList capturedDates = dates;
+		final List<MF> capturedModels = models;
+		SnapshotSet.addSection(set, name, tasks, new SnapshotSet.SectionWriter() {
+			@Override
+			public void write(final SnapshotOutput out) throws IOException {
+				writeTo(out, capturedRatings, capturedConsumers, capturedProducts, capturedDates, capturedModels);
+			}
+		});
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization is needed
+        {
+            this.data = data;
+            ratings = new TByteArrayList();
+            consumers = new TIntArrayList();
+            products = new TIntArrayList();
+            dates = new TLongArrayList();
+            models = new ArrayList<MF>();
+        }
+
+        TByteList newRatings = in.readByteList();
+        TIntList newConsumers = in.readIntList();
+        TIntList newProducts = in.readIntList();
+        TLongList newDates = in.readLongList();
+        final int n = in.readInt();
+        ArrayList<MF> newModels = new ArrayList<MF>(Math.max(n, 0));
+        for (int i = 0; i < n; i++)
+        	newModels.add(MF.readFrom(in));
+		return new UpdateDelta(newRatings, newConsumers, newProducts, newDates, newModels);
+	}
     
     private class UpdateProducts implements Commitable {
         TIntList newProducts;
@@ -766,11 +641,16 @@ public class AttributeBasedMatrixFactorizationPredictor extends Predictor {
         	if (models == null)
         		models = newModels;
         	else
+        	{
+        		// copy on write, the list may be held by a snapshot being written
+        		final List<MF> updatedModels = new ArrayList<MF>(models);
 	        	for (MF model : newModels) {
-	        		models.add(model);
-	            	if (models.size() > NMODELS)
-	            		models.remove(0);
+	        		updatedModels.add(model);
+	            	if (updatedModels.size() > NMODELS)
+	            		updatedModels.remove(0);
 	        	}
+	        	models = updatedModels;
+        	}
         	
         }
     }
@@ -0,0 +1,765 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.prediction.collaborative;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.gurucue.recommendations.misc.Parallel;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Co-occurrence counts of pairs of products, as an immutable sparse matrix in the
+ * compressed sparse row (CSR) format: the columns and counts of row r are at the positions
+ * [offsets[r], offsets[r+1]) of the column and count arrays, ordered by column.
+ * <p>
+ * Pairs are counted into {@link PairBuffer}s, one per thread, which hold (row, column)
+ * pairs packed into longs and sort and merge them into {@link Pairs}. A new matrix is
+ * produced from the previous one and the counted pairs with {@link #merge(Pairs, boolean[], int)};
+ * the previous matrix stays valid, so readers never see a partial update.
+ * <p>
+ * The arrays are kept in buffers, read with absolute gets only. A matrix read from a
+ * memory-mapped snapshot uses views of the mapping (see {@link SnapshotInput#readIntBuffer()}),
+ * so loading it copies nothing to the heap; merges build new matrices on the heap.
+ * <p>
+ * In the approximate mode every row keeps only its strongest columns, at most a given number,
+ * like the Space-Saving summary of heavy hitters: a column that is new to a full row starts
+ * with the smallest count of the row, which bounds the count the column might have had
+ * before. Counts are then never smaller than the exact ones, and every entry has the bound
+ * of its overestimation ({@link #error(int)}); a count minus its error is never larger
+ * than the exact count. The error of a row is at most its total count divided by the number
+ * of columns kept. {@link #accuracy(CooccurrenceMatrix, CooccurrenceMatrix, int)} compares
+ * an approximate matrix with the exact one.
+ */
+public final class CooccurrenceMatrix {
+    // rows of a merge are processed in shards of at least this many rows
+    private static final int MIN_ROWS_PER_SHARD = 1024;
+
+    public static final CooccurrenceMatrix EMPTY = new CooccurrenceMatrix(new int[] {0}, new int[0], new int[0], null);
+
+    private final IntBuffer offsets; // of rows in columns and counts, one more than the number of rows
+    private final IntBuffer columns;
+    private final IntBuffer counts;
+    private final IntBuffer errors; // overestimation bounds of the counts, null if the counts are exact
+
+    private CooccurrenceMatrix(final IntBuffer offsets, final IntBuffer columns, final IntBuffer counts, final IntBuffer errors) {
+        this.offsets = offsets;
+        this.columns = columns;
+        this.counts = counts;
+        this.errors = errors;
+    }
+
+    private CooccurrenceMatrix(final int [] offsets, final int [] columns, final int [] counts, final int [] errors) {
+        this(IntBuffer.wrap(offsets), IntBuffer.wrap(columns), IntBuffer.wrap(counts), errors == null ? null : IntBuffer.wrap(errors));
+    }
+
+    /**
+     * Returns whether all counts are exact, i.e. no row was ever cut to its strongest columns.
+     */
+    public boolean isExact() {
+        return errors == null;
+    }
+
+    public int rows() {
+        return offsets.capacity() - 1;
+    }
+
+    /**
+     * Returns the number of stored (non-zero) counts.
+     */
+    public int size() {
+        return offsets.get(offsets.capacity() - 1);
+    }
+
+    /**
+     * Returns the position of the first entry of the row; rows past the end are empty.
+     */
+    public int rowStart(final int row) {
+        return row < offsets.capacity() - 1 ? offsets.get(row) : size();
+    }
+
+    public int rowEnd(final int row) {
+        return row < offsets.capacity() - 1 ? offsets.get(row + 1) : size();
+    }
+
+    public int rowLength(final int row) {
+        return rowEnd(row) - rowStart(row);
+    }
+
+    public int column(final int position) {
+        return columns.get(position);
+    }
+
+    public int count(final int position) {
+        return counts.get(position);
+    }
+
+    /**
+     * Returns by how much the count at the position may exceed the exact count.
+     */
+    public int error(final int position) {
+        return errors == null ? 0 : errors.get(position);
+    }
+
+    /**
+     * Returns the count of the pair, 0 if it is not stored.
+     */
+    public int get(final int row, final int column) {
+        final int position = position(row, column);
+        return position < 0 ? 0 : counts.get(position);
+    }
+
+    /**
+     * Returns the position of the pair, -1 if it is not stored.
+     */
+    public int position(final int row, final int column) {
+        final int start = rowStart(row);
+        final int end = rowEnd(row);
+        int low = start;
+        int high = end - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int c = columns.get(middle);
+            if (c < column)
+                low = middle + 1;
+            else if (c > column)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the stored counts as pairs, to be merged into another matrix.
+     */
+    public Pairs toPairs() {
+        final int n = size();
+        final long [] keys = new long[n];
+        for (int r = rows() - 1; r >= 0; r--) {
+            for (int k = offsets.get(r); k < offsets.get(r + 1); k++)
+                keys[k] = key(r, columns.get(k));
+        }
+        return new Pairs(keys, copy(counts, n), n);
+    }
+
+    /**
+     * Returns the first <code>length</code> elements of the buffer as an array.
+     */
+    private static int [] copy(final IntBuffer buffer, final int length) {
+        final int [] a = new int[length];
+        final IntBuffer source = buffer.duplicate();
+        source.clear();
+        source.get(a, 0, length);
+        return a;
+    }
+
+    static long key(final int row, final int column) {
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    static int row(final long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int column(final long key) {
+        return (int) key;
+    }
+
+    /**
+     * Distinct pairs, packed into longs and sorted, with their counts.
+     */
+    public static final class Pairs {
+        public static final Pairs EMPTY = new Pairs(new long[0], new int[0], 0);
+
+        final long [] keys;
+        final int [] counts;
+        final int size;
+
+        Pairs(final long [] keys, final int [] counts, final int size) {
+            this.keys = keys;
+            this.counts = counts;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the pairs of both, with the counts of pairs in both added up.
+         */
+        public static Pairs merge(final Pairs a, final Pairs b) {
+            if (a.size == 0)
+                return b;
+            if (b.size == 0)
+                return a;
+            final long [] keys = new long[a.size + b.size];
+            final int [] counts = new int[a.size + b.size];
+            int i = 0, j = 0, n = 0;
+            while ((i < a.size) && (j < b.size)) {
+                final long ka = a.keys[i];
+                final long kb = b.keys[j];
+                if (ka < kb) {
+                    keys[n] = ka;
+                    counts[n++] = a.counts[i++];
+                }
+                else if (kb < ka) {
+                    keys[n] = kb;
+                    counts[n++] = b.counts[j++];
+                }
+                else {
+                    keys[n] = ka;
+                    counts[n++] = a.counts[i++] + b.counts[j++];
+                }
+            }
+            while (i < a.size) {
+                keys[n] = a.keys[i];
+                counts[n++] = a.counts[i++];
+            }
+            while (j < b.size) {
+                keys[n] = b.keys[j];
+                counts[n++] = b.counts[j++];
+            }
+            return new Pairs(keys, counts, n);
+        }
+    }
+
+    /**
+     * Collects pairs, each counted once per call of {@link #add(int, int)}. Pairs are appended
+     * to a buffer; when the buffer fills up it is sorted and merged into the pairs counted
+     * so far, so the memory is bounded by the number of distinct pairs. Not thread-safe: every
+     * thread has its own buffer, and the results are merged with {@link Pairs#merge(Pairs, Pairs)}.
+     */
+    public static final class PairBuffer {
+        private static final int INITIAL_CAPACITY = 1024;
+        private static final int MAX_CAPACITY = 1 << 20;
+
+        private long [] buffer = new long[INITIAL_CAPACITY];
+        private int length = 0;
+        private Pairs sorted = Pairs.EMPTY;
+
+        public void add(final int row, final int column) {
+            if (length == buffer.length) {
+                if (length < MAX_CAPACITY)
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                else
+                    compact();
+            }
+            buffer[length++] = key(row, column);
+        }
+
+        private void compact() {
+            if (length == 0)
+                return;
+            Arrays.sort(buffer, 0, length);
+            final long [] keys = new long[length];
+            final int [] counts = new int[length];
+            int n = 0;
+            for (int i = 0; i < length; i++) {
+                if ((n > 0) && (keys[n - 1] == buffer[i]))
+                    counts[n - 1]++;
+                else {
+                    keys[n] = buffer[i];
+                    counts[n++] = 1;
+                }
+            }
+            length = 0;
+            sorted = Pairs.merge(sorted, new Pairs(keys, counts, n));
+        }
+
+        /**
+         * Returns the counted pairs; the buffer is empty afterwards.
+         */
+        public Pairs finish() {
+            compact();
+            final Pairs result = sorted;
+            sorted = Pairs.EMPTY;
+            return result;
+        }
+    }
+
+    /**
+     * Returns a new matrix with the counts of this one and of the pairs added up. Only pairs of
+     * products marked in <code>keep</code> remain (all if it is null), and counts that are not
+     * positive are dropped. Rows are merged in parallel. With a positive <code>maxColumns</code>
+     * rows keep only their strongest columns, at most that many (the approximate mode).
+     */
+    public CooccurrenceMatrix merge(final Pairs delta, final boolean [] keep, final int maxColumns) {
+        if ((maxColumns > 0) || (errors != null))
+            return mergeBounded(delta, keep, maxColumns > 0 ? maxColumns : Integer.MAX_VALUE);
+
+        final int n = mergedRows(delta, keep);
+        final int [] deltaOffsets = deltaOffsets(delta, n);
+
+        // count the entries of new rows, then fill them in
+        final int [] newOffsets = new int[n + 1];
+        final int shards = Parallel.shards(null, (n + MIN_ROWS_PER_SHARD - 1) / MIN_ROWS_PER_SHARD);
+        Parallel.forShards(n, shards, new Parallel.ShardTask() {
+            @Override
+            public void run(final int shard, final int from, final int to) {
+                for (int r = from; r < to; r++)
+                    newOffsets[r + 1] = mergeRow(r, delta, deltaOffsets, keep, null, null, 0);
+            }
+        });
+        for (int r = 0; r < n; r++)
+            newOffsets[r + 1] += newOffsets[r];
+        final int [] newColumns = new int[newOffsets[n]];
+        final int [] newCounts = new int[newOffsets[n]];
+        Parallel.forShards(n, shards, new Parallel.ShardTask() {
+            @Override
+            public void run(final int shard, final int from, final int to) {
+                for (int r = from; r < to; r++)
+                    mergeRow(r, delta, deltaOffsets, keep, newColumns, newCounts, newOffsets[r]);
+            }
+        });
+        return new CooccurrenceMatrix(newOffsets, newColumns, newCounts, null);
+    }
+
+    /**
+     * Returns a new matrix with the counts of the pairs subtracted, to take a part that was
+     * merged into this matrix out again. Pairs that are not stored are skipped (a cut row of
+     * the approximate mode may have lost them already), counts that are not positive are
+     * dropped, and error bounds are cut to the remaining counts.
+     */
+    public CooccurrenceMatrix subtract(final Pairs removed) {
+        if (removed.size == 0)
+            return this;
+        final int [] remaining = copy(counts, counts.capacity());
+        for (int i = 0; i < removed.size; i++) {
+            final int position = position(row(removed.keys[i]), column(removed.keys[i]));
+            if (position >= 0)
+                remaining[position] -= removed.counts[i];
+        }
+        final int rows = rows();
+        final int [] newOffsets = new int[rows + 1];
+        final int [] newColumns = new int[remaining.length];
+        final int [] newCounts = new int[remaining.length];
+        final int [] newErrors = errors == null ? null : new int[remaining.length];
+        int n = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int k = offsets.get(r); k < offsets.get(r + 1); k++) {
+                if (remaining[k] <= 0)
+                    continue;
+                newColumns[n] = columns.get(k);
+                newCounts[n] = remaining[k];
+                if (newErrors != null)
+                    newErrors[n] = Math.min(errors.get(k), remaining[k]);
+                n++;
+            }
+            newOffsets[r + 1] = n;
+        }
+        return new CooccurrenceMatrix(newOffsets, Arrays.copyOf(newColumns, n), Arrays.copyOf(newCounts, n), newErrors == null ? null : Arrays.copyOf(newErrors, n));
+    }
+
+    /**
+     * Returns the number of rows of a merge with the delta.
+     */
+    private int mergedRows(final Pairs delta, final boolean [] keep) {
+        int rows = rows();
+        if ((delta.size > 0) && (row(delta.keys[delta.size - 1]) >= rows))
+            rows = row(delta.keys[delta.size - 1]) + 1;
+        if (keep != null)
+            rows = Math.min(rows, keep.length);
+        return rows;
+    }
+
+    /**
+     * Returns where the pairs of every row start in the delta.
+     */
+    private static int [] deltaOffsets(final Pairs delta, final int rows) {
+        final int [] deltaOffsets = new int[rows + 1];
+        for (int i = 0; i < delta.size; i++) {
+            final int r = row(delta.keys[i]);
+            if (r < rows)
+                deltaOffsets[r + 1]++;
+        }
+        for (int r = 0; r < rows; r++)
+            deltaOffsets[r + 1] += deltaOffsets[r];
+        return deltaOffsets;
+    }
+
+    /**
+     * The merge of the approximate mode: rows are merged into separate arrays first, because
+     * their lengths are only known after they are cut.
+     */
+    private CooccurrenceMatrix mergeBounded(final Pairs delta, final boolean [] keep, final int maxColumns) {
+        final int n = mergedRows(delta, keep);
+        final int [] deltaOffsets = deltaOffsets(delta, n);
+        final int [][] rowColumns = new int[n][];
+        final int [][] rowCounts = new int[n][];
+        final int [][] rowErrors = new int[n][];
+        final int shards = Parallel.shards(null, (n + MIN_ROWS_PER_SHARD - 1) / MIN_ROWS_PER_SHARD);
+        Parallel.forShards(n, shards, new Parallel.ShardTask() {
+            @Override
+            public void run(final int shard, final int from, final int to) {
+                for (int r = from; r < to; r++)
+                    mergeRowBounded(r, delta, deltaOffsets, keep, maxColumns, rowColumns, rowCounts, rowErrors);
+            }
+        });
+        final int [] newOffsets = new int[n + 1];
+        for (int r = 0; r < n; r++)
+            newOffsets[r + 1] = newOffsets[r] + (rowColumns[r] == null ? 0 : rowColumns[r].length);
+        final int [] newColumns = new int[newOffsets[n]];
+        final int [] newCounts = new int[newOffsets[n]];
+        final int [] newErrors = new int[newOffsets[n]];
+        for (int r = 0; r < n; r++) {
+            if (rowColumns[r] == null)
+                continue;
+            final int length = rowColumns[r].length;
+            System.arraycopy(rowColumns[r], 0, newColumns, newOffsets[r], length);
+            System.arraycopy(rowCounts[r], 0, newCounts, newOffsets[r], length);
+            System.arraycopy(rowErrors[r], 0, newErrors, newOffsets[r], length);
+        }
+        return new CooccurrenceMatrix(newOffsets, newColumns, newCounts, newErrors);
+    }
+
+    /**
+     * Merges a row with its pairs from the delta and cuts it to its strongest columns, see the
+     * approximate mode.
+     */
+    private void mergeRowBounded(final int row, final Pairs delta, final int [] deltaOffsets, final boolean [] keep, final int maxColumns, final int [][] rowColumns, final int [][] rowCounts, final int [][] rowErrors) {
+        if ((keep != null) && !keep[row])
+            return;
+        int i = rowStart(row);
+        final int end = rowEnd(row);
+        int j = deltaOffsets[row];
+        final int deltaEnd = deltaOffsets[row + 1];
+        if (i == end && j == deltaEnd)
+            return;
+        // a column that was not in a full row may have had up to its smallest count
+        int floor = 0;
+        if (end - i >= maxColumns) {
+            floor = Integer.MAX_VALUE;
+            for (int k = i; k < end; k++)
+                floor = Math.min(floor, counts.get(k));
+        }
+        final int capacity = (end - i) + (deltaEnd - j);
+        final int [] mergedColumns = new int[capacity];
+        final int [] mergedCounts = new int[capacity];
+        final int [] mergedErrors = new int[capacity];
+        int n = 0;
+        while ((i < end) || (j < deltaEnd)) {
+            final int column;
+            int count;
+            int error;
+            final int dc = j < deltaEnd ? column(delta.keys[j]) : Integer.MAX_VALUE;
+            if ((i < end) && (columns.get(i) <= dc)) {
+                column = columns.get(i);
+                error = errors == null ? 0 : errors.get(i);
+                count = counts.get(i++);
+                if (column == dc)
+                    count += delta.counts[j++];
+            }
+            else {
+                column = dc;
+                count = delta.counts[j++] + floor;
+                error = floor;
+            }
+            if ((count <= 0) || ((keep != null) && ((column >= keep.length) || !keep[column])))
+                continue;
+            mergedColumns[n] = column;
+            mergedCounts[n] = count;
+            mergedErrors[n++] = error;
+        }
+        if (n <= maxColumns) {
+            rowColumns[row] = Arrays.copyOf(mergedColumns, n);
+            rowCounts[row] = Arrays.copyOf(mergedCounts, n);
+            rowErrors[row] = Arrays.copyOf(mergedErrors, n);
+            return;
+        }
+        // keep the strongest columns: order by count (packed with the position), then by column
+        final long [] order = new long[n];
+        for (int k = 0; k < n; k++)
+            order[k] = key(mergedCounts[k], k);
+        Arrays.sort(order);
+        final long [] kept = new long[maxColumns];
+        for (int k = 0; k < maxColumns; k++) {
+            final int position = column(order[n - 1 - k]);
+            kept[k] = key(mergedColumns[position], position);
+        }
+        Arrays.sort(kept);
+        final int [] c = new int[maxColumns];
+        final int [] cnt = new int[maxColumns];
+        final int [] err = new int[maxColumns];
+        for (int k = 0; k < maxColumns; k++) {
+            final int position = column(kept[k]);
+            c[k] = mergedColumns[position];
+            cnt[k] = mergedCounts[position];
+            err[k] = mergedErrors[position];
+        }
+        rowColumns[row] = c;
+        rowCounts[row] = cnt;
+        rowErrors[row] = err;
+    }
+
+    /**
+     * Accuracy of an approximate matrix, compared with the exact one.
+     */
+    public static final class Accuracy {
+        public final double recall; // share of the strongest columns of exact rows that are kept
+        public final double meanError; // mean absolute difference of the counts of kept pairs
+        public final int maxError; // largest absolute difference of the counts of kept pairs
+        public final double meanBound; // mean reported error bound of kept pairs
+
+        Accuracy(final double recall, final double meanError, final int maxError, final double meanBound) {
+            this.recall = recall;
+            this.meanError = meanError;
+            this.maxError = maxError;
+            this.meanBound = meanBound;
+        }
+
+        @Override
+        public String toString() {
+            return "recall=" + recall + ", meanError=" + meanError + ", maxError=" + maxError + ", meanBound=" + meanBound;
+        }
+    }
+
+    /**
+     * Compares an approximate matrix with the exact one, counted from the same events: the share
+     * of the n strongest columns of every exact row that the approximate row keeps, and the
+     * errors of the counts of the pairs it keeps. For measuring the approximate mode offline.
+     */
+    public static Accuracy accuracy(final CooccurrenceMatrix exact, final CooccurrenceMatrix approximate, final int n) {
+        long relevant = 0, found = 0, pairs = 0, errorSum = 0, boundSum = 0;
+        int maxError = 0;
+        final int rows = exact.rows();
+        for (int r = 0; r < rows; r++) {
+            final int start = exact.rowStart(r);
+            final int length = exact.rowLength(r);
+            if (length == 0)
+                continue;
+            final long [] order = new long[length];
+            for (int k = 0; k < length; k++)
+                order[k] = key(exact.counts.get(start + k), start + k);
+            Arrays.sort(order);
+            final int top = Math.min(n, length);
+            for (int k = 0; k < top; k++) {
+                final int position = column(order[length - 1 - k]);
+                relevant++;
+                if (approximate.get(r, exact.columns.get(position)) > 0)
+                    found++;
+            }
+        }
+        for (int r = 0; r < approximate.rows(); r++) {
+            for (int k = approximate.rowStart(r); k < approximate.rowEnd(r); k++) {
+                final int error = Math.abs(approximate.counts.get(k) - exact.get(r, approximate.columns.get(k)));
+                pairs++;
+                errorSum += error;
+                boundSum += approximate.error(k);
+                if (error > maxError)
+                    maxError = error;
+            }
+        }
+        return new Accuracy(relevant == 0 ? 1.0 : (double) found / relevant, pairs == 0 ? 0.0 : (double) errorSum / pairs, maxError, pairs == 0 ? 0.0 : (double) boundSum / pairs);
+    }
+
+    /**
+     * Merges a row with its pairs from the delta and returns the number of entries; writes
+     * them from the given position on, unless the arrays are null.
+     */
+    private int mergeRow(final int row, final Pairs delta, final int [] deltaOffsets, final boolean [] keep, final int [] outColumns, final int [] outCounts, final int position) {
+        if ((keep != null) && !keep[row])
+            return 0;
+        int i = rowStart(row);
+        final int end = rowEnd(row);
+        int j = deltaOffsets[row];
+        final int deltaEnd = deltaOffsets[row + 1];
+        int n = 0;
+        while ((i < end) || (j < deltaEnd)) {
+            final int column;
+            int count;
+            final int dc = j < deltaEnd ? column(delta.keys[j]) : Integer.MAX_VALUE;
+            if ((i < end) && (columns.get(i) <= dc)) {
+                column = columns.get(i);
+                count = counts.get(i++);
+                if (column == dc)
+                    count += delta.counts[j++];
+            }
+            else {
+                column = dc;
+                count = delta.counts[j++];
+            }
+            if ((count <= 0) || ((keep != null) && ((column >= keep.length) || !keep[column])))
+                continue;
+            if (outColumns != null) {
+                outColumns[position + n] = column;
+                outCounts[position + n] = count;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the matrix with products moved to new indices; pairs of products with a
+     * negative new index (or with an index past the mapping) are dropped. New indices
+     * must be distinct.
+     */
+    public CooccurrenceMatrix remap(final int [] newIndices, final int newRows) {
+        // the old row of every new row
+        final int [] oldRows = new int[newRows];
+        Arrays.fill(oldRows, -1);
+        final int rows = Math.min(rows(), newIndices.length);
+        for (int r = 0; r < rows; r++) {
+            final int newRow = newIndices[r];
+            if ((newRow >= 0) && (newRow < newRows))
+                oldRows[newRow] = r;
+        }
+        final int [] newOffsets = new int[newRows + 1];
+        int longest = 0;
+        for (int nr = 0; nr < newRows; nr++) {
+            final int r = oldRows[nr];
+            int n = 0;
+            if (r >= 0) {
+                for (int k = offsets.get(r); k < offsets.get(r + 1); k++) {
+                    final int c = columns.get(k);
+                    if ((c < newIndices.length) && (newIndices[c] >= 0) && (newIndices[c] < newRows))
+                        n++;
+                }
+            }
+            newOffsets[nr + 1] = newOffsets[nr] + n;
+            if (n > longest)
+                longest = n;
+        }
+        final int [] newColumns = new int[newOffsets[newRows]];
+        final int [] newCounts = new int[newOffsets[newRows]];
+        final int [] newErrors = errors == null ? null : new int[newOffsets[newRows]];
+        // the entries of a row are sorted by their new columns, packed with their positions
+        final long [] row = new long[longest];
+        for (int nr = 0; nr < newRows; nr++) {
+            final int r = oldRows[nr];
+            if (r < 0)
+                continue;
+            int n = 0;
+            for (int k = offsets.get(r); k < offsets.get(r + 1); k++) {
+                final int c = columns.get(k);
+                if ((c < newIndices.length) && (newIndices[c] >= 0) && (newIndices[c] < newRows))
+                    row[n++] = key(newIndices[c], k);
+            }
+            Arrays.sort(row, 0, n);
+            final int start = newOffsets[nr];
+            for (int i = 0; i < n; i++) {
+                final int k = column(row[i]);
+                newColumns[start + i] = row(row[i]);
+                newCounts[start + i] = counts.get(k);
+                if (newErrors != null)
+                    newErrors[start + i] = errors.get(k);
+            }
+        }
+        return new CooccurrenceMatrix(newOffsets, newColumns, newCounts, newErrors);
+    }
+
+    /**
+     * Returns the matrix without the pairs of the given products, or this matrix if it has none.
+     */
+    public CooccurrenceMatrix withoutProducts(final int [] indices) {
+        final int rows = rows();
+        final int [] newIndices = new int[rows];
+        for (int r = 0; r < rows; r++)
+            newIndices[r] = r;
+        boolean changed = false;
+        for (final int index : indices) {
+            if ((index < 0) || (index >= rows))
+                continue;
+            newIndices[index] = -1;
+            if (rowLength(index) > 0)
+                changed = true;
+        }
+        // pairs are counted in both directions, so a product without a row has no column either
+        return changed ? remap(newIndices, rows) : this;
+    }
+
+    /**
+     * Creates the matrix from a map of counts per row (null for an empty row), as kept
+     * by earlier versions.
+     */
+    public static CooccurrenceMatrix fromMaps(final List<? extends TIntIntMap> maps) {
+        if (maps == null)
+            return EMPTY;
+        final int rows = maps.size();
+        final int [] offsets = new int[rows + 1];
+        for (int r = 0; r < rows; r++) {
+            final TIntIntMap map = maps.get(r);
+            offsets[r + 1] = offsets[r] + (map == null ? 0 : map.size());
+        }
+        final int [] columns = new int[offsets[rows]];
+        final int [] counts = new int[offsets[rows]];
+        int n = 0;
+        for (int r = 0; r < rows; r++) {
+            final TIntIntMap map = maps.get(r);
+            if (map == null)
+                continue;
+            final int [] keys = map.keys();
+            Arrays.sort(keys);
+            for (final int c : keys) {
+                columns[n] = c;
+                counts[n++] = map.get(c);
+            }
+        }
+        return new CooccurrenceMatrix(offsets, columns, counts, null);
+    }
+
+    /**
+     * Returns a map of counts per row, null for an empty row, as kept by earlier versions.
+     * The error bounds of the approximate mode are not included.
+     */
+    public List<TIntIntMap> toMaps() {
+        final int rows = rows();
+        final List<TIntIntMap> maps = new ArrayList<TIntIntMap>(rows);
+        for (int r = 0; r < rows; r++) {
+            if (offsets.get(r) == offsets.get(r + 1)) {
+                maps.add(null);
+                continue;
+            }
+            final TIntIntMap map = new TIntIntHashMap(offsets.get(r + 1) - offsets.get(r));
+            for (int k = offsets.get(r); k < offsets.get(r + 1); k++)
+                map.put(columns.get(k), counts.get(k));
+            maps.add(map);
+        }
+        return maps;
+    }
+
+    public void writeTo(final SnapshotOutput out) throws IOException {
+        out.writeIntBuffer(offsets);
+        out.writeIntBuffer(columns);
+        out.writeIntBuffer(counts);
+        out.writeIntBuffer(errors);
+    }
+
+    /**
+     * Reads a matrix written with {@link #writeTo(SnapshotOutput)}; over a mapped section
+     * the matrix is backed by the mapping.
+     */
+    public static CooccurrenceMatrix readFrom(final SnapshotInput in) throws IOException {
+        final IntBuffer offsets = in.readIntBuffer();
+        final IntBuffer columns = in.readIntBuffer();
+        final IntBuffer counts = in.readIntBuffer();
+        final IntBuffer errors = in.readIntBuffer();
+        if ((offsets == null) || (offsets.capacity() == 0) || (columns == null) || (counts == null) || (columns.capacity() != counts.capacity()) || (offsets.get(offsets.capacity() - 1) != columns.capacity()) || ((errors != null) && (errors.capacity() != counts.capacity())))
+            throw new IOException("Corrupt co-occurrence matrix in the snapshot");
+        return new CooccurrenceMatrix(offsets, columns, counts, errors);
+    }
+}
@@ -0,0 +1,977 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.prediction.collaborative;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.gurucue.recommendations.misc.Parallel;
+import com.gurucue.recommendations.prediction.Predictor;
+import com.gurucue.recommendations.recommender.Commitable;
+import com.gurucue.recommendations.recommender.Settings;
+import com.gurucue.recommendations.recommender.dto.ConsumerBuysData;
+import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerMetaEventsData;
+import com.gurucue.recommendations.recommender.dto.DataStore;
+import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TIntLongIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Co-occurrence counts of products bought by the same consumers within a time window,
+ * shared by the item-based predictors of a model. Predictors with the same events, time
+ * meta, window, product limit and neighbor limit subscribe to the same table, and derive
+ * their own similarity measures from it, so the pairs are counted and stored only once.
+ * With a neighbor limit the counts are approximate and every product keeps only its
+ * strongest neighbors (see {@link CooccurrenceMatrix}), which bounds the memory to about
+ * 12 bytes per neighbor and product.
+ * <p>
+ * With a {@link Decay} the counts are kept in rolling time buckets, e.g. one per day: pairs
+ * and products are counted into the bucket of their time, and the buckets that fall out of
+ * the window are dropped as a whole, so old co-occurrences are forgotten without counting
+ * anything again. Predictors see the sums of the buckets, weighted by their age with an
+ * exponential decay ({@link State#pairCount(int, int)}, {@link State#productCount(int)}).
+ * <p>
+ * Tables belong to the data store of the model: a model that is built anew (a full update)
+ * gets its own tables. Every subscriber passes each batch (and product change) to the table;
+ * the table computes the change for the first one and returns the same change to the others.
+ * Commits of the change are idempotent, so it is committed once however many subscribers
+ * commit it. Likewise a table is written to a snapshot set once, in its own section, which
+ * its subscribers refer to ({@link #writeSection(SnapshotSet.Writer, String, List)}).
+ */
+public final class CooccurrenceTable {
+    private static final Logger logger = LogManager.getLogger(CooccurrenceTable.class);
+
+    private final String key; // the parameters of the table
+    private final String eventName;
+    private final int timestampMeta;
+    private final long maxDiffSec; // max difference in seconds for two products to be relevant
+    private final int maxProducts; // only pairs of this many most recently bought products are kept, all if not positive
+    private final int maxNeighbors; // the number of strongest neighbors kept per product, exact counts if not positive
+    private final Decay decay; // null if the counts are not kept in time buckets
+    private final Integer updateShards;
+
+    private volatile State state = new State(CooccurrenceMatrix.EMPTY, new TIntArrayList(), new TIntLongHashMap());
+
+    // the last change, returned again to other subscribers until it is committed; the batch
+    // (or the snapshot that was read) is only compared by identity, it is not kept alive by the table
+    private WeakReference<Object> lastUpdate = null;
+    private Commitable lastChange = null;
+
+    /**
+     * Rolling time buckets of the counts: how many are kept, how wide they are, and the
+     * half-life of the weights of older buckets.
+     */
+    public static final class Decay {
+        public final int buckets; // the number of the most recent buckets kept
+        public final long bucketSec; // the width of a bucket in seconds
+        public final double halfLifeSec; // the age at which a bucket weighs half, no decay if not positive
+
+        public Decay(final int buckets, final long bucketSec, final double halfLifeSec) {
+            this.buckets = buckets;
+            this.bucketSec = bucketSec;
+            this.halfLifeSec = halfLifeSec;
+        }
+
+        /**
+         * Reads <code>&lt;name&gt;_BUCKETS</code>, <code>&lt;name&gt;_BUCKET_DAYS</code> (1 if not set)
+         * and <code>&lt;name&gt;_HALF_LIFE</code> (in days, no decay if not set); returns null if
+         * the number of buckets is not set, when the counts are not bucketed.
+         */
+        public static Decay fromSettings(final String name, final Settings settings) {
+            final Integer buckets = settings.getSettingAsInt(name + "_BUCKETS");
+            if ((buckets == null) || (buckets <= 0))
+                return null;
+            final Integer bucketDays = settings.getSettingAsInt(name + "_BUCKET_DAYS");
+            final Float halfLife = settings.getSettingAsFloat(name + "_HALF_LIFE");
+            return new Decay(buckets, ((bucketDays == null) || (bucketDays <= 0) ? 1 : bucketDays) * 24L * 60L * 60L, halfLife == null ? 0.0 : halfLife * 24.0 * 60.0 * 60.0);
+        }
+
+        /**
+         * Returns the start of the bucket of the time.
+         */
+        long bucketOf(final long time) {
+            return Math.floorDiv(time, bucketSec) * bucketSec;
+        }
+
+        /**
+         * Returns the weight of the bucket, relative to the newest one.
+         */
+        double weight(final long start, final long newest) {
+            return halfLifeSec > 0.0 ? Math.pow(0.5, (newest - start) / halfLifeSec) : 1.0;
+        }
+
+        @Override
+        public String toString() {
+            return buckets + "x" + bucketSec + "s/" + halfLifeSec;
+        }
+    }
+
+    /**
+     * The counts of one time bucket; never changed.
+     */
+    public static final class Bucket {
+        public final long start; // in seconds
+        public final CooccurrenceMatrix pairs;
+        public final TIntIntMap productCounts; // by product index, only the products bought in the bucket
+
+        public Bucket(final long start, final CooccurrenceMatrix pairs, final TIntIntMap productCounts) {
+            this.start = start;
+            this.pairs = pairs;
+            this.productCounts = productCounts;
+        }
+    }
+
+    private static final Comparator<Bucket> byStart = new Comparator<Bucket>() {
+        @Override
+        public int compare(final Bucket b1, final Bucket b2) {
+            return Long.compare(b1.start, b2.start);
+        }
+    };
+
+    /**
+     * The committed counts; never changed, commits replace it.
+     */
+    public static final class State {
+        public final CooccurrenceMatrix similarities; // co-occurrence counts of pairs of products, the sums of the buckets if any
+        public final TIntList productCounts; // by product index, the sums of the buckets if any
+        public final TIntLongMap productsTimes; // the last time a product was bought
+        public final List<Bucket> buckets; // by their start, empty if the counts are not bucketed
+        private final float [] pairWeights; // decayed sums of the pairs, by their positions in similarities; null without decay
+        private final float [] productWeights; // decayed sums of the products; null without decay
+
+        State(final CooccurrenceMatrix similarities, final TIntList productCounts, final TIntLongMap productsTimes) {
+            this(similarities, productCounts, productsTimes, Collections.<Bucket>emptyList(), null, null);
+        }
+
+        State(final CooccurrenceMatrix similarities, final TIntList productCounts, final TIntLongMap productsTimes, final List<Bucket> buckets, final float [] pairWeights, final float [] productWeights) {
+            this.similarities = similarities;
+            this.productCounts = productCounts;
+            this.productsTimes = productsTimes;
+            this.buckets = buckets;
+            this.pairWeights = pairWeights;
+            this.productWeights = productWeights;
+        }
+
+        /**
+         * Returns the (decayed) count of the pair.
+         */
+        public double pairCount(final int row, final int column) {
+            if (pairWeights == null)
+                return similarities.get(row, column);
+            final int position = similarities.position(row, column);
+            return position < 0 ? 0.0 : pairWeights[position];
+        }
+
+        /**
+         * Returns the (decayed) count of the product.
+         */
+        public double productCount(final int index) {
+            if (productWeights == null)
+                return index < productCounts.size() ? productCounts.get(index) : 0;
+            return index < productWeights.length ? productWeights[index] : 0.0;
+        }
+    }
+
+    private CooccurrenceTable(final String key, final String eventName, final int timestampMeta, final int relevantDays, final int maxProducts, final int maxNeighbors, final Decay decay, final Integer updateShards) {
+        this.key = key;
+        this.eventName = eventName;
+        this.timestampMeta = timestampMeta;
+        this.maxDiffSec = relevantDays * 24L * 60L * 60L;
+        this.maxProducts = maxProducts;
+        this.maxNeighbors = maxNeighbors;
+        this.decay = decay;
+        this.updateShards = updateShards;
+    }
+
+    /**
+     * Returns the table of the model with the given parameters, creating it for the first subscriber.
+     *
+     * @param data the data store of the model
+     * @param eventName the name of the events whose products are paired
+     * @param timestampMeta the index of the time meta of the events
+     * @param relevantDays the number of days between two events that still pairs their products
+     * @param maxProducts the number of most recently bought products whose pairs are kept, all if not positive
+     * @param maxNeighbors the number of strongest neighbors kept per product, exact counts if not positive
+     * @param decay the time buckets of the counts, null to keep them in one
+     * @param updateShards the number of shards of consumers in updates, null for the default
+     */
+    public static CooccurrenceTable subscribe(final DataStore data, final String eventName, final int timestampMeta, final int relevantDays, final int maxProducts, final int maxNeighbors, final Decay decay, final Integer updateShards) {
+        final String key = eventName + "/" + timestampMeta + "/" + relevantDays + "/" + (maxProducts > 0 ? maxProducts : 0) + "/" + (maxNeighbors > 0 ? maxNeighbors : 0) + "/" + decay;
+        return (CooccurrenceTable) data.putSharedIfAbsent(CooccurrenceTable.class.getName() + "/" + key, new CooccurrenceTable(key, eventName, timestampMeta, relevantDays, maxProducts, maxNeighbors, decay, updateShards));
+    }
+
+    /**
+     * Returns the change computed for the update, if it is the last one and is not committed yet.
+     */
+    private Commitable lastChange(final Object update) {
+        return (lastUpdate != null) && (lastUpdate.get() == update) ? lastChange : null;
+    }
+
+    private Commitable setLastChange(final Object update, final State newState) {
+        return setLastChange(update, new Change(newState));
+    }
+
+    private Commitable setLastChange(final Object update, final Commitable change) {
+        lastUpdate = new WeakReference<Object>(update);
+        lastChange = change;
+        return change;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Pairs and counts of products of a shard of consumers in an update, by the start of
+     * their bucket (0 if the counts are not bucketed).
+     */
+    private static final class ShardPairs {
+        final TLongObjectMap<CooccurrenceMatrix.PairBuffer> pairs = new TLongObjectHashMap<CooccurrenceMatrix.PairBuffer>();
+        final TLongObjectMap<TIntIntMap> counts = new TLongObjectHashMap<TIntIntMap>();
+
+        CooccurrenceMatrix.PairBuffer pairs(final long bucket) {
+            CooccurrenceMatrix.PairBuffer buffer = pairs.get(bucket);
+            if (buffer == null) {
+                buffer = new CooccurrenceMatrix.PairBuffer();
+                pairs.put(bucket, buffer);
+            }
+            return buffer;
+        }
+
+        TIntIntMap counts(final long bucket) {
+            TIntIntMap map = counts.get(bucket);
+            if (map == null) {
+                map = new TIntIntHashMap();
+                counts.put(bucket, map);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Counts the pairs of products of the changed consumers and returns the new counts to commit.
+     */
+    public synchronized Commitable update(final UpdateIncrementalData newData) {
+        final Commitable last = lastChange(newData);
+        if (last != null)
+            return last;
+        final DataStore data = newData.dataStore;
+        final State base = state;
+        final int buysEventIndex = data.getEventsDescriptor(eventName).index;
+
+        final TIntArrayList newCounts = new TIntArrayList(base.productCounts);
+        final int productsSize = data.getProducts().size();
+        while (newCounts.size() < productsSize)
+            newCounts.add(0);
+        final TIntLongMap newTimes = new TIntLongHashMap(base.productsTimes);
+
+        // we first need to update the list of active products
+        for (ConsumerData cd : newData.newData)
+        {
+            if (null == cd)
+                continue;
+            final ConsumerBuysData cbd = (ConsumerBuysData) cd.events[buysEventIndex];
+            if ((null == cbd) || (cbd.indices.length == 0))
+                continue;
+            final long[] times = cbd.getMeta().getLongValuesArray(timestampMeta);
+            for (int i = 0; i < cbd.indices.length; i++)
+            {
+                final int product_index = cbd.indices[i];
+                newTimes.put(product_index, Math.max(times[i], newTimes.get(product_index)));
+            }
+        }
+
+        // now, select the products that are current, unless all are
+        final boolean [] current = currentProducts(newTimes);
+        if (current != null)
+        {
+            // remove the counts of products that are not current
+            for (int i = newCounts.size() - 1; i >= 0; i--)
+            {
+                if ((i >= current.length) || !current[i])
+                    newCounts.set(i, 0);
+            }
+        }
+
+        // the buckets in the window end with the bucket of the latest time
+        final long newest = decay == null ? 0L : decay.bucketOf(latest(newTimes));
+        final long oldest = decay == null ? 0L : newest - (decay.buckets - 1) * decay.bucketSec;
+
+        // add the pairs containing only current products; consumers are processed in parallel
+        // shards, each counting its pairs into its own buffers
+        final TLongObjectMap<CooccurrenceMatrix.Pairs> deltas = new TLongObjectHashMap<CooccurrenceMatrix.Pairs>();
+        final TLongObjectMap<TIntIntMap> deltaCounts = new TLongObjectHashMap<TIntIntMap>();
+        Predictor.forConsumerShards(updateShards, newData.newData, new Predictor.ConsumerShardWork<ShardPairs>() {
+            @Override
+            public ShardPairs createPartial() {
+                return new ShardPairs();
+            }
+
+            @Override
+            public void process(final ShardPairs partial, final int consumerIndex, final ConsumerData cd) {
+                final ConsumerBuysData cbd = (ConsumerBuysData) cd.events[buysEventIndex];
+                if ((null == cbd) || (cbd.indices.length == 0))
+                    return;
+
+                // events of the consumer before this batch
+                ConsumerBuysData old_cbd = null;
+                long[] old_times = null;
+                if (data.getConsumers().size() > consumerIndex)
+                    old_cbd = (ConsumerBuysData) data.getConsumers().get(consumerIndex).events[buysEventIndex];
+                if (old_cbd != null)
+                {
+                    final ConsumerMetaEventsData old_meta = old_cbd.getMeta();
+                    old_times = old_meta.getLongValuesArray(timestampMeta);
+                }
+                final int ilen_old = old_cbd == null ? 0 : old_cbd.indices.length;
+
+                final long[] times = cbd.getMeta().getLongValuesArray(timestampMeta);
+                final int ilen = cbd.indices.length;
+                for (int i = 0; i < ilen; i++)
+                {
+                    final int product_index = cbd.indices[i];
+                    if (!isCurrent(current, product_index))
+                        continue;
+
+                    final long bucket = bucketOf(times[i]);
+                    if (bucket >= oldest)
+                        partial.counts(bucket).adjustOrPutValue(product_index, 1, 1);
+
+                    // add all pairs of new product
+                    for (int j = i + 1; j < ilen; j++)
+                    {
+                        final int product_index2 = cbd.indices[j];
+                        if ((product_index == product_index2) || !isCurrent(current, product_index2))
+                            continue;
+                        addPair(product_index, times[i], product_index2, times[j], oldest, partial);
+                    }
+
+                    // now compare this product with the old consumer items
+                    for (int j = 0; j < ilen_old; j++)
+                    {
+                        final int product_index2 = old_cbd.indices[j];
+                        if ((product_index == product_index2) || !isCurrent(current, product_index2))
+                            continue;
+                        addPair(product_index, times[i], product_index2, old_times[j], oldest, partial);
+                    }
+                }
+            }
+
+            @Override
+            public void reduce(final ShardPairs partial) {
+                for (long bucket : partial.pairs.keys()) {
+                    final CooccurrenceMatrix.Pairs pairs = partial.pairs.get(bucket).finish();
+                    final CooccurrenceMatrix.Pairs previous = deltas.get(bucket);
+                    deltas.put(bucket, previous == null ? pairs : CooccurrenceMatrix.Pairs.merge(previous, pairs));
+                }
+                for (long bucket : partial.counts.keys()) {
+                    final TIntIntMap counts = deltaCounts.get(bucket);
+                    if (counts == null)
+                    {
+                        deltaCounts.put(bucket, partial.counts.get(bucket));
+                        continue;
+                    }
+                    for (TIntIntIterator it = partial.counts.get(bucket).iterator(); it.hasNext(); )
+                    {
+                        it.advance();
+                        counts.adjustOrPutValue(it.key(), it.value(), it.value());
+                    }
+                }
+            }
+        });
+
+        final State newState;
+        if (decay == null)
+        {
+            // merge the new pairs into the counts, keeping only the current products
+            final CooccurrenceMatrix.Pairs delta = deltas.containsKey(0L) ? deltas.get(0L) : CooccurrenceMatrix.Pairs.EMPTY;
+            final CooccurrenceMatrix newSimilarities = base.similarities.merge(delta, current, maxNeighbors);
+            logger.debug("Co-occurrences of " + eventName + ": " + delta.size() + " new pairs, " + newSimilarities.size() + " pairs in total");
+            if (deltaCounts.containsKey(0L))
+            {
+                for (TIntIntIterator it = deltaCounts.get(0L).iterator(); it.hasNext(); )
+                {
+                    it.advance();
+                    newCounts.set(it.key(), newCounts.get(it.key()) + it.value());
+                }
+            }
+            newState = new State(newSimilarities, newCounts, newTimes);
+        }
+        else
+            newState = updateBuckets(base, deltas, deltaCounts, current, newCounts, newTimes, productsSize, oldest);
+
+        return setLastChange(newData, newState);
+    }
+
+    /**
+     * Returns which products are current: the maxProducts most recently bought ones, or null if all are.
+     */
+    private boolean [] currentProducts(final TIntLongMap times) {
+        if (maxProducts <= 0)
+            return null;
+        final TIntSet currentProducts = new TIntHashSet();
+        final long [] vals = times.values();
+        Arrays.sort(vals);
+        final long threshold = vals.length == 0 ? 0L : vals[Math.max(0, vals.length - maxProducts)];
+        int maxProduct = -1;
+        for (TIntLongIterator it = times.iterator(); it.hasNext(); )
+        {
+            it.advance();
+            if (it.value() >= threshold)
+            {
+                currentProducts.add(it.key());
+                maxProduct = Math.max(maxProduct, it.key());
+            }
+        }
+        final boolean [] current = new boolean[maxProduct + 1];
+        for (TIntIterator it = currentProducts.iterator(); it.hasNext(); )
+            current[it.next()] = true;
+        return current;
+    }
+
+    private static boolean isCurrent(final boolean [] current, final int product_index) {
+        return (current == null) || ((product_index < current.length) && current[product_index]);
+    }
+
+    private long bucketOf(final long time) {
+        return decay == null ? 0L : decay.bucketOf(time);
+    }
+
+    private static long latest(final TIntLongMap times) {
+        long latest = 0L;
+        for (TIntLongIterator it = times.iterator(); it.hasNext(); )
+        {
+            it.advance();
+            latest = Math.max(latest, it.value());
+        }
+        return latest;
+    }
+
+    private void addPair(final int product_index, final long time1, final int product_index2, final long time2, final long oldest, final ShardPairs partial) {
+        // is time difference small enough?
+        if (Math.abs(time1 - time2) > maxDiffSec)
+            return;
+        // the pair occurred at the later of the two times
+        final long bucket = bucketOf(Math.max(time1, time2));
+        if (bucket < oldest)
+            return;
+        // counts are symmetric, each pair is counted in both rows
+        final CooccurrenceMatrix.PairBuffer pairs = partial.pairs(bucket);
+        pairs.add(product_index, product_index2);
+        pairs.add(product_index2, product_index);
+    }
+
+    /**
+     * Adds the new pairs and counts to their buckets and drops the buckets older than the
+     * oldest one in the window. The sums are kept up to date with the same changes: the new
+     * pairs and counts are added to them and the dropped buckets subtracted, and the decayed
+     * sums are computed anew only when the newest bucket changes (the weights are relative to
+     * it) or buckets are dropped. newCounts are the summed counts of the current products
+     * before the update.
+     */
+    private State updateBuckets(final State base, final TLongObjectMap<CooccurrenceMatrix.Pairs> deltas, final TLongObjectMap<TIntIntMap> deltaCounts, final boolean [] current, final TIntArrayList newCounts, final TIntLongMap newTimes, final int productsSize, final long oldest) {
+        // the buckets only keep the current products; products that stopped being current are taken out
+        final int [] removed = removedProducts(base, current);
+        final List<Bucket> newBuckets = new ArrayList<Bucket>(decay.buckets);
+        final TLongSet started = new TLongHashSet(deltas.keySet());
+        started.addAll(deltaCounts.keySet());
+        CooccurrenceMatrix.Pairs droppedPairs = CooccurrenceMatrix.Pairs.EMPTY;
+        int dropped = 0;
+        for (final Bucket bucket : base.buckets)
+        {
+            started.remove(bucket.start);
+            if (bucket.start < oldest)
+            {
+                dropped++;
+                droppedPairs = CooccurrenceMatrix.Pairs.merge(droppedPairs, bucket.pairs.toPairs());
+                for (TIntIntIterator it = bucket.productCounts.iterator(); it.hasNext(); )
+                {
+                    it.advance();
+                    if (it.key() < productsSize)
+                        newCounts.set(it.key(), Math.max(0, newCounts.get(it.key()) - it.value()));
+                }
+            }
+            else
+                newBuckets.add(mergeBucket(bucket, deltas.get(bucket.start), deltaCounts.get(bucket.start), removed));
+        }
+        for (final long start : started.toArray())
+            newBuckets.add(mergeBucket(new Bucket(start, CooccurrenceMatrix.EMPTY, new TIntIntHashMap()), deltas.get(start), deltaCounts.get(start), removed));
+        Collections.sort(newBuckets, byStart);
+
+        // the sums: the dropped buckets subtracted, the new pairs and counts added
+        CooccurrenceMatrix.Pairs added = CooccurrenceMatrix.Pairs.EMPTY;
+        for (final CooccurrenceMatrix.Pairs delta : deltas.valueCollection())
+            added = CooccurrenceMatrix.Pairs.merge(added, delta);
+        for (final TIntIntMap counts : deltaCounts.valueCollection())
+        {
+            for (TIntIntIterator it = counts.iterator(); it.hasNext(); )
+            {
+                it.advance();
+                if (it.key() < productsSize)
+                    newCounts.set(it.key(), newCounts.get(it.key()) + it.value());
+            }
+        }
+        final CooccurrenceMatrix remaining = base.similarities.subtract(droppedPairs);
+        final CooccurrenceMatrix sum = (added.size() == 0) && (current == null) ? remaining : remaining.merge(added, current, maxNeighbors);
+        logger.debug("Co-occurrences of " + eventName + ": " + newBuckets.size() + " buckets, " + dropped + " dropped, " + added.size() + " new pairs, " + sum.size() + " pairs in total");
+
+        if ((decay.halfLifeSec <= 0.0) || newBuckets.isEmpty())
+            return new State(sum, newCounts, newTimes, newBuckets, null, null);
+        final long newest = newBuckets.get(newBuckets.size() - 1).start;
+        if ((base.pairWeights == null) || (dropped > 0) || base.buckets.isEmpty() || (base.buckets.get(base.buckets.size() - 1).start != newest))
+            return new State(sum, newCounts, newTimes, newBuckets, pairWeights(newBuckets, sum), productWeights(newBuckets, productsSize));
+
+        // the weights of the buckets did not change and none were dropped: the previous decayed
+        // sums, at their new positions, and the new pairs and counts weighted by their buckets
+        final CooccurrenceMatrix previous = base.similarities;
+        final float [] previousWeights = base.pairWeights;
+        final float [] pairWeights = new float[sum.size()];
+        final int rows = Math.min(sum.rows(), previous.rows());
+        Parallel.forShards(rows, Parallel.shards(null, (rows + 1023) / 1024), new Parallel.ShardTask() {
+            @Override
+            public void run(final int shard, final int from, final int to) {
+                for (int r = from; r < to; r++)
+                {
+                    int j = previous.rowStart(r);
+                    final int end = previous.rowEnd(r);
+                    for (int k = sum.rowStart(r); (k < sum.rowEnd(r)) && (j < end); k++)
+                    {
+                        final int column = sum.column(k);
+                        while ((j < end) && (previous.column(j) < column))
+                            j++;
+                        if ((j < end) && (previous.column(j) == column))
+                            pairWeights[k] = previousWeights[j];
+                    }
+                }
+            }
+        });
+        for (final long start : deltas.keys())
+        {
+            final float weight = (float) decay.weight(start, newest);
+            final CooccurrenceMatrix.Pairs delta = deltas.get(start);
+            for (int i = 0; i < delta.size; i++)
+            {
+                final int position = sum.position(CooccurrenceMatrix.row(delta.keys[i]), CooccurrenceMatrix.column(delta.keys[i]));
+                if (position >= 0)
+                    pairWeights[position] += weight * delta.counts[i];
+            }
+        }
+        final float [] productWeights = Arrays.copyOf(base.productWeights, productsSize);
+        for (final int index : removed)
+        {
+            if (index < productsSize)
+                productWeights[index] = 0.0f;
+        }
+        for (final long start : deltaCounts.keys())
+        {
+            final float weight = (float) decay.weight(start, newest);
+            for (TIntIntIterator it = deltaCounts.get(start).iterator(); it.hasNext(); )
+            {
+                it.advance();
+                if (it.key() < productsSize)
+                    productWeights[it.key()] += weight * it.value();
+            }
+        }
+        return new State(sum, newCounts, newTimes, newBuckets, pairWeights, productWeights);
+    }
+
+    /**
+     * Returns the products that were current with the times of the state, but are not anymore.
+     */
+    private int [] removedProducts(final State base, final boolean [] current) {
+        if (current == null)
+            return new int[0];
+        final boolean [] previous = currentProducts(base.productsTimes);
+        final TIntArrayList removed = new TIntArrayList();
+        for (int i = 0; i < previous.length; i++)
+        {
+            if (previous[i] && !isCurrent(current, i))
+                removed.add(i);
+        }
+        return removed.toArray();
+    }
+
+    /**
+     * Returns the bucket with the new pairs and counts (null if none) added, and without the
+     * removed products; the same bucket if nothing changes.
+     */
+    private Bucket mergeBucket(final Bucket bucket, final CooccurrenceMatrix.Pairs delta, final TIntIntMap counts, final int [] removed) {
+        boolean changed = (delta != null) || (counts != null);
+        for (int i = 0; (i < removed.length) && !changed; i++)
+            changed = bucket.productCounts.containsKey(removed[i]) || (bucket.pairs.rowLength(removed[i]) > 0);
+        if (!changed)
+            return bucket;
+        CooccurrenceMatrix newPairs = removed.length == 0 ? bucket.pairs : bucket.pairs.withoutProducts(removed);
+        if (delta != null)
+            newPairs = newPairs.merge(delta, null, maxNeighbors);
+        final TIntIntMap newCounts = new TIntIntHashMap(bucket.productCounts);
+        if (counts != null)
+        {
+            for (TIntIntIterator it = counts.iterator(); it.hasNext(); )
+            {
+                it.advance();
+                newCounts.adjustOrPutValue(it.key(), it.value(), it.value());
+            }
+        }
+        for (final int index : removed)
+            newCounts.remove(index);
+        return new Bucket(bucket.start, newPairs, newCounts);
+    }
+
+    /**
+     * Returns the state with the sums of the buckets and, with a half-life, their decayed
+     * sums, weighted relative to the newest bucket; computed from all the buckets.
+     */
+    private State aggregate(final List<Bucket> buckets, final TIntLongMap times, final int productsSize) {
+        CooccurrenceMatrix sum = CooccurrenceMatrix.EMPTY;
+        final TIntArrayList counts = new TIntArrayList(productsSize);
+        for (int i = 0; i < productsSize; i++)
+            counts.add(0);
+        for (final Bucket bucket : buckets)
+        {
+            sum = sum.merge(bucket.pairs.toPairs(), null, maxNeighbors);
+            for (TIntIntIterator it = bucket.productCounts.iterator(); it.hasNext(); )
+            {
+                it.advance();
+                if (it.key() < productsSize)
+                    counts.set(it.key(), counts.get(it.key()) + it.value());
+            }
+        }
+        if ((decay.halfLifeSec <= 0.0) || buckets.isEmpty())
+            return new State(sum, counts, times, buckets, null, null);
+        return new State(sum, counts, times, buckets, pairWeights(buckets, sum), productWeights(buckets, productsSize));
+    }
+
+    /**
+     * Returns the decayed sums of the pairs of the buckets, by the positions in their sum,
+     * weighted relative to the newest bucket.
+     */
+    private float [] pairWeights(final List<Bucket> buckets, final CooccurrenceMatrix total) {
+        // rows are disjoint between shards
+        final long newest = buckets.get(buckets.size() - 1).start;
+        final float [] pairWeights = new float[total.size()];
+        final int rows = total.rows();
+        Parallel.forShards(rows, Parallel.shards(null, (rows + 1023) / 1024), new Parallel.ShardTask() {
+            @Override
+            public void run(final int shard, final int from, final int to) {
+                for (final Bucket bucket : buckets)
+                {
+                    final float weight = (float) decay.weight(bucket.start, newest);
+                    final CooccurrenceMatrix pairs = bucket.pairs;
+                    for (int r = from; r < to; r++)
+                    {
+                        for (int k = pairs.rowStart(r); k < pairs.rowEnd(r); k++)
+                        {
+                            final int position = total.position(r, pairs.column(k));
+                            if (position >= 0)
+                                pairWeights[position] += weight * pairs.count(k);
+                        }
+                    }
+                }
+            }
+        });
+        return pairWeights;
+    }
+
+    /**
+     * Returns the decayed sums of the product counts of the buckets, weighted relative to the newest bucket.
+     */
+    private float [] productWeights(final List<Bucket> buckets, final int productsSize) {
+        final long newest = buckets.get(buckets.size() - 1).start;
+        final float [] productWeights = new float[productsSize];
+        for (final Bucket bucket : buckets)
+        {
+            final float weight = (float) decay.weight(bucket.start, newest);
+            for (TIntIntIterator it = bucket.productCounts.iterator(); it.hasNext(); )
+            {
+                it.advance();
+                if (it.key() < productsSize)
+                    productWeights[it.key()] += weight * it.value();
+            }
+        }
+        return productWeights;
+    }
+
+    /**
+     * Returns the change of the counts after a change of products.
+     */
+    public synchronized Commitable updateProducts(final DataStore.UpdateProductsDelta delta) {
+        final Commitable last = lastChange(delta);
+        if (last != null)
+            return last;
+        final State base = state;
+        final State newState;
+        if (delta.isStable())
+        {
+            // indices did not change, only the counts of recycled slots are reset
+            final TIntList newCounts = new TIntArrayList(base.productCounts);
+            final TIntLongMap newTimes = new TIntLongHashMap(base.productsTimes);
+            for (final int index : delta.recycledIndices)
+            {
+                newTimes.remove(index);
+                if (index < newCounts.size())
+                    newCounts.set(index, 0);
+            }
+            if (decay == null)
+                newState = new State(base.similarities.withoutProducts(delta.recycledIndices), newCounts, newTimes);
+            else
+            {
+                final List<Bucket> newBuckets = new ArrayList<Bucket>(base.buckets.size());
+                for (final Bucket bucket : base.buckets)
+                {
+                    final TIntIntMap bucketCounts = new TIntIntHashMap(bucket.productCounts);
+                    for (final int index : delta.recycledIndices)
+                        bucketCounts.remove(index);
+                    newBuckets.add(new Bucket(bucket.start, bucket.pairs.withoutProducts(delta.recycledIndices), bucketCounts));
+                }
+                newState = aggregate(newBuckets, newTimes, newCounts.size());
+            }
+        }
+        else
+        {
+            final int [] oldToNew = delta.oldToNew;
+            final int newSize = delta.newProducts.size();
+            final TIntList newCounts = new TIntArrayList(newSize);
+            for (int i = 0; i < newSize; i++)
+                newCounts.add(0);
+            final TIntLongMap newTimes = new TIntLongHashMap();
+            final int counts_len = Math.min(base.productCounts.size(), oldToNew.length);
+            for (int i = 0; i < counts_len; i++)
+            {
+                final int newIndex = oldToNew[i];
+                if ((newIndex >= 0) && (newIndex < newSize))
+                    newCounts.set(newIndex, base.productCounts.get(i));
+            }
+            for (TIntLongIterator it = base.productsTimes.iterator(); it.hasNext(); )
+            {
+                it.advance();
+                final int newIndex = it.key() < oldToNew.length ? oldToNew[it.key()] : -1;
+                if (newIndex >= 0)
+                    newTimes.put(newIndex, it.value());
+            }
+            if (decay == null)
+                newState = new State(base.similarities.remap(oldToNew, newSize), newCounts, newTimes);
+            else
+            {
+                final List<Bucket> newBuckets = new ArrayList<Bucket>(base.buckets.size());
+                for (final Bucket bucket : base.buckets)
+                {
+                    final TIntIntMap bucketCounts = new TIntIntHashMap();
+                    for (TIntIntIterator it = bucket.productCounts.iterator(); it.hasNext(); )
+                    {
+                        it.advance();
+                        final int newIndex = it.key() < oldToNew.length ? oldToNew[it.key()] : -1;
+                        if ((newIndex >= 0) && (newIndex < newSize))
+                            bucketCounts.put(newIndex, it.value());
+                    }
+                    newBuckets.add(new Bucket(bucket.start, bucket.pairs.remap(oldToNew, newSize), bucketCounts));
+                }
+                newState = aggregate(newBuckets, newTimes, newSize);
+            }
+        }
+        return setLastChange(delta, newState);
+    }
+
+    /**
+     * Returns the change that sets loaded counts; without times (null) the current times remain.
+     */
+    public Commitable load(final CooccurrenceMatrix similarities, final TIntList productCounts, final TIntLongMap productsTimes) {
+        return load(similarities, productCounts, productsTimes, null);
+    }
+
+    /**
+     * Returns the change that sets loaded counts and buckets (null if there are none). If
+     * the counts are bucketed and no buckets were loaded, the loaded counts become the
+     * bucket of the latest time; if they are not bucketed, the buckets are ignored.
+     */
+    public Commitable load(final CooccurrenceMatrix similarities, final TIntList productCounts, final TIntLongMap productsTimes, final List<Bucket> buckets) {
+        if (decay != null)
+        {
+            final TIntLongMap times = productsTimes == null ? state.productsTimes : productsTimes;
+            final List<Bucket> loaded;
+            if ((buckets == null) || buckets.isEmpty())
+            {
+                final TIntIntMap counts = new TIntIntHashMap();
+                for (int i = productCounts.size() - 1; i >= 0; i--)
+                {
+                    if (productCounts.get(i) != 0)
+                        counts.put(i, productCounts.get(i));
+                }
+                loaded = Collections.singletonList(new Bucket(decay.bucketOf(latest(times)), similarities, counts));
+            }
+            else
+            {
+                loaded = new ArrayList<Bucket>(buckets);
+                Collections.sort(loaded, byStart);
+            }
+            final State loadedState = aggregate(loaded, times, productCounts.size());
+            return new Commitable() {
+                @Override
+                public void commit() {
+                    synchronized (CooccurrenceTable.this) {
+                        state = loadedState;
+                        lastUpdate = null;
+                        lastChange = null;
+                    }
+                }
+            };
+        }
+        return new Commitable() {
+            @Override
+            public void commit() {
+                synchronized (CooccurrenceTable.this) {
+                    state = new State(similarities, productCounts, productsTimes == null ? state.productsTimes : productsTimes);
+                    lastUpdate = null;
+                    lastChange = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds the task that writes the state of the table to the snapshot set, unless another
+     * subscriber already did, and returns the name of its section. The section is named after
+     * the key of the table, under the first part of the name of the subscriber's section
+     * (e.g. <code>predictor.cooccurrence.buys_3_30_0_0_null</code>), so it is reused together
+     * with its subscribers.
+     */
+    public String writeSection(final SnapshotSet.Writer set, final String subscriber, final List<SnapshotSet.Task> tasks) {
+        final int dot = subscriber.indexOf('.');
+        final String section = (dot < 0 ? subscriber : subscriber.substring(0, dot)) + ".cooccurrence." + key.replaceAll("[^A-Za-z0-9_.-]", "_");
+        if (set.claim(section))
+        {
+            final State captured = state;
+            SnapshotSet.addSection(set, section, tasks, new SnapshotSet.SectionWriter() {
+                @Override
+                public void write(final SnapshotOutput out) throws IOException {
+                    out.writeString(key);
+                    captured.similarities.writeTo(out);
+                    out.writeIntList(captured.productCounts);
+                    out.writeIntLongMap(captured.productsTimes);
+                    writeBuckets(out, captured.buckets);
+                }
+            });
+        }
+        return section;
+    }
+
+    /**
+     * Returns the change that sets the state read from the section written by
+     * {@link #writeSection(SnapshotSet.Writer, String, List)}. The section is read for the
+     * first subscriber, the others get the same change.
+     */
+    public synchronized Commitable readSection(final SnapshotSet.Reader set, final String section) throws IOException {
+        final Commitable last = lastChange(set);
+        if (last != null)
+            return last;
+        final Commitable loaded = set.section(section, new SnapshotSet.SectionReader<Commitable>() {
+            @Override
+            public Commitable read(final SnapshotInput in) throws IOException {
+                final String sectionKey = in.readString();
+                if (!key.equals(sectionKey))
+                    throw new IOException("Section " + section + " holds the co-occurrences " + sectionKey + " instead of " + key);
+                final CooccurrenceMatrix similarities = CooccurrenceMatrix.readFrom(in);
+                final TIntList productCounts = in.readIntList();
+                final TIntLongMap productsTimes = in.readIntLongMap();
+                return load(similarities, productCounts, productsTimes, readBuckets(in));
+            }
+        });
+        return setLastChange(set, loaded);
+    }
+
+    /**
+     * Writes the buckets of the state, for {@link #readBuckets(SnapshotInput)}.
+     */
+    public static void writeBuckets(final SnapshotOutput out, final List<Bucket> buckets) throws IOException {
+        out.writeInt(buckets.size());
+        for (final Bucket bucket : buckets)
+        {
+            out.writeLong(bucket.start);
+            bucket.pairs.writeTo(out);
+            out.writeIntIntMap(bucket.productCounts);
+        }
+    }
+
+    public static List<Bucket> readBuckets(final SnapshotInput in) throws IOException {
+        final int n = in.readInt();
+        if (n < 0)
+            throw new IOException("Corrupt co-occurrence buckets in the snapshot");
+        final List<Bucket> buckets = new ArrayList<Bucket>(n);
+        for (int i = 0; i < n; i++)
+        {
+            final long start = in.readLong();
+            final CooccurrenceMatrix pairs = CooccurrenceMatrix.readFrom(in);
+            final TIntIntMap counts = in.readIntIntMap();
+            buckets.add(new Bucket(start, pairs, counts == null ? new TIntIntHashMap() : counts));
+        }
+        return buckets;
+    }
+
+    private final class Change implements Commitable {
+        private final State newState;
+        private boolean committed = false;
+
+        Change(final State newState) {
+            this.newState = newState;
+        }
+
+        @Override
+        public void commit() {
+            synchronized (CooccurrenceTable.this) {
+                if (committed)
+                    return;
+                committed = true;
+                state = newState;
+                if (lastChange == this) {
+                    lastUpdate = null;
+                    lastChange = null;
+                }
+            }
+        }
+    }
+}
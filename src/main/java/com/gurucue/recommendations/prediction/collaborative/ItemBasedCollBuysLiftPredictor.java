@@ -22,8 +22,6 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -34,16 +32,14 @@ import com.gurucue.recommendations.recommender.ProductPair;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
 import com.gurucue.recommendations.recommender.dto.ProductData;
-import gnu.trove.iterator.TIntIntIterator;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 import gnu.trove.iterator.TIntIterator;
-import gnu.trove.iterator.TIntLongIterator;
 import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntLongMap;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.map.hash.TIntLongHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
@@ -52,7 +48,6 @@ import org.apache.logging.log4j.Logger;
 
 import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.ConsumerBuysData;
-import com.gurucue.recommendations.recommender.dto.ConsumerMetaEventsData;
 import com.gurucue.recommendations.recommender.dto.ContextDiscretizer;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
@@ -71,6 +66,8 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
     private final int RELEVANT_TIME; // number of days between two products that makes them still revelant for similarity
     private final float M; // blending factor in computing cosine similarity
     private int MAX_PRODUCTS; // maximal number of similar items for another item 
+    private final int MAX_NEIGHBORS; // strongest neighbors kept per product (approximate counts), all if not set
+    private final CooccurrenceTable.Decay DECAY; // time buckets of the counts, null if not set
     
     // ID of average predictor in product rating
     final int AVERAGE_ID;
@@ -80,11 +77,9 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
     
     private DataStore data; // the data source
     
-    // similarities and indices
-    List<TIntIntMap> similarities;
+    // co-occurrence counts of products, shared with other predictors
+    CooccurrenceTable table;
     List<TIntIntMap> contextSimilarities;
-    TIntLongMap productsTimes;
-    TIntList productCounts;
     
     // context handler
     ContextDiscretizer contextHandler;
@@ -102,6 +97,9 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
         TIMESTAMP_ID = settings.getSettingAsInt(name+"_TIMESTAMP_META");
         RELEVANT_TIME = settings.getSettingAsInt(name+"_RELEVANT_TIME");
         MAX_PRODUCTS = settings.getSettingAsInt(name+"_MAX_PRODUCTS"); 
+        final Integer maxNeighbors = settings.getSettingAsInt(name+"_MAX_NEIGHBORS");
+        MAX_NEIGHBORS = maxNeighbors == null ? 0 : maxNeighbors;
+        DECAY = CooccurrenceTable.Decay.fromSettings(name, settings);
         
         M = settings.getSettingAsFloat(name+"_M");
         this.maxDiffSec = RELEVANT_TIME * 24 * 60 * 60;
@@ -119,6 +117,8 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
         int consumerIndex = -1;
         final int buysEventIndex = data.getEventsDescriptor(BUYSNAME).index;
         final long currentTimeSec = System.currentTimeMillis()/1000;
+        final CooccurrenceTable.State counts = table.getState();
+        final CooccurrenceMatrix similarities = counts.similarities;
 
         for (ProductRating pr : predictions)
         {
@@ -141,15 +141,14 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
             }
 
             final int prod1_index = pr.getProductIndex();
-            final int prod_count = productCounts.get(prod1_index);
-            if (prod_count == 0)
+            final double prod_count = counts.productCount(prod1_index);
+            if (prod_count <= 0)
             {
                 addProductRating(pr, pr.getPrediction(AVERAGE_ID), "");
                 continue;
             }
             
-            final TIntIntMap similarity = similarities.get(prod1_index);
-            if (similarity == null)
+            if (similarities.rowLength(prod1_index) == 0)
             {
                 addProductRating(pr, pr.getPrediction(AVERAGE_ID), "");
                 continue;
@@ -164,9 +163,10 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
             for (TIntIterator it = us.iterator(); it.hasNext(); )
             {
                 final int prod2_index = it.next();
-                if (similarity.get(prod2_index) < 5)
+                final double pairCount = counts.pairCount(prod1_index, prod2_index);
+                if (pairCount < 5)
                     continue;
-                final double sim = similarity.get(prod2_index) / (productCounts.get(prod2_index) * Math.sqrt(productCounts.get(prod1_index)));
+                final double sim = pairCount / (counts.productCount(prod2_index) * Math.sqrt(prod_count));
                 if (sim > highest_sim)
                 {
                     explanation = "customers who watched also watched:(ID=" + data.getProducts().get(prod2_index).productId + ", title=" + data.getProducts().get(prod2_index).getStrAttrValue(0, 0) + ");";
@@ -180,26 +180,13 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
         
     }
     
-    private void addPair(final int product_index, final long time1, final TIntList context1, final int product_index2, final long time2, final TIntList context2, Map<Integer, TIntIntMap> newSimilarities, Map<Integer, TIntIntMap> contextSimilarities, long currentTime)
+    /**
+     * Subscribes to the co-occurrence counts of the model.
+     */
+    private void subscribe()
     {
-        // is time difference small enough?
-        if (Math.abs(time1-time2) > maxDiffSec)
-            return;
-        
-        // similarities first
-        TIntIntMap sim1, sim2, contSim1, contSim2;
-        sim1 = newSimilarities.get(product_index);
-        if (sim1 == null)
-            sim1 = new TIntIntHashMap();
-        sim2 = newSimilarities.get(product_index2);
-        if (sim2 == null)
-            sim2 = new TIntIntHashMap();
-        
-        sim1.put(product_index2, sim1.get(product_index2)+1);
-        sim2.put(product_index, sim2.get(product_index)+1);
-        
-        newSimilarities.put(product_index, sim1);
-        newSimilarities.put(product_index2, sim2);
+        if (table == null)
+            table = CooccurrenceTable.subscribe(data, BUYSNAME, TIMESTAMP_ID, RELEVANT_TIME, MAX_PRODUCTS, MAX_NEIGHBORS, DECAY, getUpdateShards());
     }
     
     @Override
@@ -209,171 +196,17 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
         if (this.data == null) // initialization of attributes is needed
         {
             this.data = newData.dataStore; // dataStore object; this should not change since DataStore is a permanent object
-            similarities = new ArrayList<TIntIntMap>();
             contextSimilarities = new ArrayList<TIntIntMap>();
-            productsTimes = new TIntLongHashMap(); 
-            productCounts = new TIntArrayList(this.data.getProducts().size());
             for (ProductData pr : this.data.getProducts())
-            {
-                productCounts.add(0);
-                similarities.add(null); //new TIntIntHashMap());
                 contextSimilarities.add(null); //new TIntIntHashMap());
-            }
         }
-        final int buysEventIndex = data.getEventsDescriptor(BUYSNAME).index;
-        final long currentTime = System.currentTimeMillis() / 1000;
+        subscribe();
         
-        TIntArrayList newCounts = new TIntArrayList(productCounts);
-        Map<Integer, TIntIntMap> newSimilarities = new HashMap<Integer, TIntIntMap>();
-        Map<Integer, TIntIntMap> newContextSimilarities = new HashMap<Integer, TIntIntMap>();
-        
-        // we first need to update the list of active products
-        for (ConsumerData cd : newData.newData)
-        {
-            if (null == cd)
-                continue;
-            final ConsumerBuysData cbd = (ConsumerBuysData) cd.events[buysEventIndex];
-            if ((null == cbd) || (cbd.indices.length == 0))
-                continue;
-            final ConsumerMetaEventsData meta = cd.events[buysEventIndex].getMeta();
-            final long[] times = meta.getLongValuesArray(TIMESTAMP_ID);
-
-            final int ilen = cbd.indices.length;
-            
-            // create a set of user items (to determine if the product is new) 
-            for (int i=0; i<ilen; i++)
-            {
-                final int product_index = cbd.indices[i];
-                productsTimes.put(product_index, Math.max(times[i],productsTimes.get(product_index)));
-            }
-        }
-        
-        // now, select a set of products that are current 
-        TIntSet currentProducts = new TIntHashSet();
-        long [] vals = productsTimes.values();
-        Arrays.sort(vals);
-        final long threshold = vals[Math.max(0, productsTimes.size()-MAX_PRODUCTS)];
-        for (TIntLongIterator it = productsTimes.iterator(); it.hasNext(); )
-        {
-            it.advance();
-            if (it.value() >= threshold)
-                currentProducts.add(it.key());
-        }
-        
-        // first remove everthing from newCounts that is not in currentCounts
-        for (int i = newCounts.size()-1; i >= 0; i--)
-        {
-            if (!currentProducts.contains(i))
-                newCounts.set(i, 0);
-        }
-
-        // now add data about the pairs containing only current products
-        int user_index = -1;
-        for (ConsumerData cd : newData.newData)
-        {
-            user_index++;
-            if (null == cd)
-                continue;
-            
-            // get events
-            final ConsumerBuysData cbd = (ConsumerBuysData) cd.events[buysEventIndex];
-            if ((null == cbd) || (cbd.indices.length == 0))
-                continue;
-
-            ConsumerBuysData old_cbd = null; 
-            ConsumerMetaEventsData old_meta;
-            long[] old_times;
-            int ilen_old;
-            TIntSet consumer_items;
-            
-            if (data.getConsumers().size() > user_index)
-                old_cbd = (ConsumerBuysData) data.getConsumers().get(user_index).events[buysEventIndex];
-            if (old_cbd != null)
-            {
-                old_meta = data.getConsumers().get(user_index).events[buysEventIndex].getMeta();
-                old_times  = old_meta.getLongValuesArray(TIMESTAMP_ID);
-                ilen_old = old_cbd.indices.length;
-                consumer_items = new TIntHashSet(old_cbd.indices);
-                old_times = old_meta.getLongValuesArray(TIMESTAMP_ID);
-            }
-            else
-            {
-                old_meta = null;
-                old_times = null;
-                ilen_old = 0;
-                consumer_items = new TIntHashSet();
-                old_times = null;
-            }
-            
-            // get meta data (for time stamps)
-            final ConsumerMetaEventsData meta = cd.events[buysEventIndex].getMeta();
-            final long[] times = meta.getLongValuesArray(TIMESTAMP_ID);
-            final int ilen = cbd.indices.length;
-            
-            // create a set of user items (to determine if the product is new) 
-            for (int i=0; i<ilen; i++)
-            {
-                final int product_index = cbd.indices[i];
-                //final TIntList contextPositions = contextHandler.getContext(data, product_index, meta, i);
-                
-                if (!currentProducts.contains(product_index))
-                    continue;
-
-                newCounts.set(product_index, newCounts.get(product_index)+1);
-                consumer_items.add(product_index);
-                
-                // add all pairs of new product
-                for (int j=i+1; j<ilen; j++)
-                {
-                    final int product_index2 = cbd.indices[j];
-                    if (product_index == product_index2)
-                        continue;
-                    if (!currentProducts.contains(product_index2))
-                        continue;
-                    addPair(product_index, times[i], null, product_index2, times[j], null, newSimilarities, newContextSimilarities, currentTime);
-                }
-                
-                // now compare this product with the old consumer items
-                for (int j=0; j<ilen_old; j++)
-                {
-                    final int product_index2 = old_cbd.indices[j];
-                    if (product_index == product_index2)
-                        continue;
-                    if (!currentProducts.contains(product_index2))
-                        continue;
-                    addPair(product_index, times[i], null, product_index2, old_times[j], null, newSimilarities, newContextSimilarities, currentTime);
-                }
-            }
-        }
-        // go through similarities
-        int key = 0;
-        for (TIntIntMap sim : similarities)
-        {
-            if (sim == null || sim.size () == 0)
-                continue;
-            // if newSimilarities contains this, sum it up, or if it contains a key that is not in currentProducts
-            if (newSimilarities.containsKey(key) || !currentProducts.containsAll(sim.keys()))
-            {
-                TIntIntMap newSim = newSimilarities.get(key);
-                if (newSim == null)
-                {
-                    newSim = new TIntIntHashMap();
-                    newSimilarities.put(key, newSim);
-                }
-                if (currentProducts.contains(key))
-                    for (TIntIntIterator it = sim.iterator(); it.hasNext(); )
-                    {
-                        it.advance();
-                        final int key2 = it.key();
-                        if (currentProducts.contains(key2))
-                            newSim.put(key, newSim.get(it.key()) + it.value());
-                    }
-            }
-            key += 1;
-        }
+        // pairs are counted by the shared table, once for all predictors that use it
+        final Commitable delta = table.update(newData);
 
         logger.info("Update ItemBasedCollBuysLiftPredictor kNN ended.");
-        return new UpdateDelta(newCounts, newSimilarities, newContextSimilarities);
+        return delta;
     }
     
     
@@ -402,18 +235,19 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
 
     @Override
     public void getSimilarProducts(TIntSet productIndices, List<ProductRating> predictions, int id_shift, Map<String,String> tags) {
+        final CooccurrenceTable.State counts = table.getState();
+        final CooccurrenceMatrix similarities = counts.similarities;
         for (ProductRating pr : predictions)
         {
             final int prod1_index = pr.getProductIndex();
-            final int prod_count = productCounts.get(prod1_index);
-            if (prod_count == 0)
+            final double prod_count = counts.productCount(prod1_index);
+            if (prod_count <= 0)
             {
                 addProductRating(pr, 0.0, "");
                 continue;
             }
             
-            final TIntIntMap similarity = similarities.get(prod1_index);
-            if (similarity == null)
+            if (similarities.rowLength(prod1_index) == 0)
             {
                 addProductRating(pr, 0.0, "");
                 continue;
@@ -429,7 +263,7 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
             for (TIntIterator it = productIndices.iterator(); it.hasNext(); )
             {
                 final int prod2_index = it.next();
-                final double sim = similarity.get(prod2_index) / (productCounts.get(prod2_index) * Math.sqrt(productCounts.get(prod1_index)));
+                final double sim = counts.pairCount(prod1_index, prod2_index) / (counts.productCount(prod2_index) * Math.sqrt(prod_count));
                 if (sim > highest_sim)
                 {
                     highest_sim = sim;
@@ -439,7 +273,7 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
             }
             if (highest_sim > 0)
             {
-                explanation = "based on id=" + data.getProducts().get(highest_index).productId + "(" + highest_sim + "," + similarity.get(highest_index) + "," + productCounts.get(highest_index) + ", " + Math.sqrt(productCounts.get(prod1_index)) +  ")" + ";";
+                explanation = "based on id=" + data.getProducts().get(highest_index).productId + "(" + highest_sim + "," + counts.pairCount(prod1_index, highest_index) + "," + counts.productCount(highest_index) + ", " + Math.sqrt(prod_count) +  ")" + ";";
             }                    
             addProductRating(pr, prediction, explanation);
         }
@@ -453,72 +287,27 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
 
     @Override
     public Commitable updateProducts(DataStore.UpdateProductsDelta delta) {
-        // new similarities
-        List<TIntIntMap> newSimilarities = new ArrayList<TIntIntMap> ();
-        List<TIntIntMap> newContextSimilarities = new ArrayList<TIntIntMap> ();
-        TIntList newProductCounts = new TIntArrayList();         
-        
-        final List<ProductData> newProducts = delta.newProducts;
-        final TLongIntHashMap newProductIDs = delta.newProductIDs;
-        TIntLongMap newProductsTimes = new TIntLongHashMap();
-        
-        for (ProductData pd : newProducts)
+        final Commitable counts = table.updateProducts(delta);
+        if (delta.isStable())
         {
-            newProductCounts.add(0);
-            newSimilarities.add(null);
-            newContextSimilarities.add(null);
-        }
-        
-        final int counts_len = productCounts.size();
-        for (int i = 0; i < counts_len; i++)
-        {
-            final ProductData pd = data.getProductByIndex(i);
-            final int newIndex = newProductIDs.get(pd.productId);
-            if (newIndex < 0)
-                continue;
-            
-            newProductCounts.set(newIndex, productCounts.get(i));
-            newProductsTimes.put(newIndex, productsTimes.get(i));
-            
-            if (similarities.get(i) == null)
-                continue;
-            
-            newSimilarities.set(newIndex, new TIntIntHashMap());
-            TIntIntMap sim1 = newSimilarities.get(newIndex);
-            
-            for (TIntIntIterator it = sim1.iterator(); it.hasNext();)
-            {
-                it.advance();
-                final int key = it.key();
-                final int value = it.value();
-                final int newIndex2 = newProductIDs.get(data.getProductByIndex(key).productId);
-                sim1.put(newIndex2, value);
-            }
-            
-            if (contextSimilarities.get(i) == null)
-                continue;
-            newContextSimilarities.set(newIndex, new TIntIntHashMap());
-            TIntIntMap sim2 = newContextSimilarities.get(newIndex);
-            for (TIntIntIterator it = newContextSimilarities.get(i).iterator(); it.hasNext();)
-            {
-                it.advance();
-                final int key = it.key();
-                final int value = it.value();
-                final int newIndex2 = newProductIDs.get(data.getProductByIndex(key).productId);
-                sim2.put(newIndex2, value);
-            }
+            // indices did not change, only the rows of recycled slots are reset
+            return new ResetProductsDelta(delta.recycledIndices, counts);
         }
-        
-        productsTimes = newProductsTimes;
-        return new UpdateProductsDelta(newProductCounts, newSimilarities, newContextSimilarities);
+
+        // context similarities are not counted, there is nothing to move
+        List<TIntIntMap> newContextSimilarities = new ArrayList<TIntIntMap> ();
+        for (ProductData pd : delta.newProducts)
+            newContextSimilarities.add(null);
+        return new UpdateProductsDelta(counts, newContextSimilarities);
     }
     
 	@Override
 	public void serialize(ObjectOutputStream out) throws IOException {
-		out.writeObject(similarities);
+		final CooccurrenceTable.State counts = table.getState();
+		out.writeObject(counts.similarities.toMaps());
 		out.writeObject(contextSimilarities);
-		out.writeObject(productsTimes);
-		out.writeObject(productCounts);
+		out.writeObject(counts.productsTimes);
+		out.writeObject(counts.productCounts);
 	}
 
 
@@ -530,96 +319,130 @@ public class ItemBasedCollBuysLiftPredictor extends Predictor {
         {
             this.data = data; // dataStore object; this should not change since DataStore is a permanent object
         }		
+        subscribe();
 	    List<TIntIntMap> newSimilarities = (List<TIntIntMap>) in.readObject();
 	    List<TIntIntMap> newContextSimilarities = (List<TIntIntMap>) in.readObject();		
 		TIntLongMap productsTimes = (TIntLongMap) in.readObject();
 		TIntList newProductCounts = (TIntList) in.readObject();
-		return new UpdateAll(newProductCounts, newSimilarities, newContextSimilarities, productsTimes);
+		return new UpdateAll(table.load(CooccurrenceMatrix.fromMaps(newSimilarities), newProductCounts, productsTimes), newContextSimilarities);
 	}       
-        
-    
-    private class UpdateDelta implements Commitable {
-        final Map<Integer, TIntIntMap> newSimilarities;
-        final Map<Integer, TIntIntMap> newContextSimilarities;
-        final TIntList newProductCounts;         
-        
-        UpdateDelta(final TIntList newProductCounts, final Map<Integer, TIntIntMap> newSimilarities, final Map<Integer, TIntIntMap> newContextSimilarities) {
-            this.newSimilarities = newSimilarities;
-            this.newContextSimilarities = newContextSimilarities;
-            this.newProductCounts = newProductCounts;
-        }
 
-        @Override
-        public void commit() {
-            productCounts = newProductCounts;
-            for (Map.Entry<Integer, TIntIntMap> entry : newSimilarities.entrySet())
-            {
-                final int key = entry.getKey();
-                while (similarities.size() <= key)
-                    similarities.add(null);
-                
-                TIntIntMap newValues = entry.getValue();
-                if (newValues == null)
-                    continue;
-                
-                similarities.set(key, newValues);    
-            }
-            
-            for (Map.Entry<Integer, TIntIntMap> entry : newContextSimilarities.entrySet())
-            {
-                final int key = entry.getKey();
-                while (contextSimilarities.size() <= key)
-                    contextSimilarities.add(null);
-                
-                TIntIntMap newValues = entry.getValue();
-                if (newValues == null)
-                    continue;
-                
-                similarities.set(key, newValues);    
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		final CooccurrenceTable.State counts = table.getState();
+		counts.similarities.writeTo(out);
+		out.writeIntIntMaps(contextSimilarities);
+		out.writeIntLongMap(counts.productsTimes);
+		out.writeIntList(counts.productCounts);
+		CooccurrenceTable.writeBuckets(out, counts.buckets);
+	}
+
+	/**
+	 * The co-occurrence table is written once for all its subscribers (see
+	 * {@link CooccurrenceTable#writeSection(SnapshotSet.Writer, String, List)}), the section of
+	 * this predictor refers to it. Commits only replace the context similarities of a product,
+	 * so a copy of the list is enough.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+		final String tableSection = table.writeSection(set, name, tasks);
+		final List<TIntIntMap> capturedContextSimilarities = contextSimilarities == null ? null : new ArrayList<TIntIntMap>(contextSimilarities);
+		SnapshotSet.addSection(set, name, tasks, new SnapshotSet.SectionWriter() {
+			@Override
+			public void write(final SnapshotOutput out) throws IOException {
+				out.writeString(tableSection);
+				out.writeIntIntMaps(capturedContextSimilarities);
+			}
+		});
+	}
+
+	@Override
+	public Commitable readSections(final SnapshotSet.Reader set, final String name, final DataStore data) throws IOException {
+        if (this.data == null) // initialization is needed
+        {
+            this.data = data;
+        }
+        subscribe();
+        return set.section(name, new SnapshotSet.SectionReader<Commitable>() {
+            @Override
+            public Commitable read(final SnapshotInput in) throws IOException {
+                final String tableSection = in.readString();
+                final List<TIntIntMap> newContextSimilarities = toMapList(in.readIntIntMaps());
+                return new UpdateAll(table.readSection(set, tableSection), newContextSimilarities);
             }
+        });
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization of attributes is needed
+        {
+            this.data = data; // dataStore object; this should not change since DataStore is a permanent object
         }
-    }    
+        subscribe();
+	    final CooccurrenceMatrix newSimilarities = CooccurrenceMatrix.readFrom(in);
+	    final List<TIntIntMap> newContextSimilarities = toMapList(in.readIntIntMaps());
+		final TIntLongMap productsTimes = in.readIntLongMap();
+		final TIntList newProductCounts = in.readIntList();
+		final List<CooccurrenceTable.Bucket> buckets = CooccurrenceTable.readBuckets(in);
+		return new UpdateAll(table.load(newSimilarities, newProductCounts, productsTimes, buckets), newContextSimilarities);
+	}
+
+	private static List<TIntIntMap> toMapList(final List<TIntIntHashMap> maps) {
+	    return maps == null ? null : new ArrayList<TIntIntMap>(maps);
+	}
+        
     
     private class UpdateAll implements Commitable {
-        final List<TIntIntMap> newSimilarities;
+        final Commitable counts;
         final List<TIntIntMap> newContextSimilarities;
-        final TIntList newProductCounts;  
-        final TIntLongMap newProductsTimes;
         
-        UpdateAll(final TIntList newProductCounts, final List<TIntIntMap> newSimilarities, final List<TIntIntMap> newContextSimilarities, final TIntLongMap newProductsTimes) {
-            this.newSimilarities = newSimilarities;
+        UpdateAll(final Commitable counts, final List<TIntIntMap> newContextSimilarities) {
+            this.counts = counts;
             this.newContextSimilarities = newContextSimilarities;
-            this.newProductCounts = newProductCounts;
-            this.newProductsTimes = newProductsTimes;
         }
 
         @Override
         public void commit() {
-            productCounts = newProductCounts;
-            similarities = newSimilarities;
+            counts.commit();
             contextSimilarities = newContextSimilarities;
-            productsTimes = newProductsTimes;
         }
     }      
     
     private class UpdateProductsDelta implements Commitable {
-        final List<TIntIntMap> newSimilarities;
+        final Commitable counts;
         final List<TIntIntMap> newContextSimilarities;
-        final TIntList newProductCounts;
-        
         
-        UpdateProductsDelta(final TIntList newProductCounts, final List<TIntIntMap> newSimilarities, final List<TIntIntMap> newContextSimilarities) {
-            this.newSimilarities = newSimilarities;
+        UpdateProductsDelta(final Commitable counts, final List<TIntIntMap> newContextSimilarities) {
+            this.counts = counts;
             this.newContextSimilarities = newContextSimilarities;
-            this.newProductCounts = newProductCounts;
         }
 
         @Override
         public void commit() {
-            productCounts = newProductCounts;
-            similarities = newSimilarities;
+            counts.commit();
             contextSimilarities = newContextSimilarities;
         }
     }
 
+    private class ResetProductsDelta implements Commitable {
+        final int [] resetIndices;
+        final Commitable counts;
+
+        ResetProductsDelta(final int [] resetIndices, final Commitable counts) {
+            this.resetIndices = resetIndices;
+            this.counts = counts;
+        }
+
+        @Override
+        public void commit() {
+            counts.commit();
+            for (final int index : resetIndices)
+            {
+                if (index < contextSimilarities.size())
+                    contextSimilarities.set(index, null);
+            }
+        }
+    }
+
 }
@@ -22,19 +22,14 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import com.gurucue.recommendations.recommender.Settings;
-import com.gurucue.recommendations.recommender.dto.ConsumerData;
-import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
@@ -47,11 +42,13 @@ import com.gurucue.recommendations.recommender.Commitable;
 import com.gurucue.recommendations.recommender.EmptyCommit;
 import com.gurucue.recommendations.recommender.ProductPair;
 import com.gurucue.recommendations.recommender.dto.ConsumerBuysData;
-import com.gurucue.recommendations.recommender.dto.ConsumerMetaEventsData;
 import com.gurucue.recommendations.recommender.dto.ContextDiscretizer;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 /**
  * Item-based collaborative kNN for buys data. 
@@ -66,6 +63,9 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
     private final float THRESHOLD; // 
     private final int RELEVANT_TIME; // number of days between two products that makes them still revelant for similarity
     private final float SIM_K; // blending factor in computing cosine similarity
+    private final int MAX_PRODUCTS; // maximal number of recent products with similarities, all if not set
+    private final int MAX_NEIGHBORS; // strongest neighbors kept per product (approximate counts), all if not set
+    private final CooccurrenceTable.Decay DECAY; // time buckets of the counts, null if not set
     
     // ID of average predictor in product rating
     final int AVERAGE_ID;
@@ -75,10 +75,9 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
     
     private DataStore data; // the data source
     
-    // similarities and indices
-    List<TIntIntHashMap> similarities;
+    // co-occurrence counts of products, shared with other predictors
+    CooccurrenceTable table;
     List<TIntIntHashMap> contextSimilarities;
-    TIntList productCounts; 
     
     // context handler
     final ContextDiscretizer contextHandler;
@@ -96,6 +95,11 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
         TIMESTAMP_ID = settings.getSettingAsInt(name+"_TIMESTAMP_META");
         RELEVANT_TIME = settings.getSettingAsInt(name+"_RELEVANT_TIME");
         SIM_K = settings.getSettingAsFloat(name+"_SIM_K");
+        final Integer maxProducts = settings.getSettingAsInt(name+"_MAX_PRODUCTS");
+        MAX_PRODUCTS = maxProducts == null ? 0 : maxProducts;
+        final Integer maxNeighbors = settings.getSettingAsInt(name+"_MAX_NEIGHBORS");
+        MAX_NEIGHBORS = maxNeighbors == null ? 0 : maxNeighbors;
+        DECAY = CooccurrenceTable.Decay.fromSettings(name, settings);
         this.maxDiffSec = RELEVANT_TIME * 24 * 60 * 60;
         
         // initialize context handler
@@ -111,6 +115,7 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
         int consumerIndex = -1;
         final int buysEventIndex = data.getEventsDescriptor(BUYSNAME).index;
         final long currentTimeSec = System.currentTimeMillis()/1000;
+        final CooccurrenceTable.State counts = table.getState();
 
         for (ProductRating pr : predictions)
         {
@@ -131,7 +136,6 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
             }
 
             final int prod1_index = pr.getProductIndex();
-            final TIntIntHashMap similarity = similarities.get(prod1_index);
             
             // weighted sum of all products that this user bought
             final StringBuilder explanation = new StringBuilder();
@@ -139,7 +143,7 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
             for (TIntIterator it = us.iterator(); it.hasNext(); )
             {
                 final int prod2_index = it.next();
-                final double simpr = similarity.get(prod2_index) / Math.sqrt(productCounts.get(prod1_index) * productCounts.get(prod2_index));
+                final double simpr = counts.pairCount(prod1_index, prod2_index) / Math.sqrt(counts.productCount(prod1_index) * counts.productCount(prod2_index));
                 if (simpr > THRESHOLD)
                 {
                     prediction += simpr;
@@ -155,36 +159,13 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
         }
     }
     
-    private void addPair(final int product_index, final long time1, final TIntList context1, final int product_index2, final long time2, final TIntList context2, Map<Integer, TIntIntHashMap> newSimilarities, Map<Integer, TIntIntHashMap> contextSimilarities)
+    /**
+     * Subscribes to the co-occurrence counts of the model.
+     */
+    private void subscribe()
     {
-        // is time difference small enough?
-        if (Math.abs(time1-time2) > maxDiffSec)
-            return;
-        
-        // similarities first
-        TIntIntHashMap sim1, sim2, contSim1, contSim2;
-        sim1 = newSimilarities.get(product_index);
-        if (sim1 == null)
-        {
-            if (similarities.contains(product_index))
-                sim1 = similarities.get(product_index);
-            else
-                sim1 = new TIntIntHashMap();
-        }
-        sim2 = newSimilarities.get(product_index2);
-        if (sim2 == null)
-        {
-            if (similarities.contains(product_index2))
-                sim2 = similarities.get(product_index2);
-            else
-                sim2 = new TIntIntHashMap();
-        }
-        
-        sim1.put(product_index2, sim1.get(product_index2)+1);
-        sim2.put(product_index, sim2.get(product_index)+1);
-        
-        newSimilarities.put(product_index, sim1);
-        newSimilarities.put(product_index2, sim2);
+        if (table == null)
+            table = CooccurrenceTable.subscribe(data, BUYSNAME, TIMESTAMP_ID, RELEVANT_TIME, MAX_PRODUCTS, MAX_NEIGHBORS, DECAY, getUpdateShards());
     }
     
     @Override
@@ -194,95 +175,17 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
         if (this.data == null) // initialization of attributes is needed
         {
             this.data = newData.dataStore;
-            similarities = new ArrayList<TIntIntHashMap>();
             contextSimilarities = new ArrayList<TIntIntHashMap>();
-            productCounts = new TIntArrayList(this.data.getProducts().size());
             for (ProductData pr : this.data.getProducts())
-            {
-                productCounts.add(0);
-                similarities.add(new TIntIntHashMap());
                 contextSimilarities.add(new TIntIntHashMap());
-            }
-        }
-        final int buysEventIndex = data.getEventsDescriptor(BUYSNAME).index;
-        
-        TIntArrayList newCounts = new TIntArrayList(productCounts);
-        Map<Integer, TIntIntHashMap> newSimilarities = new HashMap<Integer, TIntIntHashMap>();
-        Map<Integer, TIntIntHashMap> newContextSimilarities = new HashMap<Integer, TIntIntHashMap>();
-        
-        int user_index = -1;
-        for (ConsumerData cd : newData.newData)
-        {
-            user_index++;
-            if (null == cd)
-                continue;
-            
-            // get events
-            final ConsumerBuysData cbd = (ConsumerBuysData) cd.events[buysEventIndex];
-            if ((null == cbd) || (cbd.indices.length == 0))
-                continue;
-
-            ConsumerBuysData old_cbd = null; 
-            ConsumerMetaEventsData old_meta;
-            long[] old_times;
-            int ilen_old;
-            TIntSet consumer_items;
-            
-            if (data.getConsumers().size() > user_index)
-                old_cbd = (ConsumerBuysData) data.getConsumers().get(user_index).events[buysEventIndex];
-            if (old_cbd != null)
-            {
-                old_meta = data.getConsumers().get(user_index).events[buysEventIndex].getMeta();
-                old_times  = old_meta.getLongValuesArray(TIMESTAMP_ID);
-                ilen_old = old_cbd.indices.length;
-                consumer_items = new TIntHashSet(old_cbd.indices);
-            }
-            else
-            {
-                old_meta = null;
-                old_times = null;
-                ilen_old = 0;
-                consumer_items = new TIntHashSet();
-            }
-            
-            // get meta data (for time stamps)
-            final ConsumerMetaEventsData meta = cd.events[buysEventIndex].getMeta();
-            final long[] times = meta.getLongValuesArray(TIMESTAMP_ID);
-            final int ilen = cbd.indices.length;
-            
-            // create a set of user items (to determine if the product is new) 
-            for (int i=0; i<ilen; i++)
-            {
-                final int product_index = cbd.indices[i];
-                //final TIntList contextPositions = contextHandler.getContext(data, product_index, meta, i);
-                
-                if (consumer_items.contains(product_index))
-                    continue;
-                
-                newCounts.set(product_index, newCounts.get(product_index)+1);
-                consumer_items.add(product_index);
-                
-                // add all pairs of new product
-                for (int j=i+1; j<ilen; j++)
-                {
-                    final int product_index2 = cbd.indices[j];
-                    if (product_index == product_index2)
-                        continue;
-                    addPair(product_index, times[i], null, product_index2, times[j], null, newSimilarities, newContextSimilarities);
-                }
-                
-                // now compare this product with the old consumer items
-                for (int j=0; j<ilen_old; j++)
-                {
-                    final int product_index2 = old_cbd.indices[j];
-                    if (product_index == product_index2)
-                        continue;
-                    addPair(product_index, times[i], null, product_index2, times[j], null, newSimilarities, newContextSimilarities);
-                }
-            }
         }
+        subscribe();
+
+        // pairs are counted by the shared table, once for all predictors that use it
+        final Commitable delta = table.update(newData);
+
         logger.info("Update item-based collaborative buys kNN ended.");
-        return new UpdateDelta(newCounts, newSimilarities, newContextSimilarities);
+        return delta;
     }
     
     
@@ -311,9 +214,10 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
     
 	@Override
 	public void serialize(ObjectOutputStream out) throws IOException {
-		out.writeObject(similarities);
+		final CooccurrenceTable.State counts = table.getState();
+		out.writeObject(counts.similarities.toMaps());
 		out.writeObject(contextSimilarities);
-		out.writeObject(productCounts);
+		out.writeObject(counts.productCounts);
 	}
 
 
@@ -325,12 +229,70 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
         {
             this.data = data;
         }		
+        subscribe();
         // similarities and indices
-        List<TIntIntHashMap> newSimilarities = (List<TIntIntHashMap>) in.readObject();
+        List<TIntIntMap> newSimilarities = (List<TIntIntMap>) in.readObject();
         List<TIntIntHashMap> newContextSimilarities = (List<TIntIntHashMap>) in.readObject();
         TIntList productCounts = (TIntList) in.readObject(); 
-		return new UpdateAll(productCounts, newSimilarities, newContextSimilarities);
+		return new UpdateAll(table.load(CooccurrenceMatrix.fromMaps(newSimilarities), productCounts, null), newContextSimilarities);
 	}       
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		final CooccurrenceTable.State counts = table.getState();
+		counts.similarities.writeTo(out);
+		out.writeIntIntMaps(contextSimilarities);
+		out.writeIntList(counts.productCounts);
+		CooccurrenceTable.writeBuckets(out, counts.buckets);
+	}
+
+	/**
+	 * Refers to the section of the shared co-occurrence table, like
+	 * {@link ItemBasedCollBuysLiftPredictor#writeSections(SnapshotSet.Writer, String, List)}.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+		final String tableSection = table.writeSection(set, name, tasks);
+		final List<TIntIntHashMap> capturedContextSimilarities = contextSimilarities == null ? null : new ArrayList<TIntIntHashMap>(contextSimilarities);
+		SnapshotSet.addSection(set, name, tasks, new SnapshotSet.SectionWriter() {
+			@Override
+			public void write(final SnapshotOutput out) throws IOException {
+				out.writeString(tableSection);
+				out.writeIntIntMaps(capturedContextSimilarities);
+			}
+		});
+	}
+
+	@Override
+	public Commitable readSections(final SnapshotSet.Reader set, final String name, final DataStore data) throws IOException {
+        if (this.data == null) // initialization is needed
+        {
+            this.data = data;
+        }
+        subscribe();
+        return set.section(name, new SnapshotSet.SectionReader<Commitable>() {
+            @Override
+            public Commitable read(final SnapshotInput in) throws IOException {
+                final String tableSection = in.readString();
+                final List<TIntIntHashMap> newContextSimilarities = in.readIntIntMaps();
+                return new UpdateAll(table.readSection(set, tableSection), newContextSimilarities);
+            }
+        });
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization is needed
+        {
+            this.data = data;
+        }
+        subscribe();
+        final CooccurrenceMatrix newSimilarities = CooccurrenceMatrix.readFrom(in);
+        final List<TIntIntHashMap> newContextSimilarities = in.readIntIntMaps();
+        final TIntList productCounts = in.readIntList();
+        final List<CooccurrenceTable.Bucket> buckets = CooccurrenceTable.readBuckets(in);
+		return new UpdateAll(table.load(newSimilarities, productCounts, null, buckets), newContextSimilarities);
+	}
         
 
     @Override
@@ -349,122 +311,71 @@ public class ItemBasedCollBuysPredictorCosine extends Predictor {
 
     @Override
     public Commitable updateProducts(DataStore.UpdateProductsDelta delta) {
-        // new similarities
-        List<TIntIntHashMap> newSimilarities = new ArrayList<TIntIntHashMap> ();
-        List<TIntIntHashMap> newContextSimilarities = new ArrayList<TIntIntHashMap> ();
-        TIntList newProductCounts = new TIntArrayList();         
-        
-        final TLongIntHashMap newProductIDs = delta.newProductIDs;
-        
-        final int counts_len = productCounts.size();
-        for (int i = 0; i < counts_len; i++)
+        final Commitable counts = table.updateProducts(delta);
+        if (delta.isStable())
         {
-            final ProductData pd = data.getProductByIndex(i);
-            final int newIndex = newProductIDs.get(pd.productId);
-            if (newIndex < 0)
-                continue;
-            
-            while (newProductCounts.size() <= newIndex)
-            {
-                newProductCounts.add(0);
-                newSimilarities.add(new TIntIntHashMap());
-                newContextSimilarities.add(new TIntIntHashMap());
-            }
-            
-            newProductCounts.set(newIndex, productCounts.get(i));
-            
-            TIntIntMap sim1 = newSimilarities.get(newIndex);
-            TIntIntMap sim2 = newContextSimilarities.get(newIndex);
-            
-            for (TIntIntIterator it = similarities.get(i).iterator(); it.hasNext();)
-            {
-                it.advance();
-                final int key = it.key();
-                final int value = it.value();
-                final int newIndex2 = newProductIDs.get(data.getProductByIndex(key).productId);
-                sim1.put(newIndex2, value);
-            }
-            for (TIntIntIterator it = newContextSimilarities.get(i).iterator(); it.hasNext();)
-            {
-                it.advance();
-                final int key = it.key();
-                final int value = it.value();
-                final int newIndex2 = newProductIDs.get(data.getProductByIndex(key).productId);
-                sim2.put(newIndex2, value);
-            }
+            // indices did not change, only the rows of recycled slots are reset
+            return new ResetProductsDelta(delta.recycledIndices, counts);
         }
-        return new UpdateProductsDelta(newProductCounts, newSimilarities, newContextSimilarities);
+
+        // context similarities are not counted, there is nothing to move
+        List<TIntIntHashMap> newContextSimilarities = new ArrayList<TIntIntHashMap> ();
+        for (ProductData pd : delta.newProducts)
+            newContextSimilarities.add(new TIntIntHashMap());
+        return new UpdateProductsDelta(counts, newContextSimilarities);
     }
     
     
-    private class UpdateDelta implements Commitable {
-        final Map<Integer, TIntIntHashMap> newSimilarities;
-        final Map<Integer, TIntIntHashMap> newContextSimilarities;
-        final TIntList newProductCounts;         
-        
-        UpdateDelta(final TIntList newProductCounts, final Map<Integer, TIntIntHashMap> newSimilarities, final Map<Integer, TIntIntHashMap> newContextSimilarities) {
-            this.newSimilarities = newSimilarities;
-            this.newContextSimilarities = newContextSimilarities;
-            this.newProductCounts = newProductCounts;
-        }
-
-        @Override
-        public void commit() {
-            productCounts = newProductCounts;
-            for (Map.Entry<Integer, TIntIntHashMap> entry : newSimilarities.entrySet())
-            {
-                final int key = entry.getKey();
-                while (similarities.size() <= key)
-                    similarities.add(new TIntIntHashMap());
-                similarities.set(key, entry.getValue());
-            }
-            for (Map.Entry<Integer, TIntIntHashMap> entry : newContextSimilarities.entrySet())
-            {
-                final int key = entry.getKey();
-                while (contextSimilarities.size() <= key)
-                    contextSimilarities.add(new TIntIntHashMap());
-                contextSimilarities.set(key, entry.getValue());
-            }
-        }
-    }    
-    
     private class UpdateAll implements Commitable {
-        final List<TIntIntHashMap> newSimilarities;
+        final Commitable counts;
         final List<TIntIntHashMap> newContextSimilarities;
-        final TIntList newProductCounts;
         
-        UpdateAll(final TIntList newProductCounts, final List<TIntIntHashMap> newSimilarities, final List<TIntIntHashMap> newContextSimilarities) {
-            this.newSimilarities = newSimilarities;
+        UpdateAll(final Commitable counts, final List<TIntIntHashMap> newContextSimilarities) {
+            this.counts = counts;
             this.newContextSimilarities = newContextSimilarities;
-            this.newProductCounts = newProductCounts;
         }
 
         @Override
         public void commit() {
-            productCounts = newProductCounts;
-            similarities = newSimilarities;
+            counts.commit();
             contextSimilarities = newContextSimilarities;
         }
     }    
     
     
     private class UpdateProductsDelta implements Commitable {
-        final List<TIntIntHashMap> newSimilarities;
+        final Commitable counts;
         final List<TIntIntHashMap> newContextSimilarities;
-        final TIntList newProductCounts;
         
-        
-        UpdateProductsDelta(final TIntList newProductCounts, final List<TIntIntHashMap> newSimilarities, final List<TIntIntHashMap> newContextSimilarities) {
-            this.newSimilarities = newSimilarities;
+        UpdateProductsDelta(final Commitable counts, final List<TIntIntHashMap> newContextSimilarities) {
+            this.counts = counts;
             this.newContextSimilarities = newContextSimilarities;
-            this.newProductCounts = newProductCounts;
         }
 
         @Override
         public void commit() {
-            productCounts = newProductCounts;
-            similarities = newSimilarities;
+            counts.commit();
             contextSimilarities = newContextSimilarities;
         }
     }    
+
+    private class ResetProductsDelta implements Commitable {
+        final int [] resetIndices;
+        final Commitable counts;
+
+        ResetProductsDelta(final int [] resetIndices, final Commitable counts) {
+            this.resetIndices = resetIndices;
+            this.counts = counts;
+        }
+
+        @Override
+        public void commit() {
+            counts.commit();
+            for (final int index : resetIndices)
+            {
+                if (index < contextSimilarities.size())
+                    contextSimilarities.set(index, new TIntIntHashMap());
+            }
+        }
+    }
 }
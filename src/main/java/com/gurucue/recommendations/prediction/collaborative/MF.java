@@ -0,0 +1,495 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.prediction.collaborative;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import gnu.trove.iterator.TIntFloatIterator;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TFloatList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
+/**
+ * A matrix factorization model of ratings of attribute values (see
+ * {@link AttributeBasedMatrixFactorizationPredictor}), trained by {@link MFTrainer}.
+ */
+class MF implements Serializable {
+	private static final long serialVersionUID = 8563989867626622801L;
+	
+	static final int MAXITERATIONS = 1000; 
+	
+	// factors are written flat; "p" and "q" are the double [][] factors of earlier versions, only read
+	private static final ObjectStreamField [] serialPersistentFields = {
+		new ObjectStreamField("k", int.class),
+		new ObjectStreamField("consumerMap", TIntIntMap.class),
+		new ObjectStreamField("productMap", TLongIntMap.class),
+		new ObjectStreamField("p", double [][].class),
+		new ObjectStreamField("q", double [][].class),
+		new ObjectStreamField("pFlat", float [].class),
+		new ObjectStreamField("qFlat", float [].class),
+		new ObjectStreamField("iterations", int.class),
+		new ObjectStreamField("error", double.class)
+	};
+	
+	// row-major: k factors of consumer (item) i at [i*k, (i+1)*k); arrays while the model is
+	// trained, views of the mapping when it was read from a mapped snapshot (read-only)
+	FloatBuffer p, q;
+	TLongIntMap productMap;
+	TIntIntMap consumerMap;
+	int k;
+	
+	// convergence of the model: epochs (rounds) of its optimization and its final error, NaN if unknown
+	int iterations = 0;
+	double error = Double.NaN;
+	
+	MF(int k, TIntIntMap consumerMap, TLongIntMap productMap)
+	{
+		this.productMap = productMap;
+		this.consumerMap = consumerMap;
+		this.k = k;
+		
+		p = FloatBuffer.wrap(new float [consumerMap.size() * k]);
+		q = FloatBuffer.wrap(new float [productMap.size() * k]);
+	}
+	
+	private MF(int k, TIntIntMap consumerMap, TLongIntMap productMap, FloatBuffer p, FloatBuffer q)
+	{
+		this.productMap = productMap;
+		this.consumerMap = consumerMap;
+		this.k = k;
+		this.p = p;
+		this.q = q;
+	}
+	
+	/**
+	 * Initialize p and q matrix with random values. 
+	 */
+	void initializeValues()
+	{
+		initializeValues(new Random());
+	}
+	
+	/**
+	 * Initialize p and q matrix with values of the given random generator. 
+	 */
+	void initializeValues(Random rand)
+	{
+		// initialize p - for consumers;
+		final float [] p = this.p.array();
+		for (int i = 0; i < p.length; i++)
+		{
+			// fix first column of p to 1
+			if (i % k == 0)
+				p[i] = 1;
+			else
+				p[i] = rand.nextFloat()-0.5f;
+		}
+		// initialize q - for items;
+		final float [] q = this.q.array();
+		for (int i = 0; i < q.length; i++)
+			q[i] = rand.nextFloat()-0.5f;
+	}
+	
+	/**
+	 * Initialize p and q matrix with the factors of the consumers and items of a previous model,
+	 * so the optimization starts close to its optimum; new consumers and items get random values.
+	 * 
+	 * @param previous the previous model, with the same number of factors
+	 * @param rand random generator of new rows
+	 * @return the number of rows (consumers and items) taken from the previous model
+	 */
+	int initializeFrom(MF previous, Random rand)
+	{
+		initializeValues(rand);
+		if (previous.k != k)
+			return 0;
+		int warm = 0;
+		for (TIntIntIterator it = consumerMap.iterator(); it.hasNext(); )
+		{
+			it.advance();
+			if (!previous.consumerMap.containsKey(it.key()))
+				continue;
+			previous.row(previous.p, previous.consumerMap.get(it.key()), p.array(), it.value() * k);
+			warm++;
+		}
+		for (TLongIntIterator it = productMap.iterator(); it.hasNext(); )
+		{
+			it.advance();
+			if (!previous.productMap.containsKey(it.key()))
+				continue;
+			previous.row(previous.q, previous.productMap.get(it.key()), q.array(), it.value() * k);
+			warm++;
+		}
+		return warm;
+	}
+
+	/**
+	 * Optimize parameters in p and q matrices
+	 * 
+	 * @param newRatings ratings
+	 * @param newConsumers consumers
+	 * @param productTranslation product translation (each product is translated to several values in the q matrix)
+	 * @param eps stopping criteria in optimization
+	 * @param lambda regularization parameter
+	 * @param rate learning rate
+	 * @param shards number of parallel shards of the optimization, null for the default
+	 */
+	public void optimize(TByteList newRatings, TIntList newConsumers,
+			ArrayList<TLongList> productTranslation, float eps, float lambda, float rate, Integer shards) {
+		optimize(newRatings, newConsumers, productTranslation, MFTrainer.Solver.SGD, eps, lambda, rate, MAXITERATIONS, 0f, shards);
+	}
+	
+	/**
+	 * Optimize parameters in p and q matrices with the given solver
+	 * 
+	 * @param newRatings ratings
+	 * @param newConsumers consumers
+	 * @param productTranslation product translation (each product is translated to several values in the q matrix)
+	 * @param solver the optimization method
+	 * @param eps stopping criteria in optimization
+	 * @param lambda regularization parameter
+	 * @param rate learning rate of SGD
+	 * @param iterations maximal number of epochs (SGD) or rounds (ALS)
+	 * @param alpha confidence scale of implicit ALS
+	 * @param shards number of parallel shards of the optimization, null for the default
+	 */
+	public void optimize(TByteList newRatings, TIntList newConsumers, ArrayList<TLongList> productTranslation,
+			MFTrainer.Solver solver, float eps, float lambda, float rate, int iterations, float alpha, Integer shards) {
+		if (solver == MFTrainer.Solver.ALS_IMPLICIT)
+		{
+			// ratings (0 - 100) are the strength of the feedback, not relative to the consumer
+			TFloatList strengths = new TFloatArrayList();
+			final int s = newRatings.size();
+			for (int i = 0; i < s; i++)
+				strengths.add(newRatings.get(i) / 100f);
+			final MFTrainer trainer = MFTrainer.resolve(this, strengths, newConsumers, productTranslation);
+			this.iterations = trainer.als(p.array(), q.array(), iterations, eps, lambda, true, alpha, shards);
+			this.error = trainer.error();
+			return;
+		}
+		// subtract averages from newRatings
+		TIntFloatMap consAverages = new TIntFloatHashMap();
+		TIntIntMap counter = new TIntIntHashMap();
+		final int s = newConsumers.size();
+		for (int i = 0; i < s; i++)
+		{
+			consAverages.put(newConsumers.get(i), consAverages.get(newConsumers.get(i)) + newRatings.get(i));
+			counter.put(newConsumers.get(i), counter.get(newConsumers.get(i)) + 1);
+		}
+		for (TIntFloatIterator it = consAverages.iterator(); it.hasNext(); )
+		{
+			it.advance();
+			final int key = it.key();
+			final float value = it.value();
+			it.setValue(value / counter.get(key));
+		}
+		// create new ratings
+		TFloatList normRatings = new TFloatArrayList();
+		for (int i = 0; i < s; i++)
+		{
+			normRatings.add((newRatings.get(i) - consAverages.get(newConsumers.get(i))));
+		}		
+		// Optimization!
+		final MFTrainer trainer = MFTrainer.resolve(this, normRatings, newConsumers, productTranslation);
+		if (solver == MFTrainer.Solver.ALS)
+			this.iterations = trainer.als(p.array(), q.array(), iterations, eps, lambda, false, 0f, shards);
+		else
+			this.iterations = trainer.sgd(p.array(), q.array(), iterations, eps, lambda, rate, shards, new Random());
+		this.error = trainer.error();
+	}
+	
+	/**
+	 * Predicts rating a consumer would give to a list of products. Predicts average.
+	 * 
+	 * @param consumer
+	 * @param products
+	 * @return
+	 */
+	public Double predict(int consumer, TLongList products)
+	{
+		if (!consumerMap.containsKey(consumer))
+			return null;
+		final int cons = consumerMap.get(consumer);
+        
+		
+		boolean any = false;
+		for (TLongIterator it = products.iterator(); it.hasNext(); )
+		{
+			final long prod = it.next();
+			if (productMap.containsKey(prod))
+				any = true;
+		}
+		if (!any)
+			return null;
+		
+		double prediction = 0;
+		int counter = 0;
+		for (TLongIterator it = products.iterator(); it.hasNext(); )
+		{
+			final long prod = it.next();
+			if (productMap.containsKey(prod))
+			{
+				final int pi = productMap.get(prod);
+				counter++;
+				prediction += predict(cons, pi);
+			}
+		}
+		return prediction/counter;
+	}
+	
+	
+	/**
+	 * Scores a batch of candidates for a consumer, like {@link #predict(int, TLongList)} for the
+	 * values of one attribute at a time: the score of a candidate is the average prediction of
+	 * its values of the first attribute that the model knows any values of. The consumer's
+	 * factors are looked up once and the factors of the chosen values are gathered into one
+	 * contiguous block, which is then scored in a single sequential pass.
+	 * 
+	 * @param consumer consumer index
+	 * @param keys values of all candidates, grouped by candidate and then by attribute
+	 * @param groups offsets of the groups in keys: attribute a of candidate c is at [groups[c*attributes+a], groups[c*attributes+a+1])
+	 * @param attributes number of attributes
+	 * @param scores receives the score of each candidate
+	 * @param chosen receives the attribute of the score of each candidate, -1 if the model knows none of its values
+	 * @return false if the model does not know the consumer, when nothing is scored
+	 */
+	boolean score(int consumer, long [] keys, int [] groups, int attributes, double [] scores, int [] chosen)
+	{
+		if (!consumerMap.containsKey(consumer))
+			return false;
+		final float [] u = new float [k];
+		row(p, consumerMap.get(consumer), u, 0);
+		
+		// rows of the values of the first attribute with known values, -1 for unknown values
+		final int candidates = scores.length;
+		final int [] rows = new int [keys.length];
+		int gathered = 0;
+		for (int c = 0; c < candidates; c++)
+		{
+			chosen[c] = -1;
+			for (int a = 0; (a < attributes) && (chosen[c] < 0); a++)
+			{
+				final int g = c * attributes + a;
+				for (int i = groups[g]; i < groups[g + 1]; i++)
+				{
+					int row = productMap.get(keys[i]);
+					if ((row == productMap.getNoEntryValue()) && !productMap.containsKey(keys[i]))
+						row = -1;
+					rows[i] = row;
+					if (row >= 0)
+					{
+						chosen[c] = a;
+						gathered++;
+					}
+				}
+			}
+		}
+		
+		// gather their factors, candidate after candidate
+		final float [] block = new float [gathered * k];
+		final int [] counts = new int [candidates];
+		int b = 0;
+		for (int c = 0; c < candidates; c++)
+		{
+			if (chosen[c] < 0)
+				continue;
+			final int g = c * attributes + chosen[c];
+			for (int i = groups[g]; i < groups[g + 1]; i++)
+			{
+				if (rows[i] < 0)
+					continue;
+				row(q, rows[i], block, b * k);
+				b++;
+				counts[c]++;
+			}
+		}
+		
+		// score the block
+		b = 0;
+		for (int c = 0; c < candidates; c++)
+		{
+			if (counts[c] == 0)
+			{
+				scores[c] = 0;
+				continue;
+			}
+			double prediction = 0;
+			for (int e = 0; e < counts[c]; e++, b++)
+				prediction += dot(u, block, b * k, k);
+			scores[c] = prediction / counts[c];
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the dot product of u and the row of the block at the offset, unrolled by four.
+	 */
+	private static float dot(final float [] u, final float [] block, final int offset, final int k)
+	{
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int j = 0;
+		for (; j + 3 < k; j += 4)
+		{
+			s0 += u[j] * block[offset + j];
+			s1 += u[j + 1] * block[offset + j + 1];
+			s2 += u[j + 2] * block[offset + j + 2];
+			s3 += u[j + 3] * block[offset + j + 3];
+		}
+		for (; j < k; j++)
+			s0 += u[j] * block[offset + j];
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	private float predict(int ci, int pi)
+	{
+		final int pr = ci * k;
+		final int qr = pi * k;
+		float s = 0;
+		for (int i = 0; i < k; i++)
+		{
+			s += p.get(pr + i) * q.get(qr + i);
+		}
+		return s;
+	}
+	
+	/**
+	 * Copies the k factors of a row of p or q to the array at the offset.
+	 */
+	private void row(final FloatBuffer factors, final int row, final float [] to, final int offset)
+	{
+		final int start = row * k;
+		for (int j = 0; j < k; j++)
+			to[offset + j] = factors.get(start + j);
+	}
+
+	/**
+	 * Writes the model to a section of a snapshot, the factors in bulk.
+	 */
+	void writeTo(SnapshotOutput out) throws IOException
+	{
+		out.writeInt(k);
+		out.writeIntIntMap(consumerMap);
+		out.writeLongIntMap(productMap);
+		out.writeFloatBuffer(p);
+		out.writeFloatBuffer(q);
+		out.writeInt(iterations);
+		out.writeDouble(error);
+	}
+	
+	/**
+	 * Reads a model written with {@link #writeTo(SnapshotOutput)}. Over a mapped section the
+	 * factors are views of the mapping; such a model is only used for scoring and as the
+	 * start of the next model, it is never trained itself.
+	 */
+	static MF readFrom(SnapshotInput in) throws IOException
+	{
+		final int k = in.readInt();
+		final TIntIntMap consumerMap = in.readIntIntMap();
+		final TLongIntMap productMap = in.readLongIntMap();
+		final FloatBuffer p = in.readFloatBuffer();
+		final FloatBuffer q = in.readFloatBuffer();
+		if ((p == null) || (q == null))
+			throw new IOException("Matrix factorization model without factors");
+		if ((p.capacity() != consumerMap.size() * k) || (q.capacity() != productMap.size() * k))
+			throw new IOException("Matrix factorization model with " + p.capacity() + " and " + q.capacity() + " factors for " + consumerMap.size() + " consumers and " + productMap.size() + " items of " + k + " factors");
+		final MF model = new MF(k, consumerMap, productMap, p, q);
+		model.iterations = in.readInt();
+		model.error = in.readDouble();
+		return model;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		final ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("k", k);
+		fields.put("consumerMap", consumerMap);
+		fields.put("productMap", productMap);
+		fields.put("pFlat", toArray(p));
+		fields.put("qFlat", toArray(q));
+		fields.put("iterations", iterations);
+		fields.put("error", error);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		final ObjectInputStream.GetField fields = in.readFields();
+		k = fields.get("k", 0);
+		consumerMap = (TIntIntMap) fields.get("consumerMap", null);
+		productMap = (TLongIntMap) fields.get("productMap", null);
+		float [] p = (float []) fields.get("pFlat", null);
+		float [] q = (float []) fields.get("qFlat", null);
+		iterations = fields.get("iterations", 0);
+		error = fields.get("error", Double.NaN);
+		if (p == null)
+		{
+			// written by an earlier version: p is [consumer][k], q is [k][item]
+			final double [][] oldP = (double [][]) fields.get("p", null);
+			final double [][] oldQ = (double [][]) fields.get("q", null);
+			if ((oldP == null) || (oldQ == null))
+				throw new InvalidObjectException("Matrix factorization model without factors");
+			p = new float [oldP.length * k];
+			for (int i = 0; i < oldP.length; i++)
+				for (int j = 0; j < k; j++)
+					p[i * k + j] = (float) oldP[i][j];
+			final int items = oldQ.length == 0 ? 0 : oldQ[0].length;
+			q = new float [items * k];
+			for (int j = 0; j < k; j++)
+				for (int i = 0; i < items; i++)
+					q[i * k + j] = (float) oldQ[j][i];
+		}
+		this.p = FloatBuffer.wrap(p);
+		this.q = FloatBuffer.wrap(q);
+	}
+	
+	/**
+	 * Returns the factors as an array, for Java serialization; copies them only if they are a view.
+	 */
+	private static float [] toArray(final FloatBuffer factors)
+	{
+		if (factors.hasArray() && (factors.arrayOffset() == 0) && (factors.array().length == factors.capacity()))
+			return factors.array();
+		final float [] a = new float [factors.capacity()];
+		final FloatBuffer source = factors.duplicate();
+		source.clear();
+		source.get(a);
+		return a;
+	}
+}
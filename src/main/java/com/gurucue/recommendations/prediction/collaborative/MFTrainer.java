@@ -0,0 +1,497 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.prediction.collaborative;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.gurucue.recommendations.misc.Parallel;
+import gnu.trove.list.TFloatList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+
+/**
+ * Trains the factors of an {@link MF} model. Ratings are resolved once into primitive arrays
+ * of (consumer row, item row, rating) tuples, one tuple per product translation, and the
+ * factors are flat row-major arrays with <code>k</code> values per row.
+ * <p>
+ * Epochs of stochastic gradient descent run in parallel without locks (Hogwild): every shard
+ * goes through its part of a shuffled permutation of the tuples and updates the shared factors
+ * in place. Ratings are sparse, so shards rarely update the same row at the same time, and an
+ * update lost to a race only slows the convergence down a little. Convergence is checked once
+ * per epoch on a sample of tuples held out of training.
+ * <p>
+ * Alternating least squares ({@link #als(float[], float[], int, float, float, boolean, float, Integer)})
+ * solves the rows exactly instead, in parallel, in a few rounds, either for explicit ratings or
+ * for implicit feedback weighted by confidence.
+ */
+final class MFTrainer {
+    private static final Logger logger = LogManager.getLogger(MFTrainer.class);
+
+    private static final int MAX_HOLDOUT = 10000; // tuples held out to check the convergence
+    private static final int HOLDOUT_SHARE = 20; // at most this part (1/20) of the tuples is held out
+    private static final int MIN_TUPLES_PER_SHARD = 10000;
+    private static final int MIN_ROWS_PER_SHARD = 256;
+
+    /**
+     * The optimization method, see {@link #sgd(float[], float[], int, float, float, float, Integer, Random)}
+     * and {@link #als(float[], float[], int, float, float, boolean, float, Integer)}.
+     */
+    enum Solver {
+        SGD, ALS, ALS_IMPLICIT;
+
+        /**
+         * Returns the solver of the setting, SGD if it is not set or unknown.
+         */
+        static Solver fromSetting(final String value) {
+            if (value == null)
+                return SGD;
+            for (final Solver solver : values()) {
+                if (solver.name().equalsIgnoreCase(value))
+                    return solver;
+            }
+            logger.warn("Unknown matrix factorization solver " + value + ", using SGD");
+            return SGD;
+        }
+    }
+
+    private final int k;
+    private final int [] consumers; // rows of consumers in p
+    private final int [] items; // rows of items in q
+    private final float [] ratings;
+    private final int size;
+    private double error = Double.NaN; // the squared error at the end of the last optimization
+
+    private MFTrainer(final int k, final int [] consumers, final int [] items, final float [] ratings, final int size) {
+        this.k = k;
+        this.consumers = consumers;
+        this.items = items;
+        this.ratings = ratings;
+        this.size = size;
+    }
+
+    /**
+     * Resolves the ratings into tuples of the rows of the model; ratings of consumers or
+     * items that the model does not have are skipped.
+     *
+     * @param model the model whose maps give the rows
+     * @param ratings normalized ratings
+     * @param consumers consumer of each rating
+     * @param translations the items each rating translates to
+     */
+    static MFTrainer resolve(final MF model, final TFloatList ratings, final TIntList consumers, final List<TLongList> translations) {
+        int n = 0;
+        for (final TLongList products : translations)
+            n += products.size();
+        final int [] tupleConsumers = new int[n];
+        final int [] tupleItems = new int[n];
+        final float [] tupleRatings = new float[n];
+        int size = 0;
+        final int s = ratings.size();
+        for (int i = 0; i < s; i++)
+        {
+            final int consumer = consumers.get(i);
+            if (!model.consumerMap.containsKey(consumer))
+                continue;
+            final int ci = model.consumerMap.get(consumer);
+            final float rating = ratings.get(i);
+            final TLongList products = translations.get(i);
+            final int m = products.size();
+            for (int j = 0; j < m; j++)
+            {
+                final long prod = products.get(j);
+                if (!model.productMap.containsKey(prod))
+                    continue;
+                tupleConsumers[size] = ci;
+                tupleItems[size] = model.productMap.get(prod);
+                tupleRatings[size] = rating;
+                size++;
+            }
+        }
+        return new MFTrainer(model.k, tupleConsumers, tupleItems, tupleRatings, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the squared error at the end of the last optimization, scaled to all tuples
+     * from the held out ones by SGD; NaN after implicit ALS, which does not measure it.
+     */
+    public double error() {
+        return error;
+    }
+
+    /**
+     * Optimizes the factors with parallel epochs of stochastic gradient descent, until the
+     * squared error, measured on the held out tuples and scaled to all of them, decreases by
+     * less than <code>eps</code> in an epoch. The first column of p is fixed to 1.
+     *
+     * @param p consumer factors, row-major
+     * @param q item factors, row-major
+     * @param maxIterations the maximal number of epochs
+     * @param eps stopping criteria
+     * @param lambda regularization parameter
+     * @param rate learning rate
+     * @param shards the number of parallel shards, null for the default
+     * @param rand the source of the permutations
+     * @return the number of epochs run
+     */
+    int sgd(final float [] p, final float [] q, final int maxIterations, final float eps, final float lambda, final float rate, final Integer shards, final Random rand) {
+        final int [] order = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        shuffle(order, size, rand);
+
+        // the tail of the first permutation is held out; tiny sets are measured on all tuples
+        final int holdout = size < 2 * HOLDOUT_SHARE ? 0 : Math.min(MAX_HOLDOUT, size / HOLDOUT_SHARE);
+        final int train = size - holdout;
+        final int measureFrom = holdout == 0 ? 0 : train;
+        final double scale = size == measureFrom ? 0.0 : (double) size / (size - measureFrom);
+        final int n = Parallel.shards(shards, (train + MIN_TUPLES_PER_SHARD - 1) / MIN_TUPLES_PER_SHARD);
+
+        double olderror = scale * error(p, q, order, measureFrom, size);
+        int iteration = 0;
+        while (iteration < maxIterations)
+        {
+            iteration++;
+            shuffle(order, train, rand);
+            Parallel.forShards(train, n, new Parallel.ShardTask() {
+                @Override
+                public void run(final int shard, final int from, final int to) {
+                    for (int t = from; t < to; t++)
+                        step(p, q, order[t], lambda, rate);
+                }
+            });
+            final double error = scale * error(p, q, order, measureFrom, size);
+            // if the error does not decrease by at least eps, stop learning
+            if (olderror - error < eps)
+            {
+                olderror = error;
+                break;
+            }
+            olderror = error;
+        }
+        logger.info("SGD of " + size + " tuples (" + holdout + " held out) in " + n + " shards stopped after " + iteration + " epochs, error " + olderror);
+        error = olderror;
+        return iteration;
+    }
+
+    /**
+     * Optimizes the factors with alternating least squares: every round solves the k x k
+     * system of every consumer row with the items fixed, then of every item row with the
+     * consumers fixed. Rows are independent, so they are solved in parallel, and the result
+     * does not depend on the order. Explicit ALS minimizes the squared error of the ratings,
+     * with the regularization weighted by the number of ratings of a row, and stops early when
+     * the squared error decreases by less than <code>eps</code> in a round.
+     * <p>
+     * The implicit variant treats every tuple as an observed preference of 1 with the
+     * confidence <code>1 + alpha * rating</code>, and every other (consumer, item) pair as a
+     * preference of 0 with the confidence 1; the ratings should be scaled to [0, 1]. The
+     * unobserved pairs are accounted for with the Gramian of the fixed factors, so a row still
+     * costs only its own tuples. It runs all the iterations.
+     *
+     * @param p consumer factors, row-major; the first column is fixed to 1
+     * @param q item factors, row-major
+     * @param iterations the number of rounds
+     * @param eps stopping criteria of explicit ALS
+     * @param lambda regularization parameter
+     * @param implicit whether the ratings are confidences of implicit feedback
+     * @param alpha the scale of confidences of implicit feedback
+     * @param shards the number of parallel shards, null for the default
+     * @return the number of rounds run
+     */
+    int als(final float [] p, final float [] q, final int iterations, final float eps, final float lambda, final boolean implicit, final float alpha, final Integer shards) {
+        final int consumerRows = p.length / k;
+        final int itemRows = q.length / k;
+        // tuples of each row, ordered by the other side, so duplicates of a pair are adjacent
+        final int [] byItemOrder = order(items, itemRows, null);
+        final int [] consumerOffsets = new int[consumerRows + 1];
+        final int [] consumerTuples = group(consumers, consumerRows, byItemOrder, consumerOffsets);
+        final int [] byConsumerOrder = order(consumers, consumerRows, null);
+        final int [] itemOffsets = new int[itemRows + 1];
+        final int [] itemTuples = group(items, itemRows, byConsumerOrder, itemOffsets);
+
+        double olderror = implicit ? 0.0 : error(p, q, byConsumerOrder, 0, size);
+        int iteration = 0;
+        while (iteration < iterations)
+        {
+            iteration++;
+            solve(p, q, 1, consumerOffsets, consumerTuples, items, lambda, implicit, alpha, shards);
+            solve(q, p, 0, itemOffsets, itemTuples, consumers, lambda, implicit, alpha, shards);
+            if (implicit)
+                continue;
+            final double error = error(p, q, byConsumerOrder, 0, size);
+            if (olderror - error < eps)
+            {
+                olderror = error;
+                break;
+            }
+            olderror = error;
+        }
+        logger.info((implicit ? "Implicit ALS" : "ALS") + " of " + size + " tuples stopped after " + iteration + " rounds" + (implicit ? "" : ", error " + olderror));
+        error = implicit ? Double.NaN : olderror;
+        return iteration;
+    }
+
+    /**
+     * Returns the tuples sorted by their rows (counting sort, stable over the given order,
+     * or over the tuples if it is null).
+     */
+    private int [] order(final int [] rowOf, final int rows, final int [] within) {
+        final int [] offsets = new int[rows + 1];
+        return group(rowOf, rows, within, offsets);
+    }
+
+    /**
+     * Groups the tuples by their rows, keeping the given order (the tuples if null) within a
+     * row; offsets receives the start of every row and the end of the last one.
+     */
+    private int [] group(final int [] rowOf, final int rows, final int [] within, final int [] offsets) {
+        for (int t = 0; t < size; t++)
+            offsets[rowOf[t] + 1]++;
+        for (int r = 0; r < rows; r++)
+            offsets[r + 1] += offsets[r];
+        final int [] next = new int[rows];
+        System.arraycopy(offsets, 0, next, 0, rows);
+        final int [] result = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            final int t = within == null ? i : within[i];
+            result[next[rowOf[t]]++] = t;
+        }
+        return result;
+    }
+
+    /**
+     * Solves the rows of x with y fixed. Columns of x before <code>first</code> are fixed to 1
+     * and only the rest is solved for.
+     */
+    private void solve(final float [] x, final float [] y, final int first, final int [] offsets, final int [] tuples, final int [] others,
+                       final float lambda, final boolean implicit, final float alpha, final Integer shards) {
+        final int m = k - first;
+        final int rows = offsets.length - 1;
+        // the Gramian of the free columns of y and, with a fixed column, the sum of y0 * y
+        final double [] gram = implicit ? gramian(y, first, shards) : null;
+        final int n = Parallel.shards(shards, (rows + MIN_ROWS_PER_SHARD - 1) / MIN_ROWS_PER_SHARD);
+        Parallel.forShards(rows, n, new Parallel.ShardTask() {
+            @Override
+            public void run(final int shard, final int from, final int to) {
+                final double [] a = new double[m * m];
+                final double [] b = new double[m];
+                for (int r = from; r < to; r++)
+                {
+                    final int start = offsets[r];
+                    final int end = offsets[r + 1];
+                    if (start == end)
+                        continue;
+                    if (implicit)
+                    {
+                        System.arraycopy(gram, 0, a, 0, m * m);
+                        for (int i = 0; i < m; i++)
+                        {
+                            a[i * m + i] += lambda;
+                            b[i] = first == 0 ? 0.0 : -gram[m * m + i];
+                        }
+                    }
+                    else
+                    {
+                        Arrays.fill(a, 0.0);
+                        Arrays.fill(b, 0.0);
+                        final double l = lambda * (end - start);
+                        for (int i = 0; i < m; i++)
+                            a[i * m + i] = l;
+                    }
+                    int previous = -1;
+                    for (int i = start; i < end; i++)
+                    {
+                        final int t = tuples[i];
+                        final int yi = others[t] * k;
+                        final double fixed = first == 0 ? 0.0 : y[yi];
+                        if (implicit)
+                        {
+                            // the pair is observed: a preference of 1 instead of 0, once
+                            // per pair, and a confidence higher by alpha * rating per tuple
+                            final double c = alpha * ratings[t];
+                            final boolean distinct = others[t] != previous;
+                            previous = others[t];
+                            for (int u = 0; u < m; u++)
+                            {
+                                final double yu = y[yi + first + u];
+                                b[u] += c * (1.0 - fixed) * yu + (distinct ? yu : 0.0);
+                                for (int v = 0; v <= u; v++)
+                                    a[u * m + v] += c * yu * y[yi + first + v];
+                            }
+                        }
+                        else
+                        {
+                            final double target = ratings[t] - fixed;
+                            for (int u = 0; u < m; u++)
+                            {
+                                final double yu = y[yi + first + u];
+                                b[u] += target * yu;
+                                for (int v = 0; v <= u; v++)
+                                    a[u * m + v] += yu * y[yi + first + v];
+                            }
+                        }
+                    }
+                    // a is symmetric, only its lower triangle is used
+                    if (choleskySolve(a, b, m))
+                    {
+                        final int xi = r * k + first;
+                        for (int u = 0; u < m; u++)
+                            x[xi + u] = (float) b[u];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the Gramian of the columns of y from <code>first</code> on (lower triangle, m x m)
+     * followed, if the first column is fixed, by the sums of the first column times the others.
+     */
+    private double [] gramian(final float [] y, final int first, final Integer shards) {
+        final int m = k - first;
+        final int rows = y.length / k;
+        final int n = Parallel.shards(shards, (rows + MIN_ROWS_PER_SHARD - 1) / MIN_ROWS_PER_SHARD);
+        final double [][] partials = new double[n][m * m + m];
+        Parallel.forShards(rows, n, new Parallel.ShardTask() {
+            @Override
+            public void run(final int shard, final int from, final int to) {
+                final double [] g = partials[shard];
+                for (int r = from; r < to; r++)
+                {
+                    final int yi = r * k;
+                    for (int u = 0; u < m; u++)
+                    {
+                        final double yu = y[yi + first + u];
+                        for (int v = 0; v <= u; v++)
+                            g[u * m + v] += yu * y[yi + first + v];
+                        if (first > 0)
+                            g[m * m + u] += y[yi] * yu;
+                    }
+                }
+            }
+        });
+        final double [] gram = partials[0];
+        for (int s = 1; s < n; s++)
+        {
+            for (int i = 0; i < gram.length; i++)
+                gram[i] += partials[s][i];
+        }
+        return gram;
+    }
+
+    /**
+     * Solves a x = b for a symmetric positive definite a, given by its lower triangle, in
+     * place: b receives x. Returns false if a is not positive definite.
+     */
+    static boolean choleskySolve(final double [] a, final double [] b, final int m) {
+        // a = L L', L in the lower triangle of a
+        for (int j = 0; j < m; j++)
+        {
+            double d = a[j * m + j];
+            for (int s = 0; s < j; s++)
+                d -= a[j * m + s] * a[j * m + s];
+            if (!(d > 0.0))
+                return false;
+            d = Math.sqrt(d);
+            a[j * m + j] = d;
+            for (int i = j + 1; i < m; i++)
+            {
+                double v = a[i * m + j];
+                for (int s = 0; s < j; s++)
+                    v -= a[i * m + s] * a[j * m + s];
+                a[i * m + j] = v / d;
+            }
+        }
+        // L z = b, then L' x = z
+        for (int i = 0; i < m; i++)
+        {
+            double v = b[i];
+            for (int s = 0; s < i; s++)
+                v -= a[i * m + s] * b[s];
+            b[i] = v / a[i * m + i];
+        }
+        for (int i = m - 1; i >= 0; i--)
+        {
+            double v = b[i];
+            for (int s = i + 1; s < m; s++)
+                v -= a[s * m + i] * b[s];
+            b[i] = v / a[i * m + i];
+        }
+        return true;
+    }
+
+    /**
+     * One step of the gradient descent on the tuple t.
+     */
+    private void step(final float [] p, final float [] q, final int t, final float lambda, final float rate) {
+        final int pi = consumers[t] * k;
+        final int qi = items[t] * k;
+        float predicted = 0;
+        for (int j = 0; j < k; j++)
+            predicted += p[pi + j] * q[qi + j];
+        final float error = ratings[t] - predicted;
+        // update p; the first column is fixed to 1
+        for (int j = 1; j < k; j++)
+            p[pi + j] += rate * (error * q[qi + j] - lambda * p[pi + j]);
+        // update q
+        for (int j = 0; j < k; j++)
+            q[qi + j] += rate * (error * p[pi + j] - lambda * q[qi + j]);
+    }
+
+    /**
+     * Returns the sum of squared errors of the tuples at the positions [from, to) of the order.
+     */
+    private double error(final float [] p, final float [] q, final int [] order, final int from, final int to) {
+        double error = 0;
+        for (int i = from; i < to; i++)
+        {
+            final int t = order[i];
+            final int pi = consumers[t] * k;
+            final int qi = items[t] * k;
+            float predicted = 0;
+            for (int j = 0; j < k; j++)
+                predicted += p[pi + j] * q[qi + j];
+            final float e = ratings[t] - predicted;
+            error += e * e;
+        }
+        return error;
+    }
+
+    /**
+     * Shuffles the first n elements of the array (Fisher-Yates).
+     */
+    private static void shuffle(final int [] a, final int n, final Random rand) {
+        for (int i = n - 1; i > 0; i--)
+        {
+            final int j = rand.nextInt(i + 1);
+            final int tmp = a[i];
+            a[i] = a[j];
+            a[j] = tmp;
+        }
+    }
+}
@@ -41,6 +41,8 @@ import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateProductsDelta;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 
 /**
@@ -147,6 +149,16 @@ public class ChannelPopularityPredictor extends Predictor implements Cloneable {
 			throws ClassNotFoundException, IOException {
         return new Update(predictor.updateModelFromFile(in, data), data);
 	}        
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		predictor.writeTo(out);
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+		return new Update(predictor.readFrom(in, data), data);
+	}
     
     private class Update implements Commitable {
         private final Commitable commit;
@@ -191,7 +191,7 @@ public class CountViewsAttributeTimeWindowPredictor extends Predictor {
             this.data = updateData.dataStore;
         }
         final int eventIndex = data.getEventsDescriptor(BUYSNAME).index;
-        final long lastAllowedTimestamp = data.getEventsDescriptor(BUYSNAME).last_read_date - TIME_WINDOW;
+        final long lastAllowedTimestamp = updateData.getEventsDescriptor(BUYSNAME).last_read_date - TIME_WINDOW;
 
         TIntObjectMap<TIntIntMap> newCounts = new TIntObjectHashMap<TIntIntMap>();
 
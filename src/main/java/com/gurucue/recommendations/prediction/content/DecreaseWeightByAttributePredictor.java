@@ -50,6 +50,9 @@ import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.Attr;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 
 /**
@@ -198,45 +201,65 @@ public class DecreaseWeightByAttributePredictor extends Predictor {
         return values;
     }
 
-    private void updateMap(TLongIntMap counts, final List<ConsumerData> consumers, final TLongIntMap consumerIDs, final int eventIndex, final int positive_eventIndex)
+    /**
+     * Keys of different consumers never overlap, so every shard of consumers collects the new
+     * values of its keys, reading the old ones from counts, with 0 for a removed key; they are
+     * put into counts at the end.
+     */
+    private void updateMap(final TLongIntMap counts, final List<ConsumerData> consumers, final int eventIndex, final int positive_eventIndex)
     {
-    	for (ConsumerData c : consumers)
-    	{
-    		if (c == null)
-    			continue;
-    		int consIndex = consumerIDs.get(c.consumerId);
-    		if (c.events[eventIndex] != null)
-    		{
-                final int [] items = c.events[eventIndex].getProductIndices();
-                for (int item : items)
+        forConsumerShards(consumers, new ConsumerShardWork<TLongIntMap>() {
+            @Override
+            public TLongIntMap createPartial() {
+                return new TLongIntHashMap();
+            }
+
+            @Override
+            public void process(final TLongIntMap changed, final int consIndex, final ConsumerData c) {
+                if (c.events[eventIndex] != null)
                 {
-                	final TLongList attrValues = getAttrValues(item, false);
-                    for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
+                    final int [] items = c.events[eventIndex].getProductIndices();
+                    for (int item : items)
                     {
-                        final long atVal = it.next();
-                        final long key = consIndex * consumerBase + atVal;
-                        counts.put(key, counts.get(key) + 1);
+                        final TLongList attrValues = getAttrValues(item, false);
+                        for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
+                        {
+                            final long atVal = it.next();
+                            final long key = consIndex * consumerBase + atVal;
+                            changed.put(key, (changed.containsKey(key) ? changed.get(key) : counts.get(key)) + 1);
+                        }
+                    }
+                }
+
+                // now update positive items
+                if (c.events[positive_eventIndex] != null)
+                {
+                    final int [] items = c.events[positive_eventIndex].getProductIndices();
+                    for (int item : items)
+                    {
+                        final TLongList attrValues = getAttrValues(item, false);
+                        for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
+                        {
+                            final long atVal = it.next();
+                            final long key = consIndex * consumerBase + atVal;
+                            changed.put(key, 0);
+                        }
                     }
                 }
-    		}
-            
-            // now update positive items
-    		if (c.events[positive_eventIndex] != null)
-    		{
-    			final int [] items = c.events[positive_eventIndex].getProductIndices();
-	            for (int item : items)
-	            {
-	            	final TLongList attrValues = getAttrValues(item, false);
-	                for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
-	                {
-	                    final long atVal = it.next();
-	                    final long key = consIndex * consumerBase + atVal;
-	                    counts.remove(key);
-	                }
             }
-    		}
-            
-    	}
+
+            @Override
+            public void reduce(final TLongIntMap changed) {
+                for (TLongIntIterator it = changed.iterator(); it.hasNext(); )
+                {
+                    it.advance();
+                    if (it.value() == 0)
+                        counts.remove(it.key());
+                    else
+                        counts.put(it.key(), it.value());
+                }
+            }
+        });
     }
     
     /**
@@ -260,13 +283,9 @@ public class DecreaseWeightByAttributePredictor extends Predictor {
         
         TLongIntMap newCounts = new TLongIntHashMap (attrCounts);
         if (runningForTheFirstTime)
-           	updateMap(newCounts, data.getConsumers(), data.getConsumerIDMap(), eventIndex, positive_eventIndex);
+           	updateMap(newCounts, data.getConsumers(), eventIndex, positive_eventIndex);
         else
-        {
-            final List<ConsumerData> tmp_consumers = updateData.newData;
-            final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
-            updateMap(newCounts, tmp_consumers, tmp_ids, eventIndex, positive_eventIndex);
-        }
+            updateMap(newCounts, updateData.newData, eventIndex, positive_eventIndex);
         
         if (newCounts.size() > MAX_ITEMS)
         {
@@ -349,6 +368,35 @@ public class DecreaseWeightByAttributePredictor extends Predictor {
         return new UpdateAll(newCounts);
 	}    
 
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		out.writeLongIntMap(attrCounts);
+	}
+
+	/**
+	 * Updates copy the counts and commits replace them, so they are captured by reference.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+		final TLongIntMap capturedCounts = attrCounts;
+		SnapshotSet.addSection(set, name, tasks, new SnapshotSet.SectionWriter() {
+			@Override
+			public void write(final SnapshotOutput out) throws IOException {
+				out.writeLongIntMap(capturedCounts);
+			}
+		});
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization of attributes is needed
+        {
+            this.data = data;
+            attrCounts = new TLongIntHashMap ();
+        }
+        return new UpdateAll(in.readLongIntMap());
+	}
+
 
     private class UpdateAll implements Commitable {
         final TLongIntMap newCounts;
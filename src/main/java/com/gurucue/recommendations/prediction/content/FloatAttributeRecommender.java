@@ -159,6 +159,8 @@ public class FloatAttributeRecommender extends Predictor implements Cloneable {
         int counter = 0;
         for (ProductData pr : products)
         {
+            if (pr.removed)
+                continue;
             final Float v = pr.getFloatAttrValue(attribute_index);
             if (v != null)
             {
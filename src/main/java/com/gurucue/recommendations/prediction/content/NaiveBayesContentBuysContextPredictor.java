@@ -65,6 +65,9 @@ import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import com.gurucue.recommendations.recommender.dto.TagsManager;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 
 /**
@@ -597,11 +600,10 @@ public class NaiveBayesContentBuysContextPredictor extends Predictor {
             allViews = 0;
         }
         final int eventIndex = data.getEventsDescriptor(BUYSNAME).index;
-        final long currentUpdate = data.getEventsDescriptor(BUYSNAME).last_read_date;
+        final long currentUpdate = updateData.getEventsDescriptor(BUYSNAME).last_read_date;
         
         // new (changed) consumers
         final List<ConsumerData> tmp_consumers = updateData.newData;
-        final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
         
         if (newAttrCounts == null)
         	newAttrCounts = new TIntObjectHashMap<TLongIntMap> ();
@@ -649,122 +651,150 @@ public class NaiveBayesContentBuysContextPredictor extends Predictor {
         	}
         }
 
-        for (ConsumerData c: tmp_consumers)
-        {
-            if (null == c) // no events were added to this user
-                continue;
-            
-            // are there any new events for this user, otherwise continue
-            if (null == c.events[eventIndex])
-                continue;
-            final int consIndex = tmp_ids.get(c.consumerId);
-            final int [] items = c.events[eventIndex].getProductIndices();
-            final ConsumerMetaEventsData meta = c.events[eventIndex].getMeta();
-            
-            if (attrCounts.containsKey(consIndex) && attrCounts.get(consIndex) != null)
-            	newAttrCounts.put(consIndex, new TLongIntHashMap(attrCounts.get(consIndex)));
-            else
-            {
-            	newAttrCounts.put(consIndex, new TLongIntHashMap());
-            	lastUpdate.put(consIndex,  currentUpdate);
-            	consumerItems25.put(consIndex,  new TLongArrayList()); 
+        // every shard of the new (changed) consumers collects the new counts of its consumers and the changes
+        // of the counts of all consumers, which are added up at the end
+        final long [] views = new long[] {newViews};
+        forConsumerShards(tmp_consumers, new ConsumerShardWork<ShardUpdate>() {
+            @Override
+            public ShardUpdate createPartial() {
+                return new ShardUpdate();
             }
-            TLongIntMap userCounts = newAttrCounts.get(consIndex);
-            TLongList currentConsumerItems = consumerItems25.get(consIndex);
-            for (int i = 0; i < items.length; i++)
-            {
-                final int item = items[i];
-                final TLongList attrValues = getAttrValues(items[i]);
-                final TIntList contextPositions = contextHandler.getContext(data, item, meta, i);
-                
-                for (TIntIterator it2 = contextPositions.iterator(); it2.hasNext(); )
+
+            @Override
+            public void process(final ShardUpdate shard, final int consIndex, final ConsumerData c) {
+                // are there any new events for this user, otherwise continue
+                if (null == c.events[eventIndex])
+                    return;
+                final int [] items = c.events[eventIndex].getProductIndices();
+                final ConsumerMetaEventsData meta = c.events[eventIndex].getMeta();
+            
+                final TLongIntMap userCounts;
+                final TLongList currentConsumerItems;
+                if (attrCounts.containsKey(consIndex) && attrCounts.get(consIndex) != null)
                 {
-                    final long cont = it2.next();
+                	userCounts = new TLongIntHashMap(attrCounts.get(consIndex));
+                	// a copy, the list may be held by a snapshot being written
+                	currentConsumerItems = new TLongArrayList(consumerItems25.get(consIndex));
+                	shard.consumerItems.put(consIndex, currentConsumerItems);
+                }
+                else
+                {
+                	userCounts = new TLongIntHashMap();
+                	currentConsumerItems = new TLongArrayList();
+                	shard.lastUpdate.put(consIndex,  currentUpdate);
+                	shard.consumerItems.put(consIndex,  currentConsumerItems);
+                }
+                shard.counts.put(consIndex, userCounts);
+                for (int i = 0; i < items.length; i++)
+                {
+                    final int item = items[i];
+                    final TLongList attrValues = getAttrValues(items[i]);
+                    final TIntList contextPositions = contextHandler.getContext(data, item, meta, i);
+                
+                    for (TIntIterator it2 = contextPositions.iterator(); it2.hasNext(); )
+                    {
+                        final long cont = it2.next();
+                        for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
+                        {
+                            final long atVal = it.next() + cont;
+                            userCounts.put(atVal, userCounts.get(atVal) + 1);
+                            userCounts.put(-1-cont, userCounts.get(-1-cont) + 1);
+                        }
+                        // store also all views for each context (key = -1-cont)
+                    }
+                
+                    // store also general counter (without context)
+                    // for everyone
+                    // & update dates for attributes
                     for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
                     {
-                        final long atVal = it.next() + cont;
-                        userCounts.put(atVal, userCounts.get(atVal) + 1);
-                        userCounts.put(-1-cont, userCounts.get(-1-cont) + 1);
+                        final long atVal = it.next();
+                        shard.all.adjustOrPutValue(atVal, 1, 1);
+                        shard.views += 1;
+                        // update current consumer items
+                        currentConsumerItems.remove(atVal);
+                        currentConsumerItems.add(atVal);
+                        // if current items contain more than 25% of allowed items, remove one
+                        if (currentConsumerItems.size() > 0.25 * MAX_ITEMS_USER)
+                        	currentConsumerItems.removeAt(0);
                     }
-                    // store also all views for each context (key = -1-cont)
-                }
                 
-                // store also general counter (without context)
-                // for everyone
-                // & update dates for attributes
-                for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
-                {
-                    final long atVal = it.next();
-                    newAttrCounts.get(ALL_ATT_USER).put(atVal, newAttrCounts.get(ALL_ATT_USER).get(atVal) + 1);
-                    newViews += 1;
-                    // update current consumer items
-                    currentConsumerItems.remove(atVal);
-                    currentConsumerItems.add(atVal);
-                    // if current items contain more than 25% of allowed items, remove one
-                    if (currentConsumerItems.size() > 0.25 * MAX_ITEMS_USER)
-                    	currentConsumerItems.removeAt(0);
+                    // if user has too many items, remove
                 }
-                
-                // if user has too many items, remove
-            }
             
-            if (userCounts.size() > MAX_ITEMS_USER)
-            {
-            	// WE need to delete some items. For each user store last 25% of MAX_ITEMS_USER items. Those should not be deleted.  
-            	while (userCounts.size() > MAX_ITEMS_USER)
-            	{
-            		// decrease each key by the number of contexts; if value becomes 0, remove it from the counts
-            		int changed = 0;
-            		for (TLongIntIterator it = userCounts.iterator(); it.hasNext(); )
-            		{
-            			it.advance();
-            			final long key = it.key();
-                		if (key < 0 || key%attrBase > 0 || userCounts.get(key) <= 0)
-                			continue;
-                		if (currentConsumerItems.contains(key))
-                			continue;
+                if (userCounts.size() > MAX_ITEMS_USER)
+                {
+                	// WE need to delete some items. For each user store last 25% of MAX_ITEMS_USER items. Those should not be deleted.  
+                	while (userCounts.size() > MAX_ITEMS_USER)
+                	{
+                		// decrease each key by the number of contexts; if value becomes 0, remove it from the counts
+                		int changed = 0;
+                		for (TLongIntIterator it = userCounts.iterator(); it.hasNext(); )
+                		{
+                			it.advance();
+                			final long key = it.key();
+                    		if (key < 0 || key%attrBase > 0 || userCounts.get(key) <= 0)
+                    			continue;
+                    		if (currentConsumerItems.contains(key))
+                    			continue;
                 
-                		changed ++;
+                    		changed ++;
+
+                    		// remove from contexts
+                            for (int ic = 0; ic < MAX_CONTEXTS; ic++)
+                            {
+                            	if (userCounts.containsKey(key + ic) && userCounts.get(key+ic) > 0)
+                            		userCounts.put(key+ic, userCounts.get(key+ic) - 1);
+                            	if (userCounts.containsKey(-1-ic) && userCounts.get(-1-ic) > 0)
+                            		userCounts.put(-1-ic, userCounts.get(-1-ic) - 1);
+                            }
+                    
+                            shard.views -= 1;
+                            shard.all.adjustOrPutValue(key, -1, -1);
+                		}
+                		for (TLongIntIterator it = userCounts.iterator(); it.hasNext(); )
+                		{
+                			it.advance();
+                			if (it.value() <= 0)
+                				it.remove();
+                		}
+                		if (changed == 0)
+                			break;
+                	}
 
-                		// remove from contexts
-                        for (int ic = 0; ic < MAX_CONTEXTS; ic++)
-                        {
-                        	if (userCounts.containsKey(key + ic) && userCounts.get(key+ic) > 0)
-                        		userCounts.put(key+ic, userCounts.get(key+ic) - 1);
-                        	if (userCounts.containsKey(-1-ic) && userCounts.get(-1-ic) > 0)
-                        		userCounts.put(-1-ic, userCounts.get(-1-ic) - 1);
-                        }
-                        
-                        newViews -= 1;
-                        newAttrCounts.get(ALL_ATT_USER).put(key, newAttrCounts.get(ALL_ATT_USER).get(key) - 1);
-            		}
-            		for (TLongIntIterator it = userCounts.iterator(); it.hasNext(); )
-            		{
-            			it.advance();
-            			if (it.value() <= 0)
-            				it.remove();
-            		}
-            		if (changed == 0)
-            			break;
-            	}
-
-                // test whether counts are correct
-                int cnt = 0;
-                for (TLongIntIterator it = userCounts.iterator(); it.hasNext();)
+                    // test whether counts are correct
+                    int cnt = 0;
+                    for (TLongIntIterator it = userCounts.iterator(); it.hasNext();)
+                    {
+                        it.advance();
+                        final long key = it.key();
+                        if (key < 0 || key%attrBase > 0 || userCounts.get(key) <= 0)
+                            continue;
+
+                        cnt += userCounts.get(key);
+                    }
+                    if (cnt != userCounts.get(-1))
+                        logger.error("Wrong values for user " + c.consumerId + ", cnt = " + cnt + ", all = " + userCounts.get(-1));
+            	
+                }
+                		
+            }
+
+            @Override
+            public void reduce(final ShardUpdate shard) {
+                newAttrCounts.putAll(shard.counts);
+                lastUpdate.putAll(shard.lastUpdate);
+                consumerItems25.putAll(shard.consumerItems);
+                final TLongIntMap all = newAttrCounts.get(ALL_ATT_USER);
+                for (TLongIntIterator it = shard.all.iterator(); it.hasNext(); )
                 {
                     it.advance();
-                    final long key = it.key();
-                    if (key < 0 || key%attrBase > 0 || userCounts.get(key) <= 0)
-                        continue;
-
-                    cnt += userCounts.get(key);
+                    all.adjustOrPutValue(it.key(), it.value(), it.value());
                 }
-                if (cnt != userCounts.get(-1))
-                    logger.error("Wrong values for user " + c.consumerId + ", cnt = " + cnt + ", all = " + userCounts.get(-1));
-            	
+                views[0] += shard.views;
             }
-                		
-        }
+        });
+        newViews = views[0];
         
         if (newViews < 0)
         {
@@ -839,6 +869,53 @@ public class NaiveBayesContentBuysContextPredictor extends Predictor {
         return new UpdateAll(newAttrCounts, newAllViews);
 	}    
 
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		writeTo(out, attrCounts, lastUpdate, consumerItems25, allViews);
+	}
+
+	private static void writeTo(SnapshotOutput out, TIntObjectMap<TLongIntMap> attrCounts, TIntLongMap lastUpdate, TIntObjectMap<TLongList> consumerItems25, long allViews) throws IOException {
+		out.writeIntObjectMap(attrCounts, SnapshotOutput.LONG_INT_MAP);
+		out.writeIntLongMap(lastUpdate);
+		out.writeIntObjectMap(consumerItems25, SnapshotOutput.LONG_LIST);
+		out.writeLong(allViews);
+	}
+
+	/**
+	 * The counts and the recent items of a consumer are replaced, never changed, so only the
+	 * maps of consumers are copied; the times of the last updates are changed in place.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+		final TIntObjectMap<TLongIntMap> capturedCounts = attrCounts == null ? null : new TIntObjectHashMap<TLongIntMap>(attrCounts);
+		final TIntLongMap capturedLastUpdate = lastUpdate == null ? null : new TIntLongHashMap(lastUpdate);
+		final TIntObjectMap<TLongList> capturedItems = consumerItems25 == null ? null : new TIntObjectHashMap<TLongList>(consumerItems25);
+		final long capturedViews = allViews;
+		SnapshotSet.addSection(set, name, tasks, new SnapshotSet.SectionWriter() {
+			@Override
+			public void write(final SnapshotOutput out) throws IOException {
+				writeTo(out, capturedCounts, capturedLastUpdate, capturedItems, capturedViews);
+			}
+		});
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        logger.info("Loading snapshot of NaiveBayesContentBuysContextPredictor started.");
+        if (this.data == null) // initialization of attributes is needed
+        {
+            this.data = data;
+            attrCounts = new TIntObjectHashMap<TLongIntMap> ();
+            allViews = 0;
+        }
+        newAttrCounts = in.readIntObjectMap(SnapshotInput.LONG_INT_MAP);
+		lastUpdate = in.readIntLongMap();
+        consumerItems25 = in.readIntObjectMap(SnapshotInput.LONG_LIST);
+		long newAllViews = in.readLong();
+        logger.info("Loading snapshot of NaiveBayesContentBuysContextPredictor ended.");
+        return new UpdateAll(newAttrCounts, newAllViews);
+	}
+
 
     private class UpdateDelta implements Commitable {
     	TIntObjectMap<TLongIntMap> newCounts;
@@ -861,6 +938,17 @@ public class NaiveBayesContentBuysContextPredictor extends Predictor {
         }        
     }
     
+    /**
+     * Changes of a shard of consumers in an incremental update.
+     */
+    private static final class ShardUpdate {
+        final TIntObjectMap<TLongIntMap> counts = new TIntObjectHashMap<TLongIntMap>(); // new counts of the consumers
+        final TIntLongMap lastUpdate = new TIntLongHashMap(); // of new consumers
+        final TIntObjectMap<TLongList> consumerItems = new TIntObjectHashMap<TLongList>(); // of changed consumers
+        final TLongIntMap all = new TLongIntHashMap(); // changes of the counts of ALL_ATT_USER
+        long views = 0; // change of all views
+    }
+
     private class UpdateAll implements Commitable {
     	TIntObjectMap<TLongIntMap> newCounts;
     	long newAllViews;
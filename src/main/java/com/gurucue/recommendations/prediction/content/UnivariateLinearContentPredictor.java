@@ -28,6 +28,7 @@ import com.gurucue.recommendations.recommender.dto.ConsumerData;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import gnu.trove.iterator.TIntFloatIterator;
 import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TIntLongIterator;
 import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.iterator.TLongFloatIterator;
 import gnu.trove.iterator.TLongIterator;
@@ -43,7 +44,6 @@ import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.map.hash.TIntLongHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.map.hash.TLongFloatHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.TLongSet;
@@ -64,6 +64,9 @@ import com.gurucue.recommendations.recommender.dto.ConsumerRatingsData;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateProductsDelta;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 /**
  * This recommender estimates average ratings for each consumer and for each attribute in the ATTRIBUTES setting.
@@ -269,155 +272,234 @@ public class UnivariateLinearContentPredictor extends Predictor {
 
         // new (changed) consumers
         final List<ConsumerData> tmp_consumers = updateData.newData;
-        final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
 
         newUserAverages = new TIntFloatHashMap ();
         newUserCounts = new TIntLongHashMap ();        
         newUserAverages.putAll(userAverages);
         newUserCounts.putAll(userCounts);
         
-        float newGlobalAverage = globalAverage;
-        long newGlobalCount = globalCount;
-
-        for (ConsumerData c: tmp_consumers)
-        {
-            if (null == c) // no events were added to this user
-                continue;
-            
-            // are there any new events for this user, otherwise continue
-            if (null == c.events[eventIndex])
-                continue;
-            final int consIndex = tmp_ids.get(c.consumerId);
-            // create a new object to store dates
-            if (!attrDates.containsKey(consIndex))
-            	attrDates.put(consIndex, new TLongLongHashMap());
-            if (!newAttrAverages.containsKey(consIndex))
-                newAttrAverages.put(consIndex, new TLongFloatHashMap());
-            if (attrAverages.get(consIndex) != null)
-            	newAttrAverages.get(consIndex).putAll(attrAverages.get(consIndex));
-            if (!newAttrCounts.containsKey(consIndex))
-                newAttrCounts.put(consIndex, new TLongLongHashMap());
-            if (attrCounts.get(consIndex) != null)
-            	newAttrCounts.get(consIndex).putAll(attrCounts.get(consIndex));
-            final TLongFloatMap averages = newAttrAverages.get(consIndex);
-        	final TLongLongMap dates = attrDates.get(consIndex);
-        	final TLongLongMap counts = newAttrCounts.get(consIndex);
-           
-            
-            final ConsumerRatingsData ratingsData =  (ConsumerRatingsData) c.events[eventIndex];
-            final ConsumerMetaEventsData meta = ratingsData.getMeta();
-            final int [] items = ratingsData.indices;
-            final byte [] ratings = ratingsData.ratings;
-            final long[] times = meta.getLongValuesArray(TIMESTAMP_ID);
-            
-            for (int i = 0; i < items.length; i++)
-            {
-                final TLongList attrValues = getAttrValues(items[i]);
+        final float [] newGlobalAverage = new float[] {globalAverage};
+        final long [] newGlobalCount = new long[] {globalCount};
+
+        // first add the new ratings; every shard of the new (changed) consumers creates the new maps of its
+        // consumers and collects the changes of the sums and counts of users, of all users and the global ones
+        forConsumerShards(tmp_consumers, new ConsumerShardWork<ShardUpdate>() {
+            @Override
+            public ShardUpdate createPartial() {
+                return new ShardUpdate();
+            }
 
-                // store also general counter (without context)
-                // for a consumer and for everyone
-                for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
+            @Override
+            public void process(final ShardUpdate shard, final int consIndex, final ConsumerData c) {
+                // are there any new events for this user, otherwise continue
+                if (null == c.events[eventIndex])
+                    return;
+                // create a new object to store dates, the old one may be held by a snapshot being written
+                final TLongLongMap dates = new TLongLongHashMap();
+                if (attrDates.get(consIndex) != null)
+                    dates.putAll(attrDates.get(consIndex));
+                shard.dates.put(consIndex, dates);
+                final TLongFloatMap averages = new TLongFloatHashMap();
+                if (attrAverages.get(consIndex) != null)
+                    averages.putAll(attrAverages.get(consIndex));
+                final TLongLongMap counts = new TLongLongHashMap();
+                if (attrCounts.get(consIndex) != null)
+                    counts.putAll(attrCounts.get(consIndex));
+                shard.averages.put(consIndex, averages);
+                shard.counts.put(consIndex, counts);
+
+                final ConsumerRatingsData ratingsData =  (ConsumerRatingsData) c.events[eventIndex];
+                final ConsumerMetaEventsData meta = ratingsData.getMeta();
+                final int [] items = ratingsData.indices;
+                final byte [] ratings = ratingsData.ratings;
+                final long[] times = meta.getLongValuesArray(TIMESTAMP_ID);
+
+                for (int i = 0; i < items.length; i++)
                 {
-                    final long atVal = it.next();
-                    // update user data
-                    counts.put(atVal, counts.get(atVal) + 1);
-                    averages.put(atVal, averages.get(atVal) + ratings[i]);
-                    // update general user data
-                    newAttrCounts.get(ALL_ATT_USER).put(atVal, newAttrCounts.get(ALL_ATT_USER).get(atVal) + 1);
-                    newAttrAverages.get(ALL_ATT_USER).put(atVal, newAttrAverages.get(ALL_ATT_USER).get(atVal) + ratings[i]);
-                    
-                    dates.put(atVal, Math.max(attrDates.get(consIndex).get(atVal), times[i]));
-
-                    newUserCounts.put(consIndex, newUserCounts.get(consIndex) + 1);
-                    newUserAverages.put(consIndex, newUserAverages.get(consIndex) + ratings[i]);
-                    
-                    newGlobalAverage += ratings[i];
-                    newGlobalCount += 1;
+                    final TLongList attrValues = getAttrValues(items[i]);
+
+                    // store also general counter (without context)
+                    // for a consumer and for everyone
+                    for (TLongIterator it = attrValues.iterator(); it.hasNext(); )
+                    {
+                        final long atVal = it.next();
+                        // update user data
+                        counts.put(atVal, counts.get(atVal) + 1);
+                        averages.put(atVal, averages.get(atVal) + ratings[i]);
+                        // update general user data
+                        shard.allCounts.adjustOrPutValue(atVal, 1, 1);
+                        shard.allAverages.adjustOrPutValue(atVal, ratings[i], ratings[i]);
+
+                        dates.put(atVal, Math.max(dates.get(atVal), times[i]));
+
+                        shard.userCounts.adjustOrPutValue(consIndex, 1, 1);
+                        shard.userAverages.adjustOrPutValue(consIndex, ratings[i], ratings[i]);
+
+                        shard.globalAverage += ratings[i];
+                        shard.globalCount += 1;
+                    }
                 }
             }
-            
-            // do we need to delete any values?
-        	if (averages.size() > MAX_ITEMS_USER)
-        	{
-            	// create a list of times
-            	TLongList timesSort = new TLongArrayList();
-            	for (TLongLongIterator it2 = dates.iterator(); it2.hasNext();)
-            	{
-            		it2.advance();
-            		timesSort.add(it2.value());
-            	}
-            	// sort by values - to get the oldest
-            	timesSort.sort();
-            	long threshold = timesSort.get(timesSort.size()-MAX_ITEMS_USER);
+
+            @Override
+            public void reduce(final ShardUpdate shard) {
+                newAttrAverages.putAll(shard.averages);
+                newAttrCounts.putAll(shard.counts);
+                attrDates.putAll(shard.dates);
+                addChanges(shard, newGlobalAverage, newGlobalCount);
+            }
+        });
+
+        // then delete old values of the consumers with too many values; the interestingness of a value
+        // depends on the counts of all users, which are only read by the shards now
+        final TLongLongMap allCounts = newAttrCounts.get(ALL_ATT_USER);
+        forConsumerShards(tmp_consumers, new ConsumerShardWork<ShardUpdate>() {
+            @Override
+            public ShardUpdate createPartial() {
+                return new ShardUpdate();
+            }
+
+            @Override
+            public void process(final ShardUpdate shard, final int consIndex, final ConsumerData c) {
+                if (null == c.events[eventIndex])
+                    return;
+                final TLongFloatMap averages = newAttrAverages.get(consIndex);
+                final TLongLongMap dates = attrDates.get(consIndex);
+                final TLongLongMap counts = newAttrCounts.get(consIndex);
+
+                // do we need to delete any values?
+                if (averages.size() <= MAX_ITEMS_USER)
+                    return;
+                // create a list of times
+                TLongList timesSort = new TLongArrayList();
+                for (TLongLongIterator it2 = dates.iterator(); it2.hasNext();)
+                {
+                    it2.advance();
+                    timesSort.add(it2.value());
+                }
+                // sort by values - to get the oldest
+                timesSort.sort();
+                long threshold = timesSort.get(timesSort.size()-MAX_ITEMS_USER);
                 TLongSet todelete = new TLongHashSet();
-            	for (TLongLongIterator it2 = dates.iterator(); it2.hasNext();)
-            	{
-            		it2.advance();
-            		if (it2.value() < threshold)
-            		{
-            			todelete.add(it2.key()); // these keys should be removed
-            		}
-            	}
-            	// iterate through todelete and compute interestingness of the item
-            	double maxInteresting = 0;
-            	for (TLongIterator it2 = todelete.iterator(); it2.hasNext(); )
-            	{
-            		final long key = it2.next();
-            		final long cnt = counts.get(key);
-            		final double interesting = (double) cnt * cnt / (newAttrCounts.get(ALL_ATT_USER).get(key) + 1.0);
-            		if (interesting > maxInteresting)
-            			maxInteresting = interesting;
-            	}
-            	
-            	// you are allowed to keep 50% of MAX_ITEMS_USER size
-            	if (todelete.size() < MAX_ITEMS_USER / 2)
-            		todelete.clear();
-            	else
-            	{
-            		double keyThreshold = maxInteresting * (1.0 - (MAX_ITEMS_USER / 2.0) / todelete.size());
-            		// remove from delete
-                	for (TLongIterator it2 = todelete.iterator(); it2.hasNext(); )
-                	{
-                		final long key = it2.next();
-                		final long cnt = counts.get(key);
-                		final double interesting = (double) cnt * cnt / (newAttrCounts.get(ALL_ATT_USER).get(key) + 1.0);
-
-                		if (interesting > keyThreshold) // do not remove this item!
-                			it2.remove();
-                	}
-            	}
-            	
-            	// remove todelete from averages and counts
-            	for (TLongIterator it2 = todelete.iterator(); it2.hasNext(); )
+                for (TLongLongIterator it2 = dates.iterator(); it2.hasNext();)
                 {
-            		final long key = it2.next();
-            		final long cnt = counts.get(key);
-                	final float a = averages.get(key);
-                	
-                	// delete from attrCounts
-                	counts.remove(key);
-                	averages.remove(key);
-                	dates.remove(key);
-                	// subtract
-                	newUserAverages.put(consIndex, newUserAverages.get(consIndex) - a);
-                	newUserCounts.put(consIndex, newUserCounts.get(consIndex) - cnt);
-                    newAttrAverages.get(ALL_ATT_USER).put(key, newAttrAverages.get(ALL_ATT_USER).get(key) - a);
-                    newAttrCounts.get(ALL_ATT_USER).put(key, newAttrCounts.get(ALL_ATT_USER).get(key) - cnt);
-                	newGlobalAverage -= a;
-                	newGlobalCount -= cnt;
-                	if (newGlobalCount < 0)
-                		logger.error("New global count negative!!!");
-                	if (newAttrCounts.get(ALL_ATT_USER).get(key) < 0)
-                		logger.error("ALL_ATT_USER count negative, key = " + key + ", new count = " + newAttrCounts.get(ALL_ATT_USER).get(key) + ", cnt = " + cnt + "!!!");
-                	if (counts.get(key) < 0)
-                		logger.error("counts count negative!!!");
-                }        	
-        	}
-        }
-        
+                    it2.advance();
+                    if (it2.value() < threshold)
+                    {
+                        todelete.add(it2.key()); // these keys should be removed
+                    }
+                }
+                // iterate through todelete and compute interestingness of the item
+                double maxInteresting = 0;
+                for (TLongIterator it2 = todelete.iterator(); it2.hasNext(); )
+                {
+                    final long key = it2.next();
+                    final long cnt = counts.get(key);
+                    final double interesting = (double) cnt * cnt / (allCounts.get(key) + 1.0);
+                    if (interesting > maxInteresting)
+                        maxInteresting = interesting;
+                }
+
+                // you are allowed to keep 50% of MAX_ITEMS_USER size
+                if (todelete.size() < MAX_ITEMS_USER / 2)
+                    todelete.clear();
+                else
+                {
+                    double keyThreshold = maxInteresting * (1.0 - (MAX_ITEMS_USER / 2.0) / todelete.size());
+                    // remove from delete
+                    for (TLongIterator it2 = todelete.iterator(); it2.hasNext(); )
+                    {
+                        final long key = it2.next();
+                        final long cnt = counts.get(key);
+                        final double interesting = (double) cnt * cnt / (allCounts.get(key) + 1.0);
+
+                        if (interesting > keyThreshold) // do not remove this item!
+                            it2.remove();
+                    }
+                }
+
+                // remove todelete from averages and counts
+                for (TLongIterator it2 = todelete.iterator(); it2.hasNext(); )
+                {
+                    final long key = it2.next();
+                    final long cnt = counts.get(key);
+                    final float a = averages.get(key);
+
+                    // delete from attrCounts
+                    counts.remove(key);
+                    averages.remove(key);
+                    dates.remove(key);
+                    // subtract
+                    shard.userAverages.adjustOrPutValue(consIndex, -a, -a);
+                    shard.userCounts.adjustOrPutValue(consIndex, -cnt, -cnt);
+                    shard.allAverages.adjustOrPutValue(key, -a, -a);
+                    shard.allCounts.adjustOrPutValue(key, -cnt, -cnt);
+                    shard.globalAverage -= a;
+                    shard.globalCount -= cnt;
+                }
+            }
+
+            @Override
+            public void reduce(final ShardUpdate shard) {
+                addChanges(shard, newGlobalAverage, newGlobalCount);
+                if (newGlobalCount[0] < 0)
+                    logger.error("New global count negative!!!");
+                for (TLongLongIterator it = shard.allCounts.iterator(); it.hasNext(); )
+                {
+                    it.advance();
+                    if (allCounts.get(it.key()) < 0)
+                        logger.error("ALL_ATT_USER count negative, key = " + it.key() + ", new count = " + allCounts.get(it.key()) + ", cnt = " + (-it.value()) + "!!!");
+                }
+            }
+        });
 
         logger.info("Incremental update of UnivariateLinearContentPredictor ended.");
-        return new UpdateDelta(newAttrAverages, newAttrCounts, newUserAverages, newUserCounts, newGlobalAverage, newGlobalCount);	
+        return new UpdateDelta(newAttrAverages, newAttrCounts, newUserAverages, newUserCounts, newGlobalAverage[0], newGlobalCount[0]);	
+    }
+
+    /**
+     * Adds the changes of the sums and counts collected by a shard of consumers.
+     */
+    private void addChanges(final ShardUpdate shard, final float [] newGlobalAverage, final long [] newGlobalCount) {
+        for (TIntLongIterator it = shard.userCounts.iterator(); it.hasNext(); )
+        {
+            it.advance();
+            newUserCounts.adjustOrPutValue(it.key(), it.value(), it.value());
+        }
+        for (TIntFloatIterator it = shard.userAverages.iterator(); it.hasNext(); )
+        {
+            it.advance();
+            newUserAverages.adjustOrPutValue(it.key(), it.value(), it.value());
+        }
+        final TLongLongMap allCounts = newAttrCounts.get(ALL_ATT_USER);
+        for (TLongLongIterator it = shard.allCounts.iterator(); it.hasNext(); )
+        {
+            it.advance();
+            allCounts.adjustOrPutValue(it.key(), it.value(), it.value());
+        }
+        final TLongFloatMap allAverages = newAttrAverages.get(ALL_ATT_USER);
+        for (TLongFloatIterator it = shard.allAverages.iterator(); it.hasNext(); )
+        {
+            it.advance();
+            allAverages.adjustOrPutValue(it.key(), it.value(), it.value());
+        }
+        newGlobalAverage[0] += shard.globalAverage;
+        newGlobalCount[0] += shard.globalCount;
+    }
+
+    /**
+     * New maps of a shard of consumers in an incremental update, and the changes of the sums and counts.
+     */
+    private static final class ShardUpdate {
+        final TIntObjectMap<TLongFloatMap> averages = new TIntObjectHashMap<TLongFloatMap>();
+        final TIntObjectMap<TLongLongMap> counts = new TIntObjectHashMap<TLongLongMap>();
+        final TIntObjectMap<TLongLongMap> dates = new TIntObjectHashMap<TLongLongMap>();
+        final TIntFloatMap userAverages = new TIntFloatHashMap();
+        final TIntLongMap userCounts = new TIntLongHashMap();
+        final TLongFloatMap allAverages = new TLongFloatHashMap();
+        final TLongLongMap allCounts = new TLongLongHashMap();
+        float globalAverage = 0;
+        long globalCount = 0;
     }
 	
     TLongList getAttrValues(final int productIndex)
@@ -504,6 +586,70 @@ public class UnivariateLinearContentPredictor extends Predictor {
         logger.info("Update model from file of UnivariateLinearContentPredictor ended.");
         return new UpdateAll(TnewAttrAverages, TnewAttrCounts, TnewUserAverages, TnewUserCounts, TnewGlobalAverage, TnewGlobalCount, TnewAttrDates);
 	}
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		writeTo(out, attrAverages, attrCounts, attrDates, userAverages, userCounts, globalAverage, globalCount);
+	}
+
+	private static void writeTo(SnapshotOutput out, TIntObjectMap<TLongFloatMap> attrAverages, TIntObjectMap<TLongLongMap> attrCounts, TIntObjectMap<TLongLongMap> attrDates,
+			TIntFloatMap userAverages, TIntLongMap userCounts, float globalAverage, long globalCount) throws IOException {
+		out.writeIntObjectMap(attrAverages, SnapshotOutput.LONG_FLOAT_MAP);
+		out.writeIntObjectMap(attrCounts, SnapshotOutput.LONG_LONG_MAP);
+		out.writeIntObjectMap(attrDates, SnapshotOutput.LONG_LONG_MAP);
+		out.writeIntFloatMap(userAverages);
+		out.writeIntLongMap(userCounts);
+		out.writeFloat(globalAverage);
+		out.writeLong(globalCount);
+	}
+
+	/**
+	 * A commit swaps in the new maps of the changed consumers, so only the maps of consumers are
+	 * copied; the sums of ratings and the counts per consumer are changed in place.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+		final TIntObjectMap<TLongFloatMap> capturedAverages = attrAverages == null ? null : new TIntObjectHashMap<TLongFloatMap>(attrAverages);
+		final TIntObjectMap<TLongLongMap> capturedCounts = attrCounts == null ? null : new TIntObjectHashMap<TLongLongMap>(attrCounts);
+		final TIntObjectMap<TLongLongMap> capturedDates = attrDates == null ? null : new TIntObjectHashMap<TLongLongMap>(attrDates);
+		final TIntFloatMap capturedUserAverages = userAverages == null ? null : new TIntFloatHashMap(userAverages);
+		final TIntLongMap capturedUserCounts = userCounts == null ? null : new TIntLongHashMap(userCounts);
+		final float capturedGlobalAverage = globalAverage;
+		final long capturedGlobalCount = globalCount;
+		SnapshotSet.addSection(set, name, tasks, new SnapshotSet.SectionWriter() {
+			@Override
+			public void write(final SnapshotOutput out) throws IOException {
+				writeTo(out, capturedAverages, capturedCounts, capturedDates, capturedUserAverages, capturedUserCounts, capturedGlobalAverage, capturedGlobalCount);
+			}
+		});
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        logger.info("Loading snapshot of UnivariateLinearContentPredictor started.");
+        if (this.data == null) // initialization of attributes is needed
+        {
+            this.data = data;
+            attrAverages = new TIntObjectHashMap<TLongFloatMap> ();
+            userAverages = new TIntFloatHashMap ();
+            attrCounts = new TIntObjectHashMap<TLongLongMap> (); 
+            userCounts = new TIntLongHashMap ();
+            
+            newAttrAverages = new TIntObjectHashMap<TLongFloatMap> ();
+            newAttrCounts = new TIntObjectHashMap<TLongLongMap> ();
+            newUserAverages = new TIntFloatHashMap ();
+            newUserCounts = new TIntLongHashMap ();            
+        }
+        TIntObjectMap<TLongFloatMap> TnewAttrAverages = in.readIntObjectMap(SnapshotInput.LONG_FLOAT_MAP);
+        TIntObjectMap<TLongLongMap> TnewAttrCounts = in.readIntObjectMap(SnapshotInput.LONG_LONG_MAP);
+        TIntObjectMap<TLongLongMap> TnewAttrDates = in.readIntObjectMap(SnapshotInput.LONG_LONG_MAP);
+        TIntFloatMap TnewUserAverages = in.readIntFloatMap();
+        TIntLongMap TnewUserCounts = in.readIntLongMap();
+        float TnewGlobalAverage = in.readFloat();
+        long TnewGlobalCount = in.readLong();
+        logger.info("Loading snapshot of UnivariateLinearContentPredictor ended.");
+        return new UpdateAll(TnewAttrAverages, TnewAttrCounts, TnewUserAverages, TnewUserCounts, TnewGlobalAverage, TnewGlobalCount, TnewAttrDates);
+	}
 	
     @Override
     public void updateModel(final DataStore dataStore) {
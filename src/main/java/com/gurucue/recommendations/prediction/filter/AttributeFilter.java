@@ -25,7 +25,6 @@ import gnu.trove.map.TIntLongMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntLongHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
@@ -44,9 +43,12 @@ import com.gurucue.recommendations.recommender.Commitable;
 import com.gurucue.recommendations.recommender.ProductPair;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDLookup;
 import com.gurucue.recommendations.recommender.dto.ConsumerMetaEventsData;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 /**
  * This recommender stores all attributes of bought products in a set. During recommendation it filters out
@@ -179,8 +181,8 @@ public class AttributeFilter extends Predictor {
         {
         	final String event = EVENTSNAMES[event_counter]; 
 	        final int eventIndex = data.getEventsDescriptor(event).index;
-	        final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
-	        final long maximalAllowedDate = data.getEventsDescriptor(event).last_read_date;
+	        final ConsumerIDLookup tmp_ids = updateData.newConsumerIDs;
+	        final long maximalAllowedDate = updateData.getEventsDescriptor(event).last_read_date;
 	
 	        for (ConsumerData c: new_consumers)
 	        {
@@ -352,6 +354,26 @@ public class AttributeFilter extends Predictor {
         logger.info("Update model from file of AttributesFilter ended.");
         return new UpdateDelta(newAttributeData, newAttributeDates, c);
 	}
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		out.writeObjectBlock(attributeData);
+		out.writeObjectBlock(attributeDates);
+		PREDICTOR.writeTo(out);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        if (this.data == null) // initialization is needed
+        {
+            this.data = data;
+        }
+		final TIntObjectMap<TIntSet> newAttributeData = (TIntObjectMap<TIntSet>) in.readObjectBlock();
+		final TIntObjectMap<TIntLongMap> newAttributeDates = (TIntObjectMap<TIntLongMap>) in.readObjectBlock();
+        final Commitable c = PREDICTOR.readFrom(in, data);
+        return new UpdateDelta(newAttributeData, newAttributeDates, c);
+	}
     
 
     private class UpdateDelta implements Commitable {
@@ -24,6 +24,7 @@ import com.gurucue.recommendations.recommender.EmptyCommit;
 import com.gurucue.recommendations.recommender.ProductPair;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDLookup;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.iterator.TLongIterator;
@@ -158,7 +159,7 @@ public class FilterByAttributeFrequencyPredictor extends Predictor {
         return values;
     }
 
-    private void updateMap(TLongIntMap counts, final List<ConsumerData> consumers, final TLongIntMap consumerIDs, final int eventIndex)
+    private void updateMap(TLongIntMap counts, final List<ConsumerData> consumers, final ConsumerIDLookup consumerIDs, final int eventIndex)
     {
     	for (ConsumerData c : consumers)
     	{
@@ -206,7 +207,7 @@ public class FilterByAttributeFrequencyPredictor extends Predictor {
         if (!runningForTheFirstTime)
         {
             final List<ConsumerData> tmp_consumers = updateData.newData;
-            final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
+            final ConsumerIDLookup tmp_ids = updateData.newConsumerIDs;
             updateMap(newCounts, tmp_consumers, tmp_ids, eventIndex);
         }
         
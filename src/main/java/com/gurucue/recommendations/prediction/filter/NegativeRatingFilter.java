@@ -25,6 +25,7 @@ import com.gurucue.recommendations.recommender.ProductPair;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.Attr;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDLookup;
 import com.gurucue.recommendations.recommender.dto.ConsumerRatingsData;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import gnu.trove.iterator.TIntIterator;
@@ -32,7 +33,6 @@ import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
@@ -126,7 +126,7 @@ public class NegativeRatingFilter extends Predictor {
         }
         TIntObjectMap<TIntSet> newNegativeAttributes = new TIntObjectHashMap<TIntSet>();
         final List<ConsumerData> new_consumers = updateData.newData;
-        final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
+        final ConsumerIDLookup tmp_ids = updateData.newConsumerIDs;
         final int eventIndex = data.getEventsDescriptor(RATINGSNAME).index;
         
         for (ConsumerData c: new_consumers)
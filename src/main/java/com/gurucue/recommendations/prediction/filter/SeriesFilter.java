@@ -22,6 +22,7 @@ import com.gurucue.recommendations.recommender.Commitable;
 import com.gurucue.recommendations.recommender.ProductPair;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDLookup;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import com.gurucue.recommendations.recommender.dto.TagsManager;
 import gnu.trove.iterator.TIntObjectIterator;
@@ -29,7 +30,6 @@ import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.TIntSet;
 
@@ -318,7 +318,7 @@ public class SeriesFilter extends Predictor {
         
         TIntObjectMap<TLongObjectMap<LastSeriesInfo>> newSeriesData = new TIntObjectHashMap<TLongObjectMap<LastSeriesInfo>> ();
         final List<ConsumerData> tmp_consumers = updateData.newData;
-        final TLongIntHashMap tmp_ids = updateData.newConsumerIDs;
+        final ConsumerIDLookup tmp_ids = updateData.newConsumerIDs;
         
         for (ConsumerData c: tmp_consumers)
         {
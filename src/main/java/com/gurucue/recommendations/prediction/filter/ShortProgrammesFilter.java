@@ -37,6 +37,8 @@ import org.apache.logging.log4j.Logger;
 import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 /**
  * A recommender that selects only relevant series (only one episode).
@@ -132,6 +134,16 @@ public class ShortProgrammesFilter extends Predictor {
         Commitable c = PREDICTOR.updateModelFromFile(in, data);
         return new UpdateCommit(c);        
 	}    
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		PREDICTOR.writeTo(out);
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        return new UpdateCommit(PREDICTOR.readFrom(in, data));
+	}
     
     @Override
     public void getSimilarProducts(TIntSet productIndices,
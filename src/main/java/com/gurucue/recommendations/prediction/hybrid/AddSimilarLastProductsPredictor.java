@@ -36,6 +36,8 @@ import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateProductsDelta;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 
 /**
@@ -154,4 +156,16 @@ public class AddSimilarLastProductsPredictor extends Predictor {
     		this.data = data;
         return predictor.updateModelFromFile(in, data);
 	}
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		predictor.writeTo(out);
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+    	if (this.data == null)
+    		this.data = data;
+        return predictor.readFrom(in, data);
+	}
 }
@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -39,6 +40,9 @@ import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.DataStore;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateIncrementalData;
 import com.gurucue.recommendations.recommender.dto.DataStore.UpdateProductsDelta;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 
 /**
@@ -174,6 +178,47 @@ public class StickTogetherHybridPredictor extends Predictor implements Cloneable
             commits.add(p.updateModelFromFile(in, data));
         return new UpdateAll(commits);
 	}        
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+        for (Predictor p: predictors)
+            p.writeTo(out);
+	}
+
+	@Override
+	public Commitable readFrom(SnapshotInput in, DataStore data) throws IOException {
+        ArrayList<Commitable> commits = new ArrayList<Commitable>();
+        for (Predictor p: predictors)
+            commits.add(p.readFrom(in, data));
+        return new UpdateAll(commits);
+	}
+
+	/**
+	 * Each of the predictors is written into its own section, so they are written and read in parallel.
+	 */
+	@Override
+	public void writeSections(final SnapshotSet.Writer set, final String name, final List<SnapshotSet.Task> tasks) throws IOException {
+        for (int i = 0; i < predictors.size(); i++)
+            predictors.get(i).writeSections(set, name + "." + i, tasks);
+	}
+
+	@Override
+	public Commitable readSections(final SnapshotSet.Reader set, final String name, final DataStore data) throws IOException {
+        final Commitable [] commits = new Commitable[predictors.size()];
+        final List<SnapshotSet.Task> tasks = new ArrayList<SnapshotSet.Task>(commits.length);
+        for (int i = 0; i < commits.length; i++)
+        {
+            final int index = i;
+            tasks.add(new SnapshotSet.Task() {
+                @Override
+                public void run() throws IOException {
+                    commits[index] = predictors.get(index).readSections(set, name + "." + index, data);
+                }
+            });
+        }
+        SnapshotSet.invokeAll(tasks);
+        return new UpdateAll(new ArrayList<Commitable>(Arrays.asList(commits)));
+	}
     
     
     private class UpdateAll implements Commitable {
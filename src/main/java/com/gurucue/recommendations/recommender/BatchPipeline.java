@@ -0,0 +1,169 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerEventsData;
+import com.gurucue.recommendations.recommender.dto.DataStore;
+
+/**
+ * Reads batches of events in a separate thread, ahead of the thread that applies
+ * them to the model. At most <code>capacity</code> batches are read ahead; when
+ * the queue is full the reading thread waits, which bounds the memory used.
+ * <p>
+ * Batches are read with {@link DataStore#readNextBatch(DataStore.UpdateIncrementalData)},
+ * so that each batch continues the previous (not yet committed) one, and must be
+ * taken and committed in the order they are returned by {@link #take()}.
+ */
+final class BatchPipeline implements Runnable {
+    private static final Logger logger = LogManager.getLogger(BatchPipeline.class);
+    private static final Object END = new Object();
+
+    /**
+     * Queued instead of a batch when reading failed; {@link #take()} rethrows it.
+     */
+    private static final class Failure {
+        final Throwable cause;
+
+        Failure(final Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private final DataStore data;
+    private final String logPrefix;
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+
+    // reading stage statistics, written by the reading thread
+    private volatile long readingMillis = 0;
+    private volatile long readWaitMillis = 0;
+    private volatile long readEvents = 0;
+    private volatile int readBatches = 0;
+
+    BatchPipeline(final DataStore data, final int capacity, final String logPrefix) {
+        this.data = data;
+        this.logPrefix = logPrefix;
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+        thread = new Thread(this, logPrefix + "Batch Reader");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the reading thread, if it is still running.
+     */
+    void stop() {
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            DataStore.UpdateIncrementalData previous = null;
+            do {
+                long start = System.currentTimeMillis();
+                final DataStore.UpdateIncrementalData batch = data.readNextBatch(previous);
+                readingMillis += System.currentTimeMillis() - start;
+                readEvents += countEvents(batch.newData);
+                readBatches++;
+                start = System.currentTimeMillis();
+                queue.put(batch);
+                readWaitMillis += System.currentTimeMillis() - start;
+                previous = batch;
+            } while (!data.finishedReading());
+            queue.put(END);
+        } catch (InterruptedException e) {
+            logger.info(logPrefix + "Reading of batches interrupted");
+        } catch (Throwable e) {
+            // also errors (e.g. out of memory), or the updating thread would wait forever
+            logger.error(logPrefix + "Reading of a batch failed: " + e.toString(), e);
+            queue.clear(); // make room for the failure, the batches will not be used anyway
+            queue.offer(new Failure(e));
+        }
+    }
+
+    /**
+     * Returns the next batch, or null when all batches were read.
+     */
+    DataStore.UpdateIncrementalData take() throws InterruptedException {
+        final Object o = queue.take();
+        if (o == END) {
+            queue.put(END); // so that further calls also return null
+            return null;
+        }
+        if (o instanceof Failure) {
+            final Throwable cause = ((Failure) o).cause;
+            queue.put(o); // so that further calls also fail
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException("Reading of a batch failed: " + cause.toString(), cause);
+        }
+        return (DataStore.UpdateIncrementalData) o;
+    }
+
+    long getReadingMillis() {
+        return readingMillis;
+    }
+
+    /**
+     * Time the reading thread spent waiting for the queue to have room.
+     */
+    long getReadWaitMillis() {
+        return readWaitMillis;
+    }
+
+    long getReadEvents() {
+        return readEvents;
+    }
+
+    int getReadBatches() {
+        return readBatches;
+    }
+
+    static long countEvents(final List<ConsumerData> consumers) {
+        long n = 0;
+        for (final ConsumerData c : consumers) {
+            if (c == null) continue;
+            for (final ConsumerEventsData e : c.events)
+                if (e != null)
+                    n += e.getN();
+        }
+        return n;
+    }
+
+    /**
+     * Formats a throughput as events per second.
+     */
+    static String rate(final long events, final long millis) {
+        if (millis <= 0)
+            return events + " events";
+        return events + " events, " + (events * 1000L / millis) + " events/s";
+    }
+}
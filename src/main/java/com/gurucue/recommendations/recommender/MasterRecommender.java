@@ -30,7 +30,9 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.logging.log4j.LogManager;
@@ -43,9 +45,15 @@ import com.gurucue.recommendations.prediction.ProductRating;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
 import com.gurucue.recommendations.recommender.dto.ConsumerEventsData;
 import com.gurucue.recommendations.recommender.dto.DataStore;
+import com.gurucue.recommendations.recommender.dto.IngestedEvents;
 import com.gurucue.recommendations.recommender.dto.ProductData;
 import com.gurucue.recommendations.recommender.dto.TagsManager;
 import com.gurucue.recommendations.recommender.reader.Reader;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotJournal;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotReader;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
 
 /**
  * Main recommender class.
@@ -79,6 +87,26 @@ public class MasterRecommender implements Recommender {
     // and internal class taking care of updating the predictor and the data
     private final RecommenderUpdater updater;
 
+    // events pushed to the recommender, waiting for a micro-commit
+    private final IngestedEvents ingestedEvents;
+
+    // epoch of the last saved or loaded model snapshot; every save writes a newer one
+    private volatile long modelEpoch = 0L;
+
+    // the last saved or loaded snapshot set, on top of which checkpoints are written
+    private volatile SnapshotSet.Reader lastSnapshot = null;
+    // versions of the predictor and the decision module, incremented with every change under the write lock,
+    // and their versions in lastSnapshot
+    private long predictorVersion = 0L;
+    private long decisionVersion = 0L;
+    private long savedPredictorVersion = -1L;
+    private long savedDecisionVersion = -1L;
+    // whether a snapshot is being written in the background
+    private final AtomicBoolean saving = new AtomicBoolean(false);
+    // write-ahead journal of the batches committed after the last snapshot, if SNAPSHOT_JOURNAL is set;
+    // used only on the updater thread
+    private SnapshotJournal journal = null;
+
     /**
      * Main constructor for the MasterRecommender class.
      * @param r Reader with access to database.
@@ -111,6 +139,9 @@ public class MasterRecommender implements Recommender {
 
         NOT_RECOMMEND_EVENTS = settings.getAsStringArray("NOT_RECOMMEND_EVENTS");
 
+        final Integer ingestCapacity = settings.getSettingAsInt("INGEST_BUFFER_SIZE");
+        ingestedEvents = new IngestedEvents(ingestCapacity == null ? 100000 : ingestCapacity);
+
         this.updater = new RecommenderUpdater(this, this.logPrefix);
         this.updater.start();
     }
@@ -124,6 +155,8 @@ public class MasterRecommender implements Recommender {
         catch (Throwable e) {
             logger.error(logPrefix + "Exception while stopping the updater thread: " + e.toString(), e);
         }
+        if (journal != null)
+            journal.close();
         try {
             // stop the lock manager
             modelLock.stop();
@@ -149,11 +182,12 @@ public class MasterRecommender implements Recommender {
                 throw new RecommenderNotReadyException();
             ArrayList<ProductRating> pr = new ArrayList<ProductRating> ();
             
-            if (data.getConsumerIndex(consumerId) < 0 || data.getProductIndex(product.productID) < 0)
+            final int productIndex = data.getCatalogProductIndex(product.productID);
+            if (data.getConsumerIndex(consumerId) < 0 || productIndex < 0)
                 return null; 
 
-            pr.add(new ProductRating(data.getProductById(product.productID), 
-                    data.getProductIndex(product.productID), 
+            pr.add(new ProductRating(data.getProductByIndex(productIndex), 
+                    productIndex, 
                     data.getConsumerById(consumerId),
                     data.getConsumerIndex(consumerId),
                     product.productTag));
@@ -208,7 +242,7 @@ public class MasterRecommender implements Recommender {
             outer:
             for (RecommendProduct rp : products)
             {
-                final int productIndex = data.getProductIndex(rp.productID);
+                final int productIndex = data.getCatalogProductIndex(rp.productID);
                 if (productIndex < 0)
                     continue;
 
@@ -277,7 +311,7 @@ public class MasterRecommender implements Recommender {
             TIntList prIndices = new TIntArrayList ();
             for (int i=0; i<seedProducts.length; i++)
             {
-                final int indx = data.getProductIndex(seedProducts[i]);
+                final int indx = data.getCatalogProductIndex(seedProducts[i]);
                 if (indx < 0)
                     continue;
                 prIndices.add(indx);
@@ -286,7 +320,7 @@ public class MasterRecommender implements Recommender {
 
             for (RecommendProduct rp : candidateProducts)
             {
-                final int idx = data.getProductIndex(rp.productID);
+                final int idx = data.getCatalogProductIndex(rp.productID);
                 if (idx < 0 || prSet.contains(idx))
                     continue;
 
@@ -338,6 +372,21 @@ public class MasterRecommender implements Recommender {
     }
     
 
+    @Override
+    public int ingestEvents(final String eventType, final long [] eventIds, final long [] consumerIds, final long [] productIds, final long [] timestamps, final Object [][] meta) throws InterruptedException {
+        if ((eventType == null) || (eventIds == null) || (consumerIds == null) || (productIds == null) || (timestamps == null))
+            throw new IllegalArgumentException("Ingested events need an event type, event IDs, consumer IDs, product IDs and timestamps");
+        final int n = eventIds.length;
+        if ((consumerIds.length != n) || (productIds.length != n) || (timestamps.length != n) || ((meta != null) && (meta.length != n)))
+            throw new IllegalArgumentException("Ingested event columns differ in length: " + n + " event IDs, " + consumerIds.length + " consumer IDs, " + productIds.length + " product IDs, " + timestamps.length + " timestamps" + (meta == null ? "" : ", " + meta.length + " meta values"));
+        final int accepted = ingestedEvents.add(eventType, eventIds, consumerIds, productIds, timestamps, meta);
+        if (accepted < n)
+            logger.warn(logPrefix + "Ingestion buffer is full, " + (n - accepted) + " events of type " + eventType + " will only be read from the database");
+        if (accepted > 0)
+            updater.update(new IngestUpdate(this)); // coalesced with a micro-commit that is already waiting
+        return accepted;
+    }
+
     private void scheduleJob(RecommenderUpdaterJob job, final boolean async) {
         try {
             job = updater.update(job);
@@ -465,8 +514,14 @@ public class MasterRecommender implements Recommender {
                 this.data = data;
 //                decision.setData(data);
             }
-            if (null != predictor) this.predictor = predictor;
-            if (null != decision) this.decision = decision;
+            if (null != predictor) {
+                this.predictor = predictor;
+                predictorVersion++;
+            }
+            if (null != decision) {
+                this.decision = decision;
+                decisionVersion++;
+            }
 //            recommenderInitialized.signalAll(); // tell anyone waiting that recommender is now in business
         }
         finally {
@@ -474,6 +529,136 @@ public class MasterRecommender implements Recommender {
         }
     }
 
+    /**
+     * Makes the snapshot set that the current model was loaded from the base of the next checkpoint.
+     * If a snapshot is being written meanwhile, it replaces the loaded one, so the next save is a full one.
+     */
+    void snapshotLoaded(final SnapshotSet.Reader set) throws InterruptedException
+    {
+        modelWriteLock.lockInterruptibly();
+        try {
+            if (saving.get()) {
+                lastSnapshot = null;
+                return;
+            }
+            lastSnapshot = set;
+            savedPredictorVersion = predictorVersion;
+            savedDecisionVersion = decisionVersion;
+        }
+        finally {
+            modelWriteLock.unlock();
+        }
+    }
+
+    private boolean isJournalEnabled() {
+        final Boolean enabled = reader.getSettings().getSettingAsBoolean("SNAPSHOT_JOURNAL");
+        if ((enabled != null) && enabled)
+            return true;
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        return false;
+    }
+
+    /**
+     * Appends a batch of the live model to the journal, before it is committed. A batch that
+     * cannot be journaled is still committed, but the journal stops until the next snapshot,
+     * so after a crash the batches from there on are read from the database again.
+     */
+    void journal(final DataStore.UpdateIncrementalData batch) {
+        if ((journal == null) || !journal.isOpen())
+            return;
+        try {
+            journal.append(new SnapshotSet.SectionWriter() {
+                @Override
+                public void write(final SnapshotOutput out) throws IOException {
+                    batch.dataStore.writeJournalRecord(out, batch);
+                }
+            });
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error(logPrefix + "Failed to append a batch to the journal, it is stopped until the next snapshot: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Starts a new segment of the journal of the snapshot file, for the batches committed after
+     * the snapshot of the epoch, which is being captured. Returns the sequence number of the
+     * segment, or -1 if there is no journal.
+     */
+    long rollJournal(final File file, final long epoch) {
+        if (!isJournalEnabled())
+            return -1L;
+        if ((journal == null) || !journal.getManifest().equals(file.getAbsoluteFile())) {
+            if (journal != null)
+                journal.close();
+            journal = new SnapshotJournal(file);
+        }
+        try {
+            return journal.roll(epoch);
+        }
+        catch (IOException e) {
+            logger.error(logPrefix + "Failed to start a new segment of the journal of " + file.getPath() + ": " + e.toString(), e);
+            return -1L;
+        }
+    }
+
+    /**
+     * Replays the journal of the snapshot set that the model was just loaded from, so that the
+     * batches committed after the snapshot are not read from the database again, and starts a
+     * new segment of the journal. Batches that the snapshot already contains are skipped; the
+     * replay stops at a batch that refers to a product that is not in the catalog anymore, the
+     * batches from there on are read from the database.
+     */
+    void recoverFromJournal(final File file, final long epoch) throws InterruptedException {
+        if (!isJournalEnabled())
+            return;
+        final SnapshotJournal recovered = new SnapshotJournal(file);
+        if (recovered.hasSegments()) {
+            // the journal refers to products by their IDs, the products added after the snapshot must be in the catalog
+            new ProductsUpdate(this).work();
+            final DataStore current = getData();
+            final int [] counts = new int[2]; // applied, skipped
+            final long start = System.currentTimeMillis();
+            try {
+                recovered.replay(epoch, new SnapshotJournal.RecordReader() {
+                    @Override
+                    public boolean read(final SnapshotInput in) throws IOException, InterruptedException {
+                        final DataStore.UpdateIncrementalData dataDelta = current.readJournalRecord(in);
+                        if (dataDelta == null) {
+                            counts[1]++;
+                            return true;
+                        }
+                        try {
+                            final Commitable predictorDelta = predictor.updateModelIncremental(dataDelta);
+                            final Commitable decisionDelta = decision.updateModelIncremental(dataDelta);
+                            commitDeltas(dataDelta, predictorDelta, decisionDelta);
+                        }
+                        finally {
+                            dataDelta.discard(); // if it was not committed
+                        }
+                        counts[0]++;
+                        return true;
+                    }
+                });
+            }
+            catch (IOException | RuntimeException e) {
+                logger.warn(logPrefix + "Replay of the journal of " + file.getPath() + " stopped, the remaining batches will be read from the database: " + e.toString(), e);
+            }
+            logger.info(logPrefix + "Replayed " + counts[0] + " batches of the journal in " + (System.currentTimeMillis() - start) + " ms, skipped " + counts[1] + " batches that do not continue the snapshot");
+        }
+        if (journal != null)
+            journal.close();
+        journal = recovered;
+        try {
+            recovered.roll(epoch);
+        }
+        catch (IOException e) {
+            logger.error(logPrefix + "Failed to start a new segment of the journal of " + file.getPath() + ": " + e.toString(), e);
+        }
+    }
+
     Predictor getPredictor() {
         return predictor;
     }
@@ -520,12 +705,14 @@ public class MasterRecommender implements Recommender {
             {
             	final long start = System.currentTimeMillis();
                 predictorDelta.commit();
+                predictorVersion++;
                 logger.info(logPrefix + "Predictor commit took " + ((System.currentTimeMillis() - start) / 1000) + " seconds");
             }
             if (decisionDelta != null)
             {
             	final long start = System.currentTimeMillis();
                 decisionDelta.commit();
+                decisionVersion++;
                 logger.info(logPrefix + "Decision commit took " + ((System.currentTimeMillis() - start) / 1000) + " seconds");
             }
         }
@@ -546,10 +733,14 @@ public class MasterRecommender implements Recommender {
 
             if (productsDelta != null)
                 productsDelta.commit();
-            if (predictorDelta != null)
+            if (predictorDelta != null) {
                 predictorDelta.commit();
-            if (decisionDelta != null)
+                predictorVersion++;
+            }
+            if (decisionDelta != null) {
                 decisionDelta.commit();
+                decisionVersion++;
+            }
         }
         finally {
             modelWriteLock.unlock();
@@ -580,53 +771,51 @@ public class MasterRecommender implements Recommender {
             }            
             
 
-            // time reading data from the database updating model 
-            startTime = System.currentTimeMillis();
             // reader and settings are declared as final, therefore no locking necessary
+            startTime = System.currentTimeMillis();
             final DataStore data = new DataStore(recommender.reader); // DataStore constructor does not read events.
-            DataStore.UpdateIncrementalData dataDelta = data.readNextBatch();
             reading += System.currentTimeMillis() - startTime;
-            
-            // update model
-            startTime = System.currentTimeMillis();
-            logger.info(logPrefix + "Before update models");
-            Commitable predictorDelta = newPredictor.updateModelIncremental(dataDelta);
-            Commitable decisionDelta = newDecision.updateModelIncremental(dataDelta);
-            updating += System.currentTimeMillis() - startTime;
-            logger.info(logPrefix + "Update took " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
-            
-            startTime = System.currentTimeMillis();
-            recommender.commitDeltas(dataDelta, predictorDelta, decisionDelta);
-            updating += System.currentTimeMillis() - startTime;
-            logger.info(logPrefix + "Commit took " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
-            dataDelta = null;
-            predictorDelta = null;
-            decisionDelta = null;
-            
-            final Runtime runtime = Runtime.getRuntime();
-            
-            while (!data.finishedReading())
-            {
-                // read additional batch of data
-                startTime = System.currentTimeMillis();
-                dataDelta = data.readNextBatch();
-                reading += System.currentTimeMillis() - startTime;
-                // make an incremental update
-                startTime = System.currentTimeMillis();
-                predictorDelta = newPredictor.updateModelIncremental(dataDelta);
-                decisionDelta = newDecision.updateModelIncremental(dataDelta);
-                updating += System.currentTimeMillis() - startTime;
-                logger.info(logPrefix + "Update took " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
 
-                startTime = System.currentTimeMillis();
-                recommender.commitDeltas(dataDelta, predictorDelta, decisionDelta);
-                logger.info(logPrefix + "Commit took " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
-                updating += System.currentTimeMillis() - startTime;
-                logger.debug(logPrefix + "Current free memory: " + runtime.freeMemory() + " bytes");
+            // batch N+1 is read and decoded in a separate thread while batch N is applied;
+            // batches are applied and committed in the order they were read
+            final Integer readAhead = recommender.reader.getSettings().getSettingAsInt("FULL_UPDATE_READ_AHEAD");
+            final BatchPipeline pipeline = new BatchPipeline(data, readAhead == null ? 1 : readAhead, logPrefix);
+            final Runtime runtime = Runtime.getRuntime();
+            long waiting = 0, events = 0;
+            int batches = 0;
+            pipeline.start();
+            try {
+                for (;;)
+                {
+                    startTime = System.currentTimeMillis();
+                    DataStore.UpdateIncrementalData dataDelta = pipeline.take();
+                    waiting += System.currentTimeMillis() - startTime;
+                    if (dataDelta == null)
+                        break;
+
+                    // make an incremental update
+                    startTime = System.currentTimeMillis();
+                    Commitable predictorDelta = newPredictor.updateModelIncremental(dataDelta);
+                    Commitable decisionDelta = newDecision.updateModelIncremental(dataDelta);
+                    updating += System.currentTimeMillis() - startTime;
+                    logger.info(logPrefix + "Update took " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
+
+                    startTime = System.currentTimeMillis();
+                    recommender.commitDeltas(dataDelta, predictorDelta, decisionDelta);
+                    logger.info(logPrefix + "Commit took " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
+                    updating += System.currentTimeMillis() - startTime;
+                    events += BatchPipeline.countEvents(dataDelta.newData);
+                    batches++;
+                    logger.debug(logPrefix + "Current free memory: " + runtime.freeMemory() + " bytes");
+                }
+            }
+            finally {
+                pipeline.stop();
             }
+            reading += pipeline.getReadingMillis();
 
-            logger.info(logPrefix + "Reading of data took " + ((reading) / 1000) + " seconds");
-            logger.info(logPrefix + "Model computation took " + ((updating) / 1000) + " seconds, changing to the new model");
+            logger.info(logPrefix + "Reading of data took " + ((reading) / 1000) + " seconds (" + pipeline.getReadBatches() + " batches, " + BatchPipeline.rate(pipeline.getReadEvents(), pipeline.getReadingMillis()) + "), reading waited for the model update " + (pipeline.getReadWaitMillis() / 1000) + " seconds");
+            logger.info(logPrefix + "Model computation took " + ((updating) / 1000) + " seconds (" + batches + " batches, " + BatchPipeline.rate(events, updating) + "), waited for data " + (waiting / 1000) + " seconds, changing to the new model");
 
             recommender.changeModel(data, newPredictor, newDecision);
 
@@ -684,14 +873,20 @@ public class MasterRecommender implements Recommender {
             DataStore.UpdateIncrementalData dataDelta = data.readNextBatch();
             reading += System.currentTimeMillis() - startTime;
             
-            // update model
-            startTime = System.currentTimeMillis();
-            Commitable predictorDelta = recommender.predictor.updateModelIncremental(dataDelta);
-            Commitable decisionDelta = recommender.decision.updateModelIncremental(dataDelta);
-            updating = System.currentTimeMillis() - startTime;
-            startTime = System.currentTimeMillis();
-            recommender.commitDeltas(dataDelta, predictorDelta, decisionDelta);
-            commiting = System.currentTimeMillis() - startTime;
+            try {
+                // update model
+                startTime = System.currentTimeMillis();
+                Commitable predictorDelta = recommender.predictor.updateModelIncremental(dataDelta);
+                Commitable decisionDelta = recommender.decision.updateModelIncremental(dataDelta);
+                updating = System.currentTimeMillis() - startTime;
+                startTime = System.currentTimeMillis();
+                recommender.journal(dataDelta);
+                recommender.commitDeltas(dataDelta, predictorDelta, decisionDelta);
+                commiting = System.currentTimeMillis() - startTime;
+            }
+            finally {
+                dataDelta.discard(); // if it was not committed
+            }
 
             logger.info(logPrefix + "Reading of data took " + (reading / 1000L) + " seconds, model incremental update took " + (updating / 1000L) + " seconds, commiting new data took " + (commiting / 1000L) + " seconds");
         }
@@ -718,6 +913,56 @@ public class MasterRecommender implements Recommender {
         }
     }
 
+    /**
+     * Micro-commit: applies the events pushed to the recommender since the last micro-commit.
+     * It runs in the updater thread like the other updates, so it never overlaps with reading
+     * from the database.
+     */
+    static class IngestUpdate extends RecommenderUpdaterJob {
+        private static final Logger logger = LogManager.getLogger(IngestUpdate.class);
+        private final MasterRecommender recommender;
+
+        IngestUpdate(final MasterRecommender recommender) {
+            this.recommender = recommender;
+        }
+
+        @Override
+        void work() throws InterruptedException {
+            final String logPrefix = recommender.logPrefix;
+            final IngestedEvents events = recommender.ingestedEvents.drain();
+            if (events.size() == 0)
+                return;
+            final DataStore data = recommender.getData();
+            if (data == null) {
+                logger.warn(logPrefix + "data is null; dropping " + events.size() + " pushed events, they will be read from the database");
+                return;
+            }
+            final long startTime = System.currentTimeMillis();
+            final DataStore.UpdateIncrementalData dataDelta = data.createIngestedBatch(events);
+            try {
+                final Commitable predictorDelta = recommender.predictor.updateModelIncremental(dataDelta);
+                final Commitable decisionDelta = recommender.decision.updateModelIncremental(dataDelta);
+                recommender.journal(dataDelta);
+                recommender.commitDeltas(dataDelta, predictorDelta, decisionDelta);
+            }
+            finally {
+                dataDelta.discard(); // if it was not committed
+            }
+            logger.debug(logPrefix + "Applied " + events.size() + " pushed events in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            // a micro-commit takes all buffered events, so one waiting micro-commit is enough
+            return (null != obj) && (obj instanceof IngestUpdate);
+        }
+
+        @Override
+        public int hashCode() {
+            return 22;
+        }
+    }
+
     /**
      * Invokes ProductsUpdate.work() and IncrementalUpdate.work() until the DataStore.finishedReading()
      * returns true.
@@ -839,13 +1084,9 @@ public class MasterRecommender implements Recommender {
             Predictor newPredictor = null;
             DecisionModule newDecision = null;
             DataStore newData = null;
+            SnapshotSet.Reader loadedSnapshot = null;
             try
             {
-               FileInputStream fileIn = new FileInputStream(path);
-               ObjectInputStream in = new ObjectInputStream(fileIn);
-               
-               newData = DataStore.deserialize(recommender.reader, in);
-               
                try {
                    newPredictor = recommender.predictor.createEmptyClone();
                    newDecision = recommender.decision.createEmptyClone();
@@ -853,13 +1094,74 @@ public class MasterRecommender implements Recommender {
                    logger.error(logPrefix + "Failed to clone predictor and decision module: " + e.toString(), e);
                }
 
-               Commitable c1 = newPredictor.updateModelFromFile(in, newData);
-               Commitable c2 = newDecision.updateModelFromFile(in, newData);
-               c1.commit();
-               c2.commit();
+               if (SnapshotSet.isManifest(new File(path)))
+               {
+                   final SnapshotSet.Reader set = new SnapshotSet.Reader(new File(path));
+                   newData = DataStore.readSections(recommender.reader, set);
+                   // the predictor and the decision module read their sections concurrently
+                   final DataStore loadedData = newData;
+                   final Predictor loadedPredictor = newPredictor;
+                   final DecisionModule loadedDecision = newDecision;
+                   final Commitable [] commits = new Commitable[2];
+                   final List<SnapshotSet.Task> tasks = new ArrayList<SnapshotSet.Task>(2);
+                   tasks.add(new SnapshotSet.Task() {
+                       @Override
+                       public void run() throws IOException {
+                           commits[0] = loadedPredictor.readSections(set, "predictor", loadedData);
+                       }
+                   });
+                   tasks.add(new SnapshotSet.Task() {
+                       @Override
+                       public void run() throws IOException {
+                           commits[1] = loadedDecision.readSections(set, "decision", loadedData);
+                       }
+                   });
+                   SnapshotSet.invokeAll(tasks);
+                   commits[0].commit();
+                   commits[1].commit();
+                   recommender.modelEpoch = Math.max(recommender.modelEpoch, set.getEpoch());
+                   loadedSnapshot = set;
+               }
+               else if (SnapshotReader.isSnapshot(new File(path)))
+               {
+                   final SnapshotReader snapshot = new SnapshotReader(new File(path));
+                   try {
+                       final Commitable c1, c2;
+                       try {
+                           newData = DataStore.readFrom(recommender.reader, snapshot);
+                           c1 = newPredictor.readFrom(snapshot.beginSection("predictor"), newData);
+                           snapshot.endSection();
+                           c2 = newDecision.readFrom(snapshot.beginSection("decision"), newData);
+                           snapshot.endSection();
+                       }
+                       catch (RuntimeException e) {
+                           // the checksums matched, but the content does not decode
+                           throw new IOException("Corrupt snapshot " + path + ": " + e.toString(), e);
+                       }
+                       // commit only when all the sections were read
+                       c1.commit();
+                       c2.commit();
+                   }
+                   finally {
+                       snapshot.close();
+                   }
+               }
+               else
+               {
+                   // a model saved with Java serialization by an older version
+                   FileInputStream fileIn = new FileInputStream(path);
+                   ObjectInputStream in = new ObjectInputStream(fileIn);
+
+                   newData = DataStore.deserialize(recommender.reader, in);
+
+                   Commitable c1 = newPredictor.updateModelFromFile(in, newData);
+                   Commitable c2 = newDecision.updateModelFromFile(in, newData);
+                   c1.commit();
+                   c2.commit();
 
-               in.close();
-               fileIn.close();
+                   in.close();
+                   fileIn.close();
+               }
             }catch(IOException | ClassNotFoundException i)
             {
                 logger.error(logPrefix + "Failed to update predictor and decision module from file: " + i.toString(), i);
@@ -871,6 +1173,10 @@ public class MasterRecommender implements Recommender {
             }
 
             recommender.changeModel(newData, newPredictor, newDecision);
+            if (loadedSnapshot != null) {
+                recommender.snapshotLoaded(loadedSnapshot);
+                recommender.recoverFromJournal(new File(path), loadedSnapshot.getEpoch());
+            }
             final Runtime runtime = Runtime.getRuntime();
             logger.debug(logPrefix + "Load update finished, new model is active, current free memory: " + runtime.freeMemory() + " bytes");
         }
@@ -911,10 +1217,28 @@ public class MasterRecommender implements Recommender {
         @Override
         void work() throws InterruptedException {
             final File realFile = new File(path); // after the serialization has been successfully finished, only then the serialization file is renamed to the given filename
-            final File tmpFile = new File(path + ".tmp"); // we serialize to a temporary file, which can be removed if anything goes wrong, so the old correct serialization data remains
-            // saving requires a read lock; it does not change the recommender in anyway.
-            FileOutputStream fileOut = null;
-            ObjectOutputStream out = null;
+            // the sections are written to part files of a new epoch, and the manifest listing them is written
+            // to path.tmp, which is renamed when all parts are complete, so the old correct serialization data remains
+            // the read lock is only held while a point-in-time view of the model is captured; the view is written
+            // by a background thread, while updates are committed and recommendations are served
+            if (!recommender.saving.compareAndSet(false, true)) {
+                recommender.logger.info(logPrefix + "Skipping serialization to file " + path + ": the previous one has not finished yet");
+                return;
+            }
+            final Settings settings = recommender.reader.getSettings();
+            final Boolean compressSetting = settings.getSettingAsBoolean("SNAPSHOT_COMPRESSION");
+            final boolean compress = (compressSetting != null) && compressSetting;
+            final Integer shards = settings.getSettingAsInt("SNAPSHOT_SHARDS");
+            // a checkpoint only writes what changed since the last snapshot; when more than this share
+            // of consumers changed since the last full snapshot, a full snapshot is written as the new base
+            final Float maxChangedSetting = settings.getSettingAsFloat("SNAPSHOT_CHECKPOINT_MAX_CHANGED");
+            final float maxChanged = maxChangedSetting == null ? 0.2f : maxChangedSetting;
+            final long epoch = Math.max(System.currentTimeMillis(), recommender.modelEpoch + 1L);
+            final List<SnapshotSet.Task> tasks = new ArrayList<SnapshotSet.Task>();
+            SnapshotSet.Writer set = null;
+            DataStore data = null;
+            DataStore.SnapshotLayout layout = null;
+            BackgroundSave save = null;
             final long startNanos = System.nanoTime();
             recommender.modelReadLock.lockInterruptibly();
             try {
@@ -924,43 +1248,44 @@ public class MasterRecommender implements Recommender {
                     recommender.logger.warn(logPrefix + "It took more than 5 seconds to obtain a read lock for saveToFile(): " + ((deltaNanos / 1000000L) / 1000.0) + " seconds"); // a float with 3 decimals
                 }
 
-                recommender.logger.info(logPrefix + "Serialization of recommender to file "+ path + " started.");
-                fileOut = new FileOutputStream(tmpFile);
-                out = new ObjectOutputStream(fileOut);
-                recommender.data.serialize(out);
-                recommender.predictor.serialize(out);
-                recommender.decision.serialize(out);
-                out.close();
-                out = null;
-                fileOut.close();
-                fileOut = null;
-                if (!tmpFile.renameTo(realFile)) {
-                    recommender.logger.error(logPrefix + "Failed to rename temporary serialization file to " + path);
-                }
-                else {
-                    recommender.logger.info(logPrefix + "Serialization of recommender to file " + path + " ended.");
-                }
+                final long captureStart = System.currentTimeMillis();
+                data = recommender.data;
+                final SnapshotSet.Reader previous = recommender.lastSnapshot;
+                final SnapshotSet.Reader base = (previous != null) && (maxChanged > 0f) && previous.getManifest().getAbsoluteFile().equals(realFile.getAbsoluteFile()) && data.canCheckpoint(maxChanged) ? previous : null;
+                set = new SnapshotSet.Writer(realFile, epoch, compress);
+                layout = data.writeSections(set, base, shards == null ? 0 : shards, tasks);
+                // predictors cannot tell which of their parts a commit changed, so they are written as a whole if they changed at all
+                if ((base != null) && (recommender.predictorVersion == recommender.savedPredictorVersion))
+                    set.reuseAll("predictor", base);
+                else
+                    recommender.predictor.writeSections(set, "predictor", tasks);
+                if ((base != null) && (recommender.decisionVersion == recommender.savedDecisionVersion))
+                    set.reuseAll("decision", base);
+                else
+                    recommender.decision.writeSections(set, "decision", tasks);
+                // batches committed from now on are not in this snapshot, they go to a new segment of the journal
+                final long journalSegment = recommender.rollJournal(realFile, epoch);
+                save = new BackgroundSave(recommender, realFile, set, tasks, data, layout, recommender.predictorVersion, recommender.decisionVersion, journalSegment < 0L ? null : recommender.journal, journalSegment);
+                recommender.logger.info(logPrefix + (base == null ? "Serialization" : "Checkpoint") + " of recommender to file "+ path + " started, the view of the model was captured in " + (System.currentTimeMillis() - captureStart) + " ms.");
             }
-            catch (Exception i)
+            catch (IOException | RuntimeException i)
             {
                 recommender.logger.error(logPrefix + "Failed to serialize to file " + path + ": " + i.toString(), i);
-                // try not to leak resources
-                if (out != null) {
-                    try {
-                        out.close();
-                    }
-                    catch (Exception e) {}
-                }
-                if (fileOut != null) {
-                    try {
-                        fileOut.close();
-                    }
-                    catch (Exception e) {}
-                }
-                tmpFile.delete();
+                if (layout != null)
+                    data.snapshotFailed(layout);
+                // remove the parts of the unfinished epoch
+                if (set != null)
+                    set.abort();
             }
             finally {
                 recommender.modelReadLock.unlock();
+                if (save == null)
+                    recommender.saving.set(false);
+            }
+            if (save != null) {
+                final Thread thread = new Thread(save, logPrefix + "Model Saver");
+                thread.setDaemon(true);
+                thread.start();
             }
         }
 
@@ -986,4 +1311,83 @@ public class MasterRecommender implements Recommender {
         }
     }
 
+    /**
+     * Writes a captured view of the model to a snapshot set and commits it, without holding
+     * a lock; only the bookkeeping at the end is done under the write lock.
+     */
+    static class BackgroundSave implements Runnable {
+        private final MasterRecommender recommender;
+        private final File file;
+        private final SnapshotSet.Writer set;
+        private final List<SnapshotSet.Task> tasks;
+        private final DataStore data;
+        private final DataStore.SnapshotLayout layout;
+        private final long predictorVersion;
+        private final long decisionVersion;
+        private final SnapshotJournal journal; // null if there is no journal
+        private final long journalSegment; // the first segment after the snapshot
+
+        BackgroundSave(final MasterRecommender recommender, final File file, final SnapshotSet.Writer set, final List<SnapshotSet.Task> tasks, final DataStore data, final DataStore.SnapshotLayout layout, final long predictorVersion, final long decisionVersion, final SnapshotJournal journal, final long journalSegment) {
+            this.recommender = recommender;
+            this.file = file;
+            this.set = set;
+            this.tasks = tasks;
+            this.data = data;
+            this.layout = layout;
+            this.predictorVersion = predictorVersion;
+            this.decisionVersion = decisionVersion;
+            this.journal = journal;
+            this.journalSegment = journalSegment;
+        }
+
+        @Override
+        public void run() {
+            final String logPrefix = recommender.logPrefix;
+            final long start = System.currentTimeMillis();
+            boolean committed = false;
+            SnapshotSet.Reader written = null;
+            try {
+                SnapshotSet.invokeAll(tasks);
+                set.commit();
+                committed = true;
+                written = new SnapshotSet.Reader(file);
+            }
+            catch (IOException | RuntimeException e) {
+                recommender.logger.error(logPrefix + "Failed to serialize to file " + file.getPath() + ": " + e.toString(), e);
+            }
+            finally {
+                // also after an error (e.g. out of memory), or no snapshot would ever be saved again
+                if (!committed)
+                    set.abort(); // remove the parts of the unfinished epoch
+                recommender.modelWriteLock.lock();
+                try {
+                    if (committed) {
+                        recommender.modelEpoch = set.getEpoch();
+                        if ((written != null) && (recommender.data == data)) {
+                            data.snapshotSaved(layout);
+                            recommender.lastSnapshot = written;
+                            recommender.savedPredictorVersion = predictorVersion;
+                            recommender.savedDecisionVersion = decisionVersion;
+                        }
+                        else {
+                            // the model was replaced while it was written, the next snapshot is a full one
+                            recommender.lastSnapshot = null;
+                        }
+                    }
+                    else
+                        data.snapshotFailed(layout);
+                }
+                finally {
+                    recommender.saving.set(false);
+                    recommender.modelWriteLock.unlock();
+                }
+            }
+            // the batches journaled before the snapshot are in it
+            if (committed && (journal != null))
+                journal.deleteBefore(journalSegment);
+            if (committed)
+                recommender.logger.info(logPrefix + (layout.isFull() ? "Serialization" : "Checkpoint") + " of recommender to file " + file.getPath() + " ended, epoch " + set.getEpoch() + ", " + tasks.size() + " sections written in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+    }
+
 }
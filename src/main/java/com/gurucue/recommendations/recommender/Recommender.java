@@ -73,6 +73,24 @@ public interface Recommender {
     public abstract RecommenderUpdaterJob updateIncrementalAndProductsUntilFinished(boolean async) throws InterruptedException;
 
 	public abstract RecommenderUpdaterJob updateProducts(boolean async) throws InterruptedException;
+
+	/**
+	 * Pushes new events to the recommender, so they reach the model within seconds instead of
+	 * waiting for the next incremental update. The events are buffered and applied by a
+	 * micro-commit; events with IDs up to the last ID read from the database, and events
+	 * pushed before, are ignored, and pushed events are skipped when they are read from the
+	 * database later.
+	 *
+	 * @param eventType name of the event type (as in the EVENTS setting)
+	 * @param eventIds IDs of the events in the database
+	 * @param consumerIds
+	 * @param productIds
+	 * @param timestamps times of the events, in milliseconds
+	 * @param meta meta values of each event (in the order of the meta columns of the event type), may be null
+	 * @return the number of events accepted into the buffer
+	 * @throws IllegalArgumentException if a column other than meta is null, or the columns differ in length
+	 */
+	public abstract int ingestEvents(String eventType, long [] eventIds, long [] consumerIds, long [] productIds, long [] timestamps, Object [][] meta) throws InterruptedException;
 	
 	/**
 	 * Returns most useful next pair for the consumer to be used in coldstart where user compares two products and selects the preferred one.
@@ -23,6 +23,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Map;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 import gnu.trove.set.TIntSet;
 
 /**
@@ -116,6 +119,24 @@ public abstract class Attr {
     	name = (String) in.readObject();
     }
     
+    /**
+     * Writes the values to a snapshot. Global variables should not be written, they are
+     * handled by storeGlobals. Subclasses must write their values after calling this method.
+     */
+    public void writeTo(SnapshotOutput out) throws IOException
+    {
+    	out.writeString(name);
+    }
+
+    /**
+     * Reads the values written by {@link #writeTo(SnapshotOutput)}, global variables are
+     * taken from the globals map.
+     */
+    public void readFrom(SnapshotInput in, Map<String, Object> globals) throws IOException
+    {
+    	name = in.readString();
+    }
+    
     public void postprocess()
     {}
 }
@@ -26,6 +26,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Map;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 /**
  * Class for representing boolean attributes
  */
@@ -109,6 +112,20 @@ public class BooleanAttr extends Attr implements Cloneable {
 		out.writeObject(value);
 	}
 
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeByte(value == null ? -1 : (value ? 1 : 0));
+	}
+
+	@Override
+	public void readFrom(SnapshotInput in, Map<String, Object> globals) throws IOException {
+		super.readFrom(in, globals);
+		final byte b = in.readByte();
+		value = b < 0 ? null : Boolean.valueOf(b > 0);
+	}
+
 	@Override
 	public void storeGlobals(Map<String, Object> globals) {
 		// no global variables
@@ -23,12 +23,17 @@ import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Comparator;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 /**
  * Class contains buys-events of products for a single user. 
  * This class in not necessary for bought products only, 
@@ -117,6 +122,28 @@ public class ConsumerBuysData extends ConsumerEventsData implements Serializable
         for (int i = 2; i<2+metaDesc.length; i++)
             addMeta(result[i], metaDesc[i-2], i-2, descriptor);
     }
+
+    @Override
+    protected int[] leadingColumnKinds(final int[] sqlTypes) {
+        return new int[] {EventRows.LONG};
+    }
+
+    @Override
+    public void addEvents(final EventsDataDescriptor descriptor, final EventRows rows, final int[] rowIndices, final int count) {
+        // columns: consumerID, productID, metas
+        if (indices.length < n + count)
+            indices = Arrays.copyOf(indices, n + count);
+        for (int i = 0; i < count; i++) {
+            final int row = rowIndices[i];
+            if (rows.isNull(1, row))
+                continue;
+            final int productIndex = descriptor.dataStore.productIDs.get(rows.getLong(1, row));
+            if (productIndex < 0) // doesn't exist
+                continue;
+            addEvent(productIndex);
+            addMeta(descriptor, rows, row, 2);
+        }
+    }
     
     @Override
     public String toString() {
@@ -205,6 +232,38 @@ public class ConsumerBuysData extends ConsumerEventsData implements Serializable
         meta.removeDataIndices(remove);
     }
     
+    @Override
+    public void sortByTime(final EventsDataDescriptor descriptor) {
+        final int date_id = descriptor.getMetaIndex("date");
+        if ((date_id < 0) || (n < 2))
+            return;
+        final long [] dates = meta.getLongValuesArray(date_id);
+        int i = 1;
+        while ((i < n) && (dates[i - 1] <= dates[i]))
+            i++;
+        if (i == n)
+            return;
+        // a stable sort, events with the same date stay in the order they were added
+        final Integer [] order = new Integer[n];
+        for (i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer e1, final Integer e2) {
+                return Long.compare(dates[e1], dates[e2]);
+            }
+        });
+        final int [] positions = new int[n];
+        final int [] sortedIndices = new int[n];
+        for (i = 0; i < n; i++)
+        {
+            positions[i] = order[i];
+            sortedIndices[i] = indices[order[i]];
+        }
+        indices = sortedIndices;
+        meta.reorder(positions);
+    }
+
     @Override
     public void concatenate(ConsumerEventsData altData) {
         ConsumerBuysData altRatingData = (ConsumerBuysData) altData;
@@ -212,5 +271,18 @@ public class ConsumerBuysData extends ConsumerEventsData implements Serializable
         System.arraycopy(altRatingData.indices, 0, indices, n, altRatingData.n);
         n = indices.length;
         meta.concatenate(altData.meta);
-    }    
+    }
+
+    @Override
+    public void writeTo(final SnapshotOutput out) throws IOException {
+        writeCommon(out);
+        out.writeInts(indices, 0, n);
+    }
+
+    @Override
+    public void readFrom(final SnapshotInput in) throws IOException {
+        readCommon(in);
+        indices = new int[n];
+        in.readInts(indices, 0, n);
+    }
 }
@@ -25,9 +25,13 @@ import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 /**
  * Class contains compares of products by a single user.
  */
@@ -133,6 +137,41 @@ public class ConsumerComparesData extends ConsumerEventsData implements Serializ
             addMeta(result[i], metaDesc[i-4], i-4, descriptor);
     }
 
+    @Override
+    protected int[] leadingColumnKinds(final int[] sqlTypes) {
+        return new int[] {EventRows.LONG, EventRows.LONG, EventRows.LONG};
+    }
+
+    @Override
+    public void addEvents(final EventsDataDescriptor descriptor, final EventRows rows, final int[] rowIndices, final int count) {
+        // columns: consumerID, firstproductID, secondproductID, ID of the selected product, metas
+        for (int i = 0; i < count; i++) {
+            final int row = rowIndices[i];
+            if (rows.isNull(1, row) || rows.isNull(2, row)) {
+                // as with Object arrays, the product IDs are mandatory
+                addEvent(descriptor, rows.toObjects(row));
+                continue;
+            }
+            final long firstProductId = rows.getLong(1, row);
+            final long secondProductId = rows.getLong(2, row);
+            final int firstProductIndex = descriptor.dataStore.productIDs.get(firstProductId);
+            final int secondProductIndex = descriptor.dataStore.productIDs.get(secondProductId);
+            if ((firstProductIndex < 0) || (secondProductIndex < 0)) // one or both products don't exist
+                continue;
+            final byte bselected;
+            if (rows.isNull(3, row))
+                bselected = 0;
+            else if (rows.getLong(3, row) == firstProductId)
+                bselected = 1;
+            else if (rows.getLong(3, row) == secondProductId)
+                bselected = -1;
+            else
+                bselected = 0;
+            addEvent(firstProductIndex, secondProductIndex, bselected);
+            addMeta(descriptor, rows, row, 4);
+        }
+    }
+
     @Override
     public String toString() {
         return "first: " + Arrays.toString(firstProducts) + ", second: " + Arrays.toString(secondProducts) + ", compares: " + Arrays.toString(compares); 
@@ -233,5 +272,24 @@ public class ConsumerComparesData extends ConsumerEventsData implements Serializ
         System.arraycopy(altRatingData.secondProducts, 0, secondProducts, n, altRatingData.n);
         n = firstProducts.length;
         meta.concatenate(altData.meta);
-    }    
+    }
+
+    @Override
+    public void writeTo(final SnapshotOutput out) throws IOException {
+        writeCommon(out);
+        out.writeInts(firstProducts, 0, n);
+        out.writeInts(secondProducts, 0, n);
+        out.write(compares, 0, n);
+    }
+
+    @Override
+    public void readFrom(final SnapshotInput in) throws IOException {
+        readCommon(in);
+        firstProducts = new int[n];
+        in.readInts(firstProducts, 0, n);
+        secondProducts = new int[n];
+        in.readInts(secondProducts, 0, n);
+        compares = new byte[n];
+        in.readFully(compares);
+    }
 }
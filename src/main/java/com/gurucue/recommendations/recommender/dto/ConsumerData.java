@@ -68,6 +68,19 @@ public class ConsumerData implements Serializable {
         }
     }
     
+    /**
+     * Puts the events of each type in the order of their dates, see {@link ConsumerEventsData#sortByTime(EventsDataDescriptor)}.
+     */
+    public void sortByTime(final Map<String, EventsDataDescriptor> eventsDescriptors)
+    {
+        for (Map.Entry<String, EventsDataDescriptor> entry : eventsDescriptors.entrySet())
+        {
+            final ConsumerEventsData event = events[entry.getValue().index];
+            if (event != null)
+                event.sortByTime(entry.getValue());
+        }
+    }
+
     public void removeData(final Map<String, EventsDataDescriptor> eventsDescriptors)
     {
         for (Map.Entry<String, EventsDataDescriptor> entry : eventsDescriptors.entrySet())
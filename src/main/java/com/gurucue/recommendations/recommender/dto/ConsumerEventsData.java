@@ -18,8 +18,12 @@
  */
 package com.gurucue.recommendations.recommender.dto;
 
+import java.io.IOException;
 import java.io.Serializable;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 /**
  * Abstract class for all ConsumerEvents data. 
  * At the moment it is not used.
@@ -87,6 +91,43 @@ public abstract class ConsumerEventsData implements Serializable {
 
     public abstract void addEvent(final EventsDataDescriptor descriptor, final Object [] result);
 
+    /**
+     * Adds events from a block of decoded rows, in the given order. All the rows must
+     * belong to this consumer. The default implementation adds them one by one as
+     * Object arrays; event types that declare {@link #leadingColumnKinds(int[])} read
+     * the primitive values directly.
+     *
+     * @param descriptor
+     * @param rows
+     * @param rowIndices indices of the rows to add
+     * @param count number of indices
+     */
+    public void addEvents(final EventsDataDescriptor descriptor, final EventRows rows, final int [] rowIndices, final int count) {
+        for (int i = 0; i < count; i++)
+            addEvent(descriptor, rows.toObjects(rowIndices[i]));
+    }
+
+    /**
+     * Returns the kinds (see {@link EventRows}) of the event columns that precede
+     * the meta values, or null if the rows should be read as objects.
+     *
+     * @param sqlTypes SQL types of the event columns, indexed like the Object array of {@link #addEvent(EventsDataDescriptor, Object[])}
+     */
+    protected int [] leadingColumnKinds(final int [] sqlTypes) {
+        return null;
+    }
+
+    /**
+     * Adds the meta values of a decoded row, starting with the given column.
+     */
+    protected void addMeta(final EventsDataDescriptor descriptor, final EventRows rows, final int row, final int firstColumn)
+    {
+        final String [] metaDesc = descriptor.meta;
+        final int n = Math.min(metaDesc.length, rows.getColumnCount() - firstColumn);
+        for (int i = 0; i < n; i++)
+            meta.addValue(rows, firstColumn + i, row, metaDesc[i], i, descriptor);
+    }
+
     /**
      * Clones the instance, without using Java's clone semantics.
      *
@@ -110,4 +151,36 @@ public abstract class ConsumerEventsData implements Serializable {
     public abstract void concatenate(ConsumerEventsData altData);
     
     public abstract void removeDataTime(EventsDataDescriptor descriptor);
+
+    /**
+     * Puts the events in the order of their dates, after events that were pushed to the
+     * recommender were concatenated with events read from the database later. Only events
+     * of single products can be pushed, events of other types stay in the order of their IDs.
+     */
+    public void sortByTime(final EventsDataDescriptor descriptor) {
+    }
+
+    /**
+     * Writes the events to a snapshot. Implementations write {@link #writeCommon(SnapshotOutput)}
+     * first and then their own arrays, in bulk.
+     */
+    public abstract void writeTo(SnapshotOutput out) throws IOException;
+
+    /**
+     * Reads the events written by {@link #writeTo(SnapshotOutput)} into this (empty) instance.
+     */
+    public abstract void readFrom(SnapshotInput in) throws IOException;
+
+    /**
+     * Writes the number of events and the meta values.
+     */
+    protected void writeCommon(final SnapshotOutput out) throws IOException {
+        out.writeInt(n);
+        meta.writeTo(out);
+    }
+
+    protected void readCommon(final SnapshotInput in) throws IOException {
+        n = in.readInt();
+        meta = ConsumerMetaEventsData.readFrom(in);
+    }
 }
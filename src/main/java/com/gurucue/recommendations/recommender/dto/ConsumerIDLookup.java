@@ -0,0 +1,37 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.dto;
+
+/**
+ * Read access to a map between consumer IDs and consumer indices: the committed
+ * {@link ConsumerIDMap} or an overlay of a batch.
+ */
+public interface ConsumerIDLookup {
+    /**
+     * Returns the index of the consumer, or -1 if there is no such consumer.
+     */
+    int get(long id);
+
+    boolean contains(long id);
+
+    /**
+     * Returns the number of consumers, which is also the index the next new consumer gets.
+     */
+    int size();
+}
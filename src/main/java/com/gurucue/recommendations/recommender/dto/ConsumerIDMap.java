@@ -0,0 +1,424 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.dto;
+
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
+
+/**
+ * Append-only map between consumer IDs in the database and consumer indices.
+ * Indices are assigned consecutively and a consumer never changes or loses its index.
+ * <p>
+ * New consumers of a batch are added through an {@link Overlay}, which sees the
+ * committed consumers and its own new ones. The new consumers become visible to
+ * everybody else only when the overlay is published, which is done in the commit
+ * of the batch. Readers therefore see either the old or the new version of the map,
+ * and nothing is copied per batch.
+ * <p>
+ * The data is kept in flat primitive arrays (an open-addressing hash table and the
+ * list of IDs by index). The table is only rebuilt when it grows. There must be a
+ * single writer (the thread doing the updates), readers never modify anything.
+ * <p>
+ * A map read from a snapshot with {@link #readFrom(SnapshotInput)} keeps the consumers of
+ * the snapshot in the base: the same table and list, as views of the mapped section, which
+ * are never modified. Consumers added later get the indices from the end of the base on and
+ * are kept in the arrays; lookups try the base first.
+ */
+public final class ConsumerIDMap implements ConsumerIDLookup {
+    private static final float LOAD_FACTOR = 0.7f;
+
+    /**
+     * Hash table; replaced as a whole when it grows, so that readers always see a complete table.
+     */
+    private static final class Table {
+        final long [] keys;
+        final int [] values; // -1 = empty slot
+        final int mask;
+
+        Table(final int capacity) {
+            final int c = capacity(capacity);
+            keys = new long[c];
+            values = new int[c];
+            Arrays.fill(values, -1);
+            mask = c - 1;
+        }
+
+        int find(final long id) {
+            int slot = hash(id) & mask;
+            for (;;) {
+                final int v = values[slot];
+                if (v < 0) return -1;
+                if (keys[slot] == id) return v;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void insert(final long id, final int index) {
+            int slot = hash(id) & mask;
+            while (values[slot] >= 0)
+                slot = (slot + 1) & mask;
+            keys[slot] = id;
+            values[slot] = index; // written last: a reader either sees an empty slot or a complete entry
+        }
+
+        static int capacity(final int size) {
+            int c = 16;
+            while (c * LOAD_FACTOR < size) c <<= 1;
+            return c;
+        }
+
+        static int hash(final long id) {
+            final long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    // the base: consumer ID by index, and the hash table with the layout of Table; null if empty
+    private final int base;
+    private final LongBuffer baseIds;
+    private final LongBuffer baseKeys;
+    private final IntBuffer baseValues;
+
+    private volatile Table table; // of the consumers after the base
+    private volatile long [] ids; // consumer ID by index, minus the base
+    private int size; // number of consumers, including the ones in unpublished overlays
+    private volatile int published; // number of consumers visible to readers
+
+    public ConsumerIDMap(final int capacity) {
+        base = 0;
+        baseIds = null;
+        baseKeys = null;
+        baseValues = null;
+        table = new Table(capacity);
+        ids = new long[Math.max(16, capacity)];
+        size = 0;
+        published = 0;
+    }
+
+    private ConsumerIDMap(final LongBuffer baseIds, final LongBuffer baseKeys, final IntBuffer baseValues) {
+        base = baseIds.capacity();
+        this.baseIds = baseIds;
+        this.baseKeys = baseKeys;
+        this.baseValues = baseValues;
+        table = new Table(0);
+        ids = new long[16];
+        size = base;
+        published = base;
+    }
+
+    /**
+     * Creates the map from a map with indices 0 .. n-1, as stored by older versions.
+     */
+    public static ConsumerIDMap fromMap(final TLongIntHashMap map) {
+        final long [] byIndex = new long[map.size()];
+        final TLongIntIterator it = map.iterator();
+        while (it.hasNext()) {
+            it.advance();
+            if ((it.value() < 0) || (it.value() >= byIndex.length))
+                throw new IllegalArgumentException("Consumer indices are not consecutive, index " + it.value() + " of consumer " + it.key() + " is out of range [0, " + byIndex.length + ")");
+            byIndex[it.value()] = it.key();
+        }
+        return fromIds(byIndex);
+    }
+
+    /**
+     * Creates the map from the IDs of consumers by index.
+     */
+    public static ConsumerIDMap fromIds(final long [] byIndex) {
+        final ConsumerIDMap result = new ConsumerIDMap(byIndex.length);
+        for (final long id : byIndex)
+            result.append(id);
+        result.published = result.size;
+        return result;
+    }
+
+    /**
+     * Returns a copy in the form of a Trove map, as stored by older versions.
+     */
+    public TLongIntHashMap toMap() {
+        final int n = published;
+        final long [] currentIds = ids;
+        final TLongIntHashMap map = new TLongIntHashMap((int)Math.ceil(n/0.8), 0.8f, -1L, -1);
+        for (int i = 0; i < n; i++)
+            map.put(i < base ? baseIds.get(i) : currentIds[i - base], i);
+        return map;
+    }
+
+    /**
+     * Returns a writer of the first n consumers to a section of a snapshot, to be read
+     * with {@link #readFrom(SnapshotInput)}. Call it under the model lock; the writer may
+     * run later, while consumers are added. It writes the IDs and a hash table of them
+     * with the layout of Table, which is built while writing, so a map with a base is
+     * written as a single base.
+     */
+    public SnapshotSet.SectionWriter writer(final int n) {
+        if (n > published)
+            throw new IllegalArgumentException("Only " + published + " consumers are published, cannot write " + n);
+        // the IDs of the published consumers never change, even if the array is replaced
+        final long [] currentIds = ids;
+        return new SnapshotSet.SectionWriter() {
+            @Override
+            public void write(final SnapshotOutput out) throws IOException {
+                out.writeInt(n);
+                if (base > 0)
+                    out.writeLongs(baseIds, 0, Math.min(n, base));
+                if (n > base)
+                    out.writeLongs(currentIds, 0, n - base);
+                final int capacity = Table.capacity(n);
+                final int mask = capacity - 1;
+                final int [] values = new int[capacity];
+                Arrays.fill(values, -1);
+                for (int i = 0; i < n; i++) {
+                    int slot = Table.hash(id(i)) & mask;
+                    while (values[slot] >= 0)
+                        slot = (slot + 1) & mask;
+                    values[slot] = i;
+                }
+                final long [] keys = new long[Math.min(capacity, 8192)];
+                out.writeInt(capacity);
+                for (int from = 0; from < capacity; from += keys.length) {
+                    final int length = Math.min(keys.length, capacity - from);
+                    for (int i = 0; i < length; i++)
+                        keys[i] = values[from + i] < 0 ? 0L : id(values[from + i]);
+                    out.writeLongs(keys, 0, length);
+                }
+                out.writeIntArray(values);
+            }
+
+            private long id(final int index) {
+                return index < base ? baseIds.get(index) : currentIds[index - base];
+            }
+        };
+    }
+
+    /**
+     * Reads the consumers written by {@link #writer(int)}; over a mapped section they
+     * become the base, without copying them to the heap.
+     */
+    public static ConsumerIDMap readFrom(final SnapshotInput in) throws IOException {
+        final LongBuffer ids = in.readLongBuffer();
+        final LongBuffer keys = in.readLongBuffer();
+        final IntBuffer values = in.readIntBuffer();
+        if ((ids == null) || (keys == null) || (values == null))
+            throw new IOException("Corrupt consumer ID map in the snapshot");
+        final int capacity = keys.capacity();
+        if ((capacity != values.capacity()) || (Integer.bitCount(capacity) != 1) || (capacity * LOAD_FACTOR < ids.capacity()))
+            throw new IOException("Corrupt consumer ID map in the snapshot: a table of " + capacity + " slots for " + ids.capacity() + " consumers");
+        if (ids.capacity() == 0)
+            return new ConsumerIDMap(0);
+        return new ConsumerIDMap(ids, keys, values);
+    }
+
+    /**
+     * Returns the index of the consumer in the base or in the table, -1 if it is in neither.
+     */
+    private int find(final long id) {
+        if (base > 0) {
+            final int mask = baseKeys.capacity() - 1;
+            int slot = Table.hash(id) & mask;
+            for (;;) {
+                final int v = baseValues.get(slot);
+                if (v < 0) break;
+                if (baseKeys.get(slot) == id) return v;
+                slot = (slot + 1) & mask;
+            }
+        }
+        return table.find(id);
+    }
+
+    @Override
+    public int get(final long id) {
+        // read the bound first: it is written after the entries below it
+        final int n = published;
+        final int v = find(id);
+        return v < n ? v : -1;
+    }
+
+    @Override
+    public boolean contains(final long id) {
+        return get(id) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return published;
+    }
+
+    /**
+     * Returns the ID of the consumer with the given index.
+     */
+    public long getId(final int index) {
+        if ((index < 0) || (index >= published))
+            throw new IndexOutOfBoundsException("Consumer index " + index + " out of range [0, " + published + ")");
+        return index < base ? baseIds.get(index) : ids[index - base];
+    }
+
+    /**
+     * Adds a consumer directly to the committed map. Must be called under the model
+     * write lock, and not while there is an unpublished overlay.
+     */
+    public int add(final long id) {
+        final int existing = get(id);
+        if (existing >= 0)
+            return existing;
+        if (size != published)
+            throw new IllegalStateException("Cannot add consumer " + id + " while there are " + (size - published) + " unpublished consumers");
+        final int index = append(id);
+        published = size;
+        return index;
+    }
+
+    /**
+     * Creates an overlay on top of the committed consumers. Overlays that were not
+     * published must be discarded first.
+     */
+    public Overlay overlay() {
+        if (size > published)
+            throw new IllegalStateException("There are " + (size - published) + " unpublished consumers, publish or discard their overlay first");
+        return new Overlay(published);
+    }
+
+    /**
+     * Creates an overlay that continues an unpublished overlay (the next batch is read
+     * while the previous one is not committed yet). It must be published after the parent.
+     */
+    public Overlay overlay(final Overlay parent) {
+        if (parent.end != size)
+            throw new IllegalStateException("The parent overlay is not the last one");
+        return new Overlay(parent.end);
+    }
+
+    private int append(final long id) {
+        final int index = size;
+        long [] currentIds = ids;
+        if (index - base == currentIds.length) {
+            currentIds = Arrays.copyOf(currentIds, currentIds.length * 2);
+            ids = currentIds;
+        }
+        currentIds[index - base] = id;
+        Table t = table;
+        if (index - base + 1 > t.keys.length * LOAD_FACTOR) {
+            // grow: build the whole new table, then publish it
+            final Table bigger = new Table((index - base + 1) * 2);
+            for (int i = base; i < index; i++)
+                bigger.insert(currentIds[i - base], i);
+            table = t = bigger;
+        }
+        t.insert(id, index);
+        size = index + 1;
+        return index;
+    }
+
+    /**
+     * Removes the consumers with indices from n on.
+     */
+    private void rollback(final int n) {
+        final long [] currentIds = ids;
+        final Table t = new Table(Math.max(16, n - base));
+        for (int i = base; i < n; i++)
+            t.insert(currentIds[i - base], i);
+        table = t;
+        size = n;
+    }
+
+    /**
+     * Consumers of a batch: the committed consumers and the new consumers of this
+     * batch (and of the unpublished overlays it continues).
+     */
+    public final class Overlay implements ConsumerIDLookup {
+        private final int start;
+        private volatile int end;
+
+        Overlay(final int start) {
+            this.start = start;
+            this.end = start;
+        }
+
+        @Override
+        public int get(final long id) {
+            final int n = end;
+            final int v = find(id);
+            return v < n ? v : -1;
+        }
+
+        @Override
+        public boolean contains(final long id) {
+            return get(id) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return end;
+        }
+
+        /**
+         * Returns the number of consumers added by this overlay.
+         */
+        public int added() {
+            return end - start;
+        }
+
+        /**
+         * Returns the index of the consumer, adding it as a new consumer if it is not known.
+         */
+        public int add(final long id) {
+            final int existing = get(id);
+            if (existing >= 0)
+                return existing;
+            if (size != end)
+                throw new IllegalStateException("The overlay is not the last one, cannot add consumer " + id);
+            append(id);
+            end = size;
+            return end - 1;
+        }
+
+        /**
+         * Makes the consumers of this overlay visible to everybody. Call it in the commit,
+         * under the model write lock.
+         */
+        public void publish() {
+            if (start > published)
+                throw new IllegalStateException("The parent overlay was not published yet");
+            if (end > published)
+                published = end;
+        }
+
+        /**
+         * Removes the consumers of this overlay, when its batch will not be committed.
+         * Does nothing if the overlay was already published.
+         */
+        public void discard() {
+            if (end <= published)
+                return;
+            if (size != end)
+                throw new IllegalStateException("The overlay is not the last one, discard the overlays that continue it first");
+            rollback(start);
+            end = start;
+        }
+    }
+}
@@ -18,6 +18,7 @@
  */
 package com.gurucue.recommendations.recommender.dto;
 
+import gnu.trove.iterator.TObjectByteIterator;
 import gnu.trove.list.TByteList;
 import gnu.trove.list.array.TByteArrayList;
 import gnu.trove.list.array.TIntArrayList;
@@ -27,6 +28,7 @@ import gnu.trove.map.hash.TObjectByteHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.set.TIntSet;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
@@ -34,6 +36,9 @@ import java.util.Date;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 /**
  * A class for storing meta data about events. 
  * The inner representation is an arraylist of objects, where each object is an array or an arraylist.
@@ -137,6 +142,115 @@ public class ConsumerMetaEventsData implements Serializable {
         }
     }
 
+    private static final byte LONG_VALUES = 1;
+    private static final byte INT_VALUES = 2;
+    private static final byte BYTE_VALUES = 3;
+
+    /**
+     * Writes the meta values to a snapshot, as arrays of primitives.
+     */
+    @SuppressWarnings("unchecked")
+    void writeTo(final SnapshotOutput out) throws IOException
+    {
+        out.writeInt(values.size());
+        for (final Object o : values)
+        {
+            if (o instanceof TLongArrayList)
+            {
+                out.writeByte(LONG_VALUES);
+                out.writeLongArray(((TLongArrayList) o).toArray());
+            }
+            else if (o instanceof TIntArrayList)
+            {
+                out.writeByte(INT_VALUES);
+                out.writeIntArray(((TIntArrayList) o).toArray());
+            }
+            else if (o instanceof TByteArrayList)
+            {
+                out.writeByte(BYTE_VALUES);
+                out.writeByteArray(((TByteArrayList) o).toArray());
+            }
+            else
+                throw new IOException("Cannot write meta values of type " + (o == null ? "null" : o.getClass().getCanonicalName()));
+        }
+        out.writeInt(maps.size());
+        for (final Object o : maps)
+        {
+            if (o == null)
+            {
+                out.writeInt(-1);
+                continue;
+            }
+            final TObjectByteMap<String> map = (TObjectByteMap<String>) o;
+            out.writeInt(map.size());
+            for (final TObjectByteIterator<String> it = map.iterator(); it.hasNext(); )
+            {
+                it.advance();
+                out.writeString(it.key());
+                out.writeByte(it.value());
+            }
+        }
+    }
+
+    static ConsumerMetaEventsData readFrom(final SnapshotInput in) throws IOException
+    {
+        final ConsumerMetaEventsData meta = new ConsumerMetaEventsData();
+        final int n = in.readInt();
+        meta.values = new ArrayList<Object>(n);
+        for (int i = 0; i < n; i++)
+        {
+            final byte type = in.readByte();
+            switch (type)
+            {
+                case LONG_VALUES:
+                {
+                    final long [] a = in.readLongArray();
+                    final TLongArrayList vals = new TLongArrayList(Math.max(a.length, 10));
+                    vals.add(a);
+                    meta.values.add(vals);
+                    break;
+                }
+                case INT_VALUES:
+                {
+                    final int [] a = in.readIntArray();
+                    final TIntArrayList vals = new TIntArrayList(Math.max(a.length, 10));
+                    vals.add(a);
+                    meta.values.add(vals);
+                    break;
+                }
+                case BYTE_VALUES:
+                {
+                    final byte [] a = in.readByteArray();
+                    final TByteArrayList vals = new TByteArrayList(Math.max(a.length, 10));
+                    vals.add(a);
+                    meta.values.add(vals);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown type of meta values in the snapshot: " + type);
+            }
+        }
+        final int m = in.readInt();
+        meta.maps = new ArrayList<Object>(m);
+        for (int i = 0; i < m; i++)
+        {
+            final int size = in.readInt();
+            if (size < 0)
+            {
+                meta.maps.add(null);
+                continue;
+            }
+            final TObjectByteHashMap<String> map = new TObjectByteHashMap<String>(Math.max(size, 10));
+            for (int j = 0; j < size; j++)
+            {
+                final String key = in.readString();
+                map.put(key, in.readByte());
+            }
+            meta.maps.add(map);
+        }
+        return meta;
+    }
+
     @SuppressWarnings("unchecked")
 	void addValue(Object result, String desc, int index, EventsDataDescriptor descriptor)
     {
@@ -166,9 +280,40 @@ public class ConsumerMetaEventsData implements Serializable {
         }        
     }
     
+    /**
+     * Adds a value of a decoded row. Values that were not decoded into a primitive
+     * are added as objects, with {@link #addValue(Object, String, int, EventsDataDescriptor)}.
+     */
+    void addValue(EventRows rows, int column, int row, String desc, int index, EventsDataDescriptor descriptor)
+    {
+        if (rows.isNull(column, row))
+        {
+            addValue(null, desc, index, descriptor);
+            return;
+        }
+        switch (rows.getKind(column))
+        {
+            case EventRows.DATE:
+                addDate(rows.getLong(column, row) / 1000, index, descriptor);
+                break;
+            case EventRows.BYTE:
+                ((TByteArrayList) values.get(index)).add((byte) rows.getLong(column, row));
+                break;
+            case EventRows.INT:
+                ((TIntArrayList) values.get(index)).add((int) rows.getLong(column, row));
+                break;
+            default:
+                addValue(rows.getObject(column, row), desc, index, descriptor);
+        }
+    }
+
     void addDate(Object result, int index, EventsDataDescriptor descriptor)
     {
-        long date = ((Date)result).getTime() / 1000;
+        addDate(((Date)result).getTime() / 1000, index, descriptor);
+    }
+
+    void addDate(long date, int index, EventsDataDescriptor descriptor)
+    {
         descriptor.last_read_date = Math.max(date, descriptor.last_read_date); // updates last read date
         final TLongArrayList vals = (TLongArrayList) values.get(index);
         vals.add(date);
@@ -370,6 +515,42 @@ public class ConsumerMetaEventsData implements Serializable {
         
     }
 
+    /**
+     * Reorders the values of events: event i gets the values that event order[i] had.
+     */
+    public void reorder(final int [] order) {
+        for (final Object o : values)
+        {
+            if (o instanceof TLongArrayList)
+            {
+                final TLongArrayList ta = (TLongArrayList)o;
+                final long [] old = ta.toArray();
+                for (int i = 0; i < order.length; i++)
+                    ta.set(i, old[order[i]]);
+            }
+            else if (o instanceof TIntArrayList)
+            {
+                final TIntArrayList ta = (TIntArrayList)o;
+                final int [] old = ta.toArray();
+                for (int i = 0; i < order.length; i++)
+                    ta.set(i, old[order[i]]);
+            }
+            else if (o instanceof TByteArrayList)
+            {
+                final TByteArrayList ta = (TByteArrayList)o;
+                final byte [] old = ta.toArray();
+                for (int i = 0; i < order.length; i++)
+                    ta.set(i, old[order[i]]);
+            }
+            else
+            {
+                final String reason = "Cannot reorder data of a meta value of unsupported type: " + o.getClass().getCanonicalName();
+                logger.error(reason);
+                throw new IllegalStateException(reason);
+            }
+        }
+    }
+
     /**
      * Concatenates values. Merges maps. 
      * 
@@ -21,6 +21,9 @@ package com.gurucue.recommendations.recommender.dto;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 import gnu.trove.list.TByteList;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TByteArrayList;
@@ -28,6 +31,7 @@ import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 
@@ -123,6 +127,12 @@ public class ConsumerRatingsData extends ConsumerEventsData implements Serializa
             logger.warn("Failed to convert rating " + sRating + " to a decimal number (product=" + productId + ", consumer=" + (Long)result[0] + ")");
             drating = 0;
         }
+        addRating(descriptor, productIndex, drating);
+        for (int i = 3; i<result.length; i++)
+            addMeta(result[i], metaDesc[i-3], i-3, descriptor);
+    }
+
+    private void addRating(final EventsDataDescriptor descriptor, final int productIndex, final double drating) {
         // use exp4j to translate it to byte
         byte rating =descriptor.doubleToByte(drating);
         if (rating > MAXRATING)
@@ -135,8 +145,42 @@ public class ConsumerRatingsData extends ConsumerEventsData implements Serializa
         if (rating < descriptor.min)
             descriptor.min = rating;
         addEvent(productIndex, rating);
-        for (int i = 3; i<result.length; i++)
-            addMeta(result[i], metaDesc[i-3], i-3, descriptor);
+    }
+
+    @Override
+    protected int[] leadingColumnKinds(final int[] sqlTypes) {
+        // the rating is read as a number if the column is numeric, otherwise it is parsed
+        return new int[] {EventRows.LONG, (sqlTypes.length > 2) && EventRows.isNumeric(sqlTypes[2]) ? EventRows.DOUBLE : EventRows.STRING};
+    }
+
+    @Override
+    public void addEvents(final EventsDataDescriptor descriptor, final EventRows rows, final int[] rowIndices, final int count) {
+        // columns: consumerID, productID, rating, metas
+        final boolean numeric = rows.getKind(2) == EventRows.DOUBLE;
+        for (int i = 0; i < count; i++) {
+            final int row = rowIndices[i];
+            if (rows.isNull(1, row) || rows.isNull(2, row))
+                continue;
+            final long productId = rows.getLong(1, row);
+            final int productIndex = descriptor.dataStore.productIDs.get(productId);
+            if (productIndex < 0) // doesn't exist
+                continue;
+            double drating;
+            if (numeric)
+                drating = rows.getDouble(2, row);
+            else {
+                final String sRating = rows.getString(2, row);
+                try {
+                    drating = Double.valueOf(sRating);
+                }
+                catch (NumberFormatException nfe) {
+                    logger.warn("Failed to convert rating " + sRating + " to a decimal number (product=" + productId + ", consumer=" + rows.getConsumerId(row) + ")");
+                    drating = 0;
+                }
+            }
+            addRating(descriptor, productIndex, drating);
+            addMeta(descriptor, rows, row, 3);
+        }
     }
 
     @Override
@@ -231,6 +275,25 @@ public class ConsumerRatingsData extends ConsumerEventsData implements Serializa
         System.arraycopy(altRatingData.ratings, 0, ratings, n, altRatingData.n);
         System.arraycopy(altRatingData.indices, 0, indices, n, altRatingData.n);
         n = indices.length;
+        sum += altRatingData.sum;
         meta.concatenate(altData.meta);
     }
+
+    @Override
+    public void writeTo(final SnapshotOutput out) throws IOException {
+        writeCommon(out);
+        out.writeFloat(sum);
+        out.writeInts(indices, 0, n);
+        out.write(ratings, 0, n);
+    }
+
+    @Override
+    public void readFrom(final SnapshotInput in) throws IOException {
+        readCommon(in);
+        sum = in.readFloat();
+        indices = new int[n];
+        in.readInts(indices, 0, n);
+        ratings = new byte[n];
+        in.readFully(ratings);
+    }
 }
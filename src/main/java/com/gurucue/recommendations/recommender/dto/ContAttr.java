@@ -27,6 +27,9 @@ import java.io.ObjectOutputStream;
 import java.util.Calendar;
 import java.util.Map;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 public class ContAttr extends Attr implements Cloneable {
     
     public Integer value;
@@ -138,6 +141,20 @@ public class ContAttr extends Attr implements Cloneable {
 		out.writeObject(value);
 	}
 
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeBoolean(value != null);
+		if (value != null) out.writeInt(value);
+	}
+
+	@Override
+	public void readFrom(SnapshotInput in, Map<String, Object> globals) throws IOException {
+		super.readFrom(in, globals);
+		value = in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+	}
+
 	@Override
 	public void storeGlobals(Map<String, Object> globals) {
 		// no global variables
@@ -44,7 +44,13 @@ public class ContextDiscretizer implements Serializable {
     
     // values related to DAYTIME context
     int [] DAYTIME_HOURS;
-    Calendar cal;
+    // contexts are computed from concurrent shards of an incremental update, each thread needs its own calendar
+    private static final ThreadLocal<Calendar> calendar = new ThreadLocal<Calendar>() {
+        @Override
+        protected Calendar initialValue() {
+            return Calendar.getInstance();
+        }
+    };
     
     public ContextDiscretizer (String name, Settings settings)
     {
@@ -53,7 +59,6 @@ public class ContextDiscretizer implements Serializable {
         CONTEXT_START_NUMBER = new int[CONTEXTNAMES.length];
         CONTEXT_ATTRIBUTES = settings.getAsIntArray(name + "_CONTEXT_ATTRIBUTES");
         numOfContexts = 1;
-        cal = Calendar.getInstance();
         for (int i=0; i<CONTEXTNAMES.length; i++)
         {
             if (CONTEXTNAMES[i].equalsIgnoreCase("daytime"))
@@ -97,6 +102,7 @@ public class ContextDiscretizer implements Serializable {
                     else
                         date = System.currentTimeMillis();
                 }
+                final Calendar cal = calendar.get();
                 cal.setTime(new Date(date));
                 final int hour = cal.get(Calendar.HOUR_OF_DAY);
                 for (int j=0; j<DAYTIME_HOURS.length; j++)
@@ -131,6 +137,7 @@ public class ContextDiscretizer implements Serializable {
         {
             if (CONTEXTNAMES[i].equalsIgnoreCase("daytime"))
             {
+                final Calendar cal = calendar.get();
                 cal.setTime(new Date(date));
                 final int hour = cal.get(Calendar.HOUR_OF_DAY);
                 for (int j=0; j<DAYTIME_HOURS.length; j++)
@@ -179,6 +186,7 @@ public class ContextDiscretizer implements Serializable {
                     else
                         date = System.currentTimeMillis();
                 }
+                final Calendar cal = calendar.get();
                 cal.setTime(new Date(date));
                 final int hour = cal.get(Calendar.HOUR_OF_DAY);
                 for (int j=0; j<DAYTIME_HOURS.length; j++)
@@ -18,14 +18,22 @@
  */
 package com.gurucue.recommendations.recommender.dto;
 
+import com.gurucue.recommendations.misc.Parallel;
 import com.gurucue.recommendations.recommender.Commitable;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.reader.Reader;
-import gnu.trove.iterator.TIntIntIterator;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotReader;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotSet;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotWriter;
+import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -46,7 +54,7 @@ public class DataStore {
   
 	protected List<ProductData> productData; // data about learning products
 	protected List<ConsumerData> consumerData; // data about consumers used in learning
-    protected TLongIntHashMap consumerIDs; // map between IDs in database and indices in consumers array
+    protected ConsumerIDMap consumerIDs; // map between IDs in database and indices in consumers array
     protected TLongIntHashMap productIDs; // map between IDs in the database and indices in the products array
     protected Domain domain; // domain describing attributes
 
@@ -54,15 +62,23 @@ public class DataStore {
 
 	String [] eventsNames; // names of all types of events
     protected Map<String, EventsDataDescriptor> eventsDescriptors;
+    protected ProductStatistics stats; // frequencies of products in events
+    private final Map<String, Object> shared = new HashMap<String, Object>(); // state shared by the predictors of this model, by its key
     
     boolean finishedReading; // all events were read?
 
+    // changes since the last snapshot, for incremental checkpoints; set in commits, under the model write lock
+    private BitSet dirtyConsumers = new BitSet(); // since the last full snapshot (the base of checkpoints)
+    private BitSet dirtyProducts = new BitSet(); // since the last snapshot
+    private SnapshotLayout saved = null; // of the last snapshot; null if the next snapshot must be a full one
+    private long resets = 0L; // times the next snapshot was required to be a full one
+
     // constructor available only to be overridden in child classes
 	protected DataStore() {
         logger = LogManager.getLogger(DataStore.class.getName() + "[ REC ?]");
     }
 	
-	protected DataStore(Reader reader, final List<ProductData> productData, final List<ConsumerData> consumerData, final TLongIntHashMap consumerIDs, final TLongIntHashMap productIDs, final Domain domain)
+	protected DataStore(Reader reader, final List<ProductData> productData, final List<ConsumerData> consumerData, final ConsumerIDMap consumerIDs, final TLongIntHashMap productIDs, final Domain domain)
 	{
         logger = LogManager.getLogger(DataStore.class.getName() + "[REC " + reader.getRecommenderId() + "]");
 	    this.reader = reader;
@@ -73,6 +89,7 @@ public class DataStore {
 	    this.consumerIDs = consumerIDs;
 	    this.productIDs = productIDs;
 	    this.domain = domain;
+	    stats = new ProductStatistics(this, reader.getSettings(), eventsDescriptors, productData.size());
 	    
 	    finishedReading = false;
 	}
@@ -85,7 +102,7 @@ public class DataStore {
         	domain.serializeDomainAndProducts(productData, out);
         	
         	// write consumers
-        	out.writeObject(consumerIDs);
+        	out.writeObject(consumerIDs.toMap());
         	out.writeObject(consumerData);
         	// write last read ids and dates
         	for (String e : eventsNames)
@@ -111,7 +128,7 @@ public class DataStore {
 
             
              // read consumers map
-            final TLongIntHashMap consumerIDs = (TLongIntHashMap) in.readObject();
+            final ConsumerIDMap consumerIDs = ConsumerIDMap.fromMap((TLongIntHashMap) in.readObject());
             // create empty consumers 
             List<ConsumerData> consumerData = (List<ConsumerData>) in.readObject();
             DataStore dt = new DataStore(reader, productData, consumerData, consumerIDs, productIDs, newDomain);
@@ -125,6 +142,8 @@ public class DataStore {
                 dt.eventsDescriptors.get(e).last_read_id = last_read_id;
                 dt.eventsDescriptors.get(e).last_read_date = last_read_date;
             }
+            // product frequencies are not stored, count them once from the loaded consumers
+            dt.computeBasicStats();
             // return deserialized data store
             return dt;
             
@@ -137,7 +156,740 @@ public class DataStore {
         }
         return null;
     }
-	
+
+    /**
+     * Writes the data to a snapshot, in sections "events" (the read positions of
+     * every event type, including the IDs of pushed events already in the data),
+     * "products" and "consumers".
+     */
+    public void writeTo(final SnapshotWriter writer) throws IOException {
+        writeEvents(writer.beginSection("events"));
+        writer.endSection();
+
+        SnapshotOutput out = writer.beginSection("products");
+        out.writeLongIntMap(productIDs);
+        domain.writeTo(productData, out);
+        writer.endSection();
+
+        out = writer.beginSection("consumers");
+        out.writeLongIntMap(consumerIDs.toMap());
+        out.writeInt(consumerData.size());
+        writeConsumers(out, consumerData, 0, consumerData.size(), false);
+        writer.endSection();
+    }
+
+    /**
+     * Reads the data written by {@link #writeTo(SnapshotWriter)}. The event types must
+     * be configured as they were when the snapshot was written, otherwise an IOException
+     * is thrown and the data must be read from the database.
+     */
+    public static DataStore readFrom(final Reader reader, final SnapshotReader snapshot) throws IOException {
+        final SavedEvents events = new SavedEvents(snapshot.beginSection("events"));
+        snapshot.endSection();
+
+        SnapshotInput in = snapshot.beginSection("products");
+        final TLongIntHashMap productIDs = in.readLongIntMap();
+        final List<ProductData> productData = new ArrayList<ProductData>();
+        final Domain newDomain = Domain.readFrom(productData, reader, in);
+        snapshot.endSection();
+
+        in = snapshot.beginSection("consumers");
+        final ConsumerIDMap consumerIDs = ConsumerIDMap.fromMap(in.readLongIntMap());
+        final int consumerCount = in.readInt();
+        final List<ConsumerData> consumerData = new ArrayList<ConsumerData>(Collections.<ConsumerData>nCopies(consumerCount, null));
+        final DataStore dt = new DataStore(reader, productData, consumerData, consumerIDs, productIDs, newDomain);
+        final EventsDataDescriptor [] descriptors = events.match(dt);
+        dt.readConsumers(in, 0, consumerCount, descriptors, null);
+        snapshot.endSection();
+
+        events.apply(descriptors);
+        // product frequencies are not stored, count them once from the loaded consumers
+        dt.computeBasicStats();
+        return dt;
+    }
+
+    /**
+     * Adds the tasks that write the data to a snapshot set: section "events" with the read
+     * positions and the layout of the other sections, "products" with the product ID map and
+     * attribute globals, and the products and consumers split into ranges ("products.N",
+     * "consumers.N"), which are written in parallel. The consumer ID map of the consumers in
+     * the ranges is written to "consumers.index", in the layout of its hash table, so that
+     * reading it only maps it (see {@link ConsumerIDMap#readFrom(SnapshotInput)}); consumer
+     * records carry consumer IDs as well.
+     * <p>
+     * If <code>previous</code> is given and the data has been saved or loaded since it was
+     * created or compacted, only a checkpoint is written: the consumer ranges of the last full
+     * snapshot (the base) are taken over from <code>previous</code>, and the consumers that
+     * changed since the base are written to "consumers.delta". Product ranges without changes
+     * since the last snapshot are taken over as well. The delta is cumulative, so a snapshot
+     * is always a base and at most one delta; see {@link #canCheckpoint(float)} for when a
+     * new base is due.
+     * <p>
+     * It is called under the model read lock and captures a point-in-time view, the tasks
+     * write it after the lock is released, while commits continue: commits replace consumers
+     * and the product list instead of changing them, so the view only copies the list of
+     * consumers, and the small state that does change in place (read positions, attribute
+     * globals) is encoded right away. The changes written by the snapshot are taken out of
+     * the dirty sets; call {@link #snapshotSaved(SnapshotLayout)} with the returned layout
+     * when the snapshot set is committed, or {@link #snapshotFailed(SnapshotLayout)}, both
+     * under a model lock, so that no commit runs at the same time.
+     */
+    public SnapshotLayout writeSections(final SnapshotSet.Writer set, final SnapshotSet.Reader previous, final int shards, final List<SnapshotSet.Task> tasks) throws IOException {
+        // the view: commits replace the lists, the product ID map and the consumers
+        final List<ProductData> products = productData;
+        final TLongIntHashMap productIDMap = productIDs;
+        final List<ConsumerData> consumers = new ArrayList<ConsumerData>(consumerData);
+
+        final boolean checkpoint = (previous != null) && (saved != null);
+        final boolean sameProducts = checkpoint && (saved.products == products.size());
+        final int productShards = sameProducts ? saved.productShards : Parallel.shards(shards, products.size());
+        final int baseConsumers = checkpoint ? saved.consumers : consumers.size();
+        final int consumerShards = checkpoint ? saved.consumerShards : Parallel.shards(shards, consumers.size());
+        final int [] delta;
+        if (checkpoint)
+        {
+            final BitSet changed = (BitSet) dirtyConsumers.clone();
+            changed.set(baseConsumers, consumers.size());
+            delta = new int[changed.cardinality()];
+            for (int i = changed.nextSetBit(0), j = 0; i >= 0; i = changed.nextSetBit(i + 1))
+                delta[j++] = i;
+        }
+        else
+            delta = null;
+        // changes committed from now on are written by the next snapshot
+        final BitSet changedProducts = dirtyProducts;
+        dirtyProducts = new BitSet();
+        final BitSet changedConsumers;
+        if (checkpoint)
+            changedConsumers = null; // the delta is cumulative since the base
+        else
+        {
+            changedConsumers = dirtyConsumers;
+            dirtyConsumers = new BitSet();
+        }
+        final SnapshotLayout layout = new SnapshotLayout(!checkpoint, products.size(), productShards, baseConsumers, consumerShards, changedProducts, changedConsumers, resets);
+
+        final SnapshotSet.SectionWriter events = SnapshotSet.capture(new SnapshotSet.SectionWriter() {
+            @Override
+            public void write(final SnapshotOutput out) throws IOException {
+                writeEvents(out);
+            }
+        });
+        tasks.add(new SnapshotSet.Task() {
+            @Override
+            public void run() throws IOException {
+                set.section("events", new SnapshotSet.SectionWriter() {
+                    @Override
+                    public void write(final SnapshotOutput out) throws IOException {
+                        events.write(out);
+                        out.writeInt(products.size());
+                        out.writeInt(productShards);
+                        out.writeInt(consumers.size());
+                        out.writeInt(baseConsumers);
+                        out.writeInt(consumerShards);
+                        out.writeBoolean(delta != null);
+                    }
+                });
+            }
+        });
+        if (sameProducts && changedProducts.isEmpty())
+            set.reuse("products", previous);
+        else
+        {
+            final SnapshotSet.SectionWriter globals = SnapshotSet.capture(new SnapshotSet.SectionWriter() {
+                @Override
+                public void write(final SnapshotOutput out) throws IOException {
+                    domain.writeGlobals(out);
+                }
+            });
+            tasks.add(new SnapshotSet.Task() {
+                @Override
+                public void run() throws IOException {
+                    set.section("products", new SnapshotSet.SectionWriter() {
+                        @Override
+                        public void write(final SnapshotOutput out) throws IOException {
+                            out.writeLongIntMap(productIDMap);
+                            globals.write(out);
+                        }
+                    });
+                }
+            });
+        }
+        final int productChunk = (products.size() + productShards - 1) / productShards;
+        for (int s = 0; s < productShards; s++)
+        {
+            final int shard = s;
+            final int from = Math.min(products.size(), s * productChunk);
+            final int to = Math.min(products.size(), from + productChunk);
+            final int firstChanged = changedProducts.nextSetBit(from);
+            if (sameProducts && ((firstChanged < 0) || (firstChanged >= to)))
+            {
+                set.reuse("products." + shard, previous);
+                continue;
+            }
+            tasks.add(new SnapshotSet.Task() {
+                @Override
+                public void run() throws IOException {
+                    set.section("products." + shard, new SnapshotSet.SectionWriter() {
+                        @Override
+                        public void write(final SnapshotOutput out) throws IOException {
+                            out.writeInt(from);
+                            out.writeInt(to);
+                            Domain.writeProducts(products, from, to, out);
+                        }
+                    });
+                }
+            });
+        }
+        // the IDs of the consumers in the base never change
+        if (checkpoint && previous.hasSection("consumers.index"))
+            set.reuse("consumers.index", previous);
+        else
+            SnapshotSet.addSection(set, "consumers.index", tasks, consumerIDs.writer(baseConsumers));
+        if (checkpoint)
+        {
+            for (int s = 0; s < consumerShards; s++)
+                set.reuse("consumers." + s, previous);
+            tasks.add(new SnapshotSet.Task() {
+                @Override
+                public void run() throws IOException {
+                    set.section("consumers.delta", new SnapshotSet.SectionWriter() {
+                        @Override
+                        public void write(final SnapshotOutput out) throws IOException {
+                            out.writeInt(delta.length);
+                            for (final int index : delta)
+                            {
+                                out.writeInt(index);
+                                writeConsumers(out, consumers, index, index + 1, true);
+                            }
+                        }
+                    });
+                }
+            });
+            return layout;
+        }
+        final int consumerChunk = (consumers.size() + consumerShards - 1) / consumerShards;
+        for (int s = 0; s < consumerShards; s++)
+        {
+            final int shard = s;
+            final int from = Math.min(consumers.size(), s * consumerChunk);
+            final int to = Math.min(consumers.size(), from + consumerChunk);
+            tasks.add(new SnapshotSet.Task() {
+                @Override
+                public void run() throws IOException {
+                    set.section("consumers." + shard, new SnapshotSet.SectionWriter() {
+                        @Override
+                        public void write(final SnapshotOutput out) throws IOException {
+                            out.writeInt(from);
+                            out.writeInt(to);
+                            writeConsumers(out, consumers, from, to, true);
+                        }
+                    });
+                }
+            });
+        }
+        return layout;
+    }
+
+    /**
+     * Returns whether the next snapshot can be a checkpoint on top of the last full snapshot:
+     * there is one, and at most the given share of consumers changed since it was written.
+     */
+    public boolean canCheckpoint(final float maxChanged) {
+        return (saved != null) && (dirtyConsumers.cardinality() <= maxChanged * consumerData.size());
+    }
+
+    /**
+     * Records that a snapshot written by {@link #writeSections(SnapshotSet.Writer, SnapshotSet.Reader, int, List)}
+     * was committed, so the next checkpoint is written on top of it; unless the data changed
+     * in a way that requires a full snapshot while it was being written.
+     */
+    public void snapshotSaved(final SnapshotLayout layout) {
+        if (layout.resets == resets)
+            saved = layout;
+    }
+
+    /**
+     * Records that a snapshot written by {@link #writeSections(SnapshotSet.Writer, SnapshotSet.Reader, int, List)}
+     * failed: the changes it was to contain are dirty again.
+     */
+    public void snapshotFailed(final SnapshotLayout layout) {
+        dirtyProducts.or(layout.changedProducts);
+        if (layout.changedConsumers != null)
+        {
+            dirtyConsumers.or(layout.changedConsumers);
+            // the base was not replaced, and its changes are dirty again: the current base is still valid
+        }
+    }
+
+    private void requireFullSnapshot() {
+        saved = null;
+        resets++;
+    }
+
+    /**
+     * Reads the data written by {@link #writeSections(SnapshotSet.Writer, SnapshotSet.Reader, int, List)},
+     * reading the ranges of products and consumers in parallel, followed by the consumers of
+     * the checkpoint, if there is one.
+     */
+    public static DataStore readSections(final Reader reader, final SnapshotSet.Reader set) throws IOException {
+        final SavedEvents [] events = new SavedEvents[1];
+        final int [] counts = new int[5]; // products, product shards, consumers, consumers in the base, consumer shards
+        final boolean [] hasDelta = new boolean[1];
+        final TLongIntHashMap [] productIDs = new TLongIntHashMap[1];
+        final Map<String, Object> globals = new HashMap<String, Object>();
+        final Domain [] newDomain = new Domain[1];
+
+        final List<SnapshotSet.Task> headers = new ArrayList<SnapshotSet.Task>(2);
+        headers.add(new SnapshotSet.Task() {
+            @Override
+            public void run() throws IOException {
+                set.section("events", new SnapshotSet.SectionReader<Void>() {
+                    @Override
+                    public Void read(final SnapshotInput in) throws IOException {
+                        events[0] = new SavedEvents(in);
+                        for (int i = 0; i < counts.length; i++)
+                            counts[i] = in.readInt();
+                        hasDelta[0] = in.readBoolean();
+                        return null;
+                    }
+                });
+            }
+        });
+        headers.add(new SnapshotSet.Task() {
+            @Override
+            public void run() throws IOException {
+                set.section("products", new SnapshotSet.SectionReader<Void>() {
+                    @Override
+                    public Void read(final SnapshotInput in) throws IOException {
+                        productIDs[0] = in.readLongIntMap();
+                        newDomain[0] = Domain.readGlobals(reader, in, globals);
+                        return null;
+                    }
+                });
+            }
+        });
+        SnapshotSet.invokeAll(headers);
+        checkRange("events", counts[3], counts[2], counts[2]);
+
+        final List<ProductData> productData = new ArrayList<ProductData>(Collections.<ProductData>nCopies(counts[0], null));
+        final List<ConsumerData> consumerData = new ArrayList<ConsumerData>(Collections.<ConsumerData>nCopies(counts[2], null));
+        final long [] consumerIds = new long[counts[2]];
+        // the consumer ID map is set when the consumers are read
+        final DataStore dt = new DataStore(reader, productData, consumerData, new ConsumerIDMap(0), productIDs[0], newDomain[0]);
+        final EventsDataDescriptor [] descriptors = events[0].match(dt);
+
+        final List<SnapshotSet.Task> ranges = new ArrayList<SnapshotSet.Task>(counts[1] + counts[4]);
+        for (int s = 0; s < counts[1]; s++)
+        {
+            final String name = "products." + s;
+            ranges.add(new SnapshotSet.Task() {
+                @Override
+                public void run() throws IOException {
+                    set.section(name, new SnapshotSet.SectionReader<Void>() {
+                        @Override
+                        public Void read(final SnapshotInput in) throws IOException {
+                            final int from = in.readInt();
+                            final int to = in.readInt();
+                            checkRange(name, from, to, productData.size());
+                            newDomain[0].readProducts(productData, from, to, globals, in);
+                            return null;
+                        }
+                    });
+                }
+            });
+        }
+        for (int s = 0; s < counts[4]; s++)
+        {
+            final String name = "consumers." + s;
+            ranges.add(new SnapshotSet.Task() {
+                @Override
+                public void run() throws IOException {
+                    set.section(name, new SnapshotSet.SectionReader<Void>() {
+                        @Override
+                        public Void read(final SnapshotInput in) throws IOException {
+                            final int from = in.readInt();
+                            final int to = in.readInt();
+                            checkRange(name, from, to, counts[3]);
+                            dt.readConsumers(in, from, to, descriptors, consumerIds);
+                            return null;
+                        }
+                    });
+                }
+            });
+        }
+        SnapshotSet.invokeAll(ranges);
+
+        if (hasDelta[0])
+        {
+            // consumers that changed since the base replace the ones read from it
+            set.section("consumers.delta", new SnapshotSet.SectionReader<Void>() {
+                @Override
+                public Void read(final SnapshotInput in) throws IOException {
+                    final int n = in.readInt();
+                    for (int i = 0; i < n; i++)
+                    {
+                        final int index = in.readInt();
+                        checkRange("consumers.delta", index, index + 1, consumerData.size());
+                        dt.readConsumers(in, index, index + 1, descriptors, consumerIds);
+                        dt.dirtyConsumers.set(index);
+                    }
+                    return null;
+                }
+            });
+        }
+        final int missing = dt.dirtyConsumers.nextClearBit(counts[3]);
+        if (missing < counts[2])
+            throw new IOException("Consumer " + missing + " is missing in the snapshot");
+        if (set.hasSection("consumers.index"))
+        {
+            // the consumers of the base are mapped, the ones added since then follow them
+            final ConsumerIDMap consumerIDs = set.section("consumers.index", new SnapshotSet.SectionReader<ConsumerIDMap>() {
+                @Override
+                public ConsumerIDMap read(final SnapshotInput in) throws IOException {
+                    return ConsumerIDMap.readFrom(in);
+                }
+            });
+            if (consumerIDs.size() != counts[3])
+                throw new IOException("The consumer ID map of the snapshot has " + consumerIDs.size() + " consumers, its base has " + counts[3]);
+            for (int i = counts[3]; i < counts[2]; i++)
+            {
+                if (consumerIDs.add(consumerIds[i]) != i)
+                    throw new IOException("Consumer " + consumerIds[i] + " appears twice in the snapshot");
+            }
+            dt.consumerIDs = consumerIDs;
+        }
+        else
+            dt.consumerIDs = ConsumerIDMap.fromIds(consumerIds);
+        dt.saved = new SnapshotLayout(!hasDelta[0], counts[0], counts[1], counts[3], counts[4], new BitSet(), null, 0L);
+
+        events[0].apply(descriptors);
+        // product frequencies are not stored, count them once from the loaded consumers
+        dt.computeBasicStats();
+        return dt;
+    }
+
+    /**
+     * How a snapshot divided the data into sections: the products of the snapshot and the
+     * consumers of its base; and the changes it took out of the dirty sets.
+     */
+    public static final class SnapshotLayout {
+        final boolean full;
+        final int products;
+        final int productShards;
+        final int consumers;
+        final int consumerShards;
+        final BitSet changedProducts;
+        final BitSet changedConsumers; // null for a checkpoint
+        final long resets;
+
+        SnapshotLayout(final boolean full, final int products, final int productShards, final int consumers, final int consumerShards, final BitSet changedProducts, final BitSet changedConsumers, final long resets) {
+            this.full = full;
+            this.products = products;
+            this.productShards = productShards;
+            this.consumers = consumers;
+            this.consumerShards = consumerShards;
+            this.changedProducts = changedProducts;
+            this.changedConsumers = changedConsumers;
+            this.resets = resets;
+        }
+
+        public boolean isFull() {
+            return full;
+        }
+    }
+
+    private static void checkRange(final String section, final int from, final int to, final int size) throws IOException {
+        if ((from < 0) || (from > to) || (to > size))
+            throw new IOException("Invalid range [" + from + ", " + to + ") in section " + section + " of the snapshot");
+    }
+
+    private void writeEvents(final SnapshotOutput out) throws IOException {
+        out.writeInt(eventsNames.length);
+        for (final String e : eventsNames)
+        {
+            final EventsDataDescriptor descriptor = eventsDescriptors.get(e);
+            out.writeString(e);
+            out.writeString(descriptor.createEventsData().getClass().getName());
+            out.writeInt(descriptor.meta.length);
+            out.writeLong(descriptor.last_read_id);
+            out.writeLong(descriptor.last_read_date);
+            out.writeLongArray(descriptor.getIngested());
+        }
+    }
+
+    /**
+     * Writes the consumers in the range; withIds prefixes every record with the consumer ID,
+     * so that the ID is stored also for consumers without data.
+     */
+    private void writeConsumers(final SnapshotOutput out, final List<ConsumerData> consumers, final int from, final int to, final boolean withIds) throws IOException {
+        for (int i = from; i < to; i++)
+        {
+            if (withIds)
+                out.writeLong(consumerIDs.getId(i));
+            writeConsumer(out, consumers.get(i));
+        }
+    }
+
+    private static void writeConsumer(final SnapshotOutput out, final ConsumerData c) throws IOException {
+        if (c == null)
+        {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        out.writeLong(c.consumerId);
+        out.writeInt(c.events.length);
+        for (final ConsumerEventsData events : c.events)
+        {
+            out.writeBoolean(events != null);
+            if (events != null)
+                events.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads the consumers written by {@link #writeConsumers(SnapshotOutput, List, int, int, boolean)} into
+     * the same indices of consumerData, and their IDs into ids if they were written with IDs;
+     * different ranges may be read concurrently.
+     */
+    private void readConsumers(final SnapshotInput in, final int from, final int to, final EventsDataDescriptor [] descriptors, final long [] ids) throws IOException {
+        for (int i = from; i < to; i++)
+        {
+            if (ids != null)
+                ids[i] = in.readLong();
+            final ConsumerData c = readConsumer(in, descriptors);
+            if (c != null)
+                consumerData.set(i, c);
+        }
+    }
+
+    private static ConsumerData readConsumer(final SnapshotInput in, final EventsDataDescriptor [] descriptors) throws IOException {
+        if (!in.readBoolean())
+            return null;
+        final long consumerId = in.readLong();
+        final int n = in.readInt();
+        if (n != descriptors.length)
+            throw new IOException("Consumer " + consumerId + " has " + n + " event types in the snapshot instead of " + descriptors.length);
+        final ConsumerData c = new ConsumerData(consumerId, n);
+        for (int j = 0; j < n; j++)
+        {
+            if (!in.readBoolean())
+                continue;
+            final ConsumerEventsData events = descriptors[j].createEventsData();
+            events.readFrom(in);
+            c.events[j] = events;
+        }
+        return c;
+    }
+
+    /**
+     * Writes a batch, before it is merged and committed, as a record of the write-ahead
+     * journal: the read positions of event types before and after it, the IDs of pushed
+     * events, the IDs of the products it refers to and the new events of its consumers.
+     */
+    public void writeJournalRecord(final SnapshotOutput out, final UpdateIncrementalData batch) throws IOException {
+        out.writeInt(batch.readIdsBefore.length);
+        for (int i = 0; i < batch.readIdsBefore.length; i++)
+        {
+            out.writeLong(batch.readIdsBefore[i]);
+            out.writeLong(batch.readIdsAfter[i]);
+            out.writeLong(batch.readDatesAfter[i]);
+        }
+        if (batch.ingestedIds == null)
+            out.writeInt(-1);
+        else
+        {
+            out.writeInt(batch.ingestedIds.size());
+            for (final Map.Entry<EventsDataDescriptor, long[]> e : batch.ingestedIds.entrySet())
+            {
+                out.writeInt(e.getKey().index);
+                out.writeLongArray(e.getValue());
+            }
+        }
+        // product indices are only valid with the catalog of this model, the journal refers to products by ID
+        final TIntHashSet products = new TIntHashSet();
+        int consumers = 0;
+        for (final ConsumerData c : batch.newData)
+        {
+            if (c == null) continue;
+            consumers++;
+            for (final ConsumerEventsData e : c.events)
+                if (e != null)
+                    products.addAll(e.getProductIndices());
+        }
+        out.writeInt(products.size());
+        for (final TIntIterator it = products.iterator(); it.hasNext(); )
+        {
+            final int index = it.next();
+            out.writeInt(index);
+            out.writeLong(productData.get(index).productId);
+        }
+        out.writeInt(consumers);
+        for (final ConsumerData c : batch.newData)
+            if (c != null)
+                writeConsumer(out, c);
+    }
+
+    /**
+     * Reads a batch written by {@link #writeJournalRecord(SnapshotOutput, UpdateIncrementalData)}
+     * with the read positions after it, like {@link #readNextBatch()}. Returns null if the
+     * batch does not continue from the current read positions, because it is already contained in
+     * the model or belongs to a model that was replaced. Fails if the batch refers to a product
+     * that is not in the catalog.
+     */
+    public UpdateIncrementalData readJournalRecord(final SnapshotInput in) throws IOException
+    {
+        final int n = in.readInt();
+        if (n != eventsNames.length)
+            throw new IOException("The journal record has " + n + " event types, but " + eventsNames.length + " are configured");
+        final EventsDataDescriptor [] descriptors = new EventsDataDescriptor[n];
+        for (final EventsDataDescriptor descriptor : eventsDescriptors.values())
+            descriptors[descriptor.index] = descriptor;
+        final long [] before = new long[n];
+        final long [] after = new long[n];
+        final long [] dates = new long[n];
+        boolean continues = true;
+        for (int i = 0; i < n; i++)
+        {
+            before[i] = in.readLong();
+            after[i] = in.readLong();
+            dates[i] = in.readLong();
+            continues = continues && (before[i] == descriptors[i].last_read_id);
+        }
+        if (!continues)
+            return null;
+        final int ingestedCount = in.readInt();
+        Map<EventsDataDescriptor, long[]> ingestedIds = null;
+        if (ingestedCount >= 0)
+        {
+            ingestedIds = new HashMap<EventsDataDescriptor, long[]>();
+            for (int i = 0; i < ingestedCount; i++)
+            {
+                final int index = in.readInt();
+                if ((index < 0) || (index >= n))
+                    throw new IOException("Invalid event type index " + index + " in the journal record");
+                ingestedIds.put(descriptors[index], in.readLongArray());
+            }
+        }
+        final int productCount = in.readInt();
+        final TIntIntHashMap productIndices = new TIntIntHashMap(productCount * 2);
+        for (int i = 0; i < productCount; i++)
+        {
+            final int index = in.readInt();
+            final long productId = in.readLong();
+            final int current = getProductIndex(productId);
+            if (current < 0)
+                throw new IOException("Product " + productId + " of the journal record is not in the catalog");
+            productIndices.put(index, current);
+        }
+
+        final ConsumerIDMap.Overlay newConsumerIDs = consumerIDs.overlay();
+        final int consumerCount = newConsumerIDs.size();
+        final ArrayList<ConsumerData> newConsumerData = new ArrayList<ConsumerData>(consumerCount);
+        for (int i=consumerCount; i>0; i--)
+            newConsumerData.add(null);
+        try {
+            final int batchConsumers = in.readInt();
+            for (int i = 0; i < batchConsumers; i++)
+            {
+                final ConsumerData c = readConsumer(in, descriptors);
+                if (c == null) continue;
+                for (final ConsumerEventsData e : c.events)
+                {
+                    if (e == null) continue;
+                    final int [] indices = e.getProductIndices();
+                    for (int j = 0; j < indices.length; j++)
+                        indices[j] = productIndices.get(indices[j]);
+                    e.setProductIndices(indices);
+                }
+                final int consumerIndex = newConsumerIDs.add(c.consumerId);
+                if (consumerIndex >= newConsumerData.size())
+                    newConsumerData.add(c);
+                else
+                    newConsumerData.set(consumerIndex, c);
+            }
+        }
+        catch (IOException | RuntimeException | Error e) {
+            newConsumerIDs.discard(); // the batch will not be committed
+            throw e;
+        }
+
+        // the read positions of the model advance when the batch is committed
+        final Map<String, EventsDataDescriptor> batchDescriptors = copyDescriptors(eventsDescriptors);
+        for (final EventsDataDescriptor descriptor : batchDescriptors.values())
+        {
+            descriptor.last_read_id = after[descriptor.index];
+            descriptor.last_read_date = dates[descriptor.index];
+        }
+        final UpdateIncrementalData batch = new UpdateIncrementalData(this, newConsumerData, newConsumerIDs, batchDescriptors, updateBasicStats(newConsumerData), ingestedIds);
+        batch.setReadPositions(before, after, dates);
+        return batch;
+    }
+
+    /**
+     * The read positions of event types, as stored in a snapshot.
+     */
+    private static final class SavedEvents {
+        final String [] names;
+        final String [] classes;
+        final int [] metaLengths;
+        final long [] lastReadIds;
+        final long [] lastReadDates;
+        final long [][] ingested;
+
+        SavedEvents(final SnapshotInput in) throws IOException {
+            final int eventCount = in.readInt();
+            names = new String[eventCount];
+            classes = new String[eventCount];
+            metaLengths = new int[eventCount];
+            lastReadIds = new long[eventCount];
+            lastReadDates = new long[eventCount];
+            ingested = new long[eventCount][];
+            for (int i = 0; i < eventCount; i++)
+            {
+                names[i] = in.readString();
+                classes[i] = in.readString();
+                metaLengths[i] = in.readInt();
+                lastReadIds[i] = in.readLong();
+                lastReadDates[i] = in.readLong();
+                ingested[i] = in.readLongArray();
+            }
+        }
+
+        /**
+         * Returns the descriptors of the data store in the order of the snapshot; the events
+         * must be stored the same way as they are configured now.
+         */
+        EventsDataDescriptor [] match(final DataStore dt) throws IOException {
+            if (names.length != dt.eventsNames.length)
+                throw new IOException("The snapshot has " + names.length + " event types, but " + dt.eventsNames.length + " are configured");
+            final EventsDataDescriptor [] descriptors = new EventsDataDescriptor[names.length];
+            for (int i = 0; i < names.length; i++)
+            {
+                final EventsDataDescriptor descriptor = dt.eventsDescriptors.get(names[i]);
+                if ((descriptor == null) || (descriptor.index != i))
+                    throw new IOException("Event type " + names[i] + " of the snapshot is not configured at index " + i);
+                if (!classes[i].equals(descriptor.createEventsData().getClass().getName()) || (metaLengths[i] != descriptor.meta.length))
+                    throw new IOException("Event type " + names[i] + " of the snapshot is configured differently");
+                descriptors[i] = descriptor;
+            }
+            return descriptors;
+        }
+
+        /**
+         * Sets the read positions, so that reading does not start from the beginning.
+         */
+        void apply(final EventsDataDescriptor [] descriptors) {
+            for (int i = 0; i < descriptors.length; i++)
+            {
+                descriptors[i].last_read_id = lastReadIds[i];
+                descriptors[i].last_read_date = lastReadDates[i];
+                descriptors[i].setIngested(ingested[i]);
+            }
+        }
+    }
+
 	public DataStore(Reader reader)
 	{
         logger = LogManager.getLogger(DataStore.class.getName() + "[REC " + reader.getRecommenderId() + "]");
@@ -164,10 +916,10 @@ public class DataStore {
         final ConsumerData oldData = consumerIndex < 0 ? null : consumerData.get(consumerIndex);
 
         //     compute basic stats
-        computeDeltaStats(oldData, newData);
+        final ProductStatistics.Delta statsDelta = computeDeltaStats(oldData, newData);
 
         logger.info("Updating consumer finished");
-        return new UpdateData(this, oldData, newData, consumerIndex < 0 ? consumerData.size() : consumerIndex);
+        return new UpdateData(this, oldData, newData, consumerIndex < 0 ? consumerData.size() : consumerIndex, statsDelta);
     }
     
     protected void initializeEvents(Settings settings)
@@ -228,7 +980,8 @@ public class DataStore {
 
         // create a mapping for consumers
         consumerData = new ArrayList<ConsumerData>(30000);
-        consumerIDs = new TLongIntHashMap(30000, (float)0.8, -1L, -1); // we want "null" values to be represented with negative values, other arguments are something arbitrary
+        consumerIDs = new ConsumerIDMap(30000);
+        stats = new ProductStatistics(this, settings, eventsDescriptors, productData.size());
         logger.info("updateData end");
 	}
 	
@@ -237,73 +990,331 @@ public class DataStore {
 	 */
 	
     public UpdateIncrementalData readNextBatch()
+	{
+        return readNextBatch(null);
+	}
+
+    /**
+     * Reads the batch that follows <code>previous</code>, a batch that was read but
+     * is not committed yet, or the next batch after the committed data if previous
+     * is null. Batches must be committed in the order they were read.
+     */
+    public UpdateIncrementalData readNextBatch(final UpdateIncrementalData previous)
 	{
     	logger.info("Starting reading next batch");
-        ArrayList<ConsumerData> newConsumerData = new ArrayList<ConsumerData>(consumerData.size());
-        for (int i=consumerData.size(); i>0; i--)
+        // new consumers are published on commit
+        final ConsumerIDMap.Overlay newConsumerIDs = previous == null ? consumerIDs.overlay() : consumerIDs.overlay(previous.newConsumerIDs);
+        final int consumerCount = newConsumerIDs.size();
+        ArrayList<ConsumerData> newConsumerData = new ArrayList<ConsumerData>(consumerCount);
+        for (int i=consumerCount; i>0; i--)
             newConsumerData.add(null);
-        TLongIntHashMap newConsumerIDs = new TLongIntHashMap(consumerIDs); 
-        finishedReading = reader.batchFillConsumersWithEvents(consumerData, newConsumerData, newConsumerIDs, productIDs, eventsDescriptors);
-        return new UpdateIncrementalData(this, newConsumerData, newConsumerIDs, eventsDescriptors, updateBasicStats(newConsumerData));
+        // the batch is read with its own copies of the descriptors, which continue from the
+        // previous batch; the read positions and dates of the model advance on commit
+        final Map<String, EventsDataDescriptor> batchDescriptors = copyDescriptors(previous == null ? eventsDescriptors : previous.eventsDescriptors);
+        final long [] readIdsBefore = readIds(batchDescriptors);
+        try {
+            finishedReading = reader.batchFillConsumersWithEvents(consumerData, newConsumerData, newConsumerIDs, productIDs, batchDescriptors);
+        }
+        catch (RuntimeException | Error e) {
+            newConsumerIDs.discard(); // the batch will not be committed
+            throw e;
+        }
+        final UpdateIncrementalData batch = new UpdateIncrementalData(this, newConsumerData, newConsumerIDs, batchDescriptors, updateBasicStats(newConsumerData));
+        batch.setReadPositions(readIdsBefore, readIds(batchDescriptors), readDates(batchDescriptors));
+        return batch;
 	}
+
+    /**
+     * Creates a batch from events pushed to the recommender, for a micro-commit. Events that
+     * were already read from the database (up to last_read_id) or pushed before are skipped;
+     * the others are remembered on commit, so they are skipped when they are read from the
+     * database later. Only events of products without other columns than meta (buys,
+     * views, ...) can be pushed. There must be no uncommitted batch read from the database.
+     */
+    public UpdateIncrementalData createIngestedBatch(final IngestedEvents events)
+    {
+        final ConsumerIDMap.Overlay newConsumerIDs = consumerIDs.overlay();
+        final int consumerCount = newConsumerIDs.size();
+        final ArrayList<ConsumerData> newConsumerData = new ArrayList<ConsumerData>(consumerCount);
+        for (int i=consumerCount; i>0; i--)
+            newConsumerData.add(null);
+        final int eventTypeCount = eventsDescriptors.size();
+        final Map<String, EventsDataDescriptor> batchDescriptors = copyDescriptors(eventsDescriptors);
+        final Map<EventsDataDescriptor, long[]> ingestedIds = new HashMap<EventsDataDescriptor, long[]>();
+        int count = 0;
+        try {
+            for (final String eventType : events.getEventTypes())
+            {
+                final EventsDataDescriptor descriptor = batchDescriptors.get(eventType);
+                if (descriptor == null)
+                {
+                    logger.warn("Ignoring pushed events of unknown type " + eventType);
+                    continue;
+                }
+                if (!(descriptor.createEventsData() instanceof ConsumerBuysData))
+                {
+                    logger.warn("Ignoring pushed events of type " + eventType + ": only events of single products can be pushed");
+                    continue;
+                }
+                final IngestedEvents.Rows rows = events.get(eventType);
+                final int dateIndex = descriptor.getMetaIndex("date");
+                final int metaCount = descriptor.meta.length;
+                final TLongHashSet accepted = new TLongHashSet();
+                final int n = rows.size();
+                for (int i = 0; i < n; i++)
+                {
+                    final long eventId = rows.eventIds.get(i);
+                    if ((eventId <= descriptor.last_read_id) || descriptor.isIngested(eventId) || !accepted.add(eventId))
+                        continue;
+                    final long consumerId = rows.consumerIds.get(i);
+                    final int consumerIndex = newConsumerIDs.add(consumerId);
+                    ConsumerData c;
+                    if (consumerIndex >= newConsumerData.size())
+                    {
+                        c = new ConsumerData(consumerId, eventTypeCount);
+                        newConsumerData.add(c);
+                    }
+                    else if ((c = newConsumerData.get(consumerIndex)) == null)
+                    {
+                        c = new ConsumerData(consumerId, eventTypeCount);
+                        newConsumerData.set(consumerIndex, c);
+                    }
+                    ConsumerEventsData eventsData = c.events[descriptor.index];
+                    if (eventsData == null)
+                        c.events[descriptor.index] = eventsData = descriptor.createEventsData();
+                    // the same layout as a row read from the database: consumer, product, meta values
+                    final Object [] meta = rows.meta.get(i);
+                    final Object [] result = new Object[2 + metaCount];
+                    result[0] = consumerId;
+                    result[1] = rows.productIds.get(i);
+                    for (int m = 0; m < metaCount; m++)
+                        result[2 + m] = m == dateIndex ? new Date(rows.timestamps.get(i)) : (meta == null) || (m >= meta.length) ? null : meta[m];
+                    eventsData.addEvent(descriptor, result);
+                }
+                if (accepted.size() > 0)
+                    ingestedIds.put(descriptor, accepted.toArray());
+                count += accepted.size();
+            }
+            for (final ConsumerData c : newConsumerData)
+            {
+                if (c == null) continue;
+                for (final ConsumerEventsData e : c.events)
+                    if (e != null)
+                        e.finalizeReading();
+            }
+        }
+        catch (RuntimeException | Error e) {
+            newConsumerIDs.discard(); // the batch will not be committed
+            throw e;
+        }
+        logger.debug("Created a batch of " + count + " pushed events of " + newConsumerIDs.added() + " new consumers");
+        final UpdateIncrementalData batch = new UpdateIncrementalData(this, newConsumerData, newConsumerIDs, batchDescriptors, updateBasicStats(newConsumerData), ingestedIds);
+        final long [] positions = readIds(batchDescriptors);
+        batch.setReadPositions(positions, positions, readDates(batchDescriptors));
+        return batch;
+    }
+
+    /**
+     * Returns copies of the descriptors with their read positions and dates, for a batch that
+     * is read or applied before it is committed.
+     */
+    private static Map<String, EventsDataDescriptor> copyDescriptors(final Map<String, EventsDataDescriptor> descriptors)
+    {
+        final Map<String, EventsDataDescriptor> copies = new HashMap<String, EventsDataDescriptor>(descriptors.size());
+        for (final Map.Entry<String, EventsDataDescriptor> e : descriptors.entrySet())
+            copies.put(e.getKey(), e.getValue().createPartial());
+        return copies;
+    }
+
+    /**
+     * Returns last_read_id of the event types, by their indices.
+     */
+    private static long [] readIds(final Map<String, EventsDataDescriptor> descriptors)
+    {
+        final long [] ids = new long[descriptors.size()];
+        for (final EventsDataDescriptor descriptor : descriptors.values())
+            ids[descriptor.index] = descriptor.last_read_id;
+        return ids;
+    }
+
+    private static long [] readDates(final Map<String, EventsDataDescriptor> descriptors)
+    {
+        final long [] dates = new long[descriptors.size()];
+        for (final EventsDataDescriptor descriptor : descriptors.values())
+            dates[descriptor.index] = descriptor.last_read_date;
+        return dates;
+    }
     
     
+    /**
+     * Reads the catalog and updates products, keeping product indices stable:
+     * a product keeps its index for its lifetime, a new product takes a recycled
+     * slot or is appended, and a product that disappeared from the catalog is
+     * tombstoned (kept at its index, marked as removed). Consumer histories are
+     * not touched.
+     * Tombstones are only dropped by a compaction, which happens when their share
+     * exceeds PRODUCTS_COMPACT_RATIO (never, if not set) or on compactProducts().
+     */
     public UpdateProductsDelta updateProducts()
     {
-    	// testing: print 5398730
+        final Float ratio = reader.getSettings().getSettingAsFloat("PRODUCTS_COMPACT_RATIO");
+        int tombstones = 0;
+        for (final ProductData p : productData)
+            if (p.removed) tombstones++;
+        return updateProducts((ratio != null) && (tombstones > ratio * productData.size()));
+    }
+
+    /**
+     * Reads the catalog and compacts the product indices (removing tombstones that
+     * are not referenced by any consumer).
+     */
+    public UpdateProductsDelta compactProducts()
+    {
+        return updateProducts(true);
+    }
+
+    private UpdateProductsDelta updateProducts(final boolean compact)
+    {
         long start = System.currentTimeMillis();
-        List<ProductData> newProductData = reader.getProducts(domain);
+        final List<ProductData> readProducts = reader.getProducts(domain);
         logger.info("Reading products took "+ (System.currentTimeMillis()-start) + " miliseconds.");
-        // create a mapping from ids to indices
-        final int prodLength = newProductData.size();
-        TLongIntHashMap newProductIDs = new TLongIntHashMap((int)Math.ceil(prodLength/0.8), (float)0.8, -1L, -1); // we want "null" values to be represented with negative values, other arguments are something arbitrary
-        int product_counter=0;
-        for (; product_counter<prodLength; product_counter++)
-            newProductIDs.put(newProductData.get(product_counter).productId, product_counter);
+
+        final int oldSize = productData.size();
+        final List<ProductData> newProductData = new ArrayList<ProductData>(productData);
+        final TLongIntHashMap newProductIDs = new TLongIntHashMap(productIDs);
+        // only the products that were read, so that attributes of tombstones are not overwritten
+        final TLongIntHashMap readProductIDs = new TLongIntHashMap((int)Math.ceil(readProducts.size()/0.8), (float)0.8, -1L, -1);
+        final boolean [] present = new boolean[oldSize];
+
+        // free slots: tombstones that never occurred in any event
+        final TIntArrayList free = new TIntArrayList();
+        for (int i = oldSize - 1; i >= 0; i--)
+            if (productData.get(i).removed && (stats.getFrequency(i) == 0))
+                free.add(i);
+
+        final TIntArrayList added = new TIntArrayList();
+        final TIntArrayList recycled = new TIntArrayList();
+        final TIntArrayList removed = new TIntArrayList();
+        for (final ProductData p : readProducts)
+        {
+            int index = newProductIDs.get(p.productId);
+            if (index >= 0)
+            {
+                // existing product, or a tombstone that came back (then its slot may be among the free ones)
+                if ((index < oldSize) && productData.get(index).removed)
+                    free.remove(index);
+            }
+            else if (free.isEmpty())
+            {
+                index = newProductData.size();
+                newProductData.add(null);
+                added.add(index);
+            }
+            else
+            {
+                index = free.removeAt(free.size() - 1);
+                newProductIDs.remove(productData.get(index).productId);
+                recycled.add(index);
+                added.add(index);
+            }
+            newProductData.set(index, p);
+            newProductIDs.put(p.productId, index);
+            readProductIDs.put(p.productId, index);
+            if (index < oldSize)
+                present[index] = true;
+        }
+        for (int i = 0; i < oldSize; i++)
+        {
+            final ProductData old = productData.get(i);
+            if (present[i] || old.removed)
+                continue;
+            final ProductData tombstone = new ProductData(old);
+            tombstone.removed = true;
+            newProductData.set(i, tombstone);
+            removed.add(i);
+        }
 
         start = System.currentTimeMillis();
         // fill products with attributes AND create a mapping from attributeIDs to their indices
-        //attributeIDs = 
-        reader.updateProductsWithAttributes(newProductData, productData, newProductIDs, productIDs);
+        final TIntHashSet changedProducts = reader.updateProductsWithAttributes(newProductData, productData, readProductIDs, productIDs);
         logger.info("Updating products with attributes took "+ (System.currentTimeMillis()-start) + " miliseconds.");        
-        
-        // compute new product indices given new productIDs;
-        ArrayList<ArrayList<TIntList>> newIndices = new ArrayList<ArrayList<TIntList>> ();
-        final int consSize = consumerData.size();
-        for (int i = 0; i < consSize; i++)
-        {
-            ArrayList<TIntList> consIndices = new ArrayList<TIntList>();
-            final ConsumerEventsData [] consEvents = consumerData.get(i).events;
-            for (int j = 0; j < consEvents.length; j++)
+        // only new and changed products were parsed, the others reuse post-processed attributes
+        final List<ProductData> changedProductData = new ArrayList<ProductData>(changedProducts.size());
+        for (final TIntIterator it = changedProducts.iterator(); it.hasNext(); )
+            changedProductData.add(newProductData.get(it.next()));
+        postProcessAttributes(changedProductData);
+        logger.info("Products updated: " + added.size() + " added (" + recycled.size() + " in recycled slots), " + removed.size() + " removed, " + (newProductData.size() - readProducts.size()) + " tombstones.");
+
+        if (!compact)
+        {
+            final UpdateProductsDelta delta = new UpdateProductsDelta(this, newProductData, newProductIDs, null, null, added.toArray(), removed.toArray(), recycled.toArray());
+            delta.changedIndices = changedProducts.toArray();
+            return delta;
+        }
+
+        // compaction: keep live products and tombstones that consumers still refer to
+        final int size = newProductData.size();
+        final boolean [] referenced = new boolean[size];
+        for (final ConsumerData c : consumerData)
+            for (final ConsumerEventsData e : c.events)
+                if (e != null)
+                    for (final int ci : e.getProductIndices())
+                        if ((ci >= 0) && (ci < size))
+                            referenced[ci] = true;
+        final int [] compactIndex = new int[size];
+        final List<ProductData> compactProductData = new ArrayList<ProductData>(size);
+        for (int i = 0; i < size; i++)
+        {
+            final ProductData p = newProductData.get(i);
+            if (p.removed && !referenced[i])
             {
-                TIntList newConsumerIndices = new TIntArrayList();
-                if (consEvents[j] != null)
-                    for (int ci : consEvents[j].getProductIndices())
+                compactIndex[i] = -1;
+                newProductIDs.remove(p.productId);
+                continue;
+            }
+            compactIndex[i] = compactProductData.size();
+            newProductIDs.put(p.productId, compactIndex[i]);
+            compactProductData.add(p);
+        }
+        final int [] oldToNew = new int[oldSize];
+        for (int i = 0; i < oldSize; i++)
+            oldToNew[i] = compactIndex[i];
+        for (final TIntIterator it = recycled.iterator(); it.hasNext(); )
+            oldToNew[it.next()] = -1;
+
+        // compute new product indices of consumers
+        final ArrayList<ArrayList<TIntList>> newIndices = new ArrayList<ArrayList<TIntList>> ();
+        for (final ConsumerData c : consumerData)
+        {
+            final ArrayList<TIntList> consIndices = new ArrayList<TIntList>();
+            for (final ConsumerEventsData e : c.events)
+            {
+                final TIntList newConsumerIndices = new TIntArrayList();
+                if (e != null)
+                    for (final int ci : e.getProductIndices())
                     {
-                    	if (ci < 0)
-                    	{
-                    		logger.error("Negative index of a product!!! This should never occur, the data were probably corrupted.");
-                    		newConsumerIndices.add(ci);
-                    	}
-                    	else
-                    	{
-                    		if (newProductIDs.get(productData.get(ci).productId) < 0)
-                    		{
-                    			logger.warn("Product with id " + productData.get(ci).productId + " missing");
-                    			newProductIDs.put(productData.get(ci).productId, product_counter);
-                    			product_counter++;
-                    			newProductData.add(productData.get(ci));
-                    		}
-                    		newConsumerIndices.add(newProductIDs.get(productData.get(ci).productId));
-                    	}
+                        if (ci < 0)
+                        {
+                            logger.error("Negative index of a product!!! This should never occur, the data were probably corrupted.");
+                            newConsumerIndices.add(ci);
+                        }
+                        else
+                            newConsumerIndices.add(compactIndex[ci]);
                     }
                 consIndices.add(newConsumerIndices);
             }
             newIndices.add(consIndices);
         }
-        
-        postProcessAttributes(newProductData);
-        return new UpdateProductsDelta(this, newProductData, newProductIDs, newIndices);
+        logger.info("Compacted products from " + size + " to " + compactProductData.size() + " slots.");
+        return new UpdateProductsDelta(this, compactProductData, newProductIDs, newIndices, oldToNew, mapIndices(added, compactIndex), removed.toArray(), mapIndices(recycled, compactIndex));
+    }
+
+    private static int [] mapIndices(final TIntList indices, final int [] map)
+    {
+        final int [] result = new int[indices.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = map[indices.get(i)];
+        return result;
     }
     
     private void postProcessAttributes(List<ProductData> pd)
@@ -347,7 +1358,24 @@ public class DataStore {
 	    return productIDs;
 	}
 	
-    public TLongIntHashMap getConsumerIDMap()
+    /**
+     * Returns the state that the predictors of this model share under the key, setting it to
+     * <code>value</code> if there is none yet. The state belongs to the model and goes away
+     * with it, a model that is built anew starts without any.
+     */
+    public Object putSharedIfAbsent(final String key, final Object value)
+    {
+        synchronized (shared)
+        {
+            final Object existing = shared.get(key);
+            if (existing != null)
+                return existing;
+            shared.put(key, value);
+            return value;
+        }
+    }
+
+    public ConsumerIDMap getConsumerIDMap()
     {
         return consumerIDs;
     }
@@ -377,12 +1405,21 @@ public class DataStore {
         return productIDs.get(productID);
     }
     
-    public int getConsumerIndex(long consumerID)
+    /**
+     * Returns the index of the product if it is in the catalog, or -1; unlike
+     * {@link #getProductIndex(long)}, products that were removed from the catalog
+     * (tombstones) are not found, so they are not recommended.
+     */
+    public int getCatalogProductIndex(final long productID)
     {
-        if (!consumerIDs.contains(consumerID))
-        {
+        final int index = getProductIndex(productID);
+        if ((index < 0) || productData.get(index).removed)
             return -1;
-        }
+        return index;
+    }
+
+    public int getConsumerIndex(long consumerID)
+    {
         return consumerIDs.get(consumerID);
     }    
     
@@ -416,140 +1453,53 @@ public class DataStore {
     
     public void removeData()
     {
-        for (ConsumerData c : consumerData)
+        // consumers are replaced, not changed, a snapshot may be writing them
+        for (int i = consumerData.size() - 1; i >= 0; i--)
         {
+            final ConsumerData c = new ConsumerData(consumerData.get(i), false);
             c.removeData(eventsDescriptors);
+            consumerData.set(i, c);
         }
-        
+        // all consumers changed
+        requireFullSnapshot();
     }    
 
     /**
-     * Compute basic stats for each event.
-     * Deprecated - use updateBasicStats instead
+     * Counts the frequencies of products from scratch, from all consumers in memory.
+     * Only needed when the data store was loaded from a file, incremental updates
+     * maintain the frequencies with updateBasicStats and computeDeltaStats.
      */
     public void computeBasicStats()
     {
-        // reset frequencies of products
-        for (final ProductData p : productData)
-            p.freq = 0;
-
-        for (int i = consumerData.size() - 1; i >= 0; i--)
-        {
-            final ConsumerEventsData[] events = consumerData.get(i).events;
-            for (int j = events.length - 1; j >= 0; j--)
-            {
-                final ConsumerEventsData e = events[j];
-                if (null == e) continue;
-                final int [] prods = events[j].getProductIndices();
-                for (int p=prods.length-1; p>=0; p--)
-                    productData.get(prods[p]).freq++;
-            }
-        }
+        stats.reset(productData.size());
+        stats.computeDelta(consumerData).commit();
     }
     
-    public StatsUpdateDelta updateBasicStats(final ArrayList<ConsumerData> newData)
+    /**
+     * Counts the events of a new batch. The returned delta is committed together
+     * with the batch.
+     */
+    public ProductStatistics.Delta updateBasicStats(final ArrayList<ConsumerData> newData)
     {
-        final int productSize = productData.size();
-        int [] freq = new int[productSize];
-        for (int i=productSize-1; i>=0; i--)
-            freq[i] = 0;   
-        
-        for (int i = newData.size() - 1; i >= 0; i--)
-        {
-            ConsumerData cons = newData.get(i);
-            if (null == cons)
-                continue;
-            final ConsumerEventsData[] events = cons.events;
-            for (int j = events.length - 1; j >= 0; j--)
-            {
-                final ConsumerEventsData e = events[j];
-                if (null == e) continue;
-                final int [] prods = events[j].getProductIndices();
-                for (int p=prods.length-1; p>=0; p--)
-                    freq[prods[p]]++;
-            }
-        }
-        return new StatsUpdateDelta(this, freq);
+        return stats.computeDelta(newData);
     }
 
     /**
-     * Computes and then stores the statistics delta, based on the old and new
-     * consumer data. The algorithm first orders and then compares the data,
-     * where all the data elements that are not paired (=same in both the old
-     * and the new set) constitute a delta.
+     * Computes the statistics delta of a consumer update: events of the new
+     * consumer data are added and events of the old data subtracted, so that
+     * products present in both cancel out. The delta is committed with the
+     * consumer update.
      *
      * @param oldData
      * @param newData
      */
-    public void computeDeltaStats(final ConsumerData oldData, final ConsumerData newData) {
-//        final int eventTypeCount = eventsDescriptors.size();
-        final TIntIntHashMap deltas = new TIntIntHashMap();
-        for (int i = eventsDescriptors.size() - 1; i >= 0; i--)
-        {
-            final int [] newProds; // elements from the new data
-            final int [] oldProds; // elements from the old data
-            if ((null == newData) || (null == newData.events[i]))
-                newProds = new int[0]; // empty new set
-            else
-            {
-                final int [] originalNewProds = newData.events[i].getProductIndices();
-                newProds = Arrays.copyOf(originalNewProds, originalNewProds.length);
-                Arrays.sort(newProds);
-            }
-            if ((null == oldData) || (null == oldData.events[i]))
-                oldProds = new int[0]; // empty old set
-            else
-            {
-                final int [] originalOldProds = oldData.events[i].getProductIndices();
-                oldProds = Arrays.copyOf(originalOldProds, originalOldProds.length);
-                Arrays.sort(oldProds);
-            }
+    public ProductStatistics.Delta computeDeltaStats(final ConsumerData oldData, final ConsumerData newData) {
+        return stats.computeDelta(oldData, newData);
+    }
 
-            int iNew = 0;
-            int iOld = 0;
-            // compute deltas
-            for (;;) {
-                // skip corresponding pairs of product indices, they're not a part of delta
-                while ((iNew < newProds.length) && (iOld < oldProds.length) && (newProds[iNew] == oldProds[iOld]))
-                {
-                    iNew++;
-                    iOld++;
-                }
-                if ((iNew >= newProds.length) && (iOld >= oldProds.length))
-                    break; // reached the end
-                // count delta for the current index
-                final int productIndex;
-                int deltaCount = 0;
-                if ((iOld >= oldProds.length) || ((iNew < newProds.length) && (newProds[iNew] < oldProds[iOld])))
-                {
-                    // old array reached end, or skipped to a new product index
-                    productIndex = newProds[iNew];
-                    while ((iNew < newProds.length) && (productIndex == newProds[iNew]))
-                    {
-                        deltaCount++;
-                        iNew++;
-                    }
-                }
-                else
-                {
-                    // new array reached end, or skipped to a new product index
-                    productIndex = oldProds[iOld];
-                    while ((iOld < oldProds.length) && (productIndex == oldProds[iOld]))
-                    {
-                        deltaCount--;
-                        iOld++;
-                    }
-                }
-                deltas.put(productIndex, deltas.get(productIndex) + deltaCount);
-            }
-        }
-        // commit deltas
-        final TIntIntIterator deltasIterator = deltas.iterator();
-        while (deltasIterator.hasNext())
-        {
-            deltasIterator.advance();
-            productData.get(deltasIterator.key()).freq += deltasIterator.value();
-        }
+    public ProductStatistics getStatistics()
+    {
+        return stats;
     }
 
     public int eventCount(final String eventName) {
@@ -582,19 +1532,49 @@ public class DataStore {
     public static class UpdateIncrementalData implements Commitable {
         public final DataStore dataStore;
         public final ArrayList<ConsumerData> newData;
-        public final TLongIntHashMap newConsumerIDs;
-        public final Map<String, EventsDataDescriptor> eventsDescriptors;
-        public final StatsUpdateDelta statsDelta;
+        public final ConsumerIDMap.Overlay newConsumerIDs;
+        public final Map<String, EventsDataDescriptor> eventsDescriptors; // with the read positions and dates after this batch
+        public final ProductStatistics.Delta statsDelta;
+        final Map<EventsDataDescriptor, long[]> ingestedIds; // IDs of pushed events in this batch, null for batches read from the database
+        // last_read_id of event types (by index) before and after the batch, and last_read_date after it; for the journal
+        long [] readIdsBefore, readIdsAfter, readDatesAfter;
         private boolean merged;
 
-        UpdateIncrementalData(final DataStore dataStore, ArrayList<ConsumerData> newData, TLongIntHashMap newConsumerIDs, final Map<String, EventsDataDescriptor> eventsDescriptors, final StatsUpdateDelta statsDelta) {
+        UpdateIncrementalData(final DataStore dataStore, ArrayList<ConsumerData> newData, ConsumerIDMap.Overlay newConsumerIDs, final Map<String, EventsDataDescriptor> eventsDescriptors, final ProductStatistics.Delta statsDelta) {
+            this(dataStore, newData, newConsumerIDs, eventsDescriptors, statsDelta, null);
+        }
+
+        UpdateIncrementalData(final DataStore dataStore, ArrayList<ConsumerData> newData, ConsumerIDMap.Overlay newConsumerIDs, final Map<String, EventsDataDescriptor> eventsDescriptors, final ProductStatistics.Delta statsDelta, final Map<EventsDataDescriptor, long[]> ingestedIds) {
             this.dataStore = dataStore;
             this.newData = newData;
             this.newConsumerIDs = newConsumerIDs;
             this.eventsDescriptors = eventsDescriptors;
             this.statsDelta = statsDelta;
+            this.ingestedIds = ingestedIds;
             merged = false;
         }
+
+        void setReadPositions(final long [] before, final long [] after, final long [] datesAfter) {
+            readIdsBefore = before;
+            readIdsAfter = after;
+            readDatesAfter = datesAfter;
+        }
+
+        /**
+         * Returns the descriptor of the event type with the read position and date after this
+         * batch, which the descriptor of the data store only gets when the batch is committed.
+         */
+        public EventsDataDescriptor getEventsDescriptor(final String eventName) {
+            return eventsDescriptors.get(eventName);
+        }
+
+        /**
+         * Drops the new consumers of the batch if it was not committed, so that the next
+         * batch can be read. Call it when the update or the commit of the batch failed.
+         */
+        public void discard() {
+            newConsumerIDs.discard();
+        }
         
         public void mergeData()
         {
@@ -620,6 +1600,8 @@ public class DataStore {
                 // remove data
                 if (newc != null)
                 {
+                    // pushed events may precede events with smaller IDs read from the database afterwards
+                    newc.sortByTime(eventsDescriptors);
                     newc.removeData(eventsDescriptors);
                     newc.removeDataTime(eventsDescriptors);
                     newData.set(i, newc);
@@ -633,65 +1615,111 @@ public class DataStore {
         	if (!merged)
         		dataStore.logger.error("Data was not yet merged and therefore commit is not possible.");
             this.statsDelta.commit();
-            dataStore.consumerIDs = this.newConsumerIDs;
+            this.newConsumerIDs.publish();
+            // the read positions of the model advance to the ones after this batch
+            for (final Map.Entry<String, EventsDataDescriptor> e : eventsDescriptors.entrySet())
+            {
+                final EventsDataDescriptor descriptor = dataStore.eventsDescriptors.get(e.getKey());
+                descriptor.commitRead(e.getValue());
+                // pushed events up to last_read_id were skipped by the reader, they need not be remembered anymore
+                if (ingestedIds == null)
+                    descriptor.pruneIngested();
+            }
+            if (ingestedIds != null)
+                for (final Map.Entry<EventsDataDescriptor, long[]> e : ingestedIds.entrySet())
+                    dataStore.eventsDescriptors.get(dataStore.eventsNames[e.getKey().index]).addIngested(e.getValue());
             final int newSize = newData.size();
             for (int i=0; i<newSize; i++)
                 if (i == dataStore.consumerData.size())
+                {
                     dataStore.consumerData.add(newData.get(i));
+                    dataStore.dirtyConsumers.set(i);
+                }
                 else if (newData.get(i) != null)
+                {
                     dataStore.consumerData.set(i, newData.get(i));
+                    dataStore.dirtyConsumers.set(i);
+                }
         }
     }
     
-    public static class StatsUpdateDelta implements Commitable {
-        public final int [] freq;
-        public final DataStore dataStore;
-        
-        StatsUpdateDelta(final DataStore dataStore, final int [] freq)
-        {
-            this.freq = freq;
-            this.dataStore = dataStore;
-        }
-        
-        @Override
-        public void commit() {
-            final int productSize = dataStore.productData.size();
-            for (int i=productSize-1; i>=0; i--)
-                dataStore.productData.get(i).freq += freq[i];
-        }
-        
-    }
-
+    /**
+     * Product update. Product indices are stable unless the products were compacted:
+     * if isStable(), a product has the same index in newProducts as before, and only
+     * the products at addedIndices are new (recycledIndices are the subset of them that
+     * took over the slot of a removed product; only slots of products without any events
+     * are recycled, so anything stored for the old product is only in its own row at such
+     * an index, and must be reset). removedIndices are the products that were removed
+     * from the catalog; they stay at their indices as tombstones.
+     * After a compaction, oldToNew gives the new index of each old index (-1 if dropped).
+     */
     public static class UpdateProductsDelta implements Commitable {
         public final DataStore dataStore;
         public final List<ProductData> newProducts;
         public final TLongIntHashMap newProductIDs;
+        public final int [] oldToNew;
+        public final int [] addedIndices;
+        public final int [] removedIndices;
+        public final int [] recycledIndices;
         final ArrayList<ArrayList<TIntList>> newIndices;
+        int [] changedIndices; // products with new attributes, if isStable()
         
-        UpdateProductsDelta(final DataStore dataStore, final List<ProductData> newProducts, final TLongIntHashMap newProductIDs, final ArrayList<ArrayList<TIntList>> newIndices)
+        UpdateProductsDelta(final DataStore dataStore, final List<ProductData> newProducts, final TLongIntHashMap newProductIDs, final ArrayList<ArrayList<TIntList>> newIndices, final int [] oldToNew, final int [] addedIndices, final int [] removedIndices, final int [] recycledIndices)
         {
             this.dataStore = dataStore;
             this.newProducts = newProducts;
             this.newProductIDs = newProductIDs;
             this.newIndices = newIndices;
+            this.oldToNew = oldToNew;
+            this.addedIndices = addedIndices;
+            this.removedIndices = removedIndices;
+            this.recycledIndices = recycledIndices;
+        }
+
+        /**
+         * Returns true if product indices did not change (no compaction).
+         */
+        public boolean isStable()
+        {
+            return oldToNew == null;
         }
         
         @Override
         public void commit() {
             dataStore.productData = newProducts;
             dataStore.productIDs = newProductIDs;
-            // set new product indices in all consumers
-            final int consSize = dataStore.consumerData.size();
-            for (int i = 0; i < consSize; i++)
+            if (oldToNew != null)
             {
-                final ArrayList<TIntList> inds = newIndices.get(i);
-                final ConsumerData c =  dataStore.consumerData.get(i);
-                for (int j = 0; j < c.events.length; j++)
+                dataStore.stats.remap(oldToNew, newProducts.size());
+                // set new product indices in all consumers
+                // consumers are replaced with copies, not changed, a snapshot may be writing them
+                final int consSize = dataStore.consumerData.size();
+                for (int i = 0; i < consSize; i++)
                 {
-                    if (c.events[j] != null)
-                        c.events[j].setProductIndices(inds.get(j).toArray());
+                    final ArrayList<TIntList> inds = newIndices.get(i);
+                    final ConsumerData c = new ConsumerData(dataStore.consumerData.get(i), false);
+                    for (int j = 0; j < c.events.length; j++)
+                    {
+                        if (c.events[j] != null)
+                            c.events[j].setProductIndices(inds.get(j).toArray());
+                    }
+                    dataStore.consumerData.set(i, c);
                 }
+                // all product indices changed
+                dataStore.requireFullSnapshot();
             }
+            else
+            {
+                for (final int i : addedIndices)
+                    dataStore.dirtyProducts.set(i);
+                for (final int i : removedIndices)
+                    dataStore.dirtyProducts.set(i);
+                if (changedIndices != null)
+                    for (final int i : changedIndices)
+                        dataStore.dirtyProducts.set(i);
+            }
+            for (int i = newProducts.size() - 1; i >= 0; i--)
+                newProducts.get(i).freq = dataStore.stats.getFrequency(i);
         }
         
     }
@@ -701,20 +1729,23 @@ public class DataStore {
         public final ConsumerData oldData;
         public final ConsumerData newData;
         public final int consumerIndex;
+        public final ProductStatistics.Delta statsDelta;
 
-        UpdateData(final DataStore dataStore, final ConsumerData oldData, final ConsumerData newData, final int consumerIndex) {
+        UpdateData(final DataStore dataStore, final ConsumerData oldData, final ConsumerData newData, final int consumerIndex, final ProductStatistics.Delta statsDelta) {
             this.dataStore = dataStore;
             this.oldData = oldData;
             this.newData = newData;
             this.consumerIndex = consumerIndex;
+            this.statsDelta = statsDelta;
         }
 
         @Override
         public void commit() {
+            statsDelta.commit();
             if (consumerIndex >= dataStore.consumerData.size())
             {
                 dataStore.logger.debug("UpdateData.commit(): adding consumer with ID " + newData.consumerId + " at index " + consumerIndex);
-                dataStore.consumerIDs.put(newData.consumerId, dataStore.consumerData.size());
+                dataStore.consumerIDs.add(newData.consumerId);
                 dataStore.consumerData.add(newData);
             }
             else
@@ -722,6 +1753,7 @@ public class DataStore {
                 dataStore.logger.debug("UpdateData.commit(): replacing consumer with ID " + newData.consumerId + " at index " + consumerIndex);
                 dataStore.consumerData.set(consumerIndex, newData);
             }
+            dataStore.dirtyConsumers.set(consumerIndex);
         }
     }
 
@@ -23,6 +23,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Map;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
@@ -110,6 +113,20 @@ public class DiscAttr extends Attr implements Cloneable {
 		out.writeObject(value);
 	}
 
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeBoolean(value != null);
+		if (value != null) out.writeInt(value);
+	}
+
+	@Override
+	public void readFrom(SnapshotInput in, Map<String, Object> globals) throws IOException {
+		super.readFrom(in, globals);
+		value = in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+	}
+
 	@Override
 	public void storeGlobals(Map<String, Object> globals) {
 		// no global variables
@@ -26,6 +26,8 @@ import java.util.List;
 import java.util.Map;
 
 import com.gurucue.recommendations.recommender.reader.Reader;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 
 /**
  * This class stores information about attributes of products that are used in generating recommendations. 
@@ -85,6 +87,73 @@ public class Domain {
 		return domain;
 	}
 	
+	/**
+	 * Writes the global variables of attributes and the products to a snapshot.
+	 */
+	public void writeTo(List<ProductData> productData, SnapshotOutput out) throws IOException
+	{
+		writeGlobals(out);
+		out.writeInt(productData.size());
+		writeProducts(productData, 0, productData.size(), out);
+	}
+
+	public static Domain readFrom(List<ProductData> productData, Reader reader, SnapshotInput in) throws IOException {
+	    final Map<String, Object> globals = new HashMap<String, Object> ();
+	    final Domain domain = readGlobals(reader, in, globals);
+	    final int productsSize = in.readInt();
+	    for (int i = 0; i < productsSize; i++)
+	    	productData.add(null);
+	    domain.readProducts(productData, 0, productsSize, globals, in);
+		return domain;
+	}
+
+	/**
+	 * Writes the global variables of attributes, which are needed to read products.
+	 */
+	public void writeGlobals(SnapshotOutput out) throws IOException
+	{
+		Map<String, Object> globals = new HashMap<String, Object> ();
+   		for (Attr a : attrs)
+   			a.storeGlobals(globals);
+   		out.writeObjectBlock(globals);
+	}
+
+	/**
+	 * Reads the global variables of attributes into <code>globals</code> and creates the domain.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Domain readGlobals(Reader reader, SnapshotInput in, Map<String, Object> globals) throws IOException {
+	    globals.putAll((Map<String, Object>) in.readObjectBlock());
+   		Domain domain = reader.createDomain();
+   		for (Attr a : domain.attrs)
+   			a.loadGlobals(globals);
+   		return domain;
+	}
+
+	/**
+	 * Writes the products with indices from <code>from</code> (inclusive) to <code>to</code> (exclusive).
+	 */
+	public static void writeProducts(List<ProductData> productData, int from, int to, SnapshotOutput out) throws IOException
+	{
+    	for (int i = from; i < to; i++)
+    	{
+    		final ProductData p = productData.get(i);
+    		out.writeBoolean(p != null);
+    		if (p != null)
+    			p.writeTo(out);
+    	}
+	}
+
+	/**
+	 * Reads the products written by {@link #writeProducts(List, int, int, SnapshotOutput)} into
+	 * the same indices of <code>productData</code>, which must already have them. Products of
+	 * different ranges may be read concurrently.
+	 */
+	public void readProducts(List<ProductData> productData, int from, int to, Map<String, Object> globals, SnapshotInput in) throws IOException {
+	    for (int i = from; i < to; i++)
+	    	productData.set(i, in.readBoolean() ? ProductData.readFrom(in, globals, this) : null);
+	}
+
 	public Attr [] getAttrs()
 	{
 		return attrs;
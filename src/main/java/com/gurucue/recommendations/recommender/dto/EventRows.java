@@ -0,0 +1,398 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.dto;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+
+/**
+ * A reusable block of event rows, decoded column by column into primitive arrays.
+ * <p>
+ * An event row has the same layout as the Object array given to
+ * {@link ConsumerEventsData#addEvent(EventsDataDescriptor, Object[])}: column 0 is
+ * the consumer ID, followed by the columns of the event type and the meta values.
+ * How each column is read is resolved once per query, from the result set metadata,
+ * the event type ({@link ConsumerEventsData#leadingColumnKinds(int[])}) and the
+ * meta description of the descriptor. Columns of unknown kind are read as objects.
+ */
+public final class EventRows {
+    // kinds of columns
+    public static final int OBJECT = 0;
+    public static final int LONG = 1;
+    public static final int DOUBLE = 2;
+    public static final int STRING = 3;
+    public static final int DATE = 4; // stored as milliseconds
+    public static final int BYTE = 5;
+    public static final int INT = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int [] kinds; // by column, index 0 (consumer ID) is not used
+    private long [] eventIds;
+    private long [] consumerIds;
+    private boolean [] empty; // rows with all event columns null
+    private final long [][] longs;
+    private final double [][] doubles;
+    private final String [][] strings;
+    private final Object [][] objects;
+    private final boolean [][] nulls;
+    private int size = 0;
+
+    private EventRows(final int [] kinds, final int capacity) {
+        final int n = kinds.length;
+        this.kinds = kinds;
+        longs = new long[n][];
+        doubles = new double[n][];
+        strings = new String[n][];
+        objects = new Object[n][];
+        nulls = new boolean[n][];
+        allocate(capacity);
+    }
+
+    private void allocate(final int capacity) {
+        eventIds = new long[capacity];
+        consumerIds = new long[capacity];
+        empty = new boolean[capacity];
+        for (int c = 1; c < kinds.length; c++) {
+            switch (kinds[c]) {
+                case LONG:
+                case DATE:
+                case BYTE:
+                case INT:
+                    longs[c] = new long[capacity];
+                    break;
+                case DOUBLE:
+                    doubles[c] = new double[capacity];
+                    break;
+                case STRING:
+                    strings[c] = new String[capacity];
+                    break;
+                default:
+                    objects[c] = new Object[capacity];
+            }
+            nulls[c] = new boolean[capacity];
+        }
+    }
+
+    /**
+     * Creates a block for reading rows of the given query: the first column of the query
+     * is the event ID, the second one the consumer ID, then the columns of the event.
+     *
+     * @param descriptor the descriptor of the event type
+     * @param prototype an instance of the events data of the event type, it is not modified
+     * @param metaData metadata of the query
+     * @param capacity the number of rows in the block
+     */
+    public static EventRows create(final EventsDataDescriptor descriptor, final ConsumerEventsData prototype, final ResultSetMetaData metaData, final int capacity) throws SQLException {
+        final int n = metaData.getColumnCount() - 1; // without the event ID
+        final int [] sqlTypes = new int[n];
+        for (int c = 1; c < n; c++)
+            sqlTypes[c] = metaData.getColumnType(c + 2);
+        final int [] kinds = new int[n];
+        final int [] leading = prototype.leadingColumnKinds(sqlTypes);
+        if (leading != null) {
+            int c = 1;
+            for (int i = 0; (i < leading.length) && (c < n); i++, c++)
+                kinds[c] = leading[i];
+            final String [] metaDesc = descriptor.meta;
+            for (int i = 0; (i < metaDesc.length) && (c < n); i++, c++)
+                kinds[c] = metaKind(metaDesc[i], sqlTypes[c]);
+        }
+        return new EventRows(kinds, Math.max(1, capacity));
+    }
+
+    private static int metaKind(final String desc, final int sqlType) {
+        if (desc.equalsIgnoreCase("date"))
+            return DATE;
+        if (desc.equalsIgnoreCase("byte"))
+            return isIntegral(sqlType) ? BYTE : STRING;
+        if (desc.equalsIgnoreCase("int"))
+            return isIntegral(sqlType) ? INT : STRING;
+        if (desc.equalsIgnoreCase("discrete"))
+            return STRING;
+        return OBJECT;
+    }
+
+    public static boolean isIntegral(final int sqlType) {
+        return (sqlType == Types.BIGINT) || (sqlType == Types.INTEGER) || (sqlType == Types.SMALLINT) || (sqlType == Types.TINYINT);
+    }
+
+    public static boolean isNumeric(final int sqlType) {
+        return isIntegral(sqlType) || (sqlType == Types.DOUBLE) || (sqlType == Types.FLOAT) || (sqlType == Types.REAL) || (sqlType == Types.NUMERIC) || (sqlType == Types.DECIMAL);
+    }
+
+    /**
+     * Reads the event columns of the current row of the result set into the block.
+     * A row with all event columns null is added, but marked empty.
+     *
+     * @return whether the row has any event data
+     */
+    public boolean read(final ResultSet resultSet, final long eventId, final long consumerId) throws SQLException {
+        final int row = size;
+        boolean isEmpty = true;
+        for (int c = 1; c < kinds.length; c++) {
+            final int column = c + 2;
+            final boolean isNull;
+            switch (kinds[c]) {
+                case LONG:
+                    longs[c][row] = resultSet.getLong(column);
+                    isNull = resultSet.wasNull();
+                    break;
+                case BYTE:
+                case INT:
+                    longs[c][row] = resultSet.getInt(column);
+                    isNull = resultSet.wasNull();
+                    break;
+                case DATE:
+                    final Timestamp t = resultSet.getTimestamp(column);
+                    isNull = t == null;
+                    longs[c][row] = isNull ? 0L : t.getTime();
+                    break;
+                case DOUBLE:
+                    doubles[c][row] = resultSet.getDouble(column);
+                    isNull = resultSet.wasNull();
+                    break;
+                case STRING:
+                    isNull = (strings[c][row] = resultSet.getString(column)) == null;
+                    break;
+                default:
+                    isNull = (objects[c][row] = resultSet.getObject(column)) == null;
+            }
+            nulls[c][row] = isNull;
+            isEmpty = isEmpty && isNull;
+        }
+        eventIds[row] = eventId;
+        consumerIds[row] = consumerId;
+        empty[row] = isEmpty;
+        size++;
+        return !isEmpty;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == eventIds.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the number of columns, including the consumer ID.
+     */
+    public int getColumnCount() {
+        return kinds.length;
+    }
+
+    public int getKind(final int column) {
+        return kinds[column];
+    }
+
+    public long getEventId(final int row) {
+        return eventIds[row];
+    }
+
+    public long getConsumerId(final int row) {
+        return consumerIds[row];
+    }
+
+    /**
+     * Returns true if all event columns of the row are null; such a row has no event data.
+     */
+    public boolean isEmpty(final int row) {
+        return empty[row];
+    }
+
+    public boolean isNull(final int column, final int row) {
+        return nulls[column][row];
+    }
+
+    /**
+     * Returns the value of a column of kind LONG, BYTE or INT, or the milliseconds of a DATE.
+     */
+    public long getLong(final int column, final int row) {
+        return longs[column][row];
+    }
+
+    public double getDouble(final int column, final int row) {
+        return doubles[column][row];
+    }
+
+    public String getString(final int column, final int row) {
+        return strings[column][row];
+    }
+
+    /**
+     * Returns the value as an object, as it would be returned by the result set.
+     */
+    public Object getObject(final int column, final int row) {
+        if (column == 0)
+            return consumerIds[row];
+        if (nulls[column][row])
+            return null;
+        switch (kinds[column]) {
+            case LONG:
+                return longs[column][row];
+            case BYTE:
+            case INT:
+                return (int) longs[column][row];
+            case DATE:
+                return new Date(longs[column][row]);
+            case DOUBLE:
+                return doubles[column][row];
+            case STRING:
+                return strings[column][row];
+            default:
+                return objects[column][row];
+        }
+    }
+
+    /**
+     * Returns true if all columns can be written with {@link #writeTo(DataOutput)}
+     * (no column is read as an object).
+     */
+    public boolean isWritable() {
+        for (int c = 1; c < kinds.length; c++)
+            if (kinds[c] == OBJECT)
+                return false;
+        return true;
+    }
+
+    /**
+     * Writes the kinds of columns, so that a block with the same layout can be created by {@link #create(int[], int)}.
+     */
+    public void writeKindsTo(final DataOutput out) throws IOException {
+        out.writeInt(kinds.length);
+        for (int c = 1; c < kinds.length; c++)
+            out.writeInt(kinds[c]);
+    }
+
+    public static int [] readKinds(final ByteBuffer in) {
+        final int [] kinds = new int[in.getInt()];
+        for (int c = 1; c < kinds.length; c++)
+            kinds[c] = in.getInt();
+        return kinds;
+    }
+
+    /**
+     * Creates an empty block with the given kinds of columns.
+     */
+    public static EventRows create(final int [] kinds, final int capacity) {
+        return new EventRows(kinds.clone(), Math.max(1, capacity));
+    }
+
+    /**
+     * Writes the rows of the block column by column: event IDs, consumer IDs, empty
+     * and null flags, then the values of each column.
+     */
+    public void writeTo(final DataOutput out) throws IOException {
+        final int n = size;
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) out.writeLong(eventIds[i]);
+        for (int i = 0; i < n; i++) out.writeLong(consumerIds[i]);
+        for (int i = 0; i < n; i++) out.writeBoolean(empty[i]);
+        for (int c = 1; c < kinds.length; c++) {
+            final boolean [] isNull = nulls[c];
+            for (int i = 0; i < n; i++) out.writeBoolean(isNull[i]);
+            switch (kinds[c]) {
+                case DOUBLE:
+                    final double [] d = doubles[c];
+                    for (int i = 0; i < n; i++) out.writeDouble(d[i]);
+                    break;
+                case STRING:
+                    final String [] str = strings[c];
+                    for (int i = 0; i < n; i++) {
+                        if (isNull[i]) continue;
+                        final byte [] bytes = str[i].getBytes(UTF8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    break;
+                case OBJECT:
+                    throw new IllegalStateException("Cannot write a column of objects");
+                default:
+                    final long [] l = longs[c];
+                    for (int i = 0; i < n; i++) out.writeLong(l[i]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the rows of the block with the next block written by {@link #writeTo(DataOutput)}.
+     */
+    public void readFrom(final ByteBuffer in) {
+        final int n = in.getInt();
+        if (n > eventIds.length)
+            allocate(n);
+        in.asLongBuffer().get(eventIds, 0, n);
+        in.position(in.position() + 8 * n);
+        in.asLongBuffer().get(consumerIds, 0, n);
+        in.position(in.position() + 8 * n);
+        for (int i = 0; i < n; i++) empty[i] = in.get() != 0;
+        for (int c = 1; c < kinds.length; c++) {
+            final boolean [] isNull = nulls[c];
+            for (int i = 0; i < n; i++) isNull[i] = in.get() != 0;
+            switch (kinds[c]) {
+                case DOUBLE:
+                    in.asDoubleBuffer().get(doubles[c], 0, n);
+                    in.position(in.position() + 8 * n);
+                    break;
+                case STRING:
+                    final String [] str = strings[c];
+                    for (int i = 0; i < n; i++) {
+                        if (isNull[i]) {
+                            str[i] = null;
+                            continue;
+                        }
+                        final byte [] bytes = new byte[in.getInt()];
+                        in.get(bytes);
+                        str[i] = new String(bytes, UTF8);
+                    }
+                    break;
+                case OBJECT:
+                    throw new IllegalStateException("Cannot read a column of objects");
+                default:
+                    in.asLongBuffer().get(longs[c], 0, n);
+                    in.position(in.position() + 8 * n);
+            }
+        }
+        size = n;
+    }
+
+    /**
+     * Returns the row as an Object array, for {@link ConsumerEventsData#addEvent(EventsDataDescriptor, Object[])}.
+     */
+    public Object [] toObjects(final int row) {
+        final Object [] result = new Object[kinds.length];
+        for (int c = 0; c < kinds.length; c++)
+            result[c] = getObject(c, row);
+        return result;
+    }
+}
@@ -19,6 +19,7 @@
 package com.gurucue.recommendations.recommender.dto;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -54,6 +55,7 @@ public class EventsDataDescriptor implements Serializable {
     public byte min, max; // min and max values of ratings, ratings should be positive
     public int keep_in_memory; // number of kept events in memory for each user
     public long keep_in_memory_time; // number of kept events in memory for each user constrained by time (remove events older that this)
+    private volatile long [] ingestedIds = null; // sorted IDs of pushed events after last_read_id that are already in the model
 
     public EventsDataDescriptor(final int index, final EventsDataGenerator generator, final DataStore dataStore, final String[] meta, final String formula, int batch_size, final long last_read_id, final long last_read_date, final int keep_in_memory, final long keep_in_memory_time) {
         this.index = index;
@@ -93,6 +95,94 @@ public class EventsDataDescriptor implements Serializable {
         this.max = -1;
     }
 
+    /**
+     * Creates a descriptor for reading a part of the events concurrently with other parts,
+     * or a batch before the previous ones are committed. It shares the configuration, but
+     * has its own rating formula instance, read position and statistics (last read date,
+     * min and max), which are added back with {@link #mergePartial(EventsDataDescriptor)}
+     * or {@link #commitRead(EventsDataDescriptor)}.
+     */
+    public EventsDataDescriptor createPartial() {
+        final EventsDataDescriptor partial = new EventsDataDescriptor(index, generator, dataStore, meta, formula, batch_size, last_read_id, last_read_date, keep_in_memory, keep_in_memory_time);
+        partial.min = min;
+        partial.max = max;
+        partial.ingestedIds = ingestedIds;
+        return partial;
+    }
+
+    /**
+     * Adds the statistics of a partial descriptor, after its events were read.
+     */
+    public void mergePartial(final EventsDataDescriptor partial) {
+        last_read_date = Math.max(last_read_date, partial.last_read_date);
+        if (partial.min < min) min = partial.min;
+        if (partial.max > max) max = partial.max;
+    }
+
+    /**
+     * Takes over the read position and statistics of a batch's descriptor, when the batch is committed.
+     * Positions only move forward, a batch of pushed events committed after a newer read batch
+     * must not move them back.
+     */
+    public void commitRead(final EventsDataDescriptor batch) {
+        if (batch.last_read_id > last_read_id) last_read_id = batch.last_read_id;
+        mergePartial(batch);
+    }
+
+    /**
+     * Returns true if the event was pushed to the recommender and is already in the model,
+     * so it must be skipped when it is read from the database.
+     */
+    public boolean isIngested(final long eventId) {
+        final long [] ids = ingestedIds;
+        return (ids != null) && (Arrays.binarySearch(ids, eventId) >= 0);
+    }
+
+    /**
+     * Marks pushed events as applied to the model. Called on commit.
+     */
+    public void addIngested(final long [] eventIds) {
+        if (eventIds.length == 0)
+            return;
+        final long [] ids = ingestedIds;
+        final long [] merged;
+        if (ids == null)
+            merged = Arrays.copyOf(eventIds, eventIds.length);
+        else {
+            merged = Arrays.copyOf(ids, ids.length + eventIds.length);
+            System.arraycopy(eventIds, 0, merged, ids.length, eventIds.length);
+        }
+        Arrays.sort(merged);
+        ingestedIds = merged;
+    }
+
+    /**
+     * Forgets pushed events that were passed by reading from the database (up to last_read_id).
+     */
+    public void pruneIngested() {
+        final long [] ids = ingestedIds;
+        if (ids == null)
+            return;
+        int from = 0;
+        while ((from < ids.length) && (ids[from] <= last_read_id))
+            from++;
+        ingestedIds = from == ids.length ? null : from == 0 ? ids : Arrays.copyOfRange(ids, from, ids.length);
+    }
+
+    /**
+     * Returns the sorted IDs of pushed events that are in the model, or null; for saving the model.
+     */
+    public long [] getIngested() {
+        return ingestedIds;
+    }
+
+    /**
+     * Sets the IDs of pushed events that are in the model, when the model is loaded.
+     */
+    public void setIngested(final long [] eventIds) {
+        ingestedIds = (eventIds == null) || (eventIds.length == 0) ? null : eventIds;
+    }
+
     public ConsumerEventsData createEventsData() {
         return generator.create(dataStore, meta, formula);
     }
@@ -26,6 +26,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Map;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 public class FloatAttr extends Attr implements Cloneable {
     
     public Float value;
@@ -107,6 +110,20 @@ public class FloatAttr extends Attr implements Cloneable {
 		out.writeObject(value);
 	}
 
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeBoolean(value != null);
+		if (value != null) out.writeFloat(value);
+	}
+
+	@Override
+	public void readFrom(SnapshotInput in, Map<String, Object> globals) throws IOException {
+		super.readFrom(in, globals);
+		value = in.readBoolean() ? Float.valueOf(in.readFloat()) : null;
+	}
+
 	@Override
 	public void storeGlobals(Map<String, Object> globals) {
 		// no global variables
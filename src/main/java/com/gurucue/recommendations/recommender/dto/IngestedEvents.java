@@ -0,0 +1,115 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.dto;
+
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Buffer of events pushed to the recommender, waiting to be applied to the model
+ * by a micro-commit (see {@link DataStore#createIngestedBatch(IngestedEvents)}).
+ * Events are kept per event type in the order they were pushed. Adding is thread-safe;
+ * {@link #drain()} takes all buffered events at once.
+ */
+public final class IngestedEvents {
+    /**
+     * Events of one event type, as parallel columns.
+     */
+    public static final class Rows {
+        public final TLongArrayList eventIds = new TLongArrayList();
+        public final TLongArrayList consumerIds = new TLongArrayList();
+        public final TLongArrayList productIds = new TLongArrayList();
+        public final TLongArrayList timestamps = new TLongArrayList(); // milliseconds
+        public final List<Object[]> meta = new ArrayList<Object[]>(); // meta values of each event, may be null
+
+        public int size() {
+            return eventIds.size();
+        }
+    }
+
+    private final int capacity;
+    private Map<String, Rows> rows = new LinkedHashMap<String, Rows>();
+    private int size = 0;
+
+    /**
+     * @param capacity the maximum number of buffered events, further events are refused
+     */
+    public IngestedEvents(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds events of the given type. Event i is described by eventIds[i], consumerIds[i],
+     * productIds[i], timestamps[i] (in milliseconds, used as the "date" meta) and, if meta
+     * is not null, by meta[i], with the values of the meta columns of the event type.
+     *
+     * @return the number of added events, less than given if the buffer is full
+     */
+    public synchronized int add(final String eventType, final long [] eventIds, final long [] consumerIds, final long [] productIds, final long [] timestamps, final Object [][] meta) {
+        final int n = eventIds.length;
+        if ((consumerIds.length != n) || (productIds.length != n) || (timestamps.length != n) || ((meta != null) && (meta.length != n)))
+            throw new IllegalArgumentException("Ingested event columns differ in length");
+        final int accepted = Math.max(0, Math.min(n, capacity - size));
+        if (accepted == 0)
+            return 0;
+        Rows r = rows.get(eventType);
+        if (r == null) {
+            r = new Rows();
+            rows.put(eventType, r);
+        }
+        r.eventIds.add(eventIds, 0, accepted);
+        r.consumerIds.add(consumerIds, 0, accepted);
+        r.productIds.add(productIds, 0, accepted);
+        r.timestamps.add(timestamps, 0, accepted);
+        for (int i = 0; i < accepted; i++)
+            r.meta.add(meta == null ? null : meta[i]);
+        size += accepted;
+        return accepted;
+    }
+
+    /**
+     * Removes and returns all buffered events.
+     */
+    public synchronized IngestedEvents drain() {
+        final IngestedEvents result = new IngestedEvents(size);
+        result.rows = rows;
+        result.size = size;
+        rows = new LinkedHashMap<String, Rows>();
+        size = 0;
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized Set<String> getEventTypes() {
+        return Collections.unmodifiableSet(rows.keySet());
+    }
+
+    public synchronized Rows get(final String eventType) {
+        return rows.get(eventType);
+    }
+}
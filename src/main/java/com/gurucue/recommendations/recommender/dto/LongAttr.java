@@ -26,6 +26,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Map;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -127,6 +130,20 @@ public class LongAttr extends Attr implements Cloneable {
 		out.writeObject(value);
 	}
 
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeBoolean(value != null);
+		if (value != null) out.writeLong(value);
+	}
+
+	@Override
+	public void readFrom(SnapshotInput in, Map<String, Object> globals) throws IOException {
+		super.readFrom(in, globals);
+		value = in.readBoolean() ? Long.valueOf(in.readLong()) : null;
+	}
+
 	@Override
 	public void storeGlobals(Map<String, Object> globals) {
 		// no global variables
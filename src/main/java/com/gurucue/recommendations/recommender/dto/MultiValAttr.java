@@ -21,10 +21,6 @@ package com.gurucue.recommendations.recommender.dto;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.TObjectIntMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -32,9 +28,11 @@ import gnu.trove.set.hash.TIntHashSet;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.util.*;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 public class MultiValAttr extends Attr implements Cloneable {
     // values 
     int [] values;
@@ -277,6 +275,22 @@ public class MultiValAttr extends Attr implements Cloneable {
 		out.writeBoolean(split);
 	}
 
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeIntArray(values);
+		out.writeBoolean(split);
+	}
+
+	@Override
+	public void readFrom(SnapshotInput in, Map<String, Object> globals) throws IOException {
+		super.readFrom(in, globals);
+		values = in.readIntArray();
+		split = in.readBoolean();
+		map = (StringToIntMap) globals.get(name + "_map");
+	}
+
 	@Override
 	public void storeGlobals(Map<String, Object> globals) {
 		globals.put(name + "_map", map);
@@ -288,43 +302,3 @@ public class MultiValAttr extends Attr implements Cloneable {
 	}  	    
 
 }
-
-
-// inner class for map definition
-class StringToIntMap implements Serializable
-{
-	private static final long serialVersionUID = 5348147144119655083L;
-	
-	TObjectIntMap<String> map;
-    TIntObjectMap<String> inverseMap;
-    int counter;
-
-    StringToIntMap()
-    {
-        counter=0;
-        map = new TObjectIntHashMap<String>();
-        inverseMap = new TIntObjectHashMap<String>();
-    }
-    
-    boolean containsKey(String key)
-    {
-        return map.containsKey(key);
-    }
-    
-    int get(String key)
-    {
-        return map.get(key);
-    }
-    
-    void put(String key)
-    {
-        map.put(key, counter);
-        inverseMap.put(counter, key);
-        counter ++;
-    }
-    
-    public String getKey(int value)
-    {
-        return inverseMap.get(value);
-    }
-}
@@ -21,7 +21,11 @@ package com.gurucue.recommendations.recommender.dto;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.Map;
+
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
 import gnu.trove.set.TIntSet;
 
 /**
@@ -31,6 +35,7 @@ import gnu.trove.set.TIntSet;
  */
 public class ProductData{
     private static org.apache.logging.log4j.Logger logger = org.apache.logging.log4j.LogManager.getLogger(ProductData.class);
+    public static final long NO_VERSION = Long.MIN_VALUE;
 	
     public final long productId; // product id in database
     public final long publicProductId; // product id in database
@@ -39,6 +44,8 @@ public class ProductData{
     private Domain domain;
 
     public int freq; // number of occurrences of this product in events
+    public boolean removed; // product is not in the catalog anymore, it only keeps its index (tombstone)
+    private long[] sourceVersions; // versions of the attribute sources the attributes were read from, see getSourceVersion()
 
 	public ProductData(final Long productId, final Long publicProductId, int productType, final Domain domain) {
 	    if (publicProductId == null)
@@ -63,7 +70,38 @@ public class ProductData{
         attr = original.attr;
         productType = original.productType;
         freq = original.freq;
+        removed = original.removed;
         domain = original.domain;
+        sourceVersions = original.sourceVersions;
+    }
+
+    /**
+     * Returns the version of the given attribute source (query) the attributes were
+     * last read from: a modification timestamp or version, or a hash of the raw values,
+     * or NO_VERSION if it is not known.
+     */
+    public long getSourceVersion(int source)
+    {
+        if (sourceVersions == null || source >= sourceVersions.length)
+            return NO_VERSION;
+        return sourceVersions[source];
+    }
+
+    public void setSourceVersion(int source, int sourceCount, long version)
+    {
+        if (sourceVersions == null || sourceVersions.length < sourceCount)
+        {
+            final long[] v = new long[sourceCount];
+            Arrays.fill(v, NO_VERSION);
+            if (sourceVersions != null)
+                System.arraycopy(sourceVersions, 0, v, 0, sourceVersions.length);
+            sourceVersions = v;
+        }
+        else if (sourceVersions[source] == version)
+            return;
+        else
+            sourceVersions = sourceVersions.clone(); // may be shared with the previous version of the product
+        sourceVersions[source] = version;
     }
     
     public TIntSet getValues(int attrIndex)
@@ -171,6 +209,53 @@ public class ProductData{
     	return newData;
     }
     
+    /**
+     * Writes the product to a snapshot; unlike {@link #serialize(ObjectOutputStream)}
+     * it also keeps the tombstone flag.
+     */
+    public void writeTo(SnapshotOutput out) throws IOException
+    {
+    	out.writeLong(productId);
+    	out.writeLong(publicProductId);
+    	out.writeInt(productType);
+    	out.writeBoolean(removed);
+    	if (attr == null)
+    	{
+    		out.writeInt(-1);
+    		return;
+    	}
+    	out.writeInt(attr.length);
+    	for (Attr a : attr)
+    	{
+    		out.writeBoolean(a != null);
+    		if (a != null)
+    			a.writeTo(out);
+    	}
+    }
+
+    public static ProductData readFrom(SnapshotInput in, Map<String, Object> globals, Domain domain) throws IOException
+    {
+    	final long tprodID = in.readLong();
+    	final long tfinProdID = in.readLong();
+    	final int tprodType = in.readInt();
+    	ProductData newData = new ProductData(tprodID, tfinProdID, tprodType, domain);
+    	newData.removed = in.readBoolean();
+    	final int n = in.readInt();
+    	if (n < 0)
+    		return newData;
+    	if (n != domain.attrs.length)
+    		throw new IOException("The snapshot has " + n + " attributes of products, " + domain.attrs.length + " are configured");
+    	for (int ati = 0; ati < n; ati++)
+    	{
+    		if (in.readBoolean())
+    		{
+    			domain.createAttributeProduct(newData, ati);
+    			newData.getAttribute(ati).readFrom(in, globals);
+    		}
+    	}
+    	return newData;
+    }
+
     public void serialize(ObjectOutputStream out) throws IOException
     {
     	out.writeObject(Long.valueOf(productId)); // must write as an object!!! for null comparison if product data was null
@@ -0,0 +1,375 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.dto;
+
+import com.gurucue.recommendations.misc.Parallel;
+import com.gurucue.recommendations.recommender.Commitable;
+import com.gurucue.recommendations.recommender.Settings;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Product frequency statistics: number of events per product, in total and per
+ * event type, and optionally per time bucket (e.g. per day) for the last few
+ * buckets.
+ * <p>
+ * Counters are never recomputed from scratch during incremental learning. A batch
+ * of new events is counted in parallel, each shard of consumers into its own sparse
+ * map (the maps are kept between batches and only cleared), the shards are then
+ * reduced into a sparse delta, which is applied to the counters with commit(),
+ * under the model write lock.
+ * <p>
+ * Settings: STATS_SHARDS (number of parallel shards, default = number of processors),
+ * STATS_BUCKET_SECONDS (length of a time bucket, no buckets if not set) and
+ * STATS_BUCKETS (number of most recent buckets kept).
+ */
+public class ProductStatistics {
+    private final DataStore dataStore;
+    private final int eventCount;
+    private final Integer shardsSetting;
+    private final long bucketSeconds; // 0 if time buckets are not used
+    private final int bucketCount;
+    private final int [] dateMetaIndex; // index of the "date" meta per event type, -1 if none
+
+    private int [] freq; // total number of events per product
+    private int [][] eventFreq; // [event type][product]
+    private long [] bucketIds; // ring of buckets: bucket id held by each slot
+    private int [][] bucketFreq; // [slot][product]
+
+    // reusable per-shard scratch maps, guarded by the computeDelta() methods being synchronized
+    private TIntIntHashMap [][] shardEventMaps = new TIntIntHashMap[0][];
+    private TLongIntHashMap [] shardBucketMaps = new TLongIntHashMap[0];
+
+    ProductStatistics(final DataStore dataStore, final Settings settings, final Map<String, EventsDataDescriptor> eventsDescriptors, final int productCount)
+    {
+        this.dataStore = dataStore;
+        this.eventCount = eventsDescriptors.size();
+        this.shardsSetting = settings.getSettingAsInt("STATS_SHARDS");
+        final Long bs = settings.getSettingAsLong("STATS_BUCKET_SECONDS");
+        final Integer bc = settings.getSettingAsInt("STATS_BUCKETS");
+        if ((bs == null) || (bs <= 0) || (bc == null) || (bc <= 0))
+        {
+            bucketSeconds = 0;
+            bucketCount = 0;
+        }
+        else
+        {
+            bucketSeconds = bs;
+            bucketCount = bc;
+        }
+        dateMetaIndex = new int[eventCount];
+        for (final EventsDataDescriptor d : eventsDescriptors.values())
+            dateMetaIndex[d.index] = d.getMetaIndex("date");
+        reset(productCount);
+    }
+
+    /**
+     * Sets all counters to zero.
+     */
+    void reset(final int productCount)
+    {
+        freq = new int[productCount];
+        eventFreq = new int[eventCount][productCount];
+        bucketIds = new long[bucketCount];
+        Arrays.fill(bucketIds, -1L);
+        bucketFreq = new int[bucketCount][productCount];
+    }
+
+    /**
+     * Number of events (of all types) with the product.
+     */
+    public int getFrequency(final int productIndex)
+    {
+        return productIndex < freq.length ? freq[productIndex] : 0;
+    }
+
+    /**
+     * Number of events of the given type with the product.
+     */
+    public int getFrequency(final int eventIndex, final int productIndex)
+    {
+        final int [] f = eventFreq[eventIndex];
+        return productIndex < f.length ? f[productIndex] : 0;
+    }
+
+    /**
+     * Number of events with the product in buckets that are not older than
+     * <code>seconds</code> from <code>now</code> (both in seconds from epoch).
+     * Returns 0 if time buckets are not used.
+     */
+    public int getRecentFrequency(final int productIndex, final long now, final long seconds)
+    {
+        if (bucketCount == 0)
+            return 0;
+        final long oldest = (now - seconds) / bucketSeconds;
+        int sum = 0;
+        for (int s = 0; s < bucketCount; s++)
+        {
+            if ((bucketIds[s] >= oldest) && (productIndex < bucketFreq[s].length))
+                sum += bucketFreq[s][productIndex];
+        }
+        return sum;
+    }
+
+    /**
+     * Counts all events in the given consumers (null elements are skipped) and returns
+     * the counts as a delta that adds them to the statistics on commit.
+     */
+    public synchronized Delta computeDelta(final List<ConsumerData> consumers)
+    {
+        final int size = consumers.size();
+        final int shards = Parallel.shards(shardsSetting, size);
+        ensureScratch(shards);
+        Parallel.forShards(size, shards, new Parallel.ShardTask() {
+            @Override
+            public void run(int shard, int from, int to) {
+                final TIntIntHashMap [] maps = shardEventMaps[shard];
+                final TLongIntHashMap bucketMap = shardBucketMaps[shard];
+                for (int i = from; i < to; i++)
+                {
+                    final ConsumerData c = consumers.get(i);
+                    if (c != null)
+                        count(c, 1, maps, bucketMap);
+                }
+            }
+        });
+        return reduce(shards);
+    }
+
+    /**
+     * Computes the delta between the old and the new events of a single consumer.
+     * Either of the arguments may be null.
+     */
+    public synchronized Delta computeDelta(final ConsumerData oldData, final ConsumerData newData)
+    {
+        ensureScratch(1);
+        if (oldData != null)
+            count(oldData, -1, shardEventMaps[0], shardBucketMaps[0]);
+        if (newData != null)
+            count(newData, 1, shardEventMaps[0], shardBucketMaps[0]);
+        return reduce(1);
+    }
+
+    /**
+     * Remaps the counters to new product indices; oldToNew[i] is the new index of
+     * the product at old index i, or -1 if the product was removed.
+     * Must be called under the write lock.
+     */
+    void remap(final int [] oldToNew, final int newProductCount)
+    {
+        freq = remapArray(freq, oldToNew, newProductCount);
+        for (int e = 0; e < eventCount; e++)
+            eventFreq[e] = remapArray(eventFreq[e], oldToNew, newProductCount);
+        for (int s = 0; s < bucketCount; s++)
+            bucketFreq[s] = remapArray(bucketFreq[s], oldToNew, newProductCount);
+    }
+
+    private static int [] remapArray(final int [] old, final int [] oldToNew, final int newProductCount)
+    {
+        final int [] result = new int[newProductCount];
+        final int n = Math.min(old.length, oldToNew.length);
+        for (int i = 0; i < n; i++)
+        {
+            final int j = oldToNew[i];
+            if ((j >= 0) && (j < newProductCount))
+                result[j] += old[i];
+        }
+        return result;
+    }
+
+    private void count(final ConsumerData c, final int sign, final TIntIntHashMap [] maps, final TLongIntHashMap bucketMap)
+    {
+        final ConsumerEventsData [] events = c.events;
+        for (int j = events.length - 1; j >= 0; j--)
+        {
+            final ConsumerEventsData e = events[j];
+            if (null == e) continue;
+            final int [] prods = e.getProductIndices();
+            final TIntIntHashMap map = maps[j];
+            for (int p = prods.length - 1; p >= 0; p--)
+                map.adjustOrPutValue(prods[p], sign, sign);
+            if ((bucketCount == 0) || (dateMetaIndex[j] < 0) || (e.getMeta() == null))
+                continue;
+            final ConsumerMetaEventsData meta = e.getMeta();
+            final int metaIndex = dateMetaIndex[j];
+            final int n = Math.min(e.getN(), prods.length);
+            for (int p = 0; p < n; p++)
+            {
+                final long bucket = meta.getLongValue(metaIndex, p) / bucketSeconds;
+                bucketMap.adjustOrPutValue((bucket << 32) | (prods[p] & 0xffffffffL), sign, sign);
+            }
+        }
+    }
+
+    private void ensureScratch(final int shards)
+    {
+        if (shardEventMaps.length >= shards)
+            return;
+        final TIntIntHashMap [][] maps = Arrays.copyOf(shardEventMaps, shards);
+        final TLongIntHashMap [] bucketMaps = Arrays.copyOf(shardBucketMaps, shards);
+        for (int s = shardEventMaps.length; s < shards; s++)
+        {
+            maps[s] = new TIntIntHashMap[eventCount];
+            for (int e = 0; e < eventCount; e++)
+                maps[s][e] = new TIntIntHashMap();
+            bucketMaps[s] = new TLongIntHashMap();
+        }
+        shardEventMaps = maps;
+        shardBucketMaps = bucketMaps;
+    }
+
+    /**
+     * Reduces the shard maps into a sparse delta and clears them.
+     */
+    private Delta reduce(final int shards)
+    {
+        final int [][] indices = new int[eventCount][];
+        final int [][] counts = new int[eventCount][];
+        for (int e = 0; e < eventCount; e++)
+        {
+            final TIntIntHashMap target = shardEventMaps[0][e];
+            for (int s = 1; s < shards; s++)
+            {
+                final TIntIntHashMap m = shardEventMaps[s][e];
+                for (final TIntIntIterator it = m.iterator(); it.hasNext(); )
+                {
+                    it.advance();
+                    target.adjustOrPutValue(it.key(), it.value(), it.value());
+                }
+                m.clear();
+            }
+            final int [] ind = new int[target.size()];
+            final int [] cnt = new int[target.size()];
+            int k = 0;
+            for (final TIntIntIterator it = target.iterator(); it.hasNext(); )
+            {
+                it.advance();
+                if (it.value() == 0) continue;
+                ind[k] = it.key();
+                cnt[k] = it.value();
+                k++;
+            }
+            indices[e] = k == ind.length ? ind : Arrays.copyOf(ind, k);
+            counts[e] = k == cnt.length ? cnt : Arrays.copyOf(cnt, k);
+            target.clear();
+        }
+
+        long [] bucketKeys = null;
+        int [] bucketCounts = null;
+        if (bucketCount > 0)
+        {
+            final TLongIntHashMap target = shardBucketMaps[0];
+            for (int s = 1; s < shards; s++)
+            {
+                final TLongIntHashMap m = shardBucketMaps[s];
+                for (final TLongIntIterator it = m.iterator(); it.hasNext(); )
+                {
+                    it.advance();
+                    target.adjustOrPutValue(it.key(), it.value(), it.value());
+                }
+                m.clear();
+            }
+            bucketKeys = target.keys();
+            bucketCounts = target.values();
+            target.clear();
+        }
+        return new Delta(this, indices, counts, bucketKeys, bucketCounts);
+    }
+
+    private static int [] grow(final int [] a, final int size)
+    {
+        return a.length >= size ? a : Arrays.copyOf(a, size);
+    }
+
+    private void apply(final Delta delta)
+    {
+        final List<ProductData> products = dataStore.productData;
+        final int productCount = products.size();
+        freq = grow(freq, productCount);
+        for (int e = 0; e < eventCount; e++)
+        {
+            final int [] f = eventFreq[e] = grow(eventFreq[e], productCount);
+            final int [] ind = delta.indices[e];
+            final int [] cnt = delta.counts[e];
+            for (int k = ind.length - 1; k >= 0; k--)
+            {
+                final int p = ind[k];
+                if ((p < 0) || (p >= productCount)) continue;
+                f[p] += cnt[k];
+                freq[p] += cnt[k];
+                final ProductData pd = products.get(p);
+                if (pd != null)
+                    pd.freq = freq[p];
+            }
+        }
+        if ((bucketCount == 0) || (delta.bucketKeys == null))
+            return;
+        final long [] keys = delta.bucketKeys;
+        final int [] cnt = delta.bucketCounts;
+        for (int k = keys.length - 1; k >= 0; k--)
+        {
+            final long bucket = keys[k] >>> 32;
+            final int p = (int) keys[k];
+            if ((p < 0) || (p >= productCount)) continue;
+            final int slot = (int) (bucket % bucketCount);
+            if (bucketIds[slot] > bucket)
+                continue; // older than the buckets we keep
+            if (bucketIds[slot] < bucket)
+            {
+                // the slot is taken over by a newer bucket
+                bucketIds[slot] = bucket;
+                bucketFreq[slot] = new int[productCount];
+            }
+            final int [] f = bucketFreq[slot] = grow(bucketFreq[slot], productCount);
+            f[p] += cnt[k];
+        }
+    }
+
+    /**
+     * Sparse statistics delta: for each event type the touched product indices and
+     * the change of their counts, and the changes of (bucket, product) counts.
+     */
+    public static class Delta implements Commitable {
+        public final ProductStatistics stats;
+        final int [][] indices;
+        final int [][] counts;
+        final long [] bucketKeys;
+        final int [] bucketCounts;
+
+        Delta(final ProductStatistics stats, final int [][] indices, final int [][] counts, final long [] bucketKeys, final int [] bucketCounts)
+        {
+            this.stats = stats;
+            this.indices = indices;
+            this.counts = counts;
+            this.bucketKeys = bucketKeys;
+            this.bucketCounts = bucketCounts;
+        }
+
+        @Override
+        public void commit() {
+            stats.apply(this);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.dto;
+
+import java.io.Serializable;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * Maps string values of an attribute to consecutive indices and back.
+ */
+class StringToIntMap implements Serializable
+{
+	private static final long serialVersionUID = 5348147144119655083L;
+	
+	TObjectIntMap<String> map;
+    TIntObjectMap<String> inverseMap;
+    int counter;
+
+    StringToIntMap()
+    {
+        counter=0;
+        map = new TObjectIntHashMap<String>();
+        inverseMap = new TIntObjectHashMap<String>();
+    }
+    
+    boolean containsKey(String key)
+    {
+        return map.containsKey(key);
+    }
+    
+    int get(String key)
+    {
+        return map.get(key);
+    }
+    
+    void put(String key)
+    {
+        map.put(key, counter);
+        inverseMap.put(counter, key);
+        counter ++;
+    }
+    
+    public String getKey(int value)
+    {
+        return inverseMap.get(value);
+    }
+}
@@ -37,6 +37,9 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
 
+import com.gurucue.recommendations.recommender.snapshot.SnapshotInput;
+import com.gurucue.recommendations.recommender.snapshot.SnapshotOutput;
+
 /**
  * A class that contains a multivalued attribute (similar as MulitValAttr), however it selects only N most informative attribute values. 
  * The imporatance of an attribute value is determined by the TF-IDF measure. 
@@ -344,6 +347,25 @@ public class TFIDFAttr extends Attr implements Cloneable {
 		out.writeInt(nfeatures);
 	}
 
+
+	@Override
+	public void writeTo(SnapshotOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeIntArray(selected_values);
+		out.writeInt(ngrams);
+		out.writeInt(nfeatures);
+	}
+
+	@Override
+	public void readFrom(SnapshotInput in, Map<String, Object> globals) throws IOException {
+		super.readFrom(in, globals);
+		selected_values = in.readIntArray();
+		ngrams = in.readInt();
+		nfeatures = in.readInt();
+		map = (StringToIntMap) globals.get(name + "_map");
+		freq = (InverseDocumentFrequency) globals.get(name + "_freq");
+	}
+
 	@Override
 	public void storeGlobals(Map<String, Object> globals) {
 		globals.put(name + "_map", map);
@@ -0,0 +1,170 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.reader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerEventsData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDMap;
+import com.gurucue.recommendations.recommender.dto.EventRows;
+import com.gurucue.recommendations.recommender.dto.EventsDataDescriptor;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * Events of one event type, read by one thread, before they are merged into the
+ * consumers of a batch. Consumers are kept in the order in which their first event
+ * was read, so merging the buffers of all event types in the order of the EVENTS
+ * setting assigns the same consumer indices as reading the event types one after
+ * another directly into the batch.
+ */
+final class ConsumerEventsBuffer {
+    private final EventsDataDescriptor descriptor;
+    private final TLongIntHashMap positions = new TLongIntHashMap(1024, 0.8f, -1L, -1); // consumer ID -> position in the buffer
+    private final TLongArrayList consumerIds = new TLongArrayList();
+    private final List<ConsumerEventsData> events = new ArrayList<ConsumerEventsData>();
+
+    // scratch space for adding blocks of rows
+    private final TIntIntHashMap firstRow = new TIntIntHashMap(256, 0.8f, -1, -1); // position -> first row of the consumer in the block
+    private final TIntIntHashMap lastRow = new TIntIntHashMap(256, 0.8f, -1, -1); // position -> last row of the consumer in the block
+    private int [] nextRow = new int[0];
+    private int [] rowIndices = new int[0];
+
+    ConsumerEventsBuffer(final EventsDataDescriptor descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    EventsDataDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Returns the events of the given consumer, creating them if this is the first event of the consumer.
+     */
+    ConsumerEventsData get(final long consumerId) {
+        final int position = positions.get(consumerId);
+        if (position >= 0)
+            return events.get(position);
+        final ConsumerEventsData eventsData = descriptor.createEventsData();
+        positions.put(consumerId, events.size());
+        consumerIds.add(consumerId);
+        events.add(eventsData);
+        return eventsData;
+    }
+
+    /**
+     * Adds a block of decoded rows: the rows of each consumer are added with one call
+     * of {@link ConsumerEventsData#addEvents}, in the order in which they were read.
+     * Consumers are added in the order of rows, also for rows without event data;
+     * events that were pushed to the recommender and are already in the model are skipped.
+     */
+    void addEvents(final EventRows rows) {
+        final int size = rows.size();
+        if (nextRow.length < size) {
+            nextRow = new int[size];
+            rowIndices = new int[size];
+        }
+        // chain the rows of each consumer
+        firstRow.clear();
+        lastRow.clear();
+        for (int row = 0; row < size; row++) {
+            if (descriptor.isIngested(rows.getEventId(row)))
+                continue;
+            final long consumerId = rows.getConsumerId(row);
+            get(consumerId);
+            if (rows.isEmpty(row))
+                continue;
+            final int position = positions.get(consumerId);
+            final int last = lastRow.put(position, row);
+            if (last < 0)
+                firstRow.put(position, row);
+            else
+                nextRow[last] = row;
+            nextRow[row] = -1;
+        }
+        final int [] consumerPositions = firstRow.keys();
+        for (final int position : consumerPositions) {
+            int count = 0;
+            for (int row = firstRow.get(position); row >= 0; row = nextRow[row])
+                rowIndices[count++] = row;
+            events.get(position).addEvents(descriptor, rows, rowIndices, count);
+        }
+    }
+
+    /**
+     * Returns the number of consumers in the buffer.
+     */
+    int size() {
+        return events.size();
+    }
+
+    /**
+     * Appends the events of a buffer that was read from the following range of event IDs.
+     * Events of each consumer stay in the order of IDs, and consumers first seen in the
+     * following range are added after the consumers of this one.
+     */
+    void concatenate(final ConsumerEventsBuffer next) {
+        final int n = next.events.size();
+        for (int i = 0; i < n; i++) {
+            final long consumerId = next.consumerIds.get(i);
+            final ConsumerEventsData nextEvents = next.events.get(i);
+            final int position = positions.get(consumerId);
+            if (position >= 0)
+                events.get(position).concatenate(nextEvents);
+            else {
+                positions.put(consumerId, events.size());
+                consumerIds.add(consumerId);
+                events.add(nextEvents);
+            }
+        }
+    }
+
+    void finalizeReading() {
+        for (final ConsumerEventsData e : events)
+            e.finalizeReading();
+    }
+
+    /**
+     * Sets the events of this buffer to the consumers of the batch, adding consumers
+     * that are not in the batch yet. Must be called from a single thread, for one
+     * buffer at a time.
+     */
+    void mergeInto(final List<ConsumerData> newConsumersData, final ConsumerIDMap.Overlay newConsMap, final int eventTypeCount) {
+        final int eventsIndex = descriptor.index;
+        final int n = events.size();
+        for (int i = 0; i < n; i++) {
+            final long consumerId = consumerIds.get(i);
+            final int consumerIndex = newConsMap.add(consumerId);
+            ConsumerData consumerData;
+            if (consumerIndex >= newConsumersData.size()) {
+                consumerData = new ConsumerData(consumerId, eventTypeCount);
+                newConsumersData.add(consumerData);
+            }
+            else if ((consumerData = newConsumersData.get(consumerIndex)) == null) {
+                consumerData = new ConsumerData(consumerId, eventTypeCount);
+                newConsumersData.set(consumerIndex, consumerData);
+            }
+            consumerData.events[eventsIndex] = events.get(i);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.reader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.gurucue.recommendations.recommender.dto.EventRows;
+
+/**
+ * Local append-only log of the decoded event stream, one directory per event type.
+ * <p>
+ * Every range of events read from the database is written to a segment file
+ * (<code>&lt;fromId&gt;.seg</code>) as blocks of primitive columns (see
+ * {@link EventRows#writeTo(java.io.DataOutput)}): event IDs, consumer IDs and the
+ * columns of the event (product, meta values, ...). The index file of the event
+ * type records, for every complete segment, the last_read_id before and after it
+ * and the time of its newest event. When the events after some last_read_id are
+ * needed again (e.g. a full update from an empty state), the segments that continue
+ * from it are read with memory-mapped sequential reads instead of querying the
+ * database, which is only used for the events outside of the segments.
+ * <p>
+ * Segments whose events are all older than the time events are kept in memory
+ * (event_KEEP_CONSUMER_MEMORY_TIME, relative to the newest segment) are deleted,
+ * and so are the oldest segments beyond the size limit of an event type, if there
+ * is one; see {@link #prune(String, long)}.
+ * <p>
+ * The log is a cache of the database: it can be deleted at any time.
+ */
+final class EventLog {
+    private static final int MAGIC = 0x4743454C; // "GCEL"
+    private static final int VERSION = 1;
+    private static final int INDEX_MAGIC = 0x47434549; // "GCEI"
+    private static final int INDEX_VERSION = 2;
+
+    private final Logger log;
+    private final File dir;
+    private final long maxBytes; // of the segments of an event type, no limit if not positive
+    private final Map<String, TreeMap<Long, Segment>> indices = new HashMap<String, TreeMap<Long, Segment>>();
+
+    /**
+     * A complete segment: the events after fromId, up to and including nextReadId.
+     */
+    static final class Segment {
+        final long fromId;
+        final long nextReadId;
+        final long rows;
+        final long lastDate; // no event of the segment is newer, in seconds from epoch
+        final File file;
+
+        Segment(final long fromId, final long nextReadId, final long rows, final long lastDate, final File file) {
+            this.fromId = fromId;
+            this.nextReadId = nextReadId;
+            this.rows = rows;
+            this.lastDate = lastDate;
+            this.file = file;
+        }
+    }
+
+    EventLog(final File dir, final Long recommenderId, final long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.log = LogManager.getLogger(EventLog.class.getName() + " [REC " + recommenderId + "]");
+    }
+
+    File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Returns the consecutive segments that continue from the given last_read_id, up to
+     * (and including) the first one that reaches <code>limit</code>; empty if there is
+     * no segment starting at last_read_id.
+     */
+    synchronized List<Segment> findSegments(final String eventName, final long lastReadId, final long limit) {
+        final TreeMap<Long, Segment> index = getIndex(eventName);
+        final List<Segment> result = new ArrayList<Segment>();
+        long from = lastReadId;
+        Segment s;
+        while ((s = index.get(from)) != null) {
+            result.add(s);
+            if (s.nextReadId >= limit)
+                break;
+            from = s.nextReadId;
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the segments of the event type that are not needed anymore: the ones whose events
+     * are all older than keepTime seconds before the newest event in the log (none if keepTime
+     * is negative), then the oldest ones while the segments exceed the size limit. It must not
+     * be called while segments of the event type are replayed, e.g. before a batch is read.
+     */
+    synchronized void prune(final String eventName, final long keepTime) {
+        final TreeMap<Long, Segment> index = getIndex(eventName);
+        if (index.isEmpty())
+            return;
+        final long cutoff = cutoff(index, keepTime);
+        long bytes = 0L;
+        for (final Segment segment : index.values())
+            bytes += segment.file.length();
+        int removed = 0;
+        for (final Iterator<Segment> it = index.values().iterator(); it.hasNext(); ) {
+            final Segment segment = it.next();
+            if ((segment.lastDate >= cutoff) && ((maxBytes <= 0L) || (bytes <= maxBytes)))
+                continue;
+            bytes -= segment.file.length();
+            if (!segment.file.delete() && segment.file.exists())
+                log.warn("Failed to delete the segment " + segment.file.getAbsolutePath() + " of event log " + eventName);
+            it.remove();
+            removed++;
+        }
+        if (removed == 0)
+            return;
+        try {
+            writeIndex(eventName, index);
+        } catch (IOException e) {
+            log.error("Failed to write the index of event log " + eventName + ", ignoring the log: " + e.toString(), e);
+            clear(eventName);
+        }
+        log.info("Removed " + removed + " segments of event log " + eventName + ", " + index.size() + " segments remain");
+    }
+
+    /**
+     * Returns the time before which the events of the event type are not kept, Long.MIN_VALUE if all are.
+     */
+    private static long cutoff(final TreeMap<Long, Segment> index, final long keepTime) {
+        if ((keepTime < 0L) || index.isEmpty())
+            return Long.MIN_VALUE;
+        long newest = Long.MIN_VALUE;
+        for (final Segment segment : index.values())
+            newest = Math.max(newest, segment.lastDate);
+        return newest - keepTime;
+    }
+
+    /**
+     * Starts writing a segment of events after fromId, or returns null if there already is one,
+     * or the columns cannot be written. A finished segment whose events are all older than
+     * keepTime seconds before the newest event in the log is not kept, see {@link #prune(String, long)}.
+     */
+    synchronized Writer startSegment(final String eventName, final long fromId, final EventRows layout, final long keepTime) {
+        if (!layout.isWritable() || getIndex(eventName).containsKey(fromId))
+            return null;
+        final File typeDir = new File(dir, eventName);
+        if (!typeDir.isDirectory() && !typeDir.mkdirs()) {
+            log.error("Cannot create the event log directory " + typeDir.getAbsolutePath());
+            return null;
+        }
+        try {
+            return new Writer(eventName, fromId, new File(typeDir, fromId + ".seg"), layout, keepTime);
+        } catch (IOException e) {
+            log.error("Cannot create a segment of event log " + eventName + ": " + e.toString(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the segment into the given buffer, in blocks as they were written.
+     */
+    void replay(final Segment segment, final ConsumerEventsBuffer buffer) {
+        try {
+            final RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+            try {
+                final FileChannel channel = file.getChannel();
+                final MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if ((in.getInt() != MAGIC) || (in.getInt() != VERSION))
+                    throw new IOException("Not an event log segment of version " + VERSION);
+                final EventRows rows = EventRows.create(EventRows.readKinds(in), 1024);
+                while (in.hasRemaining()) {
+                    rows.readFrom(in);
+                    buffer.addEvents(rows);
+                }
+            }
+            finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            final String reason = "Failed to read event log segment " + segment.file.getAbsolutePath() + ": " + e.toString();
+            log.error(reason, e);
+            throw new IllegalStateException(reason, e);
+        }
+    }
+
+    private TreeMap<Long, Segment> getIndex(final String eventName) {
+        TreeMap<Long, Segment> index = indices.get(eventName);
+        if (index != null)
+            return index;
+        index = new TreeMap<Long, Segment>();
+        indices.put(eventName, index);
+        final File indexFile = new File(new File(dir, eventName), "index");
+        if (indexFile.exists()) {
+            try {
+                final RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+                try {
+                    final ByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                    if ((in.remaining() < 8) || (in.getInt() != INDEX_MAGIC) || (in.getInt() != INDEX_VERSION))
+                        throw new IOException("Not an event log index of version " + INDEX_VERSION);
+                    while (in.remaining() >= 32) {
+                        final long fromId = in.getLong();
+                        final long nextReadId = in.getLong();
+                        final long rows = in.getLong();
+                        final long lastDate = in.getLong();
+                        final File segmentFile = new File(indexFile.getParentFile(), fromId + ".seg");
+                        if (segmentFile.exists())
+                            index.put(fromId, new Segment(fromId, nextReadId, rows, lastDate, segmentFile));
+                    }
+                }
+                finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                log.error("Failed to read the index of event log " + eventName + ", ignoring the log: " + e.toString(), e);
+                clear(eventName);
+            }
+            log.info("Event log " + eventName + " has " + index.size() + " segments");
+        }
+        return index;
+    }
+
+    /**
+     * Deletes all segments of the event type and its index, e.g. when the index cannot be read.
+     */
+    private void clear(final String eventName) {
+        final TreeMap<Long, Segment> index = indices.get(eventName);
+        if (index != null)
+            index.clear();
+        final File[] files = new File(dir, eventName).listFiles();
+        if (files == null)
+            return;
+        for (final File f : files) {
+            if ((f.getName().endsWith(".seg") || f.getName().equals("index")) && !f.delete())
+                log.warn("Failed to delete " + f.getAbsolutePath() + " of event log " + eventName);
+        }
+    }
+
+    private static void writeSegment(final DataOutputStream out, final Segment segment) throws IOException {
+        out.writeLong(segment.fromId);
+        out.writeLong(segment.nextReadId);
+        out.writeLong(segment.rows);
+        out.writeLong(segment.lastDate);
+    }
+
+    /**
+     * Writes the whole index of the event type anew, replacing the old one when it is complete.
+     */
+    private void writeIndex(final String eventName, final TreeMap<Long, Segment> index) throws IOException {
+        final File indexFile = new File(new File(dir, eventName), "index");
+        final File tmpFile = new File(indexFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            for (final Segment segment : index.values())
+                writeSegment(out, segment);
+        }
+        finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(indexFile))
+            throw new IOException("Failed to rename " + tmpFile.getAbsolutePath() + " to " + indexFile.getName());
+    }
+
+    private synchronized void addSegment(final String eventName, final Segment segment) throws IOException {
+        final TreeMap<Long, Segment> index = getIndex(eventName);
+        final File indexFile = new File(new File(dir, eventName), "index");
+        if (indexFile.length() == 0L) {
+            index.put(segment.fromId, segment);
+            writeIndex(eventName, index);
+            return;
+        }
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile, true));
+        try {
+            writeSegment(out, segment);
+        }
+        finally {
+            out.close();
+        }
+        index.put(segment.fromId, segment);
+    }
+
+    /**
+     * Returns whether the events of the event type up to lastDate are all older than keepTime
+     * seconds before the newest event in the log.
+     */
+    private synchronized boolean isExpired(final String eventName, final long lastDate, final long keepTime) {
+        return lastDate < cutoff(getIndex(eventName), keepTime);
+    }
+
+    /**
+     * Writes a segment to a temporary file; it becomes a part of the log only when finished.
+     */
+    final class Writer {
+        private final String eventName;
+        private final long fromId;
+        private final File file;
+        private final File tmpFile;
+        private final long keepTime;
+        private final DataOutputStream out;
+        private long rows = 0;
+
+        private Writer(final String eventName, final long fromId, final File file, final EventRows layout, final long keepTime) throws IOException {
+            this.eventName = eventName;
+            this.fromId = fromId;
+            this.file = file;
+            this.keepTime = keepTime;
+            this.tmpFile = new File(file.getPath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            layout.writeKindsTo(out);
+        }
+
+        void append(final EventRows block) throws IOException {
+            if (block.size() == 0)
+                return;
+            block.writeTo(out);
+            rows += block.size();
+        }
+
+        /**
+         * Completes the segment: the events up to nextReadId were written, none of them newer than lastDate.
+         */
+        void finish(final long nextReadId, final long lastDate) throws IOException {
+            out.close();
+            if (nextReadId == fromId) {
+                // nothing was read, do not pollute the log with empty segments
+                tmpFile.delete();
+                return;
+            }
+            if (isExpired(eventName, lastDate, keepTime)) {
+                // older events read again, e.g. by a full update; they would be pruned right away
+                tmpFile.delete();
+                return;
+            }
+            if (!tmpFile.renameTo(file))
+                throw new IOException("Failed to rename " + tmpFile.getAbsolutePath() + " to " + file.getName());
+            addSegment(eventName, new Segment(fromId, nextReadId, rows, lastDate, file));
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {}
+            tmpFile.delete();
+        }
+    }
+}
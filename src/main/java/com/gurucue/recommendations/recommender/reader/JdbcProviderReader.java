@@ -37,16 +37,28 @@ import org.apache.logging.log4j.Logger;
 
 import com.gurucue.recommendations.recommender.dto.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class JdbcProviderReader implements Reader {
     private static final String GET_SETTINGS_SQL = "select setting_name, setting_value from recommender_setting where recommender_id = ?";
     private static final String GET_RECOMMENDATIONS_SQL = "select distinct a.product_id from log_svc_rec_product a inner join log_svc_rec r on r.id = a.log_svc_rec_id where r.consumer_id = ? and r.request_timestamp <= ? and r.request_timestamp >= ?";
 
+    private static final int DEFAULT_EVENT_BLOCK_SIZE = 1024; // rows decoded at once, unless event_FETCH_SIZE is set
+
     private final Logger log;
     private final Long recommenderId;
     private final Settings settings;
@@ -57,7 +69,11 @@ public class JdbcProviderReader implements Reader {
     private final StatementWrapper<Void, ArgumentProductsProdMapUpdate> updateProductsWithAttributes;
     private final StatementWrapper<Void, ArgumentsForGetConsumers> getConsumers;
     private final StatementWrapper<TIntHashSet, TLongIntHashMap> getRecommendConsumers;
-    private final PreparedStatementWrapper<Long, ArgumentsForFillConsumersWithEvents> batchFillConsumersWithEvents;
+    final PreparedStatementProcessor<Long, ArgumentsForFillConsumersWithEvents> fillConsumersWithEvents; // reads the events of a range, see queryEvents()
+    // one wrapper per event type, so that event types can be read concurrently
+    private final Map<String, PreparedStatementWrapper<Long, ArgumentsForFillConsumersWithEvents>> batchFillConsumersWithEvents = new HashMap<String, PreparedStatementWrapper<Long, ArgumentsForFillConsumersWithEvents>>();
+    private ThreadPoolExecutor eventReaders = null; // threads reading event types concurrently, created on first use
+    private EventLog eventLog = null; // local log of read events, see EVENT_LOG_DIR
     private final PreparedStatementWrapper<Void, ArgumentsForFillAConsumerWithEvents> fillAConsumerWithEvents;
     private final PreparedStatementWrapper<Map<String, String>, Long> getSettings;
     private final PreparedStatementWrapper<TLongList, ArgumentsForGetRecommendations> getRecommendations;
@@ -66,6 +82,14 @@ public class JdbcProviderReader implements Reader {
     private final StatementWrapper<Long, Void> getMaxEvent;     
 
     public JdbcProviderReader(final Long recommenderId) {
+        this(recommenderId, null);
+    }
+
+    /**
+     * Creates the reader with the given settings, or with the settings of the recommender
+     * in the database if <code>settingsMap</code> is null.
+     */
+    JdbcProviderReader(final Long recommenderId, final Map<String, String> settingsMap) {
         this.recommenderId = recommenderId;
         this.log = LogManager.getLogger(JdbcProviderReader.class.getName() + " [REC " + recommenderId + "]");
 
@@ -93,7 +117,7 @@ public class JdbcProviderReader implements Reader {
         );
 
         // now create the Settings object
-        this.settings = new Settings(getSettings.execute(GET_SETTINGS_SQL, recommenderId), this, recommenderId);
+        this.settings = new Settings(settingsMap == null ? getSettings.execute(GET_SETTINGS_SQL, recommenderId) : settingsMap, this, recommenderId);
 
         // and configure the rest of the data fetchers
 
@@ -141,6 +165,7 @@ public class JdbcProviderReader implements Reader {
                         final List<ProductData> products = arguments.products;
                         final TLongIntHashMap prodMap = arguments.prodMap;
                         final ProductReader reader = arguments.reader;
+                        final boolean versioned = resultSet.getMetaData().getColumnCount() >= 5;
 
                         long productID;
                         int productIndex;
@@ -153,7 +178,13 @@ public class JdbcProviderReader implements Reader {
                             else
                                 continue;
 
-                            reader.readFields(products.get(productIndex), null, resultSet.getString(2), resultSet.getString(3), resultSet.getString(4));
+                            final String attributes = resultSet.getString(2);
+                            final String related = resultSet.getString(3);
+                            final String partnerProductCode = resultSet.getString(4);
+                            final ProductData product = products.get(productIndex);
+                            reader.readFields(product, null, attributes, related, partnerProductCode);
+                            // remember the version, so the next update can skip the product if it did not change
+                            reader.setVersion(product, versioned ? readVersion(resultSet) : ProductReader.contentHash(attributes, related, partnerProductCode));
                         }
                         return null;
                     }
@@ -170,6 +201,9 @@ public class JdbcProviderReader implements Reader {
                         final TLongIntHashMap prodMap = arguments.prodMap;
                         final TLongIntHashMap oldMap = arguments.oldMap;
                         final ProductReader reader = arguments.reader;
+                        // an optional fifth column is the modification timestamp or version of the product,
+                        // otherwise changes are detected by a hash of the raw attribute values
+                        final boolean versioned = resultSet.getMetaData().getColumnCount() >= 5;
                         
                         long productID;
                         int productIndex;
@@ -185,7 +219,32 @@ public class JdbcProviderReader implements Reader {
                             final ProductData oldProduct;
                             if (oldMap.contains(productID) && oldMap.get(productID) >= 0) oldProduct = oldProducts.get(oldMap.get(productID));
                             else oldProduct = null;
-                            reader.readFields(products.get(productIndex), oldProduct, resultSet.getString(2), resultSet.getString(3), resultSet.getString(4));
+                            final ProductData product = products.get(productIndex);
+
+                            String attributes = null, related = null, partnerProductCode = null;
+                            final long version;
+                            if (versioned)
+                                version = readVersion(resultSet);
+                            else {
+                                attributes = resultSet.getString(2);
+                                related = resultSet.getString(3);
+                                partnerProductCode = resultSet.getString(4);
+                                version = ProductReader.contentHash(attributes, related, partnerProductCode);
+                            }
+                            if (reader.isUnchanged(oldProduct, version)) {
+                                // the same as before, keep the attributes that were already parsed and post-processed
+                                reader.reuseFields(product, oldProduct);
+                                reader.setVersion(product, version);
+                                continue;
+                            }
+                            if (versioned) {
+                                attributes = resultSet.getString(2);
+                                related = resultSet.getString(3);
+                                partnerProductCode = resultSet.getString(4);
+                            }
+                            reader.readFields(product, oldProduct, attributes, related, partnerProductCode);
+                            reader.setVersion(product, version);
+                            arguments.changed.add(productIndex);
                         }
                         return null;
                     }
@@ -242,110 +301,65 @@ public class JdbcProviderReader implements Reader {
                 }
         );
 
-        batchFillConsumersWithEvents = new PreparedStatementWrapper<Long, ArgumentsForFillConsumersWithEvents>(
-                "[REC " + recommenderId + " batchFillConsumersWithEvents]",
-                new PreparedStatementProcessor<Long, ArgumentsForFillConsumersWithEvents>() {
-                    @Override
-                    public Long process(final PreparedStatement preparedStatement, final ArgumentsForFillConsumersWithEvents arguments) throws SQLException {
-                        final String logPrefix = "[batchFillConsumersWithEvents<" + arguments.eventName + ">]: ";
-                        final TLongIntHashMap newConsMap = arguments.consMap;
-                        final EventsDataDescriptor descriptor = arguments.eventsDescriptors.get(arguments.eventName);
-                        List<ConsumerData> newConsumersData = arguments.newConsumersData;
-                        final int eventsIndex = descriptor.index;
-                        final int eventTypeCount = arguments.eventsDescriptors.size();
-                        final int batch_size = descriptor.batch_size;
-                        final long last_read_id = descriptor.last_read_id;
-                        final long max_event_id = arguments.maxEventID;
-                        log.info(logPrefix + "filling data of consumers with event: " + arguments.eventName + ", starting with id = " + last_read_id + ", max event id = " + max_event_id);
-
-                        ConsumerData consumerData = null;
-                        ConsumerEventsData eventsData = null;
-
-                        preparedStatement.setLong(1, last_read_id);
-                        if (batch_size >= 0)
-                            preparedStatement.setLong(2, Math.min(last_read_id + batch_size, max_event_id+1));
-                        else
-                            preparedStatement.setLong(2, max_event_id);
-                        final ResultSet resultSet = preparedStatement.executeQuery();
-                        log.info(logPrefix + "Query executed, reading data");
-                        long current_id = -1;
-                        try {
-                            int counter = 0;
-                            // query returns: first field is event_id, next is consumer_id, the rest is arbitrary event data
-                            final int n = resultSet.getMetaData().getColumnCount();
-                            while (resultSet.next()) {
-                                current_id = resultSet.getLong(1);
-                                if (current_id > max_event_id) // do not read events with id that is higher than max_event_id.
-                                    continue;
-                                descriptor.last_read_id = current_id;
-                                final long consumerId = resultSet.getLong(2);
-                                int consumerIndex = newConsMap.get(consumerId);
-                                // new consumer?
-                                consumerData = new ConsumerData(consumerId, eventTypeCount);
-                                if (consumerIndex < 0)
-                                {
-                                    newConsumersData.add(consumerData);
-                                    newConsMap.put(consumerId, newConsMap.size());
-                                }
-                                // newConsumersData = null
-                                else if (newConsumersData.get(consumerIndex) == null)
-                                {
-                                    consumerData = new ConsumerData(consumerId, eventTypeCount);
-                                    newConsumersData.set(consumerIndex, consumerData);
-                                }
-                                else
-                                    consumerData = newConsumersData.get(consumerIndex);
-
-                                eventsData = consumerData.events[eventsIndex];
-                                if (eventsData == null)
-                                    consumerData.events[eventsIndex] = eventsData = descriptor.createEventsData();
-
-                                // the Object array should contain all columns
-                                final Object [] cols = new Object [n-1];
-                                cols[0] = consumerId;
-
-                                boolean isEmpty = true;
-                                for (int i = 3; i <= n; i++)
-                                {
-                                    cols[i-2] = resultSet.getObject(i);
-                                    isEmpty = isEmpty && resultSet.wasNull();
-                                }
-
-                                // consumer must have at least one non-null field, otherwise there is no event data
-                                if (isEmpty)
-                                    continue;
-
-                                eventsData.addEvent(descriptor, cols);
-                                counter++;
-                            }
-                            // finalize all events
-                            for (ConsumerData c : newConsumersData)
-                            {
-                                // if events null or consumer data null, skip it
-                                if (c != null && c.events[eventsIndex] != null)
-                                {
-                                    c.events[eventsIndex].finalizeReading();
-                                }
-                            }
-                            log.info(logPrefix + "set " + counter + " events of type " + arguments.eventName + " to " + newConsMap.size() + " consumers. ID of the last read event =" + descriptor.last_read_id + ", timestamp of the last event = " + descriptor.last_read_date);
-                        }
-                        finally {
-                            resultSet.close();
-                        }
-
-                        if (last_read_id + batch_size < max_event_id)
-                        {
-                            descriptor.last_read_id = last_read_id + batch_size;
-                            return current_id;
+        fillConsumersWithEvents = new PreparedStatementProcessor<Long, ArgumentsForFillConsumersWithEvents>() {
+            @Override
+            public Long process(final PreparedStatement preparedStatement, final ArgumentsForFillConsumersWithEvents arguments) throws SQLException {
+                final String logPrefix = "[batchFillConsumersWithEvents<" + arguments.eventName + ">]: ";
+                final ConsumerEventsBuffer buffer = arguments.buffer;
+                final EventsDataDescriptor descriptor = buffer.getDescriptor();
+                final long max_event_id = arguments.maxEventID;
+                log.info(logPrefix + "filling data of consumers with event: " + arguments.eventName + ", ids from " + arguments.fromId + " to " + arguments.toId + ", max event id = " + max_event_id);
+
+                preparedStatement.setLong(1, arguments.fromId);
+                preparedStatement.setLong(2, arguments.toId);
+                if (arguments.fetchSize > 0)
+                    preparedStatement.setFetchSize(arguments.fetchSize);
+                final ResultSet resultSet = preparedStatement.executeQuery();
+                log.info(logPrefix + "Query executed, reading data");
+                long current_id = -1;
+                EventLog.Writer segment = null;
+                try {
+                    int counter = 0;
+                    // query returns: first field is event_id, next is consumer_id, the rest is arbitrary event data;
+                    // column types are resolved once, rows are decoded into a reusable block and added per consumer
+                    final EventRows rows = EventRows.create(descriptor, descriptor.createEventsData(), resultSet.getMetaData(), arguments.fetchSize > 0 ? arguments.fetchSize : DEFAULT_EVENT_BLOCK_SIZE);
+                    // the decoded blocks are also appended to the local event log, if there is one
+                    if (arguments.eventLog != null)
+                        segment = arguments.eventLog.startSegment(arguments.eventName, arguments.fromId, rows, descriptor.keep_in_memory_time);
+                    while (resultSet.next()) {
+                        final long id = resultSet.getLong(1);
+                        if (id > max_event_id) // do not read events with id that is higher than max_event_id.
+                            continue;
+                        current_id = id;
+                        // consumer must have at least one non-null field, otherwise there is no event data;
+                        // empty rows are kept in the block, the consumer is added to the buffer regardless
+                        if (rows.read(resultSet, id, resultSet.getLong(2)))
+                            counter++;
+                        if (rows.isFull()) {
+                            segment = flush(rows, buffer, segment);
+                            rows.clear();
                         }
-                        else {
-                            descriptor.last_read_id = max_event_id;
-                            return -1L;
+                    }
+                    segment = flush(rows, buffer, segment);
+                    if (segment != null) {
+                        try {
+                            segment.finish(arguments.nextReadId, descriptor.last_read_date);
+                        } catch (IOException e) {
+                            log.error(logPrefix + "Failed to write the event log: " + e.toString(), e);
+                            segment.abort();
                         }
-                        
+                        segment = null;
                     }
+                    log.info(logPrefix + "read " + counter + " events of type " + arguments.eventName + " of " + buffer.size() + " consumers. ID of the last read event =" + current_id + ", timestamp of the last event = " + descriptor.last_read_date);
                 }
-        );
+                finally {
+                    if (segment != null)
+                        segment.abort();
+                    resultSet.close();
+                }
+                return current_id;
+            }
+        };
 
         fillAConsumerWithEvents = new PreparedStatementWrapper<Void, ArgumentsForFillAConsumerWithEvents>(
                 "[REC " + recommenderId + " fillAConsumerWithEvents]",
@@ -516,14 +530,29 @@ public class JdbcProviderReader implements Reader {
         for (int i = 0; i < n; i++)
         {
         	log.info("Going into: " + attrsSQL[i]);
-            fillProductsWithAttributes.execute(attrsSQL[i], new ArgumentProductsProdMap(products, prodMap, new ProductReader(attrNames, attrFields[i], provider)));
+            fillProductsWithAttributes.execute(attrsSQL[i], new ArgumentProductsProdMap(products, prodMap, new ProductReader(attrNames, attrFields[i], provider, i, n)));
         }
         log.info("filled products with " + attrNames.length + " attributes");
     }
     
     
+    /**
+     * Returns the version of a product from the fifth column of an attribute query:
+     * a timestamp or a number; NO_VERSION if null, so the product is always read.
+     */
+    private static long readVersion(final ResultSet resultSet) throws SQLException {
+        final Object v = resultSet.getObject(5);
+        if (v == null)
+            return ProductData.NO_VERSION;
+        if (v instanceof Date)
+            return ((Date) v).getTime();
+        if (v instanceof Number)
+            return ((Number) v).longValue();
+        return ProductReader.contentHash(v.toString(), null, null);
+    }
+
     @Override
-    public void updateProductsWithAttributes(final List<ProductData> products, final List<ProductData> oldProducts, final TLongIntHashMap prodMap, final TLongIntHashMap oldMap) {
+    public TIntHashSet updateProductsWithAttributes(final List<ProductData> products, final List<ProductData> oldProducts, final TLongIntHashMap prodMap, final TLongIntHashMap oldMap) {
         log.info("updating products with attributes");
         final String [] attrsSQL = settings.getAsStringArray("READ_ATTRIBUTES");
         final String [] attrNames = settings.getAsStringArray("ATTRIBUTE_NAMES");
@@ -532,11 +561,13 @@ public class JdbcProviderReader implements Reader {
         int n = attrsSQL.length;
         final DataProvider provider = DataManager.getProvider();
 
+        final TIntHashSet changed = new TIntHashSet();
         for (int i = 0; i < n; i++)
         {
-            updateProductsWithAttributes.execute(attrsSQL[i], new ArgumentProductsProdMapUpdate(products, oldProducts, prodMap, oldMap, new ProductReader(attrNames, attrFields[i], provider)));
+            updateProductsWithAttributes.execute(attrsSQL[i], new ArgumentProductsProdMapUpdate(products, oldProducts, prodMap, oldMap, new ProductReader(attrNames, attrFields[i], provider, i, n), changed));
         }
-        log.info("updated products with " + attrNames.length + " attributes");
+        log.info("updated products with " + attrNames.length + " attributes, " + changed.size() + " of " + prodMap.size() + " products were new or changed");
+        return changed;
     }    
     
     @Override
@@ -555,24 +586,250 @@ public class JdbcProviderReader implements Reader {
     }
 
     @Override
-    public boolean batchFillConsumersWithEvents(final List<ConsumerData> oldConsumers, final List<ConsumerData> newConsumers, final TLongIntHashMap newConsMap, TLongIntHashMap prodMap, final Map<String, EventsDataDescriptor> eventsDescriptor) {
-        ArgumentsForFillConsumersWithEvents arguments = new ArgumentsForFillConsumersWithEvents(newConsMap, oldConsumers, newConsumers, eventsDescriptor);
-        boolean allFinished = true;
+    public boolean batchFillConsumersWithEvents(final List<ConsumerData> oldConsumers, final List<ConsumerData> newConsumers, final ConsumerIDMap.Overlay newConsMap, TLongIntHashMap prodMap, final Map<String, EventsDataDescriptor> eventsDescriptor) {
         final String [] eventNames = settings.getAsStringArray("EVENTS");
+        final long [] maxEventIDs = new long[eventNames.length];
+        // the ranges of each event type, in the order of event IDs
+        final List<List<ArgumentsForFillConsumersWithEvents>> ranges = new ArrayList<List<ArgumentsForFillConsumersWithEvents>>(eventNames.length);
+        final List<ArgumentsForFillConsumersWithEvents> all = new ArrayList<ArgumentsForFillConsumersWithEvents>();
+        final EventLog eventLog = getEventLog();
         for (int i = 0; i < eventNames.length; i++) {
             final String e = eventNames[i];
-        	log.info("Reading event: " + e + ", " + settings.getSetting(e + "_SQL"));
-            arguments.eventName = e;
+            final EventsDataDescriptor descriptor = eventsDescriptor.get(e);
+            log.info("Reading event: " + e + ", " + settings.getSetting(e + "_SQL"));
             if (settings.getSettingAsLong(e + "_MAX_EVENT") != null)
-                arguments.maxEventID = settings.getSettingAsLong(e + "_MAX_EVENT");
+                maxEventIDs[i] = settings.getSettingAsLong(e + "_MAX_EVENT");
             else
-                arguments.maxEventID = getMaxEvent.execute(settings.getSetting(e + "_MAX_EVENT_SQL"), null);
-            batchFillConsumersWithEvents.execute(settings.getSetting(e + "_SQL"), arguments);
-            allFinished = allFinished && (arguments.eventsDescriptors.get(arguments.eventName).last_read_id == arguments.maxEventID);
+                maxEventIDs[i] = getMaxEvent.execute(settings.getSetting(e + "_MAX_EVENT_SQL"), null);
+            // events already in the local event log are replayed from it, the database is read for the rest
+            final long nextReadId = nextReadId(descriptor, maxEventIDs[i]);
+            final List<ArgumentsForFillConsumersWithEvents> eventRanges = new ArrayList<ArgumentsForFillConsumersWithEvents>();
+            long from = descriptor.last_read_id;
+            if (eventLog != null) {
+                // no range of the event type is replayed yet
+                eventLog.prune(e, descriptor.keep_in_memory_time);
+                final List<EventLog.Segment> segments = new ArrayList<EventLog.Segment>();
+                for (final EventLog.Segment segment : eventLog.findSegments(e, from, nextReadId)) {
+                    if (segment.nextReadId > nextReadId)
+                        break; // a segment of a larger batch, the rest is read from the database
+                    segments.add(segment);
+                    from = segment.nextReadId;
+                }
+                if (!segments.isEmpty()) {
+                    log.info("Replaying " + segments.size() + " segments of the event log " + e + ", events from " + descriptor.last_read_id + " to " + from);
+                    eventRanges.add(new ArgumentsForFillConsumersWithEvents(e, new ConsumerEventsBuffer(descriptor), segments, eventLog));
+                }
+            }
+            if (eventRanges.isEmpty() || (from < nextReadId))
+                eventRanges.addAll(splitRange(e, descriptor, from, nextReadId, maxEventIDs[i], eventRanges.isEmpty()));
+            ranges.add(eventRanges);
+            all.addAll(eventRanges);
         }
+
+        // each range is read into its own buffer; with more than one thread, ranges are
+        // read on their own threads and thus on their own database connections
+        final Integer configuredThreads = settings.getSettingAsInt("EVENTS_READ_THREADS");
+        final int threads = Math.min(all.size(), configuredThreads == null ? all.size() : configuredThreads);
+        if (threads <= 1) {
+            for (final ArgumentsForFillConsumersWithEvents a : all)
+                readRange(a);
+        }
+        else {
+            final ExecutorService executor = getEventReaders(threads);
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(all.size());
+            for (final ArgumentsForFillConsumersWithEvents a : all) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        readRange(a);
+                        return null;
+                    }
+                }));
+            }
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        final String reason = "Reading of events " + all.get(i).eventName + " failed: " + e.getCause().toString();
+                        log.error(reason, e.getCause());
+                        throw new IllegalStateException(reason, e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                for (final Future<Void> f : futures)
+                    f.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading events", e);
+            }
+        }
+
+        // concatenate the ranges of each event type, then merge in the order of event types,
+        // so consumer indices and the order of events do not depend on the timing of threads
+        final int eventTypeCount = eventsDescriptor.size();
+        boolean allFinished = true;
+        for (int i = 0; i < eventNames.length; i++) {
+            final EventsDataDescriptor descriptor = eventsDescriptor.get(eventNames[i]);
+            final List<ArgumentsForFillConsumersWithEvents> eventRanges = ranges.get(i);
+            final ConsumerEventsBuffer buffer = eventRanges.get(0).buffer;
+            for (final ArgumentsForFillConsumersWithEvents a : eventRanges) {
+                if (a.buffer.getDescriptor() != descriptor)
+                    descriptor.mergePartial(a.buffer.getDescriptor());
+                if (a.buffer != buffer)
+                    buffer.concatenate(a.buffer);
+            }
+            buffer.finalizeReading();
+            buffer.mergeInto(newConsumers, newConsMap, eventTypeCount);
+
+            descriptor.last_read_id = nextReadId(descriptor, maxEventIDs[i]);
+            allFinished = allFinished && (descriptor.last_read_id == maxEventIDs[i]);
+        }
+        log.info("set events of " + eventNames.length + " event types to " + newConsMap.size() + " consumers");
         return allFinished;
     }
 
+    /**
+     * Returns the last_read_id of the event type after the next batch is read.
+     */
+    private static long nextReadId(final EventsDataDescriptor descriptor, final long maxEventID) {
+        final long last_read_id = descriptor.last_read_id;
+        if (last_read_id + descriptor.batch_size < maxEventID)
+            return last_read_id + descriptor.batch_size;
+        return maxEventID;
+    }
+
+    /**
+     * Splits the IDs of the next batch of events after <code>fromId</code> into ranges that are
+     * read in parallel, if event_READ_PARALLELISM is set and the batch spans at least
+     * event_READ_PARALLEL_MIN_RANGE IDs (100000 by default).
+     *
+     * @param nextReadId the last_read_id after the batch, where the last range ends in the event log
+     * @param first whether the first range reads into the descriptor itself, or into its own copy
+     */
+    private List<ArgumentsForFillConsumersWithEvents> splitRange(final String eventName, final EventsDataDescriptor descriptor, final long fromId, final long nextReadId, final long maxEventID, final boolean first) {
+        final int batch_size = descriptor.batch_size;
+        final long upper = batch_size >= 0 ? Math.min(descriptor.last_read_id + batch_size, maxEventID + 1) : maxEventID;
+        final Integer fetchSize = settings.getSettingAsInt(eventName + "_FETCH_SIZE");
+        final Integer parallelism = settings.getSettingAsInt(eventName + "_READ_PARALLELISM");
+        final Long minRange = settings.getSettingAsLong(eventName + "_READ_PARALLEL_MIN_RANGE");
+        final EventLog eventLog = getEventLog();
+        int parts = parallelism == null ? 1 : parallelism;
+        final long span = upper - fromId;
+        if (span < (minRange == null ? 100000L : minRange))
+            parts = 1;
+        if (parts > span)
+            parts = (int) Math.max(1L, span);
+
+        final List<ArgumentsForFillConsumersWithEvents> result = new ArrayList<ArgumentsForFillConsumersWithEvents>(parts);
+        long from = fromId;
+        for (int k = 1; k <= parts; k++) {
+            final long to = k == parts ? upper : fromId + span * k / parts;
+            // the first range uses the descriptor itself, the others read into their own copies
+            final EventsDataDescriptor rangeDescriptor = (k == 1) && first ? descriptor : descriptor.createPartial();
+            result.add(new ArgumentsForFillConsumersWithEvents(eventName, new ConsumerEventsBuffer(rangeDescriptor), from, to, k == parts ? nextReadId : Math.min(to, maxEventID), maxEventID, fetchSize == null ? 0 : fetchSize, eventLog));
+            from = to;
+        }
+        if (parts > 1)
+            log.info("Reading events " + eventName + " from " + fromId + " to " + upper + " in " + parts + " parallel ranges");
+        return result;
+    }
+
+    /**
+     * Reads the events of a range, from the event log or from the database.
+     */
+    private void readRange(final ArgumentsForFillConsumersWithEvents a) {
+        if (a.segments == null) {
+            queryEvents(settings.getSetting(a.eventName + "_SQL"), a);
+            return;
+        }
+        long n = 0;
+        for (final EventLog.Segment segment : a.segments) {
+            a.eventLog.replay(segment, a.buffer);
+            n += segment.rows;
+        }
+        log.info("[batchFillConsumersWithEvents<" + a.eventName + ">]: replayed " + n + " rows of " + a.buffer.size() + " consumers from the event log");
+    }
+
+    /**
+     * Executes the query of a range of events with {@link #fillConsumersWithEvents}, on the
+     * database connection of the current thread.
+     *
+     * @return the ID of the last read event, or -1 if there were none
+     */
+    Long queryEvents(final String sql, final ArgumentsForFillConsumersWithEvents arguments) {
+        return getEventsWrapper(arguments.eventName).execute(sql, arguments);
+    }
+
+    /**
+     * Returns the local event log, if the EVENT_LOG_DIR setting is set; segments of each
+     * recommender are kept in its own subdirectory. EVENT_LOG_MAX_MB limits the size of
+     * the segments of each event type.
+     */
+    private synchronized EventLog getEventLog() {
+        final String dir = settings.getSetting("EVENT_LOG_DIR");
+        if ((dir == null) || (dir.length() == 0))
+            return null;
+        final File recommenderDir = new File(dir, String.valueOf(recommenderId));
+        if ((eventLog == null) || !eventLog.getDirectory().equals(recommenderDir)) {
+            final Long maxMB = settings.getSettingAsLong("EVENT_LOG_MAX_MB");
+            eventLog = new EventLog(recommenderDir, recommenderId, maxMB == null ? 0L : maxMB * 1024L * 1024L);
+        }
+        return eventLog;
+    }
+
+    /**
+     * Adds a block of rows to the buffer, after appending it to the segment of the event log.
+     * The log is only a cache: if writing fails, the segment is dropped and reading goes on without it.
+     *
+     * @return the segment, or null if there is none (anymore)
+     */
+    private EventLog.Writer flush(final EventRows rows, final ConsumerEventsBuffer buffer, final EventLog.Writer segment) {
+        EventLog.Writer result = segment;
+        if (result != null) {
+            try {
+                result.append(rows);
+            } catch (IOException e) {
+                log.error("Failed to write the event log, dropping the segment: " + e.toString(), e);
+                result.abort();
+                result = null;
+            }
+        }
+        buffer.addEvents(rows);
+        return result;
+    }
+
+    private synchronized PreparedStatementWrapper<Long, ArgumentsForFillConsumersWithEvents> getEventsWrapper(final String eventName) {
+        PreparedStatementWrapper<Long, ArgumentsForFillConsumersWithEvents> wrapper = batchFillConsumersWithEvents.get(eventName);
+        if (wrapper == null) {
+            wrapper = new PreparedStatementWrapper<Long, ArgumentsForFillConsumersWithEvents>(
+                    "[REC " + recommenderId + " batchFillConsumersWithEvents<" + eventName + ">]",
+                    fillConsumersWithEvents
+            );
+            batchFillConsumersWithEvents.put(eventName, wrapper);
+        }
+        return wrapper;
+    }
+
+    private synchronized ExecutorService getEventReaders(final int threads) {
+        if (eventReaders == null) {
+            eventReaders = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private int counter = 0;
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "[REC " + recommenderId + "] Event Reader " + (++counter));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        else if (eventReaders.getMaximumPoolSize() < threads) {
+            // more ranges than before, grow the pool
+            eventReaders.setMaximumPoolSize(threads);
+            eventReaders.setCorePoolSize(threads);
+        }
+        return eventReaders;
+    }
+
     @Override
     public void fillAConsumerWithEvents(final ConsumerData consumerData, final Map<String, EventsDataDescriptor> eventsDescriptors) {
         log.info("filling the data of the consumer with ID " + consumerData.consumerId + " with events.");
@@ -667,26 +924,46 @@ public class JdbcProviderReader implements Reader {
         final TLongIntHashMap prodMap;
         final TLongIntHashMap oldMap;
         final ProductReader reader;
-        ArgumentProductsProdMapUpdate(final List<ProductData> products, final List<ProductData> oldProducts, final TLongIntHashMap prodMap, final TLongIntHashMap oldMap, final ProductReader reader) {
+        final TIntHashSet changed; // indices of products that were parsed
+        ArgumentProductsProdMapUpdate(final List<ProductData> products, final List<ProductData> oldProducts, final TLongIntHashMap prodMap, final TLongIntHashMap oldMap, final ProductReader reader, final TIntHashSet changed) {
             this.products = products;
             this.prodMap = prodMap;
             this.reader = reader;
             this.oldProducts = oldProducts;
             this.oldMap = oldMap;
+            this.changed = changed;
         }
     }    
 
-    private static class ArgumentsForFillConsumersWithEvents {
-        final TLongIntHashMap consMap;
-        final List<ConsumerData> oldConsumersData, newConsumersData;
-        final Map<String,EventsDataDescriptor> eventsDescriptors;
-        Long maxEventID;
-        String eventName;
-        ArgumentsForFillConsumersWithEvents(final TLongIntHashMap consMap, final List<ConsumerData> oldConsumersData, List<ConsumerData> newConsumersData, final Map<String,EventsDataDescriptor> eventsDescriptors) {
-            this.consMap = consMap;
-            this.oldConsumersData = oldConsumersData;
-            this.newConsumersData = newConsumersData;
-            this.eventsDescriptors = eventsDescriptors;
+    static class ArgumentsForFillConsumersWithEvents {
+        final String eventName;
+        final ConsumerEventsBuffer buffer;
+        final long fromId, toId; // parameters of the query
+        final long nextReadId; // the last_read_id after this range, where its segment of the event log ends
+        final long maxEventID;
+        final int fetchSize;
+        final EventLog eventLog;
+        final List<EventLog.Segment> segments; // if not null, the range is replayed from these segments of the event log
+        ArgumentsForFillConsumersWithEvents(final String eventName, final ConsumerEventsBuffer buffer, final long fromId, final long toId, final long nextReadId, final long maxEventID, final int fetchSize, final EventLog eventLog) {
+            this.eventName = eventName;
+            this.buffer = buffer;
+            this.fromId = fromId;
+            this.toId = toId;
+            this.nextReadId = nextReadId;
+            this.maxEventID = maxEventID;
+            this.fetchSize = fetchSize;
+            this.eventLog = eventLog;
+            this.segments = null;
+        }
+        ArgumentsForFillConsumersWithEvents(final String eventName, final ConsumerEventsBuffer buffer, final List<EventLog.Segment> segments, final EventLog eventLog) {
+            this.eventName = eventName;
+            this.buffer = buffer;
+            this.fromId = segments.get(0).fromId;
+            this.toId = this.nextReadId = segments.get(segments.size() - 1).nextReadId;
+            this.maxEventID = this.toId;
+            this.fetchSize = 0;
+            this.eventLog = eventLog;
+            this.segments = segments;
         }
     }
 
@@ -48,12 +48,26 @@ public final class ProductReader {
     private final List<FieldReader> relatedReaders;
     private final StringBuilder processingLog = new StringBuilder(512);
     private final int partnerProductCodeIndex;
+    private final int source; // index of the attribute query within READ_ATTRIBUTES
+    private final int sourceCount;
 
     public ProductReader(
             final String[] attributeNames, // from ATTRIBUTE_NAMES
             final String fieldDefinitions, // from READ_ATTRIBUTES_FIELDS
             final DataProvider provider
     ) {
+        this(attributeNames, fieldDefinitions, provider, 0, 1);
+    }
+
+    public ProductReader(
+            final String[] attributeNames, // from ATTRIBUTE_NAMES
+            final String fieldDefinitions, // from READ_ATTRIBUTES_FIELDS
+            final DataProvider provider,
+            final int source, // index of the query in READ_ATTRIBUTES
+            final int sourceCount // the number of queries in READ_ATTRIBUTES
+    ) {
+        this.source = source;
+        this.sourceCount = sourceCount;
         this.attributeNames = attributeNames;
         this.fieldDefinitions = fieldDefinitions;
         this.provider = provider;
@@ -121,6 +135,62 @@ public final class ProductReader {
         if (partnerProductCodeIndex >= 0) readMetaField(newData, oldData, partnerProductCodeIndex, partnerProductCode);
     }
 
+    /**
+     * Returns whether the attributes of the product were already read from the same version
+     * of this source, so they don't need to be parsed again.
+     */
+    public boolean isUnchanged(final ProductData oldData, final long version) {
+        return (oldData != null) && (version != ProductData.NO_VERSION) && (oldData.getSourceVersion(source) == version);
+    }
+
+    /**
+     * Sets the attributes of this source to the product without parsing them: the attribute
+     * structures of the previous version of the product are reused as they are.
+     */
+    public void reuseFields(final ProductData newData, final ProductData oldData) {
+        for (final FieldReader reader : attributeReaders) reuseAttribute(newData, oldData, reader.getAttributeIndex());
+        for (final FieldReader reader : relatedReaders) reuseAttribute(newData, oldData, reader.getAttributeIndex());
+        if (partnerProductCodeIndex >= 0) reuseAttribute(newData, oldData, partnerProductCodeIndex);
+    }
+
+    private static void reuseAttribute(final ProductData newData, final ProductData oldData, final int index) {
+        final Attr attr = oldData.getAttribute(index);
+        if ((attr != null) || (newData.getAttribute(index) != null)) newData.setAttribute(index, attr);
+    }
+
+    /**
+     * Records the version of this source the attributes of the product were read from.
+     */
+    public void setVersion(final ProductData data, final long version) {
+        data.setSourceVersion(source, sourceCount, version);
+    }
+
+    /**
+     * Returns a 64-bit hash (FNV-1a) of the raw values of the attribute fields, used as
+     * the version of the source when the query does not provide one.
+     */
+    public static long contentHash(final String attributesJson, final String relatedJson, final String partnerProductCode) {
+        long h = 0xcbf29ce484222325L;
+        h = hash(h, attributesJson);
+        h = hash(h, relatedJson);
+        h = hash(h, partnerProductCode);
+        return h == ProductData.NO_VERSION ? h + 1 : h;
+    }
+
+    private static long hash(long h, final String s) {
+        if (s == null) {
+            h ^= 0xff;
+            return h * 0x100000001b3L;
+        }
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= 0xfe; // separator between fields
+        return h * 0x100000001b3L;
+    }
+
     private void readJsonFields(
             final ProductData newData,
             final ProductData oldData,
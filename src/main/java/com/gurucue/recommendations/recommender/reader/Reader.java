@@ -25,6 +25,7 @@ import java.util.Map;
 import com.gurucue.recommendations.recommender.Settings;
 import com.gurucue.recommendations.recommender.dto.ConsumerData;
 import com.gurucue.recommendations.recommender.dto.ProductData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDMap;
 import gnu.trove.list.TLongList;
 import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.hash.TLongIntHashMap;
@@ -58,13 +59,15 @@ public interface Reader {
     public void fillProductsWithAttributes(List<ProductData> products, TLongIntHashMap prodMap);
 
     /**
-     * Update products with new values of attributes. 
+     * Update products with new values of attributes. Products whose attributes did not
+     * change since oldProducts were read (by version or by content) are not parsed again,
+     * they reuse the attributes of their old description.
      * @param products The array of products.
      * @param prodMap A map from IDs (as stored in DB) to indices (as stored in DataStore) for products.
      * @param oldProducts Old description of products.
-     * @return Returns a hashmap from attribute ID in DB to index in the attr table (within ProductData).
+     * @return Returns the indices of products whose attributes were (re)read and must be post-processed.
      */
-    public void updateProductsWithAttributes(List<ProductData> products, List<ProductData> oldProducts, TLongIntHashMap prodMap, TLongIntHashMap oldMap);
+    public TIntHashSet updateProductsWithAttributes(List<ProductData> products, List<ProductData> oldProducts, TLongIntHashMap prodMap, TLongIntHashMap oldMap);
     
     /**
      * @return Returns an array of consumers.
@@ -78,6 +81,13 @@ public interface Reader {
 
     /**
      * Reads one batch of data.If event_BATCH_SIZE is not set in settings, error will be thrown.  
+     * Event types may be read concurrently (EVENTS_READ_THREADS), but new consumers are
+     * always added in the order of event types, as if they were read one after another.
+     * Large batches may also be split into ranges of event IDs that are read in parallel
+     * (event_READ_PARALLELISM); events of each consumer stay in the order of their IDs.
+     * With EVENT_LOG_DIR set, read events are also kept in a local log, from which
+     * they are replayed instead of reading them from the database again; the log keeps
+     * the events of event_KEEP_CONSUMER_MEMORY_TIME, up to EVENT_LOG_MAX_MB per event type.
      * 
      * @param settings
      * @param consumers
@@ -86,7 +96,7 @@ public interface Reader {
      * @param eventsDescriptor
      * @return Returns true if the final batch of data was read. 
      */
-    public boolean batchFillConsumersWithEvents(final List<ConsumerData> oldConsumers, List<ConsumerData> newConsumers, TLongIntHashMap newConsMap, final TLongIntHashMap prodMap, final Map<String, EventsDataDescriptor> eventsDescriptor);
+    public boolean batchFillConsumersWithEvents(final List<ConsumerData> oldConsumers, List<ConsumerData> newConsumers, ConsumerIDMap.Overlay newConsMap, final TLongIntHashMap prodMap, final Map<String, EventsDataDescriptor> eventsDescriptor);
 
     /**
      * Returns a consumer object (from DB)
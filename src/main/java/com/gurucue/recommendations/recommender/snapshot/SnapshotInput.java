@@ -0,0 +1,563 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.snapshot;
+
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.map.TLongFloatMap;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongFloatHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Input of one section of a model snapshot, reading what {@link SnapshotOutput} wrote.
+ * An input over a memory-mapped section decodes arrays directly from the mapping,
+ * or returns views of them ({@link #readIntBuffer()} and the like) without decoding
+ * them at all.
+ */
+public final class SnapshotInput extends DataInputStream {
+    private final byte [] scratch = new byte[SnapshotOutput.SCRATCH_SIZE];
+    private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+    private final ByteBuffer mapped; // the section, if it is memory-mapped
+
+    public SnapshotInput(final InputStream in) {
+        super(in);
+        this.mapped = null;
+    }
+
+    /**
+     * Input over a buffer, usually a memory-mapped section; the buffer's position
+     * is the position of this input.
+     */
+    public SnapshotInput(final ByteBuffer buffer) {
+        super(new ByteBufferInputStream(buffer));
+        this.mapped = buffer;
+    }
+
+    /**
+     * Checks that the mapped section has the given number of bytes left.
+     */
+    private void require(final long bytes) throws EOFException {
+        if (mapped.remaining() < bytes)
+            throw new EOFException("Unexpected end of a section of the snapshot");
+    }
+
+    public String readString() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final byte [] bytes = new byte[n];
+        readFully(bytes);
+        return new String(bytes, SnapshotOutput.UTF8);
+    }
+
+    public void readInts(final int [] a, final int offset, final int length) throws IOException {
+        if (mapped != null) {
+            require(4L * length);
+            mapped.asIntBuffer().get(a, offset, length);
+            mapped.position(mapped.position() + 4 * length);
+            return;
+        }
+        final int step = SnapshotOutput.SCRATCH_SIZE / 4;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            readFully(scratch, 0, n * 4);
+            scratchBuffer.clear();
+            scratchBuffer.asIntBuffer().get(a, offset + i, n);
+        }
+    }
+
+    public void readLongs(final long [] a, final int offset, final int length) throws IOException {
+        if (mapped != null) {
+            require(8L * length);
+            mapped.asLongBuffer().get(a, offset, length);
+            mapped.position(mapped.position() + 8 * length);
+            return;
+        }
+        final int step = SnapshotOutput.SCRATCH_SIZE / 8;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            readFully(scratch, 0, n * 8);
+            scratchBuffer.clear();
+            scratchBuffer.asLongBuffer().get(a, offset + i, n);
+        }
+    }
+
+    public void readFloats(final float [] a, final int offset, final int length) throws IOException {
+        if (mapped != null) {
+            require(4L * length);
+            mapped.asFloatBuffer().get(a, offset, length);
+            mapped.position(mapped.position() + 4 * length);
+            return;
+        }
+        final int step = SnapshotOutput.SCRATCH_SIZE / 4;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            readFully(scratch, 0, n * 4);
+            scratchBuffer.clear();
+            scratchBuffer.asFloatBuffer().get(a, offset + i, n);
+        }
+    }
+
+    public void readDoubles(final double [] a, final int offset, final int length) throws IOException {
+        if (mapped != null) {
+            require(8L * length);
+            mapped.asDoubleBuffer().get(a, offset, length);
+            mapped.position(mapped.position() + 8 * length);
+            return;
+        }
+        final int step = SnapshotOutput.SCRATCH_SIZE / 8;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            readFully(scratch, 0, n * 8);
+            scratchBuffer.clear();
+            scratchBuffer.asDoubleBuffer().get(a, offset + i, n);
+        }
+    }
+
+    public int [] readIntArray() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final int [] a = new int[n];
+        readInts(a, 0, n);
+        return a;
+    }
+
+    public long [] readLongArray() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final long [] a = new long[n];
+        readLongs(a, 0, n);
+        return a;
+    }
+
+    public float [] readFloatArray() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final float [] a = new float[n];
+        readFloats(a, 0, n);
+        return a;
+    }
+
+    public double [] readDoubleArray() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final double [] a = new double[n];
+        readDoubles(a, 0, n);
+        return a;
+    }
+
+    public byte [] readByteArray() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final byte [] a = new byte[n];
+        readFully(a);
+        return a;
+    }
+
+    /**
+     * Reads an array written with {@link SnapshotOutput#writeIntArray(int[])} as a buffer,
+     * to be read with absolute gets only, so it can be shared by threads. Over a mapped
+     * section the buffer is a view of the mapping: nothing is copied to the heap, and pages
+     * are only faulted in when they are used. The mapping stays valid after the reader is
+     * closed and its file is deleted. Over a stream the array is read and wrapped.
+     */
+    public IntBuffer readIntBuffer() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        if (mapped != null)
+            return view(4L * n).asIntBuffer();
+        final int [] a = new int[n];
+        readInts(a, 0, n);
+        return IntBuffer.wrap(a);
+    }
+
+    /**
+     * Reads an array written with {@link SnapshotOutput#writeLongArray(long[])} as a buffer,
+     * see {@link #readIntBuffer()}.
+     */
+    public LongBuffer readLongBuffer() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        if (mapped != null)
+            return view(8L * n).asLongBuffer();
+        final long [] a = new long[n];
+        readLongs(a, 0, n);
+        return LongBuffer.wrap(a);
+    }
+
+    /**
+     * Reads an array written with {@link SnapshotOutput#writeFloatArray(float[])} as a buffer,
+     * see {@link #readIntBuffer()}.
+     */
+    public FloatBuffer readFloatBuffer() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        if (mapped != null)
+            return view(4L * n).asFloatBuffer();
+        final float [] a = new float[n];
+        readFloats(a, 0, n);
+        return FloatBuffer.wrap(a);
+    }
+
+    /**
+     * Returns the next bytes of the mapped section as a separate buffer and skips them.
+     */
+    private ByteBuffer view(final long bytes) throws EOFException {
+        require(bytes);
+        final ByteBuffer view = mapped.slice(); // big-endian, like the mapping
+        view.limit((int) bytes);
+        mapped.position(mapped.position() + (int) bytes);
+        return view;
+    }
+
+    public TIntArrayList readIntList() throws IOException {
+        final int [] a = readIntArray();
+        if (a == null)
+            return null;
+        final TIntArrayList list = new TIntArrayList(Math.max(a.length, 10));
+        list.add(a);
+        return list;
+    }
+
+    public TLongArrayList readLongList() throws IOException {
+        final long [] a = readLongArray();
+        if (a == null)
+            return null;
+        final TLongArrayList list = new TLongArrayList(Math.max(a.length, 10));
+        list.add(a);
+        return list;
+    }
+
+    public TByteArrayList readByteList() throws IOException {
+        final byte [] a = readByteArray();
+        if (a == null)
+            return null;
+        final TByteArrayList list = new TByteArrayList(Math.max(a.length, 10));
+        list.add(a);
+        return list;
+    }
+
+    public TIntIntHashMap readIntIntMap() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final int noEntryKey = readInt();
+        final int noEntryValue = readInt();
+        final int [] keys = new int[n];
+        final int [] values = new int[n];
+        readInts(keys, 0, n);
+        readInts(values, 0, n);
+        final TIntIntHashMap map = new TIntIntHashMap(Math.max(n, 10), 0.5f, noEntryKey, noEntryValue);
+        for (int i = 0; i < n; i++)
+            map.put(keys[i], values[i]);
+        return map;
+    }
+
+    public TIntLongHashMap readIntLongMap() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final int noEntryKey = readInt();
+        final long noEntryValue = readLong();
+        final int [] keys = new int[n];
+        final long [] values = new long[n];
+        readInts(keys, 0, n);
+        readLongs(values, 0, n);
+        final TIntLongHashMap map = new TIntLongHashMap(Math.max(n, 10), 0.5f, noEntryKey, noEntryValue);
+        for (int i = 0; i < n; i++)
+            map.put(keys[i], values[i]);
+        return map;
+    }
+
+    public TLongIntHashMap readLongIntMap() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final long noEntryKey = readLong();
+        final int noEntryValue = readInt();
+        final long [] keys = new long[n];
+        final int [] values = new int[n];
+        readLongs(keys, 0, n);
+        readInts(values, 0, n);
+        final TLongIntHashMap map = new TLongIntHashMap(Math.max(n, 10), 0.5f, noEntryKey, noEntryValue);
+        for (int i = 0; i < n; i++)
+            map.put(keys[i], values[i]);
+        return map;
+    }
+
+    public TIntFloatHashMap readIntFloatMap() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final int noEntryKey = readInt();
+        final float noEntryValue = readFloat();
+        final int [] keys = new int[n];
+        final float [] values = new float[n];
+        readInts(keys, 0, n);
+        readFloats(values, 0, n);
+        final TIntFloatHashMap map = new TIntFloatHashMap(Math.max(n, 10), 0.5f, noEntryKey, noEntryValue);
+        for (int i = 0; i < n; i++)
+            map.put(keys[i], values[i]);
+        return map;
+    }
+
+    public TLongLongHashMap readLongLongMap() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final long noEntryKey = readLong();
+        final long noEntryValue = readLong();
+        final long [] keys = new long[n];
+        final long [] values = new long[n];
+        readLongs(keys, 0, n);
+        readLongs(values, 0, n);
+        final TLongLongHashMap map = new TLongLongHashMap(Math.max(n, 10), 0.5f, noEntryKey, noEntryValue);
+        for (int i = 0; i < n; i++)
+            map.put(keys[i], values[i]);
+        return map;
+    }
+
+    public TLongFloatHashMap readLongFloatMap() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final long noEntryKey = readLong();
+        final float noEntryValue = readFloat();
+        final long [] keys = new long[n];
+        final float [] values = new float[n];
+        readLongs(keys, 0, n);
+        readFloats(values, 0, n);
+        final TLongFloatHashMap map = new TLongFloatHashMap(Math.max(n, 10), 0.5f, noEntryKey, noEntryValue);
+        for (int i = 0; i < n; i++)
+            map.put(keys[i], values[i]);
+        return map;
+    }
+
+    /**
+     * Reads a map written with {@link SnapshotOutput#writeIntObjectMap}, reading each
+     * value with the given reader.
+     */
+    public <T> TIntObjectHashMap<T> readIntObjectMap(final ElementReader<? extends T> reader) throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final int noEntryKey = readInt();
+        final int [] keys = new int[n];
+        readInts(keys, 0, n);
+        final TIntObjectHashMap<T> map = new TIntObjectHashMap<T>(Math.max(n, 10), 0.5f, noEntryKey);
+        for (int i = 0; i < n; i++)
+            map.put(keys[i], reader.read(this));
+        return map;
+    }
+
+    public List<TIntIntHashMap> readIntIntMaps() throws IOException {
+        final int n = readInt();
+        if (n < 0)
+            return null;
+        final List<TIntIntHashMap> maps = new ArrayList<TIntIntHashMap>(n);
+        for (int i = 0; i < n; i++)
+            maps.add(readIntIntMap());
+        return maps;
+    }
+
+    /**
+     * Opens a block written with {@link SnapshotOutput#beginBlock()}. The returned stream
+     * ends with the block; closing it skips what was not read, but does not close this input.
+     */
+    public InputStream openBlock() {
+        return new ChunkedInputStream(this);
+    }
+
+    /**
+     * Reads an object written with {@link SnapshotOutput#writeObjectBlock(Object)}.
+     */
+    public Object readObjectBlock() throws IOException {
+        final InputStream block = openBlock();
+        try {
+            return new ObjectInputStream(block).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in a snapshot: " + e.getMessage(), e);
+        }
+        finally {
+            block.close();
+        }
+    }
+
+    /**
+     * Reads one element of a structure, see {@link #readIntObjectMap(ElementReader)}.
+     */
+    public interface ElementReader<T> {
+        T read(SnapshotInput in) throws IOException;
+    }
+
+    public static final ElementReader<TIntLongMap> INT_LONG_MAP = new ElementReader<TIntLongMap>() {
+        @Override
+        public TIntLongMap read(final SnapshotInput in) throws IOException {
+            return in.readIntLongMap();
+        }
+    };
+
+    public static final ElementReader<TLongIntMap> LONG_INT_MAP = new ElementReader<TLongIntMap>() {
+        @Override
+        public TLongIntMap read(final SnapshotInput in) throws IOException {
+            return in.readLongIntMap();
+        }
+    };
+
+    public static final ElementReader<TLongLongMap> LONG_LONG_MAP = new ElementReader<TLongLongMap>() {
+        @Override
+        public TLongLongMap read(final SnapshotInput in) throws IOException {
+            return in.readLongLongMap();
+        }
+    };
+
+    public static final ElementReader<TLongFloatMap> LONG_FLOAT_MAP = new ElementReader<TLongFloatMap>() {
+        @Override
+        public TLongFloatMap read(final SnapshotInput in) throws IOException {
+            return in.readLongFloatMap();
+        }
+    };
+
+    public static final ElementReader<TLongList> LONG_LIST = new ElementReader<TLongList>() {
+        @Override
+        public TLongList read(final SnapshotInput in) throws IOException {
+            return in.readLongList();
+        }
+    };
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining())
+                return -1;
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte [] b, final int off, final int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int k = (int) Math.max(0L, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static final class ChunkedInputStream extends InputStream {
+        private final DataInputStream in;
+        private int remaining = 0; // in the current chunk
+        private boolean ended = false;
+
+        ChunkedInputStream(final DataInputStream in) {
+            this.in = in;
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (!ended && (remaining == 0)) {
+                remaining = in.readInt();
+                if (remaining == 0)
+                    ended = true;
+                else if (remaining < 0)
+                    throw new IOException("Corrupt block in a snapshot: negative chunk length");
+            }
+            return !ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+            remaining--;
+            return in.readUnsignedByte();
+        }
+
+        @Override
+        public int read(final byte [] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!nextChunk())
+                return -1;
+            final int n = Math.min(len, remaining);
+            in.readFully(b, off, n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            while (nextChunk()) {
+                final int skipped = in.skipBytes(remaining);
+                if (skipped <= 0)
+                    throw new EOFException("Unexpected end of a block in a snapshot");
+                remaining -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.snapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A write-ahead journal of the batches applied to a model after its last snapshot set,
+ * so that after a crash they are replayed on top of the snapshot instead of being read
+ * from the database again.
+ * <p>
+ * The journal is a sequence of segment files next to the manifest
+ * (<code>model.ser.journal.7</code>). A segment starts with the magic, the format version
+ * and the epoch of the snapshot it follows; then come records, each with its length (int)
+ * and CRC32 (long), followed by the record bytes in the snapshot encoding. A record is
+ * forced to the storage device before {@link #append(SnapshotSet.SectionWriter)} returns.
+ * <p>
+ * When a snapshot is captured, the journal rolls over to a new segment that follows the
+ * new epoch ({@link #roll(long)}); when the snapshot is committed, the segments before it
+ * are deleted ({@link #deleteBefore(long)}). If the snapshot fails, the older segments stay
+ * and are replayed together with the new ones on top of the previous snapshot. Replay skips
+ * segments that follow an older epoch than the loaded snapshot, and stops reading a segment
+ * at the first incomplete or corrupt record, which is where a crash interrupted it.
+ */
+public final class SnapshotJournal {
+    private static final Logger logger = LogManager.getLogger(SnapshotJournal.class);
+    private static final int MAGIC = 0x47434A4E; // "GCJN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final File manifest;
+    private final Pattern segmentPattern;
+    private FileChannel channel = null; // the segment that is appended to
+
+    /**
+     * @param manifest the manifest of the snapshot set that the journal follows
+     */
+    public SnapshotJournal(final File manifest) {
+        this.manifest = manifest.getAbsoluteFile();
+        this.segmentPattern = Pattern.compile(Pattern.quote(this.manifest.getName()) + "\\.journal\\.(\\d+)");
+    }
+
+    /**
+     * Reads one record; returns false to stop the replay.
+     */
+    public interface RecordReader {
+        boolean read(SnapshotInput in) throws IOException, InterruptedException;
+    }
+
+    public File getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Returns the existing segments by their sequence numbers.
+     */
+    private synchronized TreeMap<Long, File> segments() {
+        final TreeMap<Long, File> result = new TreeMap<Long, File>();
+        final File [] files = manifest.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return segmentPattern.matcher(name).matches();
+            }
+        });
+        if (files == null)
+            return result;
+        for (final File f : files) {
+            final Matcher m = segmentPattern.matcher(f.getName());
+            if (m.matches())
+                result.put(Long.valueOf(m.group(1)), f);
+        }
+        return result;
+    }
+
+    /**
+     * Starts a new segment after the existing ones, which follows the snapshot of the given
+     * epoch, and returns its sequence number. Records appended from now on go to it.
+     */
+    public synchronized long roll(final long epoch) throws IOException {
+        close();
+        final TreeMap<Long, File> existing = segments();
+        final long next = existing.isEmpty() ? 1L : existing.lastKey() + 1L;
+        final File file = new File(manifest.getParentFile(), manifest.getName() + ".journal." + next);
+        final FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(epoch);
+            header.flip();
+            while (header.hasRemaining())
+                c.write(header);
+            c.force(true);
+        }
+        catch (IOException e) {
+            c.close();
+            file.delete();
+            throw e;
+        }
+        channel = c;
+        return next;
+    }
+
+    /**
+     * Encodes the record and appends it to the current segment, forcing it to the storage
+     * device. After a failure nothing is appended anymore until the next {@link #roll(long)},
+     * so the journal never has a gap.
+     */
+    public synchronized void append(final SnapshotSet.SectionWriter record) throws IOException {
+        if (channel == null)
+            throw new IOException("The journal of " + manifest.getPath() + " is not open");
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final SnapshotOutput out = new SnapshotOutput(bytes);
+            record.write(out);
+            out.flush();
+            final byte [] data = bytes.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            final ByteBuffer frame = ByteBuffer.allocate(12 + data.length);
+            frame.putInt(data.length);
+            frame.putLong(crc.getValue());
+            frame.put(data);
+            frame.flip();
+            while (frame.hasRemaining())
+                channel.write(frame);
+            channel.force(false);
+        }
+        catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether records can be appended.
+     */
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Deletes the segments before the given sequence number, after the snapshot that
+     * they precede was committed.
+     */
+    public void deleteBefore(final long before) {
+        for (final File f : segments().headMap(before).values()) {
+            if (!f.delete())
+                logger.warn("Failed to delete an old journal segment: " + f.getPath());
+        }
+    }
+
+    /**
+     * Returns whether there are any segments.
+     */
+    public boolean hasSegments() {
+        return !segments().isEmpty();
+    }
+
+    /**
+     * Reads the records of the segments that follow the snapshot of the given epoch or a
+     * later one, in order, and returns the number of records read.
+     */
+    public int replay(final long epoch, final RecordReader reader) throws IOException, InterruptedException {
+        int count = 0;
+        for (final File f : segments().values()) {
+            final FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            try {
+                final long size = c.size();
+                if (size < HEADER_SIZE) {
+                    logger.warn("Skipping the incomplete journal segment " + f.getPath());
+                    continue;
+                }
+                final ByteBuffer header = read(c, 0L, HEADER_SIZE);
+                if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+                    logger.warn("Skipping " + f.getPath() + ": not a journal segment in this format");
+                    continue;
+                }
+                if (header.getLong() < epoch)
+                    continue; // the records are in the snapshot
+                long position = HEADER_SIZE;
+                while (position + 12 <= size) {
+                    final ByteBuffer frame = read(c, position, 12);
+                    final int length = frame.getInt();
+                    final long crc = frame.getLong();
+                    if ((length < 0) || (position + 12 + length > size)) {
+                        logger.warn("The journal segment " + f.getPath() + " ends with an incomplete record at " + position);
+                        break;
+                    }
+                    final ByteBuffer data = read(c, position + 12, length);
+                    final CRC32 c32 = new CRC32();
+                    c32.update(data.duplicate());
+                    if (c32.getValue() != crc) {
+                        logger.warn("Checksum mismatch of the record at " + position + " of the journal segment " + f.getPath() + ", the rest of the segment is ignored");
+                        break;
+                    }
+                    count++;
+                    if (!reader.read(new SnapshotInput(data)))
+                        return count;
+                    position += 12 + length;
+                }
+            }
+            finally {
+                c.close();
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer read(final FileChannel c, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (c.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of a journal segment");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Closes the current segment; records are not appended until the next {@link #roll(long)}.
+     */
+    public synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {}
+        channel = null;
+    }
+}
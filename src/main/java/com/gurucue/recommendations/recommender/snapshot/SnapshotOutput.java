@@ -0,0 +1,536 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.snapshot;
+
+import gnu.trove.iterator.TIntFloatIterator;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.iterator.TIntLongIterator;
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.iterator.TLongFloatIterator;
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TLongFloatMap;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TLongLongMap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Output of one section of a model snapshot (see {@link SnapshotWriter}). Besides
+ * the methods of DataOutputStream it writes arrays of primitives in bulk, the Trove
+ * collections used by the model, and blocks of Java serialization for parts of the
+ * model that don't have a binary format yet.
+ * <p>
+ * Arrays and maps are written with their length first, -1 for null; everything is
+ * big-endian, like DataOutputStream.
+ */
+public final class SnapshotOutput extends DataOutputStream {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int SCRATCH_SIZE = 65536;
+
+    private final byte [] scratch = new byte[SCRATCH_SIZE];
+    private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+    public SnapshotOutput(final OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Writes a string of any length, or null.
+     */
+    public void writeString(final String s) throws IOException {
+        if (s == null) {
+            writeInt(-1);
+            return;
+        }
+        final byte [] bytes = s.getBytes(UTF8);
+        writeInt(bytes.length);
+        write(bytes);
+    }
+
+    public void writeInts(final int [] a, final int offset, final int length) throws IOException {
+        final int step = SCRATCH_SIZE / 4;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            scratchBuffer.clear();
+            scratchBuffer.asIntBuffer().put(a, offset + i, n);
+            write(scratch, 0, n * 4);
+        }
+    }
+
+    public void writeLongs(final long [] a, final int offset, final int length) throws IOException {
+        final int step = SCRATCH_SIZE / 8;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            scratchBuffer.clear();
+            scratchBuffer.asLongBuffer().put(a, offset + i, n);
+            write(scratch, 0, n * 8);
+        }
+    }
+
+    public void writeFloats(final float [] a, final int offset, final int length) throws IOException {
+        final int step = SCRATCH_SIZE / 4;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            scratchBuffer.clear();
+            scratchBuffer.asFloatBuffer().put(a, offset + i, n);
+            write(scratch, 0, n * 4);
+        }
+    }
+
+    public void writeDoubles(final double [] a, final int offset, final int length) throws IOException {
+        final int step = SCRATCH_SIZE / 8;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            scratchBuffer.clear();
+            scratchBuffer.asDoubleBuffer().put(a, offset + i, n);
+            write(scratch, 0, n * 8);
+        }
+    }
+
+    /**
+     * Writes a part of a buffer, like {@link #writeInts(int[], int, int)}; the position
+     * and limit of the buffer are not changed, so it can be shared with readers.
+     */
+    public void writeInts(final IntBuffer b, final int offset, final int length) throws IOException {
+        final IntBuffer source = b.duplicate();
+        final int step = SCRATCH_SIZE / 4;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            source.limit(offset + i + n);
+            source.position(offset + i);
+            scratchBuffer.clear();
+            scratchBuffer.asIntBuffer().put(source);
+            write(scratch, 0, n * 4);
+        }
+    }
+
+    public void writeLongs(final LongBuffer b, final int offset, final int length) throws IOException {
+        final LongBuffer source = b.duplicate();
+        final int step = SCRATCH_SIZE / 8;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            source.limit(offset + i + n);
+            source.position(offset + i);
+            scratchBuffer.clear();
+            scratchBuffer.asLongBuffer().put(source);
+            write(scratch, 0, n * 8);
+        }
+    }
+
+    public void writeFloats(final FloatBuffer b, final int offset, final int length) throws IOException {
+        final FloatBuffer source = b.duplicate();
+        final int step = SCRATCH_SIZE / 4;
+        for (int i = 0; i < length; i += step) {
+            final int n = Math.min(step, length - i);
+            source.limit(offset + i + n);
+            source.position(offset + i);
+            scratchBuffer.clear();
+            scratchBuffer.asFloatBuffer().put(source);
+            write(scratch, 0, n * 4);
+        }
+    }
+
+    public void writeIntArray(final int [] a) throws IOException {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        writeInts(a, 0, a.length);
+    }
+
+    public void writeLongArray(final long [] a) throws IOException {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        writeLongs(a, 0, a.length);
+    }
+
+    public void writeFloatArray(final float [] a) throws IOException {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        writeFloats(a, 0, a.length);
+    }
+
+    public void writeDoubleArray(final double [] a) throws IOException {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        writeDoubles(a, 0, a.length);
+    }
+
+    /**
+     * Writes the buffer from index 0 to its capacity as an array, to be read with
+     * {@link SnapshotInput#readIntArray()} or {@link SnapshotInput#readIntBuffer()}.
+     */
+    public void writeIntBuffer(final IntBuffer b) throws IOException {
+        if (b == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(b.capacity());
+        writeInts(b, 0, b.capacity());
+    }
+
+    public void writeLongBuffer(final LongBuffer b) throws IOException {
+        if (b == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(b.capacity());
+        writeLongs(b, 0, b.capacity());
+    }
+
+    public void writeFloatBuffer(final FloatBuffer b) throws IOException {
+        if (b == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(b.capacity());
+        writeFloats(b, 0, b.capacity());
+    }
+
+    public void writeByteArray(final byte [] a) throws IOException {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        write(a);
+    }
+
+    public void writeIntList(final TIntList list) throws IOException {
+        writeIntArray(list == null ? null : list.toArray());
+    }
+
+    public void writeLongList(final TLongList list) throws IOException {
+        writeLongArray(list == null ? null : list.toArray());
+    }
+
+    public void writeByteList(final TByteList list) throws IOException {
+        writeByteArray(list == null ? null : list.toArray());
+    }
+
+    /**
+     * Writes a map as its no-entry values, followed by the arrays of keys and values.
+     */
+    public void writeIntIntMap(final TIntIntMap map) throws IOException {
+        if (map == null) {
+            writeInt(-1);
+            return;
+        }
+        final int n = map.size();
+        final int [] keys = new int[n];
+        final int [] values = new int[n];
+        int i = 0;
+        for (final TIntIntIterator it = map.iterator(); it.hasNext(); i++) {
+            it.advance();
+            keys[i] = it.key();
+            values[i] = it.value();
+        }
+        writeInt(n);
+        writeInt(map.getNoEntryKey());
+        writeInt(map.getNoEntryValue());
+        writeInts(keys, 0, n);
+        writeInts(values, 0, n);
+    }
+
+    public void writeIntLongMap(final TIntLongMap map) throws IOException {
+        if (map == null) {
+            writeInt(-1);
+            return;
+        }
+        final int n = map.size();
+        final int [] keys = new int[n];
+        final long [] values = new long[n];
+        int i = 0;
+        for (final TIntLongIterator it = map.iterator(); it.hasNext(); i++) {
+            it.advance();
+            keys[i] = it.key();
+            values[i] = it.value();
+        }
+        writeInt(n);
+        writeInt(map.getNoEntryKey());
+        writeLong(map.getNoEntryValue());
+        writeInts(keys, 0, n);
+        writeLongs(values, 0, n);
+    }
+
+    public void writeLongIntMap(final TLongIntMap map) throws IOException {
+        if (map == null) {
+            writeInt(-1);
+            return;
+        }
+        final int n = map.size();
+        final long [] keys = new long[n];
+        final int [] values = new int[n];
+        int i = 0;
+        for (final TLongIntIterator it = map.iterator(); it.hasNext(); i++) {
+            it.advance();
+            keys[i] = it.key();
+            values[i] = it.value();
+        }
+        writeInt(n);
+        writeLong(map.getNoEntryKey());
+        writeInt(map.getNoEntryValue());
+        writeLongs(keys, 0, n);
+        writeInts(values, 0, n);
+    }
+
+    public void writeIntFloatMap(final TIntFloatMap map) throws IOException {
+        if (map == null) {
+            writeInt(-1);
+            return;
+        }
+        final int n = map.size();
+        final int [] keys = new int[n];
+        final float [] values = new float[n];
+        int i = 0;
+        for (final TIntFloatIterator it = map.iterator(); it.hasNext(); i++) {
+            it.advance();
+            keys[i] = it.key();
+            values[i] = it.value();
+        }
+        writeInt(n);
+        writeInt(map.getNoEntryKey());
+        writeFloat(map.getNoEntryValue());
+        writeInts(keys, 0, n);
+        writeFloats(values, 0, n);
+    }
+
+    public void writeLongLongMap(final TLongLongMap map) throws IOException {
+        if (map == null) {
+            writeInt(-1);
+            return;
+        }
+        final int n = map.size();
+        final long [] keys = new long[n];
+        final long [] values = new long[n];
+        int i = 0;
+        for (final TLongLongIterator it = map.iterator(); it.hasNext(); i++) {
+            it.advance();
+            keys[i] = it.key();
+            values[i] = it.value();
+        }
+        writeInt(n);
+        writeLong(map.getNoEntryKey());
+        writeLong(map.getNoEntryValue());
+        writeLongs(keys, 0, n);
+        writeLongs(values, 0, n);
+    }
+
+    public void writeLongFloatMap(final TLongFloatMap map) throws IOException {
+        if (map == null) {
+            writeInt(-1);
+            return;
+        }
+        final int n = map.size();
+        final long [] keys = new long[n];
+        final float [] values = new float[n];
+        int i = 0;
+        for (final TLongFloatIterator it = map.iterator(); it.hasNext(); i++) {
+            it.advance();
+            keys[i] = it.key();
+            values[i] = it.value();
+        }
+        writeInt(n);
+        writeLong(map.getNoEntryKey());
+        writeFloat(map.getNoEntryValue());
+        writeLongs(keys, 0, n);
+        writeFloats(values, 0, n);
+    }
+
+    /**
+     * Writes a map of per-key structures, such as per-consumer counts: its no-entry key
+     * and the array of keys, followed by the values, each written by the given writer.
+     */
+    public <T> void writeIntObjectMap(final TIntObjectMap<T> map, final ElementWriter<? super T> writer) throws IOException {
+        if (map == null) {
+            writeInt(-1);
+            return;
+        }
+        final int n = map.size();
+        final int [] keys = new int[n];
+        final Object [] values = new Object[n];
+        int i = 0;
+        for (final TIntObjectIterator<T> it = map.iterator(); it.hasNext(); i++) {
+            it.advance();
+            keys[i] = it.key();
+            values[i] = it.value();
+        }
+        writeInt(n);
+        writeInt(map.getNoEntryKey());
+        writeInts(keys, 0, n);
+        for (i = 0; i < n; i++) {
+            @SuppressWarnings("unchecked")
+            final T value = (T) values[i];
+            writer.write(this, value);
+        }
+    }
+
+    /**
+     * Writes a list of maps, such as per-product similarities; null elements are preserved.
+     */
+    public void writeIntIntMaps(final List<? extends TIntIntMap> maps) throws IOException {
+        if (maps == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(maps.size());
+        for (final TIntIntMap map : maps)
+            writeIntIntMap(map);
+    }
+
+    /**
+     * Starts a block of arbitrary length, e.g. for Java serialization. The block is
+     * written in chunks, and ends when the returned stream is closed; closing it does
+     * not close this output.
+     */
+    public OutputStream beginBlock() {
+        return new ChunkedOutputStream(this);
+    }
+
+    /**
+     * Writes an object with Java serialization, in its own block.
+     */
+    public void writeObjectBlock(final Object o) throws IOException {
+        final OutputStream block = beginBlock();
+        final ObjectOutputStream out = new ObjectOutputStream(block);
+        out.writeObject(o);
+        out.close();
+    }
+
+    /**
+     * Writes one element of a structure, see {@link #writeIntObjectMap(TIntObjectMap, ElementWriter)}.
+     */
+    public interface ElementWriter<T> {
+        void write(SnapshotOutput out, T element) throws IOException;
+    }
+
+    public static final ElementWriter<TIntLongMap> INT_LONG_MAP = new ElementWriter<TIntLongMap>() {
+        @Override
+        public void write(final SnapshotOutput out, final TIntLongMap element) throws IOException {
+            out.writeIntLongMap(element);
+        }
+    };
+
+    public static final ElementWriter<TLongIntMap> LONG_INT_MAP = new ElementWriter<TLongIntMap>() {
+        @Override
+        public void write(final SnapshotOutput out, final TLongIntMap element) throws IOException {
+            out.writeLongIntMap(element);
+        }
+    };
+
+    public static final ElementWriter<TLongLongMap> LONG_LONG_MAP = new ElementWriter<TLongLongMap>() {
+        @Override
+        public void write(final SnapshotOutput out, final TLongLongMap element) throws IOException {
+            out.writeLongLongMap(element);
+        }
+    };
+
+    public static final ElementWriter<TLongFloatMap> LONG_FLOAT_MAP = new ElementWriter<TLongFloatMap>() {
+        @Override
+        public void write(final SnapshotOutput out, final TLongFloatMap element) throws IOException {
+            out.writeLongFloatMap(element);
+        }
+    };
+
+    public static final ElementWriter<TLongList> LONG_LIST = new ElementWriter<TLongList>() {
+        @Override
+        public void write(final SnapshotOutput out, final TLongList element) throws IOException {
+            out.writeLongList(element);
+        }
+    };
+
+    /**
+     * Writes chunks of at most SCRATCH_SIZE bytes, each preceded by its length;
+     * a zero length ends the block.
+     */
+    private static final class ChunkedOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte [] buffer = new byte[SCRATCH_SIZE];
+        private int size = 0;
+        private boolean closed = false;
+
+        ChunkedOutputStream(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (size == buffer.length)
+                writeChunk();
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte [] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length)
+                    writeChunk();
+                final int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (size == 0)
+                return;
+            out.writeInt(size);
+            out.write(buffer, 0, size);
+            size = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            writeChunk();
+            out.writeInt(0);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.snapshot;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a model snapshot written by {@link SnapshotWriter}, section by section.
+ * The checksum of a section is verified over its stored bytes when the section is
+ * opened, before anything is decoded, so a corrupt length or count cannot make the
+ * decoding fail in other ways (or allocate huge arrays) before the corruption is noticed.
+ * <p>
+ * Uncompressed sections are memory-mapped and read directly from the mapping:
+ * arrays are decoded from the page cache without intermediate copies, and only
+ * the pages of sections that are actually read are faulted in. Sections of a
+ * snapshot with a directory (format version 2) can also be opened by name, in
+ * any order, with {@link #openSection(String)}.
+ */
+public final class SnapshotReader {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final int formatVersion;
+    private final List<Section> directory; // null for format version 1
+    private int nextIndex = 0; // in the directory
+    private final ChannelInputStream sequential; // for format version 1, which has no directory
+    private final DataInputStream header;
+
+    // the current section
+    private Section section = null;
+    private MappedByteBuffer mapped;
+    private BoundedCheckedStream stored;
+    private Inflater inflater;
+    private SnapshotInput input;
+
+    public SnapshotReader(final File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        sequential = new ChannelInputStream(channel, 0L);
+        header = new DataInputStream(sequential);
+        try {
+            if (header.readInt() != SnapshotWriter.MAGIC)
+                throw new IOException("Not a model snapshot: " + file.getAbsolutePath());
+            formatVersion = header.readInt();
+            if ((formatVersion < 1) || (formatVersion > SnapshotWriter.FORMAT_VERSION))
+                throw new IOException("Unsupported snapshot format version " + formatVersion + " of " + file.getAbsolutePath());
+            directory = formatVersion >= 2 ? readDirectory(file) : null;
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private List<Section> readDirectory(final File file) throws IOException {
+        final long size = channel.size();
+        if (size < 20)
+            throw new EOFException("Truncated snapshot: " + file.getAbsolutePath());
+        final ByteBuffer footer = ByteBuffer.allocate(12);
+        while (footer.hasRemaining()) {
+            if (channel.read(footer, size - 12 + footer.position()) < 0)
+                throw new EOFException("Truncated snapshot: " + file.getAbsolutePath());
+        }
+        footer.flip();
+        final long directoryPosition = footer.getLong();
+        if ((footer.getInt() != SnapshotWriter.MAGIC) || (directoryPosition < 8) || (directoryPosition > size - 12))
+            throw new IOException("The snapshot " + file.getAbsolutePath() + " is incomplete: no directory of sections");
+        final DataInputStream in = new DataInputStream(new ChannelInputStream(channel, directoryPosition));
+        final int n = in.readInt();
+        final List<Section> sections = new ArrayList<Section>(n);
+        for (int i = 0; i < n; i++) {
+            final String name = in.readUTF();
+            final byte flags = in.readByte();
+            final long offset = in.readLong();
+            final long length = in.readLong();
+            final long crc = in.readLong();
+            if ((offset < 8) || (length < 0) || (offset + length > directoryPosition))
+                throw new IOException("Corrupt directory of the snapshot " + file.getAbsolutePath() + ": section " + name);
+            sections.add(new Section(name, flags, offset, length, crc));
+        }
+        return Collections.unmodifiableList(sections);
+    }
+
+    /**
+     * Returns whether the file is a snapshot in this format (and not e.g. a model
+     * saved with Java serialization by an older version).
+     */
+    public static boolean isSnapshot(final File file) {
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readInt() == SnapshotWriter.MAGIC;
+            }
+            finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * Returns whether the snapshot has a section with the given name. Only snapshots
+     * with a directory can tell; for others this returns false.
+     */
+    public boolean hasSection(final String name) {
+        return find(name) != null;
+    }
+
+    private Section find(final String name) {
+        if (directory == null)
+            return null;
+        for (final Section s : directory) {
+            if (s.name.equals(name))
+                return s;
+        }
+        return null;
+    }
+
+    /**
+     * Begins the next section, which must have the given name.
+     */
+    public SnapshotInput beginSection(final String name) throws IOException {
+        final String next = nextSection();
+        if (!name.equals(next))
+            throw new IOException("Expected section " + name + " in the snapshot, found " + (next == null ? "the end" : next));
+        return input;
+    }
+
+    /**
+     * Begins the section with the given name, regardless of the order of sections.
+     * Requires a snapshot with a directory.
+     */
+    public SnapshotInput openSection(final String name) throws IOException {
+        if (directory == null)
+            throw new IOException("Snapshot format version " + formatVersion + " has no directory of sections");
+        final Section s = find(name);
+        if (s == null)
+            throw new IOException("No section " + name + " in the snapshot");
+        open(s);
+        return input;
+    }
+
+    /**
+     * Begins the next section and returns its name, or null at the end of the snapshot.
+     */
+    public String nextSection() throws IOException {
+        if (section != null)
+            throw new IllegalStateException("Section " + section.name + " was not ended");
+        final Section s;
+        if (directory != null) {
+            if (nextIndex >= directory.size())
+                return null;
+            s = directory.get(nextIndex++);
+        }
+        else {
+            final String name = header.readUTF();
+            if (name.length() == 0)
+                return null;
+            final byte flags = header.readByte();
+            final long length = header.readLong();
+            final long crc = header.readLong();
+            s = new Section(name, flags, sequential.position(), length, crc);
+            sequential.seek(s.offset + length);
+        }
+        open(s);
+        return s.name;
+    }
+
+    private void open(final Section s) throws IOException {
+        if (section != null)
+            throw new IllegalStateException("Section " + section.name + " was not ended");
+        if (((s.flags & SnapshotWriter.FLAG_DEFLATE) == 0) && (s.length <= Integer.MAX_VALUE)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, s.offset, s.length);
+            final CRC32 c = new CRC32();
+            c.update(mapped.duplicate());
+            verify(s, c.getValue());
+            input = new SnapshotInput(mapped);
+        }
+        else {
+            // one pass over the stored bytes for the checksum, another one to decode them
+            final BoundedCheckedStream check = new BoundedCheckedStream(new ChannelInputStream(channel, s.offset), s.length);
+            check.skipRemaining();
+            verify(s, check.crc.getValue());
+            stored = new BoundedCheckedStream(new ChannelInputStream(channel, s.offset), s.length);
+            if ((s.flags & SnapshotWriter.FLAG_DEFLATE) != 0) {
+                inflater = new Inflater();
+                input = new SnapshotInput(new InflaterInputStream(stored, inflater, 65536));
+            }
+            else
+                input = new SnapshotInput(stored);
+        }
+        section = s;
+    }
+
+    private static void verify(final Section s, final long crc) throws IOException {
+        if (crc != s.crc)
+            throw new IOException("Checksum mismatch in section " + s.name + " of the snapshot");
+    }
+
+    public SnapshotInput getInput() {
+        return input;
+    }
+
+    /**
+     * Ends the current section; its checksum was verified when it was opened.
+     */
+    public void endSection() throws IOException {
+        if (section == null)
+            throw new IllegalStateException("No section was begun");
+        section = null;
+        input = null;
+        mapped = null;
+        stored = null;
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    public void close() throws IOException {
+        if (inflater != null)
+            inflater.end();
+        mapped = null;
+        channel.close();
+    }
+
+    /**
+     * An entry of the directory of sections.
+     */
+    static final class Section {
+        final String name;
+        final byte flags;
+        final long offset; // of the stored bytes
+        final long length; // of the stored bytes
+        final long crc;
+
+        Section(final String name, final byte flags, final long offset, final long length, final long crc) {
+            this.name = name;
+            this.flags = flags;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Buffered input from the file channel, with positional reads, so several
+     * streams can read different parts of the file.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long position; // of the end of the buffer in the file
+
+        ChannelInputStream(final FileChannel channel, final long position) {
+            this.channel = channel;
+            this.position = position;
+            buffer.flip(); // empty
+        }
+
+        /**
+         * Returns the position in the file of the next byte to be read.
+         */
+        long position() {
+            return position - buffer.remaining();
+        }
+
+        void seek(final long newPosition) {
+            position = newPosition;
+            buffer.clear();
+            buffer.flip();
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining())
+                return true;
+            buffer.clear();
+            final int n = channel.read(buffer, position);
+            buffer.flip();
+            if (n <= 0)
+                return false;
+            position += n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte [] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    /**
+     * The stored bytes of a section, with their checksum.
+     */
+    private static final class BoundedCheckedStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        final CRC32 crc = new CRC32();
+        private final byte [] skipBuffer = new byte[8192];
+
+        BoundedCheckedStream(final InputStream in, final long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            final int b = in.read();
+            if (b < 0)
+                throw new EOFException("Unexpected end of the snapshot");
+            remaining--;
+            crc.update(b);
+            return b;
+        }
+
+        @Override
+        public int read(final byte [] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (remaining <= 0)
+                return -1;
+            final int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0)
+                throw new EOFException("Unexpected end of the snapshot");
+            remaining -= n;
+            crc.update(b, off, n);
+            return n;
+        }
+
+        void skipRemaining() throws IOException {
+            while (remaining > 0)
+                read(skipBuffer, 0, skipBuffer.length);
+        }
+
+        @Override
+        public void close() {
+            // the file is closed by the reader
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.snapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.gurucue.recommendations.misc.Parallel;
+
+/**
+ * A model snapshot stored as a set of files: one part file per section, so sections
+ * are written and read in parallel, and a manifest that lists the parts of one model
+ * epoch.
+ * <p>
+ * The manifest is itself a snapshot with a single section "manifest", holding the
+ * epoch and the name, file, size and epoch of every part. A part is a snapshot with
+ * one section, whose content starts with the epoch it was written in. Parts are named
+ * after the manifest and their epoch (<code>model.ser.1490000000000.consumers.3</code>),
+ * so the parts of the previous epoch stay untouched until the new manifest replaces
+ * the old one with a rename. Only then the parts of epochs that the manifest does not
+ * refer to are deleted.
+ * <p>
+ * A manifest may refer to parts of earlier epochs that did not change
+ * ({@link Writer#reuse(String, Reader)}); this is how incremental checkpoints only
+ * write what changed since the previous snapshot.
+ */
+public final class SnapshotSet {
+    private static final Logger logger = LogManager.getLogger(SnapshotSet.class);
+    static final String MANIFEST_SECTION = "manifest";
+
+    private SnapshotSet() {}
+
+    /**
+     * Writes one section.
+     */
+    public interface SectionWriter {
+        void write(SnapshotOutput out) throws IOException;
+    }
+
+    /**
+     * Reads one section.
+     */
+    public interface SectionReader<T> {
+        T read(SnapshotInput in) throws IOException;
+    }
+
+    /**
+     * A unit of work that may fail with an IOException; see {@link #invokeAll(List)}.
+     */
+    public interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs the tasks in parallel on the shared pool and waits for all of them.
+     * The first IOException of a task is rethrown.
+     */
+    public static void invokeAll(final List<Task> tasks) throws IOException {
+        final List<Runnable> runnables = new ArrayList<Runnable>(tasks.size());
+        for (final Task task : tasks) {
+            runnables.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+        try {
+            Parallel.invokeAll(runnables);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Encodes the content now, into memory, and returns a writer of the encoded bytes. For
+     * state that may change after the point-in-time view of the model was taken, and that
+     * is not replaced as a whole on commit, so it cannot be captured by reference.
+     */
+    public static SectionWriter capture(final SectionWriter content) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final SnapshotOutput out = new SnapshotOutput(bytes);
+        content.write(out);
+        out.flush();
+        return new SectionWriter() {
+            @Override
+            public void write(final SnapshotOutput target) throws IOException {
+                bytes.writeTo(target);
+            }
+        };
+    }
+
+    /**
+     * A model that is written to a snapshot set: a predictor or a decision module. D is the
+     * data the model is read with, C the change that a read returns, to be committed later.
+     * <p>
+     * {@link #writeTo(SnapshotOutput)} writes the model to a section, and
+     * {@link #readFrom(SnapshotInput, Object)} reads it back. By default they write a block
+     * with {@link #serialize(ObjectOutputStream)} and read it with
+     * {@link #updateModelFromFile(ObjectInputStream, Object)} (see {@link SnapshotSet#writeBlock(Module, SnapshotOutput)});
+     * models with large state override them and write their arrays directly.
+     * <p>
+     * {@link #writeSections(Writer, String, List)} adds the tasks that write the model to a
+     * snapshot set, which are run in parallel. It is called under the model read lock and must
+     * capture the state to write, because the tasks run after the lock is released, while
+     * commits continue. The default is one section with writeTo, encoded into memory right
+     * away (see {@link SnapshotSet#writeSection(Module, Writer, String, List)}); models whose
+     * commits replace their structures instead of changing them may capture references
+     * instead. A composite of other modules may write each of them into its own section,
+     * named after its own. {@link #readSections(Reader, String, Object)} reads what it wrote.
+     */
+    public interface Module<D, C> {
+        void serialize(ObjectOutputStream out) throws IOException;
+
+        C updateModelFromFile(ObjectInputStream in, D data) throws ClassNotFoundException, IOException;
+
+        void writeTo(SnapshotOutput out) throws IOException;
+
+        C readFrom(SnapshotInput in, D data) throws IOException;
+
+        void writeSections(Writer set, String name, List<Task> tasks) throws IOException;
+
+        C readSections(Reader set, String name, D data) throws IOException;
+    }
+
+    /**
+     * Writes the module as a block of Java serialization, the default of {@link Module#writeTo(SnapshotOutput)}.
+     */
+    public static void writeBlock(final Module<?, ?> module, final SnapshotOutput out) throws IOException {
+        final ObjectOutputStream block = new ObjectOutputStream(out.beginBlock());
+        module.serialize(block);
+        block.close();
+    }
+
+    /**
+     * Reads the module from a block written with {@link #writeBlock(Module, SnapshotOutput)}.
+     */
+    public static <D, C> C readBlock(final Module<D, C> module, final SnapshotInput in, final D data) throws IOException {
+        final InputStream block = in.openBlock();
+        try {
+            return module.updateModelFromFile(new ObjectInputStream(block), data);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in the saved model: " + e.getMessage(), e);
+        }
+        finally {
+            block.close();
+        }
+    }
+
+    /**
+     * Adds the task that writes the content into one section. The content may only refer to
+     * state captured by the caller, the task runs while commits continue.
+     */
+    public static void addSection(final Writer set, final String name, final List<Task> tasks, final SectionWriter content) {
+        tasks.add(new Task() {
+            @Override
+            public void run() throws IOException {
+                set.section(name, content);
+            }
+        });
+    }
+
+    /**
+     * Captures the module with {@link #capture(SectionWriter)} and adds the task that writes
+     * it into one section, the default of {@link Module#writeSections(Writer, String, List)}.
+     */
+    public static void writeSection(final Module<?, ?> module, final Writer set, final String name, final List<Task> tasks) throws IOException {
+        addSection(set, name, tasks, capture(new SectionWriter() {
+            @Override
+            public void write(final SnapshotOutput out) throws IOException {
+                module.writeTo(out);
+            }
+        }));
+    }
+
+    /**
+     * Reads the module from the section written with {@link #writeSection(Module, Writer, String, List)}.
+     */
+    public static <D, C> C readSection(final Module<D, C> module, final Reader set, final String name, final D data) throws IOException {
+        return set.section(name, new SectionReader<C>() {
+            @Override
+            public C read(final SnapshotInput in) throws IOException {
+                return module.readFrom(in, data);
+            }
+        });
+    }
+
+    /**
+     * Returns whether the file is the manifest of a snapshot set.
+     */
+    public static boolean isManifest(final File file) {
+        if (!SnapshotReader.isSnapshot(file))
+            return false;
+        try {
+            final SnapshotReader reader = new SnapshotReader(file);
+            try {
+                return reader.hasSection(MANIFEST_SECTION);
+            }
+            finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String partName(final File manifest, final long epoch, final String section) {
+        return manifest.getName() + "." + epoch + "." + section;
+    }
+
+    /**
+     * Writes the parts of a new epoch; {@link #commit()} publishes them.
+     * {@link #section(String, SectionWriter)} may be called from several threads.
+     */
+    public static final class Writer {
+        private final File manifest;
+        private final long epoch;
+        private final boolean compress;
+        private final Map<String, Part> parts = new LinkedHashMap<String, Part>();
+        private final Set<String> claimed = new HashSet<String>();
+
+        /**
+         * @param manifest the file that will be the manifest; it is written as manifest.tmp and renamed
+         * @param epoch the model epoch, which must differ from the epoch of the current manifest
+         * @param compress whether to deflate the sections
+         */
+        public Writer(final File manifest, final long epoch, final boolean compress) {
+            this.manifest = manifest;
+            this.epoch = epoch;
+            this.compress = compress;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public void section(final String name, final SectionWriter content) throws IOException {
+            final File part = new File(manifest.getAbsoluteFile().getParentFile(), partName(manifest, epoch, name));
+            synchronized (parts) {
+                if (parts.containsKey(name))
+                    throw new IllegalArgumentException("Section " + name + " was already written");
+                parts.put(name, new Part(part, epoch));
+            }
+            final SnapshotWriter writer = new SnapshotWriter(part, compress);
+            try {
+                final SnapshotOutput out = writer.beginSection(name);
+                out.writeLong(epoch);
+                content.write(out);
+                writer.endSection();
+                writer.close();
+            }
+            catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+        }
+
+        /**
+         * Claims a section shared by several modules, such as the state they all derive from;
+         * returns true only for the first claim, whose caller writes the section.
+         */
+        public boolean claim(final String name) {
+            synchronized (claimed) {
+                return claimed.add(name);
+            }
+        }
+
+        /**
+         * Refers to the part of a section of a previous snapshot, instead of writing it again.
+         */
+        public void reuse(final String name, final Reader previous) throws IOException {
+            final Part part = previous.parts.get(name);
+            if (part == null)
+                throw new IOException("No section " + name + " in the previous snapshot");
+            synchronized (parts) {
+                if (parts.containsKey(name))
+                    throw new IllegalArgumentException("Section " + name + " was already written");
+                parts.put(name, part);
+            }
+        }
+
+        /**
+         * Refers to all sections of a previous snapshot with the given name or with names
+         * starting with the name and a dot (nested sections, see Predictor.writeSections).
+         */
+        public void reuseAll(final String name, final Reader previous) throws IOException {
+            for (final String section : previous.parts.keySet()) {
+                if (section.equals(name) || section.startsWith(name + "."))
+                    reuse(section, previous);
+            }
+        }
+
+        /**
+         * Writes the manifest, renames it over the previous one and deletes the parts
+         * of epochs that it does not refer to.
+         */
+        public void commit() throws IOException {
+            final File tmp = new File(manifest.getPath() + ".tmp");
+            final SnapshotWriter writer = new SnapshotWriter(tmp, false);
+            try {
+                final SnapshotOutput out = writer.beginSection(MANIFEST_SECTION);
+                out.writeLong(epoch);
+                synchronized (parts) {
+                    out.writeInt(parts.size());
+                    for (final Map.Entry<String, Part> entry : parts.entrySet()) {
+                        out.writeString(entry.getKey());
+                        out.writeString(entry.getValue().file.getName());
+                        out.writeLong(entry.getValue().file.length());
+                        out.writeLong(entry.getValue().epoch);
+                    }
+                }
+                writer.endSection();
+                writer.close();
+            }
+            catch (IOException | RuntimeException e) {
+                writer.abort();
+                tmp.delete();
+                throw e;
+            }
+            if (!tmp.renameTo(manifest)) {
+                tmp.delete();
+                throw new IOException("Failed to rename " + tmp.getPath() + " to " + manifest.getPath());
+            }
+            final Set<Long> referenced = new HashSet<Long>();
+            synchronized (parts) {
+                for (final Part part : parts.values())
+                    referenced.add(part.epoch);
+            }
+            deleteOtherEpochs(manifest, referenced);
+        }
+
+        /**
+         * Deletes the parts written so far, after a failure; the previous manifest remains valid.
+         */
+        public void abort() {
+            synchronized (parts) {
+                for (final Part part : parts.values()) {
+                    if (part.epoch == epoch)
+                        part.file.delete();
+                }
+                parts.clear();
+            }
+        }
+    }
+
+    private static void deleteOtherEpochs(final File manifest, final Set<Long> referenced) {
+        final File dir = manifest.getAbsoluteFile().getParentFile();
+        final Pattern partPattern = Pattern.compile(Pattern.quote(manifest.getName()) + "\\.(\\d+)\\..+");
+        final File [] stale = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File d, final String name) {
+                final Matcher m = partPattern.matcher(name);
+                return m.matches() && !referenced.contains(Long.valueOf(m.group(1)));
+            }
+        });
+        if (stale == null)
+            return;
+        for (final File f : stale) {
+            if (!f.delete())
+                logger.warn("Failed to delete a part of an old snapshot: " + f.getPath());
+        }
+    }
+
+    /**
+     * A part file and the epoch it was written in.
+     */
+    private static final class Part {
+        final File file;
+        final long epoch;
+
+        Part(final File file, final long epoch) {
+            this.file = file;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * Reads the parts listed in a manifest. {@link #section(String, SectionReader)} may be
+     * called from several threads.
+     */
+    public static final class Reader {
+        private final File manifest;
+        private final long epoch;
+        private final Map<String, Part> parts;
+
+        public Reader(final File manifest) throws IOException {
+            this.manifest = manifest;
+            final SnapshotReader reader = new SnapshotReader(manifest);
+            try {
+                final SnapshotInput in = reader.openSection(MANIFEST_SECTION);
+                epoch = in.readLong();
+                final int n = in.readInt();
+                final Map<String, Part> p = new HashMap<String, Part>(n * 2);
+                final File dir = manifest.getAbsoluteFile().getParentFile();
+                for (int i = 0; i < n; i++) {
+                    final String name = in.readString();
+                    final File part = new File(dir, in.readString());
+                    final long size = in.readLong();
+                    final long partEpoch = in.readLong();
+                    if (part.length() != size)
+                        throw new IOException("Part " + part.getPath() + " of the snapshot " + manifest.getPath() + " is missing or has a wrong size");
+                    p.put(name, new Part(part, partEpoch));
+                }
+                reader.endSection();
+                parts = Collections.unmodifiableMap(p);
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public File getManifest() {
+            return manifest;
+        }
+
+        public boolean hasSection(final String name) {
+            return parts.containsKey(name);
+        }
+
+        public <T> T section(final String name, final SectionReader<T> content) throws IOException {
+            final Part part = parts.get(name);
+            if (part == null)
+                throw new IOException("No section " + name + " in the snapshot " + manifest.getPath());
+            final SnapshotReader reader = new SnapshotReader(part.file);
+            try {
+                final SnapshotInput in = reader.openSection(name);
+                final long partEpoch = in.readLong();
+                if (partEpoch != part.epoch)
+                    throw new IOException("Part " + part.file.getPath() + " belongs to epoch " + partEpoch + ", the manifest expects " + part.epoch);
+                final T result;
+                try {
+                    result = content.read(in);
+                }
+                catch (RuntimeException e) {
+                    // the checksum matched, but the content does not decode
+                    throw new IOException("Corrupt section " + name + " in " + part.file.getPath() + ": " + e.toString(), e);
+                }
+                reader.endSection();
+                return result;
+            }
+            finally {
+                reader.close();
+            }
+        }
+    }
+}
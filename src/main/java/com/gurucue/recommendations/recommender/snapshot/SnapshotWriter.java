@@ -0,0 +1,244 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.snapshot;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a model snapshot: a file header followed by named sections.
+ * <p>
+ * File layout: magic (int), format version (int), then sections, each with
+ * its name, flags (byte), the length (long) and CRC32 (long) of the stored
+ * bytes, followed by the stored bytes, which are deflated if the flags say so.
+ * A section with an empty name ends the sections. Lengths and checksums are filled
+ * in when a section ends, so sections are streamed and never held in memory.
+ * <p>
+ * Since version 2 the sections are followed by a directory: the number of sections
+ * and for each its name, flags, and the position, length and CRC32 of its stored
+ * bytes; the file ends with the position of the directory (long) and the magic.
+ * A reader finds any section without scanning the file, and maps the stored bytes
+ * of uncompressed sections directly (see {@link SnapshotReader}).
+ * <p>
+ * Usage: for each section {@link #beginSection(String)}, write to the returned
+ * output, {@link #endSection()}; finally {@link #close()}, which also syncs the file.
+ */
+public final class SnapshotWriter {
+    public static final int MAGIC = 0x4743534E; // "GCSN"
+    public static final int FORMAT_VERSION = 2;
+    static final byte FLAG_DEFLATE = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ChannelOutputStream file;
+    private final DataOutputStream header;
+    private final boolean compress;
+    private final List<SnapshotReader.Section> directory = new ArrayList<SnapshotReader.Section>();
+
+    // the current section
+    private String sectionName = null;
+    private long sectionHeaderPosition;
+    private CheckedCountingStream stored;
+    private Deflater deflater;
+    private DeflaterOutputStream deflated;
+    private SnapshotOutput output;
+
+    /**
+     * @param compress whether to deflate the sections (with the fastest compression level)
+     */
+    public SnapshotWriter(final File file, final boolean compress) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.file = new ChannelOutputStream(channel);
+        this.header = new DataOutputStream(this.file);
+        this.compress = compress;
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+    }
+
+    public SnapshotOutput beginSection(final String name) throws IOException {
+        if (sectionName != null)
+            throw new IllegalStateException("Section " + sectionName + " was not ended");
+        if ((name == null) || (name.length() == 0))
+            throw new IllegalArgumentException("A section must have a name");
+        sectionName = name;
+        header.writeUTF(name);
+        header.writeByte(compress ? FLAG_DEFLATE : 0);
+        header.flush();
+        sectionHeaderPosition = file.position();
+        header.writeLong(0L); // length, filled in by endSection()
+        header.writeLong(0L); // checksum
+        stored = new CheckedCountingStream(file);
+        if (compress) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflated = new DeflaterOutputStream(stored, deflater, 65536);
+            output = new SnapshotOutput(deflated);
+        }
+        else
+            output = new SnapshotOutput(stored);
+        return output;
+    }
+
+    public void endSection() throws IOException {
+        if (sectionName == null)
+            throw new IllegalStateException("No section was begun");
+        output.flush();
+        if (deflated != null) {
+            deflated.finish();
+            deflater.end();
+            deflated = null;
+            deflater = null;
+        }
+        file.flush();
+        final ByteBuffer lengths = ByteBuffer.allocate(16);
+        lengths.putLong(stored.count);
+        lengths.putLong(stored.crc.getValue());
+        lengths.flip();
+        long position = sectionHeaderPosition;
+        while (lengths.hasRemaining())
+            position += channel.write(lengths, position);
+        directory.add(new SnapshotReader.Section(sectionName, compress ? FLAG_DEFLATE : (byte) 0, sectionHeaderPosition + 16, stored.count, stored.crc.getValue()));
+        sectionName = null;
+        stored = null;
+        output = null;
+    }
+
+    /**
+     * Ends the snapshot with the directory of sections and forces it to the storage device.
+     */
+    public void close() throws IOException {
+        try {
+            if (sectionName != null)
+                throw new IllegalStateException("Section " + sectionName + " was not ended");
+            header.writeUTF("");
+            header.flush();
+            final long directoryPosition = file.position();
+            header.writeInt(directory.size());
+            for (final SnapshotReader.Section section : directory) {
+                header.writeUTF(section.name);
+                header.writeByte(section.flags);
+                header.writeLong(section.offset);
+                header.writeLong(section.length);
+                header.writeLong(section.crc);
+            }
+            header.writeLong(directoryPosition);
+            header.writeInt(MAGIC);
+            header.flush();
+            channel.force(true);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the file without ending it, after a failure.
+     */
+    public void abort() {
+        if (deflater != null)
+            deflater.end();
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Buffered output to the file channel, which knows its position in the file.
+     */
+    private static final class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelOutputStream(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() throws IOException {
+            return channel.position() + buffer.position();
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!buffer.hasRemaining())
+                flush();
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte [] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining())
+                    flush();
+                final int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Counts the stored bytes of a section and computes their checksum.
+     */
+    private static final class CheckedCountingStream extends OutputStream {
+        private final OutputStream out;
+        final CRC32 crc = new CRC32();
+        long count = 0;
+
+        CheckedCountingStream(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte [] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // the file is flushed when the section ends
+        }
+    }
+}
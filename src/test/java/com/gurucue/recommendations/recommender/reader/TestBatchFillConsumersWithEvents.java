@@ -0,0 +1,260 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.reader;
+
+import com.gurucue.recommendations.recommender.dto.ConsumerData;
+import com.gurucue.recommendations.recommender.dto.ConsumerEventsData;
+import com.gurucue.recommendations.recommender.dto.ConsumerIDMap;
+import com.gurucue.recommendations.recommender.dto.DataStore;
+import com.gurucue.recommendations.recommender.dto.EventsDataDescriptor;
+import com.gurucue.recommendations.recommender.dto.ProductData;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads batches of events with {@link JdbcProviderReader#batchFillConsumersWithEvents}, once
+ * sequentially and once with event types and ranges of IDs read on their own threads, and
+ * checks that both give the same consumer indices, events and read positions. The events come
+ * from in-memory tables, through the statements of {@link JdbcProviderReader#queryEvents}.
+ */
+public class TestBatchFillConsumersWithEvents {
+    private static final String [] EVENTS = {"buys", "views"};
+    private static final long MAX_EVENT = 5000L;
+    private static final int BATCH_SIZE = 1800;
+    private static final int PRODUCTS = 30;
+
+    // rows of each event type: event ID, consumer ID, product ID, date in milliseconds
+    private final Map<String, List<long[]>> tables = new HashMap<String, List<long[]>>();
+
+    @Before
+    public void createEvents() {
+        final Random random = new Random(42L);
+        for (int i = 0; i < EVENTS.length; i++) {
+            final List<long[]> rows = new ArrayList<long[]>();
+            // consumers of the event types overlap, some of them have only views
+            final long firstConsumer = 1000L + 40L * i;
+            for (long id = 1L + random.nextInt(3); id < MAX_EVENT + 200L; id += 1L + random.nextInt(3)) {
+                final long date = 1500000000000L + id * 60000L + random.nextInt(120) * 1000L;
+                rows.add(new long[] {id, firstConsumer + random.nextInt(80), 1L + random.nextInt(PRODUCTS), date});
+            }
+            tables.put(EVENTS[i], rows);
+        }
+    }
+
+    @Test
+    public void testParallelReadingMatchesSequential() {
+        final Map<String, String> sequential = settings();
+        sequential.put("EVENTS_READ_THREADS", "1");
+        final Map<String, String> parallel = settings();
+        parallel.put("EVENTS_READ_THREADS", "4");
+        for (final String e : EVENTS) {
+            parallel.put(e + "_READ_PARALLELISM", "3");
+            parallel.put(e + "_READ_PARALLEL_MIN_RANGE", "100");
+        }
+
+        final List<List<String>> expected = readAll(sequential);
+        final List<List<String>> actual = readAll(parallel);
+        assertEquals("number of batches", expected.size(), actual.size());
+        for (int b = 0; b < expected.size(); b++)
+            assertEquals("batch " + b, expected.get(b), actual.get(b));
+
+        // all events up to the max event ID were read, each one once
+        int events = 0;
+        for (final String e : EVENTS)
+            for (final long [] row : tables.get(e))
+                if (row[0] <= MAX_EVENT)
+                    events++;
+        assertEquals(events, countEvents(actual));
+    }
+
+    private Map<String, String> settings() {
+        final Map<String, String> settings = new HashMap<String, String>();
+        settings.put("EVENTS", "buys;views");
+        for (final String e : EVENTS) {
+            settings.put(e + "_TYPE", "buys");
+            settings.put(e + "_META", "date");
+            settings.put(e + "_START_ID", "0");
+            settings.put(e + "_BATCH_SIZE", String.valueOf(BATCH_SIZE));
+            settings.put(e + "_KEEP_CONSUMER_MEMORY_NUM", "-1");
+            settings.put(e + "_SQL", e);
+            settings.put(e + "_MAX_EVENT", String.valueOf(MAX_EVENT));
+        }
+        return settings;
+    }
+
+    /**
+     * Reads all batches with the given settings, committing the new consumers of each batch.
+     * Returns the consumers of each batch in the order of their indices, with their events, and
+     * the read positions after the batch.
+     */
+    private List<List<String>> readAll(final Map<String, String> settings) {
+        final JdbcProviderReader reader = new TableReader(settings);
+        final TLongIntHashMap productIDs = new TLongIntHashMap(64, 0.8f, -1L, -1);
+        for (int p = 1; p <= PRODUCTS; p++)
+            productIDs.put(p, p - 1);
+        final ConsumerIDMap consumerIDs = new ConsumerIDMap(16);
+        final DataStore dataStore = new DataStore(reader, new ArrayList<ProductData>(), new ArrayList<ConsumerData>(), consumerIDs, productIDs, null) {};
+        final Map<String, EventsDataDescriptor> descriptors = new HashMap<String, EventsDataDescriptor>();
+        for (final String e : EVENTS)
+            descriptors.put(e, dataStore.getEventsDescriptor(e).createPartial());
+
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        boolean finished = false;
+        while (!finished) {
+            assertTrue("too many batches", batches.size() < 10);
+            final ConsumerIDMap.Overlay newConsumerIDs = consumerIDs.overlay();
+            final List<ConsumerData> newConsumers = new ArrayList<ConsumerData>();
+            for (int i = newConsumerIDs.size(); i > 0; i--)
+                newConsumers.add(null);
+            finished = reader.batchFillConsumersWithEvents(new ArrayList<ConsumerData>(), newConsumers, newConsumerIDs, productIDs, descriptors);
+
+            final List<String> batch = new ArrayList<String>();
+            for (int i = 0; i < newConsumers.size(); i++) {
+                final ConsumerData consumer = newConsumers.get(i);
+                if (consumer == null)
+                    continue;
+                assertEquals(i, newConsumerIDs.get(consumer.consumerId));
+                final StringBuilder line = new StringBuilder();
+                line.append(i).append(": ").append(consumer.consumerId);
+                for (final String e : EVENTS) {
+                    final ConsumerEventsData events = consumer.events[descriptors.get(e).index];
+                    line.append(' ').append(e).append('=');
+                    if (events != null)
+                        line.append(Arrays.toString(events.getProductIndices())).append(Arrays.toString(events.getMeta().getLongValuesArray(0)));
+                }
+                batch.add(line.toString());
+            }
+            for (final String e : EVENTS)
+                batch.add(e + " read to " + descriptors.get(e).last_read_id + " at " + descriptors.get(e).last_read_date);
+            batches.add(batch);
+            newConsumerIDs.publish();
+        }
+        return batches;
+    }
+
+    private static int countEvents(final List<List<String>> batches) {
+        int n = 0;
+        for (final List<String> batch : batches)
+            for (final String line : batch) {
+                // product indices of all event types of the consumer
+                int from = 0;
+                while ((from = line.indexOf("=[", from)) >= 0) {
+                    from += 2;
+                    final String indices = line.substring(from, line.indexOf(']', from));
+                    if (indices.length() > 0)
+                        n += indices.split(",").length;
+                }
+            }
+        return n;
+    }
+
+    /**
+     * Reads events from the tables instead of the database; the SQL of an event type is its name,
+     * the query returns the rows with IDs after the first parameter, up to the second one.
+     */
+    private class TableReader extends JdbcProviderReader {
+        TableReader(final Map<String, String> settings) {
+            super(1L, settings);
+        }
+
+        @Override
+        Long queryEvents(final String sql, final ArgumentsForFillConsumersWithEvents arguments) {
+            try {
+                return fillConsumersWithEvents.process(statement(tables.get(sql)), arguments);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static PreparedStatement statement(final List<long[]> table) {
+        final long [] parameters = new long[2];
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("setLong")) {
+                    parameters[(Integer) args[0] - 1] = (Long) args[1];
+                    return null;
+                }
+                if (method.getName().equals("setFetchSize") || method.getName().equals("close"))
+                    return null;
+                if (method.getName().equals("executeQuery")) {
+                    final List<long[]> rows = new ArrayList<long[]>();
+                    for (final long [] row : table)
+                        if ((row[0] > parameters[0]) && (row[0] <= parameters[1]))
+                            rows.add(row);
+                    return resultSet(rows);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static ResultSet resultSet(final List<long[]> rows) {
+        final ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("getColumnCount"))
+                    return 4;
+                if (method.getName().equals("getColumnType"))
+                    return ((Integer) args[0] == 4) ? Types.TIMESTAMP : Types.BIGINT;
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        final int [] position = {-1};
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("next"))
+                    return ++position[0] < rows.size();
+                if (method.getName().equals("getLong"))
+                    return rows.get(position[0])[(Integer) args[0] - 1];
+                if (method.getName().equals("getTimestamp"))
+                    return new Timestamp(rows.get(position[0])[(Integer) args[0] - 1]);
+                if (method.getName().equals("wasNull"))
+                    return false;
+                if (method.getName().equals("getMetaData"))
+                    return metaData;
+                if (method.getName().equals("close"))
+                    return null;
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}